@@ -0,0 +1,46 @@
+package com.mg.booth.ai;
+
+import com.mg.booth.domain.Session;
+
+import java.nio.file.Path;
+
+/**
+ * AI engine SPI.
+ *
+ * An engine turns the captured raw of a session into preview/final images.
+ * Implementations are Spring beans picked up by AiEngineRouter, which chooses one per
+ * template (manifest.json / ai.json "engine") and falls back to another when degraded.
+ */
+public interface AiEngine {
+
+  String GATEWAY_V1 = "gateway_v1";
+  String GATEWAY_V2 = "gateway_v2";
+  String LOCAL_COMPOSE = "local_compose";
+
+  /**
+   * Engine id as used in manifest.json / ai.json "engine" (e.g. gateway_v1, gateway_v2).
+   */
+  String id();
+
+  /**
+   * Whether this engine can process the given template at all (e.g. installed / known).
+   */
+  boolean supports(String templateId);
+
+  /**
+   * Whether the result must be confirmed by the guest (PREVIEW state) before delivery.
+   * Engines returning false are delivered automatically once finalUrl is set.
+   */
+  boolean requiresConfirm();
+
+  /**
+   * Process the session.
+   * On success previewUrl/finalUrl are set on the session; failures are either thrown
+   * or recorded as session.error.
+   *
+   * @param session Session in PROCESSING state
+   * @param rawPath Captured raw file
+   * @param attemptIndex Current attempt index
+   */
+  void process(Session session, Path rawPath, int attemptIndex) throws Exception;
+}
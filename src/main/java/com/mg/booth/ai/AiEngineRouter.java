@@ -0,0 +1,291 @@
+package com.mg.booth.ai;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mg.booth.config.AppProps;
+import com.mg.booth.device.TemplateUsageTracker;
+import com.mg.booth.domain.Session;
+import com.mg.booth.domain.V2TemplateRef;
+import com.mg.booth.exception.ApiException;
+import com.mg.booth.service.TemplateManifestService;
+import com.mg.booth.service.TemplateResolveService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes a session to an AI engine.
+ *
+ * Engine choice per template:
+ * 1) manifest.json "engine" of the installed template
+ * 2) ai.json "engine"
+ * 3) app.ai.mode (v1 -> gateway_v1, v2 -> gateway_v2)
+ * Templates routed to pipeline v2 whose rules.json disables segmentation are rendered by
+ * the local compose engine instead (app.engines.localFastPath).
+ *
+ * Each engine has its own concurrency budget (Semaphore) and sliding-window health.
+ * When the preferred engine is degraded or has no free slot, the session goes to another
+ * engine that supports the template (app.engines.fallbackEnabled); the local compose
+ * engine is tried first since it needs no network.
+ *
+ * Every routed session records a use of the installed template version in
+ * TemplateUsageTracker (LRU input for the template GC); routing lookups such as
+ * {@link #preferredEngine(String)} from the canary do not.
+ */
+@Service
+public class AiEngineRouter {
+
+  private static final Logger log = LoggerFactory.getLogger(AiEngineRouter.class);
+
+  private final Map<String, Slot> slots = new LinkedHashMap<>();
+  private final TemplateResolveService templateResolveService;
+  private final TemplateManifestService manifestService;
+  private final TemplateUsageTracker usageTracker;
+  private final AppProps appProps;
+
+  // 真实会话的在途数与最近一次活动时间（供预热任务判断空闲）
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile long lastActivityAtMs = System.currentTimeMillis();
+
+  public AiEngineRouter(
+      List<AiEngine> engines,
+      TemplateResolveService templateResolveService,
+      TemplateManifestService manifestService,
+      TemplateUsageTracker usageTracker,
+      AppProps appProps
+  ) {
+    this.templateResolveService = templateResolveService;
+    this.manifestService = manifestService;
+    this.usageTracker = usageTracker;
+    this.appProps = appProps;
+
+    AppProps.Engines cfg = appProps.getEngines();
+    for (AiEngine engine : engines) {
+      int budget = switch (engine.id()) {
+        case AiEngine.GATEWAY_V1 -> cfg.getV1MaxConcurrent();
+        case AiEngine.LOCAL_COMPOSE -> cfg.getLocalMaxConcurrent();
+        default -> cfg.getV2MaxConcurrent();
+      };
+      slots.put(engine.id(), new Slot(engine, budget, cfg.getHealthWindow()));
+    }
+    log.info("[ai-router] Engines: {}", slots.keySet());
+  }
+
+  /**
+   * Run AI processing for the session on the routed engine.
+   *
+   * @return the engine that processed the session (caller uses requiresConfirm())
+   */
+  public AiEngine process(Session s, Path rawPath, int attemptIndex) throws Exception {
+    String templateId = s.getTemplateId();
+    inFlight.incrementAndGet();
+    lastActivityAtMs = System.currentTimeMillis();
+    try {
+      return route(s, rawPath, attemptIndex, templateId);
+    } finally {
+      inFlight.decrementAndGet();
+      lastActivityAtMs = System.currentTimeMillis();
+    }
+  }
+
+  private AiEngine route(Session s, Path rawPath, int attemptIndex, String templateId) throws Exception {
+    V2TemplateRef ref = resolveInstalled(templateId);
+    String preferred = preferredEngine(templateId, ref);
+    Slot slot = acquire(preferred, templateId);
+    // 仅真实会话记录模板使用时间（预热、路由探测不计入）
+    if (ref != null) {
+      usageTracker.touch(ref.getTemplateCode(), ref.getVersionSemver());
+    }
+
+    if (!slot.engine.id().equals(preferred)) {
+      log.warn("[ai-router] Routed to fallback engine: sessionId={}, templateId={}, preferred={}, engine={}",
+          s.getSessionId(), templateId, preferred, slot.engine.id());
+    }
+
+    long startNs = System.nanoTime();
+    boolean ok = false;
+    try {
+      slot.engine.process(s, rawPath, attemptIndex);
+      ok = s.getError() == null && s.getFinalUrl() != null;
+      return slot.engine;
+    } finally {
+      long elapsedMs = (System.nanoTime() - startNs) / 1_000_000L;
+      slot.health.record(ok, elapsedMs);
+      slot.permits.release();
+      log.info("[ai-router] sessionId={}, engine={}, ok={}, elapsedMs={}",
+          s.getSessionId(), slot.engine.id(), ok, elapsedMs);
+    }
+  }
+
+  /**
+   * Engine id preferred for a template (manifest -> ai.json -> app.ai.mode).
+   */
+  public String preferredEngine(String templateId) {
+    return preferredEngine(templateId, resolveInstalled(templateId));
+  }
+
+  private V2TemplateRef resolveInstalled(String templateId) {
+    try {
+      return templateResolveService.resolveForV2(templateId);
+    } catch (ApiException e) {
+      // 未安装的模板只能按 app.ai.mode 处理
+      return null;
+    }
+  }
+
+  private String preferredEngine(String templateId, V2TemplateRef ref) {
+    if (ref != null) {
+      String code = ref.getTemplateCode();
+      String ver = ref.getVersionSemver();
+      Optional<String> declared = engineOf(manifestService.readManifest(code, ver))
+          .or(() -> engineOf(manifestService.readAiConfig(code, ver)));
+      String id = declared.filter(slots::containsKey).orElseGet(this::modeEngine);
+
+      // 不需要抠图的模板直接在本机合成
+      if (AiEngine.GATEWAY_V2.equals(id) && appProps.getEngines().isLocalFastPath()
+          && segmentationDisabled(code, ver) && slots.containsKey(AiEngine.LOCAL_COMPOSE)
+          && slots.get(AiEngine.LOCAL_COMPOSE).engine.supports(templateId)) {
+        return AiEngine.LOCAL_COMPOSE;
+      }
+      return id;
+    }
+
+    return modeEngine();
+  }
+
+  private String modeEngine() {
+    String id = normalize(appProps.getAi().getMode());
+    return slots.containsKey(id) ? id : slots.keySet().iterator().next();
+  }
+
+  private boolean segmentationDisabled(String code, String ver) {
+    return manifestService.readRules(code, ver)
+        .map(r -> r.path("segmentation").path("enabled"))
+        .map(n -> n.isBoolean() && !n.asBoolean())
+        .orElse(false);
+  }
+
+  /**
+   * Number of sessions currently being processed by any engine.
+   */
+  public int inFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Time of the last real job start/finish (epoch ms).
+   */
+  public long lastActivityAtMs() {
+    return lastActivityAtMs;
+  }
+
+  /**
+   * Engine state for /local/metrics/engines.
+   */
+  public Map<String, Object> snapshot() {
+    AppProps.Engines cfg = appProps.getEngines();
+    Map<String, Object> out = new LinkedHashMap<>();
+    slots.forEach((id, slot) -> {
+      Map<String, Object> m = new LinkedHashMap<>(slot.health.snapshot());
+      m.put("maxConcurrent", slot.budget);
+      m.put("inFlight", slot.budget - slot.permits.availablePermits());
+      m.put("degraded", isDegraded(slot, cfg));
+      out.put(id, m);
+    });
+    return out;
+  }
+
+  private Slot acquire(String preferred, String templateId) throws InterruptedException {
+    AppProps.Engines cfg = appProps.getEngines();
+    long now = System.currentTimeMillis();
+
+    List<Slot> order = new ArrayList<>();
+    order.add(slots.get(preferred));
+    if (cfg.isFallbackEnabled()) {
+      // 本机合成不依赖网络，作为首选回退
+      Slot local = slots.get(AiEngine.LOCAL_COMPOSE);
+      if (local != null && !AiEngine.LOCAL_COMPOSE.equals(preferred) && local.engine.supports(templateId)) {
+        order.add(local);
+      }
+      for (Slot slot : slots.values()) {
+        if (slot != local && !slot.engine.id().equals(preferred) && slot.engine.supports(templateId)) {
+          order.add(slot);
+        }
+      }
+    }
+
+    // 降级的引擎只在探测间隔到达时放行一次；全部降级时仍按原顺序尝试
+    List<Slot> usable = new ArrayList<>();
+    for (Slot slot : order) {
+      if (!isDegraded(slot, cfg) || slot.health.tryProbe(now, cfg.getProbeIntervalMs())) {
+        usable.add(slot);
+      }
+    }
+    if (usable.isEmpty()) {
+      usable = order;
+    }
+
+    for (Slot slot : usable) {
+      if (slot.permits.tryAcquire()) {
+        slot.health.markAttempt(now);
+        return slot;
+      }
+    }
+
+    Slot first = usable.get(0);
+    if (first.permits.tryAcquire(cfg.getAcquireTimeoutMs(), TimeUnit.MILLISECONDS)) {
+      first.health.markAttempt(System.currentTimeMillis());
+      return first;
+    }
+    throw new RuntimeException("AI engine busy: " + first.engine.id()
+        + " has no free slot within " + cfg.getAcquireTimeoutMs() + "ms");
+  }
+
+  private boolean isDegraded(Slot slot, AppProps.Engines cfg) {
+    return slot.health.isDegraded(cfg.getMinSamples(), cfg.getMinSuccessRate(), cfg.getMaxP90LatencyMs());
+  }
+
+  private Optional<String> engineOf(Optional<JsonNode> json) {
+    return json
+        .map(j -> j.path("engine").asText(""))
+        .filter(e -> !e.isBlank())
+        .map(AiEngineRouter::normalize);
+  }
+
+  static String normalize(String engine) {
+    String e = engine != null ? engine.trim().toLowerCase() : "";
+    if ("v1".equals(e) || AiEngine.GATEWAY_V1.equals(e)) {
+      return AiEngine.GATEWAY_V1;
+    }
+    if ("v2".equals(e) || "pipeline_v2".equals(e) || AiEngine.GATEWAY_V2.equals(e)) {
+      return AiEngine.GATEWAY_V2;
+    }
+    if ("local".equals(e) || AiEngine.LOCAL_COMPOSE.equals(e)) {
+      return AiEngine.LOCAL_COMPOSE;
+    }
+    return e;
+  }
+
+  private static final class Slot {
+    private final AiEngine engine;
+    private final int budget;
+    private final Semaphore permits;
+    private final EngineHealth health;
+
+    private Slot(AiEngine engine, int budget, int window) {
+      this.engine = engine;
+      this.budget = budget;
+      this.permits = new Semaphore(budget);
+      this.health = new EngineHealth(window);
+    }
+  }
+}
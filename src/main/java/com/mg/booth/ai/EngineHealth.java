@@ -0,0 +1,80 @@
+package com.mg.booth.ai;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sliding-window health of one AI engine: outcome and latency of the last N calls.
+ *
+ * An engine is degraded when, with enough samples, its success rate falls below the
+ * threshold or its p90 latency exceeds the limit. A degraded engine receives no traffic
+ * except one probe call per probe interval, so it can recover once it is healthy again.
+ */
+class EngineHealth {
+
+  private final boolean[] success;
+  private final long[] latencyMs;
+  private int size;
+  private int next;
+  private long lastAttemptAtMs;
+
+  EngineHealth(int window) {
+    this.success = new boolean[window];
+    this.latencyMs = new long[window];
+  }
+
+  synchronized void record(boolean ok, long elapsedMs) {
+    success[next] = ok;
+    latencyMs[next] = elapsedMs;
+    next = (next + 1) % success.length;
+    if (size < success.length) {
+      size++;
+    }
+  }
+
+  synchronized boolean isDegraded(int minSamples, double minSuccessRate, long maxP90LatencyMs) {
+    if (size < minSamples) {
+      return false;
+    }
+    return successRate() < minSuccessRate || p90() > maxP90LatencyMs;
+  }
+
+  /**
+   * Whether a degraded engine may take a probe call now (consumes the probe slot).
+   */
+  synchronized boolean tryProbe(long nowMs, long probeIntervalMs) {
+    if (nowMs - lastAttemptAtMs < probeIntervalMs) {
+      return false;
+    }
+    lastAttemptAtMs = nowMs;
+    return true;
+  }
+
+  synchronized void markAttempt(long nowMs) {
+    lastAttemptAtMs = nowMs;
+  }
+
+  synchronized Map<String, Object> snapshot() {
+    Map<String, Object> out = new LinkedHashMap<>();
+    out.put("samples", size);
+    out.put("successRate", size > 0 ? successRate() : null);
+    out.put("p90Ms", size > 0 ? p90() : null);
+    return out;
+  }
+
+  private double successRate() {
+    int ok = 0;
+    for (int i = 0; i < size; i++) {
+      if (success[i]) ok++;
+    }
+    return (double) ok / size;
+  }
+
+  private long p90() {
+    long[] sorted = Arrays.copyOf(latencyMs, size);
+    Arrays.sort(sorted);
+    int idx = (int) Math.ceil(0.9 * size) - 1;
+    return sorted[Math.max(0, idx)];
+  }
+}
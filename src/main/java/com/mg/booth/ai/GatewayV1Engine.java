@@ -0,0 +1,107 @@
+package com.mg.booth.ai;
+
+import com.mg.booth.client.AiGatewayClient;
+import com.mg.booth.client.dto.AiProcessRequest;
+import com.mg.booth.client.dto.AiProcessResponse;
+import com.mg.booth.config.BoothProps;
+import com.mg.booth.domain.Session;
+import com.mg.booth.domain.SessionProgress;
+import com.mg.booth.service.TemplateService;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.Map;
+
+/**
+ * V1 AI engine (legacy AI Gateway).
+ * 原有的 AI Gateway 调用逻辑；结果需要用户在 PREVIEW 确认。
+ */
+@Component
+public class GatewayV1Engine implements AiEngine {
+
+  private final TemplateService templateService;
+  private final AiGatewayClient aiGatewayClient;
+  private final BoothProps boothProps;
+
+  public GatewayV1Engine(TemplateService templateService, AiGatewayClient aiGatewayClient, BoothProps boothProps) {
+    this.templateService = templateService;
+    this.aiGatewayClient = aiGatewayClient;
+    this.boothProps = boothProps;
+  }
+
+  @Override
+  public String id() {
+    return GATEWAY_V1;
+  }
+
+  @Override
+  public boolean supports(String templateId) {
+    return templateService.listTemplates().stream()
+        .anyMatch(t -> t.isEnabled() && t.getTemplateId().equals(templateId));
+  }
+
+  @Override
+  public boolean requiresConfirm() {
+    return true;
+  }
+
+  @Override
+  public void process(Session s, Path rawPath, int attemptIndex) {
+    String sessionId = s.getSessionId();
+
+    // 组装 gateway 请求（带 FULL template）
+    var tpl = templateService.listTemplates().stream()
+      .filter(t -> t.isEnabled() && t.getTemplateId().equals(s.getTemplateId()))
+      .findFirst()
+      .orElseThrow(() -> new RuntimeException("Template not found: " + s.getTemplateId()));
+
+    // 当前 MVP 的 TemplateSummary 只有 id/name/enabled，这里先只传最小字段。
+    // 后续你扩展 TemplateSummary 字段时，可以这在里补齐 pipeline 需要的字段。
+
+    AiProcessRequest areq = new AiProcessRequest();
+    areq.setSessionId(sessionId);
+    areq.setAttemptIndex(attemptIndex);
+    areq.setTemplateId(tpl.getTemplateId());
+    areq.setRawPath(rawPath.toString());
+
+    // options/output（MVP：先给默认值；以后可从前端传）
+    areq.setOptions(Map.of(
+            "bgMode", "STATIC",
+            "segmentation", "AUTO",
+            "featherPx", 6,
+            "strength", 0.6
+    ));
+    areq.setOutput(Map.of(
+            "previewWidth", 900,
+            "finalWidth", 1800
+    ));
+
+    String idemKey = sessionId + "#" + attemptIndex + "#" + tpl.getTemplateId();
+
+    // 调用 AI Gateway
+    synchronized (s) {
+      s.setProgress(new SessionProgress(SessionProgress.Step.AI_PROCESSING, "AI处理中…", 60));
+      s.setUpdatedAt(OffsetDateTime.now());
+    }
+
+    // deviceId 建议从 boothProps 注入（或写死 kiosk-001）
+    String deviceId = boothProps.getDeviceId();
+
+    AiProcessResponse aresp = aiGatewayClient.process(deviceId, idemKey, areq);
+
+    if (aresp == null || !aresp.isOk()) {
+      String reason = (aresp == null || aresp.getError() == null)
+        ? "gateway_failed"
+        : (aresp.getError().getCode() + ":" + aresp.getError().getMessage());
+      throw new RuntimeException("AI Gateway failed: " + reason);
+    }
+
+    synchronized (s) {
+      s.setPreviewUrl(aresp.getPreviewUrl());
+      s.setFinalUrl(aresp.getFinalUrl());
+      s.setProgress(new SessionProgress(SessionProgress.Step.FINAL_READY, "生成成品…", 95));
+      s.setUpdatedAt(OffsetDateTime.now());
+    }
+  }
+}
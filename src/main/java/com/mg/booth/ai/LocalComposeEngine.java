@@ -0,0 +1,450 @@
+package com.mg.booth.ai;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mg.booth.domain.Session;
+import com.mg.booth.domain.SessionProgress;
+import com.mg.booth.domain.V2TemplateRef;
+import com.mg.booth.exception.ApiException;
+import com.mg.booth.metrics.PipelineMetrics;
+import com.mg.booth.service.StorageService;
+import com.mg.booth.service.TemplateManifestService;
+import com.mg.booth.service.TemplateResolveService;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_32F;
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+import static org.bytedeco.opencv.global.opencv_core.extractChannel;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMREAD_COLOR;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMREAD_UNCHANGED;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMWRITE_JPEG_QUALITY;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMWRITE_PNG_COMPRESSION;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imread;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imwrite;
+import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_BGRA2BGR;
+import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_GRAY2BGR;
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_LINEAR;
+import static org.bytedeco.opencv.global.opencv_imgproc.blendLinear;
+import static org.bytedeco.opencv.global.opencv_imgproc.cvtColor;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * Local compose engine: renders the installed template's manifest "compose" layout on the kiosk.
+ *
+ * Layout (manifest.json):
+ * - output.width/height/format: canvas size and encoding (png / jpg)
+ * - compose.background: background image under assets.basePath (cover-fitted to the canvas)
+ * - compose.photos[]: layers with x/y/w/h/fit(cover|contain|fill)/z; source "raw"/"cutout"
+ *   takes the captured photo, any other value is an asset file (alpha-blended if it has alpha)
+ *
+ * There is no segmentation locally, so "cutout" layers receive the raw photo. The engine is
+ * the degraded-mode renderer when pipeline v2 is down and the fast path for templates whose
+ * rules.json disables segmentation.
+ *
+ * Decoded backgrounds (already fitted to the canvas) and assets are cached per file/mtime;
+ * per-thread Mat buffers are reused between renders.
+ */
+@Component
+public class LocalComposeEngine implements AiEngine {
+
+  private static final Logger log = LoggerFactory.getLogger(LocalComposeEngine.class);
+
+  private static final int CACHE_MAX_ENTRIES = 16;
+  private static final int DEFAULT_PREVIEW_MAX_WIDTH = 768;
+
+  private final TemplateResolveService templateResolveService;
+  private final TemplateManifestService manifestService;
+  private final StorageService storageService;
+  private final PipelineMetrics pipelineMetrics;
+
+  // key: file path + "|" + target size -> decoded image; LRU, 超出上限时丢弃最久未用的
+  private final Map<String, CachedMat> imageCache = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedMat> eldest) {
+      return size() > CACHE_MAX_ENTRIES;
+    }
+  };
+
+  private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+  public LocalComposeEngine(
+      TemplateResolveService templateResolveService,
+      TemplateManifestService manifestService,
+      StorageService storageService,
+      PipelineMetrics pipelineMetrics
+  ) {
+    this.templateResolveService = templateResolveService;
+    this.manifestService = manifestService;
+    this.storageService = storageService;
+    this.pipelineMetrics = pipelineMetrics;
+  }
+
+  @Override
+  public String id() {
+    return LOCAL_COMPOSE;
+  }
+
+  @Override
+  public boolean supports(String templateId) {
+    try {
+      V2TemplateRef ref = templateResolveService.resolveForV2(templateId);
+      return manifestService.readManifest(ref.getTemplateCode(), ref.getVersionSemver())
+          .map(m -> m.path("compose").isObject())
+          .orElse(false);
+    } catch (ApiException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public boolean requiresConfirm() {
+    return false;
+  }
+
+  @Override
+  public void process(Session s, Path rawPath, int attemptIndex) throws Exception {
+    String sessionId = s.getSessionId();
+    V2TemplateRef ref = templateResolveService.resolveForV2(s.getTemplateId());
+    String code = ref.getTemplateCode();
+    String ver = ref.getVersionSemver();
+
+    JsonNode manifest = manifestService.readManifest(code, ver)
+        .orElseThrow(() -> new IOException("manifest.json not found: " + code + "@" + ver));
+    Optional<JsonNode> rules = manifestService.readRules(code, ver);
+
+    synchronized (s) {
+      s.setProgress(new SessionProgress(SessionProgress.Step.AI_PROCESSING, "本地合成中…", 60));
+      s.setUpdatedAt(OffsetDateTime.now());
+    }
+
+    long startNs = System.nanoTime();
+    Path assetsDir = manifestService.templateDir(code, ver)
+        .resolve(manifest.path("assets").path("basePath").asText("assets"));
+    String format = normalizeFormat(manifest.path("output").path("format").asText("jpg"));
+    int previewMaxWidth = rules
+        .map(r -> r.path("output").path("preview").path("maxWidth").asInt(DEFAULT_PREVIEW_MAX_WIDTH))
+        .orElse(DEFAULT_PREVIEW_MAX_WIDTH);
+
+    Buffers buf = buffers.get();
+    Mat raw = imread(rawPath.toAbsolutePath().toString(), IMREAD_COLOR);
+    try {
+      if (raw == null || raw.empty()) {
+        throw new IOException("Cannot decode raw image: " + rawPath);
+      }
+
+      int canvasW = manifest.path("output").path("width").asInt(0);
+      int canvasH = manifest.path("output").path("height").asInt(0);
+      JsonNode compose = manifest.path("compose");
+      String background = compose.path("background").asText("");
+
+      if ((canvasW <= 0 || canvasH <= 0) && !background.isBlank()) {
+        Mat bg = cachedImage(assetsDir.resolve(background), 0, 0);
+        canvasW = bg.cols();
+        canvasH = bg.rows();
+      }
+      if (canvasW <= 0 || canvasH <= 0) {
+        canvasW = raw.cols();
+        canvasH = raw.rows();
+      }
+
+      // 1) 背景（已按画布尺寸 cover 缓存）
+      buf.canvas.create(canvasH, canvasW, CV_8UC3);
+      if (!background.isBlank()) {
+        cachedImage(assetsDir.resolve(background), canvasW, canvasH).copyTo(buf.canvas);
+      } else {
+        buf.canvas.put(new Scalar(255, 255, 255, 0));
+      }
+
+      // 2) 照片/素材图层按 z 从低到高叠加
+      for (Layer layer : layersOf(compose)) {
+        Mat src = layer.isPhoto()
+            ? raw
+            : cachedImage(assetsDir.resolve(layer.source), 0, 0);
+        drawLayer(buf, src, layer, canvasW, canvasH);
+      }
+
+      // 3) 编码成品与预览
+      Path finalFile = storageService.finalFilePath(sessionId, attemptIndex, format);
+      Path previewFile = storageService.previewFilePath(sessionId, attemptIndex);
+      storageService.ensureDir(finalFile.getParent());
+      storageService.ensureDir(previewFile.getParent());
+
+      if (!imwrite(finalFile.toAbsolutePath().toString(), buf.canvas, encodeParams(format))) {
+        throw new IOException("Cannot write final image: " + finalFile);
+      }
+
+      Mat preview = buf.canvas;
+      if (previewMaxWidth > 0 && canvasW > previewMaxWidth) {
+        int ph = Math.max(1, (int) Math.round((double) canvasH * previewMaxWidth / canvasW));
+        resize(buf.canvas, buf.preview, new Size(previewMaxWidth, ph), 0, 0, INTER_AREA);
+        preview = buf.preview;
+      }
+      if (!imwrite(previewFile.toAbsolutePath().toString(), preview, encodeParams("jpg"))) {
+        throw new IOException("Cannot write preview image: " + previewFile);
+      }
+    } finally {
+      if (raw != null) raw.release();
+    }
+
+    long elapsedMs = (System.nanoTime() - startNs) / 1_000_000L;
+    pipelineMetrics.record(PipelineMetrics.templateKey(code, ver), "localCompose", elapsedMs);
+
+    synchronized (s) {
+      s.setPreviewUrl(storageService.previewUrl(sessionId, attemptIndex));
+      s.setFinalUrl(storageService.finalUrl(sessionId, attemptIndex, format));
+      s.setProgress(new SessionProgress(SessionProgress.Step.FINAL_READY, "生成成品…", 95));
+      s.setUpdatedAt(OffsetDateTime.now());
+    }
+
+    log.info("[local-compose] Rendered: sessionId={}, template={}@{}, format={}, elapsedMs={}",
+        sessionId, code, ver, format, elapsedMs);
+  }
+
+  private void drawLayer(Buffers buf, Mat src, Layer layer, int canvasW, int canvasH) {
+    Placement p = place(src.cols(), src.rows(), layer.x, layer.y, layer.w, layer.h, layer.fit, canvasW, canvasH);
+    if (p == null) {
+      return;
+    }
+
+    boolean shrinking = p.scaledW < src.cols() || p.scaledH < src.rows();
+    resize(src, buf.scaled, new Size(p.scaledW, p.scaledH), 0, 0, shrinking ? INTER_AREA : INTER_LINEAR);
+
+    Mat from = buf.scaled.apply(new Rect(p.srcX, p.srcY, p.width, p.height));
+    Mat to = buf.canvas.apply(new Rect(p.dstX, p.dstY, p.width, p.height));
+    try {
+      if (from.channels() == 4) {
+        // alpha 混合：dst = fg * a + bg * (1 - a)
+        extractChannel(from, buf.alpha, 3);
+        buf.alpha.convertTo(buf.weightFg, CV_32F, 1.0 / 255.0, 0);
+        buf.weightFg.convertTo(buf.weightBg, CV_32F, -1.0, 1.0);
+        cvtColor(from, buf.fg, COLOR_BGRA2BGR);
+        blendLinear(buf.fg, to, buf.weightFg, buf.weightBg, buf.blended);
+        buf.blended.copyTo(to);
+      } else if (from.channels() == 1) {
+        cvtColor(from, buf.fg, COLOR_GRAY2BGR);
+        buf.fg.copyTo(to);
+      } else {
+        from.copyTo(to);
+      }
+    } finally {
+      from.release();
+      to.release();
+    }
+  }
+
+  /**
+   * Decoded image from cache (re-read when the file's mtime changes).
+   * With a target size the image is cover-fitted to exactly targetW x targetH (backgrounds).
+   */
+  private Mat cachedImage(Path file, int targetW, int targetH) throws IOException {
+    String key = file.toAbsolutePath().normalize() + "|" + targetW + "x" + targetH;
+    long mtime = Files.getLastModifiedTime(file).toMillis();
+
+    synchronized (imageCache) {
+      CachedMat cached = imageCache.get(key);
+      if (cached != null && cached.mtime == mtime) {
+        return cached.mat;
+      }
+    }
+
+    boolean fitted = targetW > 0 && targetH > 0;
+    Mat decoded = imread(file.toAbsolutePath().toString(), fitted ? IMREAD_COLOR : IMREAD_UNCHANGED);
+    if (decoded == null || decoded.empty()) {
+      throw new IOException("Cannot decode template asset: " + file);
+    }
+
+    Mat result = decoded;
+    if (fitted && (decoded.cols() != targetW || decoded.rows() != targetH)) {
+      Placement p = place(decoded.cols(), decoded.rows(), 0, 0, targetW, targetH, "cover", targetW, targetH);
+      Mat scaled = new Mat();
+      resize(decoded, scaled, new Size(p.scaledW, p.scaledH), 0, 0, INTER_AREA);
+      Mat roi = scaled.apply(new Rect(p.srcX, p.srcY, p.width, p.height));
+      result = roi.clone();
+      roi.release();
+      scaled.release();
+      decoded.release();
+    }
+
+    // 缓存中的 Mat 只读共享；被淘汰后由 JavaCPP 回收
+    synchronized (imageCache) {
+      imageCache.put(key, new CachedMat(mtime, result));
+    }
+    return result;
+  }
+
+  /**
+   * Where a srcW x srcH image lands for a layer box, clipped to the canvas.
+   *
+   * @return placement, null if nothing is visible
+   */
+  static Placement place(int srcW, int srcH, int x, int y, int w, int h, String fit, int canvasW, int canvasH) {
+    if (srcW <= 0 || srcH <= 0 || w <= 0 || h <= 0) {
+      return null;
+    }
+
+    int scaledW;
+    int scaledH;
+    int srcX = 0;
+    int srcY = 0;
+    int dstX = x;
+    int dstY = y;
+    int width;
+    int height;
+
+    if ("contain".equalsIgnoreCase(fit)) {
+      double scale = Math.min((double) w / srcW, (double) h / srcH);
+      scaledW = Math.max(1, (int) Math.round(srcW * scale));
+      scaledH = Math.max(1, (int) Math.round(srcH * scale));
+      dstX += (w - scaledW) / 2;
+      dstY += (h - scaledH) / 2;
+      width = scaledW;
+      height = scaledH;
+    } else if ("fill".equalsIgnoreCase(fit) || "stretch".equalsIgnoreCase(fit)) {
+      scaledW = w;
+      scaledH = h;
+      width = w;
+      height = h;
+    } else {
+      // cover（默认）：等比放大到铺满，居中裁剪
+      double scale = Math.max((double) w / srcW, (double) h / srcH);
+      scaledW = Math.max(w, (int) Math.ceil(srcW * scale));
+      scaledH = Math.max(h, (int) Math.ceil(srcH * scale));
+      srcX = (scaledW - w) / 2;
+      srcY = (scaledH - h) / 2;
+      width = w;
+      height = h;
+    }
+
+    // 裁剪到画布范围
+    if (dstX < 0) {
+      srcX -= dstX;
+      width += dstX;
+      dstX = 0;
+    }
+    if (dstY < 0) {
+      srcY -= dstY;
+      height += dstY;
+      dstY = 0;
+    }
+    width = Math.min(width, canvasW - dstX);
+    height = Math.min(height, canvasH - dstY);
+    if (width <= 0 || height <= 0) {
+      return null;
+    }
+    return new Placement(scaledW, scaledH, srcX, srcY, dstX, dstY, width, height);
+  }
+
+  static List<Layer> layersOf(JsonNode compose) {
+    List<Layer> layers = new ArrayList<>();
+    for (JsonNode p : compose.path("photos")) {
+      layers.add(new Layer(
+          p.path("source").asText("raw"),
+          p.path("x").asInt(0),
+          p.path("y").asInt(0),
+          p.path("w").asInt(0),
+          p.path("h").asInt(0),
+          p.path("fit").asText("cover"),
+          p.path("z").asInt(0)));
+    }
+    layers.sort(Comparator.comparingInt(l -> l.z));
+    return layers;
+  }
+
+  private static String normalizeFormat(String format) {
+    String f = format != null ? format.trim().toLowerCase() : "";
+    return "png".equals(f) ? "png" : "jpg";
+  }
+
+  private static int[] encodeParams(String format) {
+    return "png".equals(format)
+        ? new int[]{IMWRITE_PNG_COMPRESSION, 3}
+        : new int[]{IMWRITE_JPEG_QUALITY, 92};
+  }
+
+  static final class Layer {
+    final String source;
+    final int x;
+    final int y;
+    final int w;
+    final int h;
+    final String fit;
+    final int z;
+
+    Layer(String source, int x, int y, int w, int h, String fit, int z) {
+      this.source = source;
+      this.x = x;
+      this.y = y;
+      this.w = w;
+      this.h = h;
+      this.fit = fit;
+      this.z = z;
+    }
+
+    boolean isPhoto() {
+      return "raw".equalsIgnoreCase(source) || "cutout".equalsIgnoreCase(source);
+    }
+  }
+
+  static final class Placement {
+    final int scaledW;
+    final int scaledH;
+    final int srcX;
+    final int srcY;
+    final int dstX;
+    final int dstY;
+    final int width;
+    final int height;
+
+    Placement(int scaledW, int scaledH, int srcX, int srcY, int dstX, int dstY, int width, int height) {
+      this.scaledW = scaledW;
+      this.scaledH = scaledH;
+      this.srcX = srcX;
+      this.srcY = srcY;
+      this.dstX = dstX;
+      this.dstY = dstY;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  /**
+   * Per-thread work buffers; Mat.create/resize reuse the allocation when size and type match.
+   */
+  private static final class Buffers {
+    final Mat canvas = new Mat();
+    final Mat scaled = new Mat();
+    final Mat preview = new Mat();
+    final Mat alpha = new Mat();
+    final Mat weightFg = new Mat();
+    final Mat weightBg = new Mat();
+    final Mat fg = new Mat();
+    final Mat blended = new Mat();
+  }
+
+  private static final class CachedMat {
+    private final long mtime;
+    private final Mat mat;
+
+    private CachedMat(long mtime, Mat mat) {
+      this.mtime = mtime;
+      this.mat = mat;
+    }
+  }
+}
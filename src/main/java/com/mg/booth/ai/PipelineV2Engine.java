@@ -0,0 +1,58 @@
+package com.mg.booth.ai;
+
+import com.mg.booth.domain.Session;
+import com.mg.booth.domain.SessionProgress;
+import com.mg.booth.exception.ApiException;
+import com.mg.booth.service.AiProcessV2Service;
+import com.mg.booth.service.TemplateResolveService;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+
+/**
+ * V2 AI engine (template-driven pipeline v2).
+ * 模板驱动处理；成功后由 SessionService 自动生成下载 token 并进入 DELIVERING。
+ */
+@Component
+public class PipelineV2Engine implements AiEngine {
+
+  private final AiProcessV2Service aiProcessV2Service;
+  private final TemplateResolveService templateResolveService;
+
+  public PipelineV2Engine(AiProcessV2Service aiProcessV2Service, TemplateResolveService templateResolveService) {
+    this.aiProcessV2Service = aiProcessV2Service;
+    this.templateResolveService = templateResolveService;
+  }
+
+  @Override
+  public String id() {
+    return GATEWAY_V2;
+  }
+
+  @Override
+  public boolean supports(String templateId) {
+    try {
+      templateResolveService.resolveForV2(templateId);
+      return true;
+    } catch (ApiException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public boolean requiresConfirm() {
+    return false;
+  }
+
+  @Override
+  public void process(Session s, Path rawPath, int attemptIndex) {
+    synchronized (s) {
+      s.setProgress(new SessionProgress(SessionProgress.Step.AI_PROCESSING, "AI处理中…", 60));
+      s.setUpdatedAt(OffsetDateTime.now());
+    }
+
+    // 调用 V2 服务（失败时写入 session.error）
+    aiProcessV2Service.process(s);
+  }
+}
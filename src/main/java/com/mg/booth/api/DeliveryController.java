@@ -1,29 +1,46 @@
 package com.mg.booth.api;
 
+import com.mg.booth.service.DeliveryImageCache;
 import com.mg.booth.service.DeliveryService;
 import com.mg.booth.service.SessionService;
+import com.mg.booth.service.StorageService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
 
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import org.springframework.web.client.RestClient;
+import java.util.Optional;
 
 
 @RestController
 public class DeliveryController {
 
+  private static final Logger log = LoggerFactory.getLogger(DeliveryController.class);
+
+  // Tomcat sendfile request attributes (org.apache.catalina.Globals)
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
   private final DeliveryService deliveryService;
   private final SessionService sessionService;
+  private final StorageService storageService;
+  private final DeliveryImageCache imageCache;
 
-  private final RestClient http = RestClient.builder().build();
 
-
-  public DeliveryController(DeliveryService deliveryService, SessionService sessionService) {
+  public DeliveryController(DeliveryService deliveryService, SessionService sessionService,
+                            StorageService storageService, DeliveryImageCache imageCache) {
     this.deliveryService = deliveryService;
     this.sessionService = sessionService;
+    this.storageService = storageService;
+    this.imageCache = imageCache;
   }
 
   @GetMapping(value = "/d/{token}", produces = MediaType.TEXT_HTML_VALUE)
@@ -91,10 +108,19 @@ public class DeliveryController {
 //    return ResponseEntity.ok().headers(headers).body(res);
 //  }
 
+  /**
+   * GET /d/{token}/download[?preview=true]
+   * The final image from local disk: local compose output (/files/final/...) directly, pipeline
+   * results via DeliveryImageCache (fetched from finalUrl once per session).
+   * Strong ETag from size+mtime (files are never rewritten in place); Range requests get 206
+   * from Spring MVC; full GETs use Tomcat sendfile when the connector supports it.
+   */
   @GetMapping("/d/{token}/download")
-  public ResponseEntity<byte[]> download(
+  public ResponseEntity<?> download(
       @PathVariable String token,
-      @RequestParam(value = "preview", required = false, defaultValue = "false") boolean preview) {
+      @RequestParam(value = "preview", required = false, defaultValue = "false") boolean preview,
+      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+      HttpServletRequest request) {
     var rec = deliveryService.getValid(token);
     if (rec == null) {
       return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
@@ -106,46 +132,55 @@ public class DeliveryController {
       return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
     }
 
+    Path file;
+    long size;
+    long mtimeMs;
     try {
-      // ✅ 代理拉取图片内容（不暴露 9002 给浏览器）
-      var upstream = http.get()
-              .uri(finalUrl)
-              .retrieve()
-              .toEntity(byte[].class);
-
-      byte[] body = upstream.getBody();
-      if (body == null || body.length == 0) {
-        return ResponseEntity.status(HttpStatus.BAD_GATEWAY).build();
+      Optional<Path> localFile = storageService.resolveFileUrl(finalUrl);
+      // 本机合成的成品（/files/final/...）直接读本地文件；pipeline 成品首次拉取后落盘缓存
+      file = localFile.isPresent() ? localFile.get() : imageCache.get(s.getSessionId(), finalUrl);
+      if (!Files.isRegularFile(file)) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
       }
-
-      MediaType ct = upstream.getHeaders().getContentType();
-      if (ct == null) ct = MediaType.IMAGE_JPEG; // 默认 jpg
-
-      HttpHeaders headers = new HttpHeaders();
-      
-      // 如果是预览模式（preview=true），使用 inline 让图片可以在浏览器中显示
-      // 如果是下载模式（默认），使用 attachment 触发下载
-      if (preview) {
-        headers.setContentDisposition(
-            ContentDisposition.inline().filename("photo.jpg").build()
-        );
-      } else {
-        headers.setContentDisposition(
-            ContentDisposition.attachment().filename("photo.jpg").build()
-        );
-      }
-      
-      headers.setCacheControl(CacheControl.noCache());
-      headers.setContentType(ct);
-
-      return ResponseEntity.ok().headers(headers).body(body);
-
+      size = Files.size(file);
+      mtimeMs = Files.getLastModifiedTime(file).toMillis();
     } catch (Exception e) {
       // 上游 9002 不通/404/读失败
+      log.warn("[delivery] Failed to get final image: token={}, finalUrl={}, error={}", token, finalUrl, e.getMessage());
       return ResponseEntity.status(HttpStatus.BAD_GATEWAY).build();
     }
-  }
 
+    HttpHeaders headers = new HttpHeaders();
+
+    // 如果是预览模式（preview=true），使用 inline 让图片可以在浏览器中显示
+    // 如果是下载模式（默认），使用 attachment 触发下载
+    String fileName = file.getFileName().toString().endsWith(".png") ? "photo.png" : "photo.jpg";
+    if (preview) {
+      headers.setContentDisposition(ContentDisposition.inline().filename(fileName).build());
+    } else {
+      headers.setContentDisposition(ContentDisposition.attachment().filename(fileName).build());
+    }
 
+    String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(mtimeMs) + "\"";
+    headers.setETag(etag);
+    headers.setCacheControl(CacheControl.noCache());
+    headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+    if (TemplatesApiController.etagMatches(ifNoneMatch, etag)) {
+      return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+    }
+    headers.setContentType(fileName.endsWith(".png") ? MediaType.IMAGE_PNG : MediaType.IMAGE_JPEG);
+
+    if ("GET".equals(request.getMethod()) && request.getHeader(HttpHeaders.RANGE) == null
+        && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+      // Tomcat 在提交响应后用 sendfile 直接从文件发送（零拷贝）
+      request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+      request.setAttribute(SENDFILE_START, 0L);
+      request.setAttribute(SENDFILE_END, size);
+      headers.setContentLength(size);
+      return new ResponseEntity<>(headers, HttpStatus.OK);
+    }
+
+    return ResponseEntity.ok().headers(headers).body(new FileSystemResource(file));
+  }
 
 }
@@ -0,0 +1,103 @@
+package com.mg.booth.api;
+
+import com.mg.booth.ai.AiEngineRouter;
+import com.mg.booth.metrics.PipelineMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import jakarta.servlet.http.HttpServletRequest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local metrics controller
+ * Provides localhost-only access to rolling latency histograms
+ */
+@RestController
+@RequestMapping("/local/metrics")
+public class MetricsController {
+
+  private static final Logger log = LoggerFactory.getLogger(MetricsController.class);
+
+  private final PipelineMetrics pipelineMetrics;
+  private final AiEngineRouter aiEngineRouter;
+
+  public MetricsController(PipelineMetrics pipelineMetrics, AiEngineRouter aiEngineRouter) {
+    this.pipelineMetrics = pipelineMetrics;
+    this.aiEngineRouter = aiEngineRouter;
+  }
+
+  /**
+   * GET /local/metrics/pipeline
+   * Per-template, per-stage latency histograms for pipeline v2 calls
+   * (segmentation / compose / encode / upload as reported by the pipeline,
+   * plus client and network time measured on the kiosk)
+   *
+   * @param request HTTP request (for localhost check)
+   * @return Metrics snapshot
+   */
+  @GetMapping("/pipeline")
+  public ResponseEntity<?> pipeline(HttpServletRequest request) {
+    if (!isLocalhost(request)) {
+      return ResponseEntity.status(HttpStatus.FORBIDDEN)
+          .body(createErrorResponse("Access denied: only localhost allowed"));
+    }
+
+    Map<String, Object> response = new HashMap<>();
+    response.put("success", true);
+    response.put("data", pipelineMetrics.snapshot());
+    response.put("message", null);
+    return ResponseEntity.ok(response);
+  }
+
+  /**
+   * GET /local/metrics/engines
+   * AI engine routing state: concurrency budget, in-flight calls, recent success rate,
+   * p90 latency and whether the engine is currently degraded
+   *
+   * @param request HTTP request (for localhost check)
+   * @return Engine snapshot
+   */
+  @GetMapping("/engines")
+  public ResponseEntity<?> engines(HttpServletRequest request) {
+    if (!isLocalhost(request)) {
+      return ResponseEntity.status(HttpStatus.FORBIDDEN)
+          .body(createErrorResponse("Access denied: only localhost allowed"));
+    }
+
+    Map<String, Object> response = new HashMap<>();
+    response.put("success", true);
+    response.put("data", aiEngineRouter.snapshot());
+    response.put("message", null);
+    return ResponseEntity.ok(response);
+  }
+
+  /**
+   * Check if request is from localhost
+   */
+  private boolean isLocalhost(HttpServletRequest request) {
+    String remoteAddr = request.getRemoteAddr();
+
+    if ("127.0.0.1".equals(remoteAddr)
+        || "0:0:0:0:0:0:0:1".equals(remoteAddr)
+        || "::1".equals(remoteAddr)) {
+      return true;
+    }
+
+    log.warn("[metrics] Access denied from non-localhost: remoteAddr={}", remoteAddr);
+    return false;
+  }
+
+  private Map<String, Object> createErrorResponse(String message) {
+    Map<String, Object> response = new HashMap<>();
+    response.put("success", false);
+    response.put("data", null);
+    response.put("message", message);
+    return response;
+  }
+}
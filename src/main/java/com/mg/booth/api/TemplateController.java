@@ -2,15 +2,21 @@ package com.mg.booth.api;
 
 import com.mg.booth.config.BoothProps;
 import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.device.TemplateCatalog;
+import com.mg.booth.device.TemplateInstallQueue;
 import com.mg.booth.device.TemplatePackageInstaller;
+import com.mg.booth.device.TemplateSyncService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import jakarta.servlet.http.HttpServletRequest;
-import java.nio.file.Path;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -24,28 +30,39 @@ public class TemplateController {
 
   private static final Logger log = LoggerFactory.getLogger(TemplateController.class);
 
+  private static final long SSE_TIMEOUT_MS = 30 * 60 * 1000L;
+
   private final BoothProps props;
-  private final TemplatePackageInstaller installer;
+  private final TemplateInstallQueue installQueue;
+  private final TemplateCatalog catalog;
   private final LocalTemplateIndexStore indexStore;
+  private final TemplateSyncService syncService;
 
   public TemplateController(
       BoothProps props,
-      TemplatePackageInstaller installer,
-      LocalTemplateIndexStore indexStore) {
+      TemplateInstallQueue installQueue,
+      TemplateCatalog catalog,
+      LocalTemplateIndexStore indexStore,
+      TemplateSyncService syncService) {
     this.props = props;
-    this.installer = installer;
+    this.installQueue = installQueue;
+    this.catalog = catalog;
     this.indexStore = indexStore;
+    this.syncService = syncService;
   }
 
   /**
    * POST /local/device/templates/install
-   * Install template package
+   * Queue a template package install and return the job immediately
+   * (poll GET /install/{jobId} or follow GET /install/{jobId}/events)
    * 
    * Request body (new format, preferred):
    *   - templateCode: String (e.g. "tpl_001")
    *   - versionSemver: String (e.g. "0.1.0")
    *   - downloadUrl: String
    *   - checksumSha256: String
+   *   - deltaBaseVersionSemver / deltaUrl / deltaChecksumSha256: optional delta package
+   *     against an installed version (falls back to downloadUrl on any delta failure)
    * 
    * Request body (legacy format, deprecated):
    *   - templateId: String (deprecated, use templateCode instead)
@@ -55,12 +72,14 @@ public class TemplateController {
    * 
    * @param request HTTP request (for localhost check)
    * @param body Request body containing templateCode/versionSemver (preferred) or templateId/version (legacy)
-   * @return Installation result
+   * @param wait true = block until the install finishes (legacy response with installedPath)
+   * @return Install job, or installation result when wait=true
    */
   @PostMapping("/install")
   public ResponseEntity<?> install(
       HttpServletRequest request,
-      @RequestBody Map<String, Object> body) {
+      @RequestBody Map<String, Object> body,
+      @RequestParam(value = "wait", defaultValue = "false") boolean wait) {
     if (!isLocalhost(request)) {
       return ResponseEntity.status(HttpStatus.FORBIDDEN)
           .body(createErrorResponse("Access denied: only localhost allowed"));
@@ -118,19 +137,40 @@ public class TemplateController {
       log.info("[template-controller] Install request: templateCode={}, versionSemver={}, downloadUrl={}", 
           templateCode, versionSemver, downloadUrl);
 
-      // Install template package
-      String installedPath = installer.install(templateCode, versionSemver, downloadUrl, checksumSha256);
+      TemplatePackageInstaller.DeltaSource delta = TemplatePackageInstaller.DeltaSource.of(
+          extractString(body, "deltaBaseVersionSemver"),
+          extractString(body, "deltaUrl"),
+          extractString(body, "deltaChecksumSha256"));
+
+      // Enqueue (same templateCode@versionSemver joins the existing job)
+      TemplateInstallQueue.InstallJob job = installQueue.submit(
+          templateCode, versionSemver, downloadUrl, checksumSha256, delta);
+
+      if (!wait) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("data", job);
+        response.put("message", null);
+        return ResponseEntity.ok(response);
+      }
+
+      // ?wait=true: legacy blocking behaviour for scripts
+      job.completion().join();
+      if (TemplateInstallQueue.InstallJob.FAILED.equals(job.getState())) {
+        return ResponseEntity.ok(createErrorResponse("Installation failed: " + job.getError()));
+      }
 
       Map<String, Object> response = new HashMap<>();
       response.put("success", true);
       Map<String, Object> data = new HashMap<>();
-      data.put("installedPath", installedPath);
+      data.put("jobId", job.getJobId());
+      data.put("installedPath", job.getInstalledPath());
       data.put("indexUpdated", true);
       response.put("data", data);
       response.put("message", null);
 
       log.info("[template-controller] Installation successful: templateCode={}, versionSemver={}, path={}", 
-          templateCode, versionSemver, installedPath);
+          templateCode, versionSemver, job.getInstalledPath());
 
       return ResponseEntity.ok(response);
 
@@ -158,23 +198,8 @@ public class TemplateController {
     }
 
     try {
-      Path dataDir = Path.of(props.getDataDir() != null && !props.getDataDir().isBlank() 
-          ? props.getDataDir() 
-          : "./data");
-      Path indexFile = dataDir.resolve("index.json");
-
-      var indexOpt = indexStore.readIndex(indexFile);
-      if (indexOpt.isEmpty()) {
-        // Return empty index
-        LocalTemplateIndexStore.TemplateIndex emptyIndex = new LocalTemplateIndexStore.TemplateIndex();
-        Map<String, Object> response = new HashMap<>();
-        response.put("success", true);
-        response.put("data", emptyIndex);
-        response.put("message", null);
-        return ResponseEntity.ok(response);
-      }
-
-      LocalTemplateIndexStore.TemplateIndex index = indexOpt.get();
+      // 内存目录快照（未安装时为空索引）
+      var index = catalog.index();
       Map<String, Object> response = new HashMap<>();
       response.put("success", true);
       response.put("data", index);
@@ -188,6 +213,174 @@ public class TemplateController {
     }
   }
 
+  /**
+   * GET /local/device/templates/index/export
+   * Human-readable (pretty-printed) export of the installed index; index.json itself is compact
+   * 
+   * @param request HTTP request (for localhost check)
+   * @return index.json as an attachment
+   */
+  @GetMapping("/index/export")
+  public ResponseEntity<?> exportIndex(HttpServletRequest request) {
+    if (!isLocalhost(request)) {
+      return ResponseEntity.status(HttpStatus.FORBIDDEN)
+          .body(createErrorResponse("Access denied: only localhost allowed"));
+    }
+
+    return ResponseEntity.ok()
+        .contentType(MediaType.APPLICATION_JSON)
+        .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"index.json\"")
+        .body(indexStore.toPrettyJson(catalog.index()));
+  }
+
+  /**
+   * GET /local/device/templates/install/{jobId}
+   * Install job status (state, step, bytesDownloaded, installedPath, error)
+   * 
+   * @param request HTTP request (for localhost check)
+   * @param jobId Job ID returned by POST /install
+   * @return Install job
+   */
+  @GetMapping("/install/{jobId}")
+  public ResponseEntity<?> getInstallJob(HttpServletRequest request, @PathVariable String jobId) {
+    if (!isLocalhost(request)) {
+      return ResponseEntity.status(HttpStatus.FORBIDDEN)
+          .body(createErrorResponse("Access denied: only localhost allowed"));
+    }
+
+    var jobOpt = installQueue.getJob(jobId);
+    if (jobOpt.isEmpty()) {
+      return ResponseEntity.status(HttpStatus.NOT_FOUND)
+          .body(createErrorResponse("Install job not found: " + jobId));
+    }
+    Map<String, Object> response = new HashMap<>();
+    response.put("success", true);
+    response.put("data", jobOpt.get());
+    response.put("message", null);
+    return ResponseEntity.ok(response);
+  }
+
+  /**
+   * GET /local/device/templates/install/{jobId}/events
+   * Server-Sent Events stream of install job snapshots ("progress" events) until the job finishes
+   * 
+   * @param request HTTP request (for localhost check)
+   * @param jobId Job ID returned by POST /install
+   * @return SSE stream
+   */
+  @GetMapping("/install/{jobId}/events")
+  public ResponseEntity<?> streamInstallJob(HttpServletRequest request, @PathVariable String jobId) {
+    if (!isLocalhost(request)) {
+      return ResponseEntity.status(HttpStatus.FORBIDDEN)
+          .body(createErrorResponse("Access denied: only localhost allowed"));
+    }
+
+    var jobOpt = installQueue.getJob(jobId);
+    if (jobOpt.isEmpty()) {
+      return ResponseEntity.status(HttpStatus.NOT_FOUND)
+          .body(createErrorResponse("Install job not found: " + jobId));
+    }
+    TemplateInstallQueue.InstallJob job = jobOpt.get();
+
+    SseEmitter emitter = new SseEmitter(SSE_TIMEOUT_MS);
+    Runnable unsubscribe = installQueue.subscribe(job, j -> {
+      try {
+        emitter.send(SseEmitter.event().name("progress").data(j));
+        if (j.isFinished()) {
+          emitter.complete();
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    emitter.onCompletion(unsubscribe);
+    emitter.onTimeout(unsubscribe);
+    emitter.onError(e -> unsubscribe.run());
+
+    // 当前快照；若订阅前已结束则直接关闭
+    try {
+      emitter.send(SseEmitter.event().name("progress").data(job));
+      if (job.isFinished()) {
+        unsubscribe.run();
+        emitter.complete();
+      }
+    } catch (IOException | IllegalStateException e) {
+      unsubscribe.run();
+    }
+    return ResponseEntity.ok(emitter);
+  }
+
+  /**
+   * POST /local/device/templates/sync
+   * Sync all templates of an activity (install missing/outdated versions in parallel)
+   * 
+   * Request body:
+   *   - activityId: Long
+   * 
+   * @param request HTTP request (for localhost check)
+   * @param body Request body containing activityId
+   * @return Sync job (poll GET /local/device/templates/sync/{jobId} for progress)
+   */
+  @PostMapping("/sync")
+  public ResponseEntity<?> sync(
+      HttpServletRequest request,
+      @RequestBody Map<String, Object> body) {
+    if (!isLocalhost(request)) {
+      return ResponseEntity.status(HttpStatus.FORBIDDEN)
+          .body(createErrorResponse("Access denied: only localhost allowed"));
+    }
+
+    Long activityId;
+    try {
+      String raw = extractString(body, "activityId");
+      activityId = raw != null ? Long.valueOf(raw.trim()) : null;
+    } catch (NumberFormatException e) {
+      activityId = null;
+    }
+    if (activityId == null) {
+      return ResponseEntity.ok(createErrorResponse("activityId is required"));
+    }
+
+    try {
+      TemplateSyncService.SyncJob job = syncService.start(activityId);
+      Map<String, Object> response = new HashMap<>();
+      response.put("success", true);
+      response.put("data", job);
+      response.put("message", null);
+      return ResponseEntity.ok(response);
+    } catch (Exception e) {
+      log.error("[template-controller] Sync failed to start: activityId={}, error={}", activityId, e.getMessage(), e);
+      return ResponseEntity.ok(createErrorResponse("Sync failed: " + e.getMessage()));
+    }
+  }
+
+  /**
+   * GET /local/device/templates/sync/{jobId}
+   * Sync job status with per-template progress and throughput
+   * 
+   * @param request HTTP request (for localhost check)
+   * @param jobId Job ID returned by POST /sync
+   * @return Sync job
+   */
+  @GetMapping("/sync/{jobId}")
+  public ResponseEntity<?> getSyncJob(HttpServletRequest request, @PathVariable String jobId) {
+    if (!isLocalhost(request)) {
+      return ResponseEntity.status(HttpStatus.FORBIDDEN)
+          .body(createErrorResponse("Access denied: only localhost allowed"));
+    }
+
+    var jobOpt = syncService.getJob(jobId);
+    if (jobOpt.isEmpty()) {
+      return ResponseEntity.status(HttpStatus.NOT_FOUND)
+          .body(createErrorResponse("Sync job not found: " + jobId));
+    }
+    Map<String, Object> response = new HashMap<>();
+    response.put("success", true);
+    response.put("data", jobOpt.get());
+    response.put("message", null);
+    return ResponseEntity.ok(response);
+  }
+
   /**
    * Check if request is from localhost
    */
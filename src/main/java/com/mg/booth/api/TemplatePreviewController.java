@@ -1,24 +1,34 @@
 package com.mg.booth.api;
 
-import com.mg.booth.config.BoothProps;
+import com.mg.booth.config.AppProps;
+import com.mg.booth.service.TemplatePreviewCache;
+import com.mg.booth.service.TemplateSpriteService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Template Preview Controller
  * Provides GET /api/v1/templates/{templateId}/{versionSemver}/preview endpoint
  * for serving template preview images.
+ *
+ * Images come from TemplatePreviewCache (in-memory, strong ETag from the package checksum).
+ * The body is a Resource, so Range requests are answered with 206 by Spring MVC.
+ *
+ * Also serves the selection-grid sprite sheet (sprite.json + sprite.jpg) so the whole grid
+ * loads in one round trip.
  */
 @RestController
 @RequestMapping("/api/v1")
@@ -26,85 +36,123 @@ public class TemplatePreviewController {
 
   private static final Logger log = LoggerFactory.getLogger(TemplatePreviewController.class);
 
-  private final BoothProps boothProps;
+  private static final String SPRITE_URL = "/api/v1/templates/sprite.jpg";
 
-  public TemplatePreviewController(BoothProps boothProps) {
-    this.boothProps = boothProps;
+  private final TemplatePreviewCache previewCache;
+  private final TemplateSpriteService spriteService;
+  private final AppProps appProps;
+
+  public TemplatePreviewController(
+      TemplatePreviewCache previewCache,
+      TemplateSpriteService spriteService,
+      AppProps appProps) {
+    this.previewCache = previewCache;
+    this.spriteService = spriteService;
+    this.appProps = appProps;
   }
 
   /**
-   * GET /api/v1/templates/{templateId}/{versionSemver}/preview
-   * Get template preview image
-   * 
-   * @param templateId Template ID (e.g., "tpl_002")
-   * @param versionSemver Version semver (e.g., "0.1.2")
-   * @return Preview image bytes or 404 if not found
+   * GET /api/v1/templates/sprite.json
+   * Coordinate map of the preview sprite sheet:
+   * { version, spriteUrl, width, height, cellWidth, items: [{templateId, versionSemver, x, y, w, h}] }
+   *
+   * Templates without a preview are not in items (client falls back to previewImageUrl).
    */
-  @GetMapping("/templates/{templateId}/{versionSemver}/preview")
-  public ResponseEntity<?> getPreview(
-      @PathVariable String templateId,
-      @PathVariable String versionSemver) {
-    
-    // Get data directory from config
-    String dataDir = boothProps.getDataDir();
-    if (dataDir == null || dataDir.isBlank()) {
-      dataDir = "./data";
+  @GetMapping("/templates/sprite.json")
+  public ResponseEntity<?> getSpriteMap(
+      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+    TemplateSpriteService.Sprite sprite;
+    try {
+      sprite = spriteService.sprite();
+    } catch (Exception e) {
+      return spriteError(e);
     }
 
-    // Build preview image path: {dataDir}/templates/{templateId}/{versionSemver}/preview.jpg
-    Path previewJpg = Paths.get(dataDir, "templates", templateId, versionSemver, "preview.jpg");
-    Path previewPng = Paths.get(dataDir, "templates", templateId, versionSemver, "preview.png");
-    
-    Path previewPath = null;
-    MediaType contentType = null;
-    boolean exists = false;
-
-    // Try preview.jpg first, then preview.png
-    if (Files.exists(previewJpg) && Files.isRegularFile(previewJpg)) {
-      previewPath = previewJpg;
-      contentType = MediaType.IMAGE_JPEG;
-      exists = true;
-    } else if (Files.exists(previewPng) && Files.isRegularFile(previewPng)) {
-      previewPath = previewPng;
-      contentType = MediaType.IMAGE_PNG;
-      exists = true;
+    HttpHeaders headers = new HttpHeaders();
+    headers.setETag(sprite.getEtag());
+    headers.setCacheControl(CacheControl
+        .maxAge(appProps.getTemplates().getListMaxAgeSeconds(), TimeUnit.SECONDS)
+        .mustRevalidate());
+    if (TemplatesApiController.etagMatches(ifNoneMatch, sprite.getEtag())) {
+      return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
     }
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    return new ResponseEntity<>(sprite.toMap(SPRITE_URL), headers, HttpStatus.OK);
+  }
 
-    // Log the request
-    log.info("[template-preview] templateId={} version={} path={} exists={}",
-        templateId, versionSemver, 
-        previewPath != null ? previewPath.toAbsolutePath() : "none", 
-        exists);
+  /**
+   * GET /api/v1/templates/sprite.jpg?v={version}
+   * Sprite sheet image. With the current version in ?v= the response is immutable for a year;
+   * without it (or with a stale v) the client must revalidate.
+   */
+  @GetMapping("/templates/sprite.jpg")
+  public ResponseEntity<?> getSpriteImage(
+      @RequestParam(value = "v", required = false) String v,
+      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+    TemplateSpriteService.Sprite sprite;
+    try {
+      sprite = spriteService.sprite();
+    } catch (Exception e) {
+      return spriteError(e);
+    }
 
-    if (!exists || previewPath == null) {
-      // Return 404 with JSON response
+    if (sprite.getJpeg().length == 0) {
       Map<String, Object> error = new HashMap<>();
       error.put("error", "NOT_FOUND");
-      error.put("message", "Template preview not found");
-      error.put("templateId", templateId);
-      error.put("version", versionSemver);
+      error.put("message", "No template previews installed");
       return ResponseEntity.status(HttpStatus.NOT_FOUND)
           .contentType(MediaType.APPLICATION_JSON)
           .body(error);
     }
 
-    try {
-      // Read file bytes
-      byte[] imageBytes = Files.readAllBytes(previewPath);
+    HttpHeaders headers = new HttpHeaders();
+    headers.setETag(sprite.getEtag());
+    headers.setCacheControl(sprite.getVersion().equals(v)
+        ? CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().immutable()
+        : CacheControl.noCache());
+    if (TemplatesApiController.etagMatches(ifNoneMatch, sprite.getEtag())) {
+      return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+    }
+    headers.setContentType(MediaType.IMAGE_JPEG);
+    return ResponseEntity.ok()
+        .headers(headers)
+        .body(new ByteArrayResource(sprite.getJpeg()));
+  }
 
-      // Build response headers
-      HttpHeaders headers = new HttpHeaders();
-      headers.setContentType(contentType);
-      headers.setCacheControl(CacheControl.maxAge(3600, java.util.concurrent.TimeUnit.SECONDS).cachePublic());
+  private ResponseEntity<?> spriteError(Exception e) {
+    log.error("[template-preview] Failed to build sprite: {}", e.getMessage(), e);
+    Map<String, Object> error = new HashMap<>();
+    error.put("error", "INTERNAL_ERROR");
+    error.put("message", "Failed to build sprite: " + e.getMessage());
+    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+        .contentType(MediaType.APPLICATION_JSON)
+        .body(error);
+  }
 
-      return ResponseEntity.ok()
-          .headers(headers)
-          .body(imageBytes);
+  /**
+   * GET /api/v1/templates/{templateId}/{versionSemver}/preview
+   * Get template preview image
+   *
+   * @param templateId Template ID (e.g., "tpl_002")
+   * @param versionSemver Version semver (e.g., "0.1.2")
+   * @param w Optional target width in px (e.g., 240 for the selection grid)
+   * @param ifNoneMatch Conditional request validator
+   * @return Preview image bytes, 304 if ETag matches, or 404 if not found
+   */
+  @GetMapping("/templates/{templateId}/{versionSemver}/preview")
+  public ResponseEntity<?> getPreview(
+      @PathVariable String templateId,
+      @PathVariable String versionSemver,
+      @RequestParam(value = "w", required = false) Integer w,
+      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 
+    Optional<TemplatePreviewCache.Preview> preview;
+    try {
+      preview = previewCache.get(templateId, versionSemver, w);
     } catch (Exception e) {
-      log.error("[template-preview] Failed to read preview file: templateId={}, version={}, path={}, error={}",
-          templateId, versionSemver, previewPath.toAbsolutePath(), e.getMessage(), e);
-      
+      log.error("[template-preview] Failed to read preview: templateId={}, version={}, w={}, error={}",
+          templateId, versionSemver, w, e.getMessage(), e);
+
       Map<String, Object> error = new HashMap<>();
       error.put("error", "INTERNAL_ERROR");
       error.put("message", "Failed to read preview file: " + e.getMessage());
@@ -112,5 +160,32 @@ public class TemplatePreviewController {
           .contentType(MediaType.APPLICATION_JSON)
           .body(error);
     }
+
+    if (preview.isEmpty()) {
+      log.info("[template-preview] templateId={} version={} exists=false", templateId, versionSemver);
+      // Return 404 with JSON response
+      Map<String, Object> error = new HashMap<>();
+      error.put("error", "NOT_FOUND");
+      error.put("message", "Template preview not found");
+      error.put("templateId", templateId);
+      error.put("version", versionSemver);
+      return ResponseEntity.status(HttpStatus.NOT_FOUND)
+          .contentType(MediaType.APPLICATION_JSON)
+          .body(error);
+    }
+
+    TemplatePreviewCache.Preview p = preview.get();
+    HttpHeaders headers = new HttpHeaders();
+    headers.setETag(p.getEtag());
+    headers.setCacheControl(CacheControl.maxAge(3600, TimeUnit.SECONDS).cachePublic());
+
+    if (TemplatesApiController.etagMatches(ifNoneMatch, p.getEtag())) {
+      return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+    }
+
+    headers.setContentType(MediaType.parseMediaType(p.getContentType()));
+    return ResponseEntity.ok()
+        .headers(headers)
+        .body(new ByteArrayResource(p.getBytes()));
   }
 }
@@ -1,28 +1,49 @@
 package com.mg.booth.api;
 
-import com.mg.booth.config.BoothProps;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mg.booth.config.AppProps;
 import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.device.TemplateCatalog;
 import com.mg.booth.domain.TemplateSummary;
 import com.mg.booth.service.TemplateService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.nio.file.Path;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Templates API Controller
  * Provides GET /api/v1/templates endpoint for kiosk Selecting page
  * 
  * Data source priority:
- * 1. LocalTemplateIndexStore (data/index.json) - preferred
+ * 1. TemplateCatalog (in-memory data/index.json) - preferred
  * 2. TemplateService.listTemplates() - fallback if index is empty
+ *
+ * The response body is serialized once per catalog snapshot (plain + gzip) with a strong
+ * ETag derived from the installed items (templateCode@version#checksum), so index writes that do
+ * not change the list (e.g. pipelineReady updates) keep the ETag. The gzip body carries its own
+ * ETag ("&lt;hash&gt;-gz", RFC 9110 §8.8.3); If-None-Match with either form gets 304.
  */
 @RestController
 @RequestMapping("/api/v1")
@@ -30,50 +51,92 @@ public class TemplatesApiController {
 
   private static final Logger log = LoggerFactory.getLogger(TemplatesApiController.class);
 
-  private final BoothProps props;
-  private final LocalTemplateIndexStore indexStore;
+  // gzip 编码的响应使用不同的强校验值
+  static final String GZIP_ETAG_SUFFIX = "-gz";
+
+  private final TemplateCatalog catalog;
   private final TemplateService templateService;
+  private final AppProps appProps;
+  private final ObjectMapper om = new ObjectMapper();
+
+  // 当前目录快照对应的预序列化响应
+  private final AtomicReference<CachedBody> cache = new AtomicReference<>();
 
   public TemplatesApiController(
-      BoothProps props,
-      LocalTemplateIndexStore indexStore,
-      TemplateService templateService) {
-    this.props = props;
-    this.indexStore = indexStore;
+      TemplateCatalog catalog,
+      TemplateService templateService,
+      AppProps appProps) {
+    this.catalog = catalog;
     this.templateService = templateService;
+    this.appProps = appProps;
+    // 目录变化时立即重算，请求路径只做 ETag 比较和字节输出
+    this.catalog.addChangeListener(snapshot -> refresh(snapshot.getIndex()));
   }
 
   /**
    * GET /api/v1/templates
-   * Get list of available templates for kiosk Selecting page
+   * Get list of available templates for kiosk Selecting page (see {@link #listTemplates()} for fields)
+   *
+   * Serves the precomputed body: gzip when the client accepts it, 304 when If-None-Match matches.
+   *
+   * @return Response with items array: { "items": [...] }
+   */
+  @GetMapping("/templates")
+  public ResponseEntity<byte[]> getTemplates(
+      @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+      @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+    CachedBody body = current();
+    boolean gzip = body.gzip != null && acceptsGzip(acceptEncoding);
+
+    HttpHeaders headers = new HttpHeaders();
+    headers.setETag(gzip ? body.gzipEtag : body.etag);
+    headers.setCacheControl(CacheControl
+        .maxAge(appProps.getTemplates().getListMaxAgeSeconds(), TimeUnit.SECONDS)
+        .mustRevalidate());
+    headers.setVary(List.of(HttpHeaders.ACCEPT_ENCODING));
+
+    if (etagMatches(ifNoneMatch, body.etag)) {
+      return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+    }
+
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    if (gzip) {
+      headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+      headers.setContentLength(body.gzip.length);
+      return new ResponseEntity<>(body.gzip, headers, HttpStatus.OK);
+    }
+    headers.setContentLength(body.json.length);
+    return new ResponseEntity<>(body.json, headers, HttpStatus.OK);
+  }
+
+  /**
+   * Build the template list for kiosk Selecting page from the current catalog
    * 
    * Returns fields: templateId, name, enabled, previewImageUrl
-   * previewImageUrl is set only when versionSemver is available (from LocalTemplateIndexStore)
+   * previewImageUrl is set only when versionSemver is available (from TemplateCatalog)
    * Does not expose downloadUrl/checksum/version (those are for Settings page installation)
    * 
    * @return Response with items array: { "items": [...] }
    */
-  @GetMapping("/templates")
   public Map<String, Object> listTemplates() {
+    Map<String, Object> response = new HashMap<>();
+    response.put("items", build(catalog::items).items);
+    return response;
+  }
+
+  private Built build(Supplier<List<LocalTemplateIndexStore.TemplateIndexItem>> installedSource) {
     List<TemplateItemDto> items = new ArrayList<>();
     String source = "unknown";
 
     try {
-      // Step 1: Try to read from LocalTemplateIndexStore (data/index.json)
-      Path dataDir = Path.of(props.getDataDir() != null && !props.getDataDir().isBlank() 
-          ? props.getDataDir() 
-          : "./data");
-      Path indexFile = dataDir.resolve("index.json");
-
-      var indexOpt = indexStore.readIndex(indexFile);
+      // Step 1: Try the in-memory catalog (data/index.json)
+      List<LocalTemplateIndexStore.TemplateIndexItem> installed = installedSource.get();
       
-      if (indexOpt.isPresent() && indexOpt.get().getItems() != null 
-          && !indexOpt.get().getItems().isEmpty()) {
+      if (installed != null && !installed.isEmpty()) {
         // Use local index
         source = "local_index";
-        LocalTemplateIndexStore.TemplateIndex index = indexOpt.get();
         
-        for (LocalTemplateIndexStore.TemplateIndexItem item : index.getItems()) {
+        for (LocalTemplateIndexStore.TemplateIndexItem item : installed) {
           TemplateItemDto dto = new TemplateItemDto();
           // templateId stores templateCode in schemaVersion 2
           String templateId = item.getTemplateId() != null ? item.getTemplateId() : "unknown";
@@ -122,10 +185,7 @@ public class TemplatesApiController {
       }
 
       log.info("[templates-api] List templates source={} count={}", source, items.size());
-
-      Map<String, Object> response = new HashMap<>();
-      response.put("items", items);
-      return response;
+      return new Built(source, items);
 
     } catch (Exception e) {
       log.error("[templates-api] Failed to list templates: {}", e.getMessage(), e);
@@ -157,10 +217,134 @@ public class TemplatesApiController {
         // Return empty list if everything fails
         items = new ArrayList<>();
       }
+      return new Built(source, items);
+    }
+  }
+
+  private CachedBody current() {
+    LocalTemplateIndexStore.TemplateIndex index = catalog.index();
+    CachedBody cached = cache.get();
+    if (cached != null && cached.index == index) {
+      return cached;
+    }
+    return refresh(index);
+  }
+
+  private CachedBody refresh(LocalTemplateIndexStore.TemplateIndex index) {
+    CachedBody fresh = precompute(index);
+    // 出错降级的结果不缓存，下次请求重试
+    if (!fresh.source.endsWith("_error")) {
+      cache.set(fresh);
+    }
+    return fresh;
+  }
+
+  private CachedBody precompute(LocalTemplateIndexStore.TemplateIndex index) {
+    Built built = build(() -> index != null ? index.getItems() : null);
+    Map<String, Object> response = new HashMap<>();
+    response.put("items", built.items);
+    try {
+      byte[] json = om.writeValueAsBytes(response);
+      String hash = etagOf(index, built.source, json);
+      String etag = "\"" + hash + "\"";
+      byte[] gzip = gzip(json);
+      log.info("[templates-api] Precomputed response source={} count={} bytes={} gzipBytes={} etag={}",
+          built.source, built.items.size(), json.length, gzip != null ? gzip.length : -1, etag);
+      return new CachedBody(index, built.source, json, gzip, etag, "\"" + hash + GZIP_ETAG_SUFFIX + "\"");
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to serialize template list", e);
+    }
+  }
+
+  /**
+   * Strong validator: templateCode@version#checksum of every item (not index updatedAt, which
+   * changes on every index write). Fallback lists (no installed templates) hash the serialized
+   * body instead.
+   */
+  static String etagOf(LocalTemplateIndexStore.TemplateIndex index, String source, byte[] json) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(source.getBytes(StandardCharsets.UTF_8));
+      if ("local_index".equals(source) && index != null) {
+        for (LocalTemplateIndexStore.TemplateIndexItem item : index.getItems()) {
+          String part = "|" + item.getTemplateId() + "@" + item.getVersion() + "#" + item.getChecksum();
+          md.update(part.getBytes(StandardCharsets.UTF_8));
+        }
+      } else {
+        md.update(json);
+      }
+      return HexFormat.of().formatHex(md.digest(), 0, 16);
+    } catch (Exception e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  /**
+   * If-None-Match against the identity ETag; the gzip form ("&lt;hash&gt;-gz") of the same body
+   * matches too, so a client switching Accept-Encoding still revalidates.
+   */
+  static boolean etagMatches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null || ifNoneMatch.isBlank()) {
+      return false;
+    }
+    String gzipEtag = etag.endsWith("\"")
+        ? etag.substring(0, etag.length() - 1) + GZIP_ETAG_SUFFIX + "\""
+        : etag + GZIP_ETAG_SUFFIX;
+    for (String candidate : ifNoneMatch.split(",")) {
+      String c = candidate.trim();
+      if (c.startsWith("W/")) {
+        c = c.substring(2);
+      }
+      if ("*".equals(c) || etag.equals(c) || gzipEtag.equals(c)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean acceptsGzip(String acceptEncoding) {
+    return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+  }
+
+  private static byte[] gzip(byte[] data) {
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 64);
+      try (GZIPOutputStream gz = new GZIPOutputStream(bos)) {
+        gz.write(data);
+      }
+      return bos.toByteArray();
+    } catch (IOException e) {
+      log.warn("[templates-api] Gzip failed, serving identity only: {}", e.getMessage());
+      return null;
+    }
+  }
+
+  private static final class Built {
+    private final String source;
+    private final List<TemplateItemDto> items;
+
+    private Built(String source, List<TemplateItemDto> items) {
+      this.source = source;
+      this.items = items;
+    }
+  }
+
+  private static final class CachedBody {
+    private final LocalTemplateIndexStore.TemplateIndex index;
+    private final String source;
+    private final byte[] json;
+    private final byte[] gzip;
+    private final String etag;
+    private final String gzipEtag;
 
-      Map<String, Object> response = new HashMap<>();
-      response.put("items", items);
-      return response;
+    private CachedBody(LocalTemplateIndexStore.TemplateIndex index, String source,
+                       byte[] json, byte[] gzip, String etag, String gzipEtag) {
+      this.index = index;
+      this.source = source;
+      this.json = json;
+      this.gzip = gzip;
+      this.etag = etag;
+      this.gzipEtag = gzipEtag;
     }
   }
 
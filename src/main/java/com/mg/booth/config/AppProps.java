@@ -22,6 +22,71 @@ public class AppProps {
     this.ai = ai != null ? ai : new Ai();
   }
 
+  /**
+   * Local metrics configuration
+   */
+  private Metrics metrics = new Metrics();
+
+  /**
+   * Raw pre-processing (crop/downsample before AI submission)
+   */
+  private Preprocess preprocess = new Preprocess();
+
+  public Preprocess getPreprocess() {
+    return preprocess;
+  }
+
+  public void setPreprocess(Preprocess preprocess) {
+    this.preprocess = preprocess != null ? preprocess : new Preprocess();
+  }
+
+  /**
+   * AI engine routing (per-engine concurrency budget and health-based fallback)
+   */
+  private Engines engines = new Engines();
+
+  public Engines getEngines() {
+    return engines;
+  }
+
+  public void setEngines(Engines engines) {
+    this.engines = engines != null ? engines : new Engines();
+  }
+
+  /**
+   * Pipeline warm-keeping canary renders
+   */
+  private Canary canary = new Canary();
+
+  public Canary getCanary() {
+    return canary;
+  }
+
+  public void setCanary(Canary canary) {
+    this.canary = canary != null ? canary : new Canary();
+  }
+
+  /**
+   * Installed template catalog / package management
+   */
+  private Templates templates = new Templates();
+
+  public Templates getTemplates() {
+    return templates;
+  }
+
+  public void setTemplates(Templates templates) {
+    this.templates = templates != null ? templates : new Templates();
+  }
+
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics != null ? metrics : new Metrics();
+  }
+
   /**
    * AI processing configuration
    */
@@ -44,6 +109,59 @@ public class AppProps {
      */
     private long v2TimeoutMs = 60000L;
 
+    /**
+     * Pipeline v2 output mode:
+     * - sync: wait for preview and final in one response (default)
+     * - two_phase: submit async, publish preview to the session as soon as it exists,
+     *   keep waiting for the final in the background
+     */
+    private String v2OutputMode = "sync";
+
+    /**
+     * Poll interval for two-phase jobs in milliseconds.
+     * Default: 300 ms
+     */
+    private long v2PollIntervalMs = 300L;
+
+    /**
+     * How the raw image reaches pipeline v2:
+     * - auto: path when the pipeline is co-located (loopback / local address), upload otherwise (default)
+     * - path: send rawPath only (pipeline reads booth.sharedRawBaseDir)
+     * - upload: stream the raw JPEG to /pipeline/v2/uploads before processing
+     */
+    private String v2RawTransfer = "auto";
+
+    /**
+     * Chunk size for raw uploads (HTTP chunked streaming) in bytes.
+     * Default: 256 KB
+     */
+    private int v2UploadChunkBytes = 256 * 1024;
+
+    /**
+     * Max retries of a pipeline v2 call on UNREACHABLE / 502 / 503 / 504
+     * (bounded by the session's remaining PROCESSING time).
+     * Default: 2
+     */
+    private int v2MaxRetries = 2;
+
+    /**
+     * Base delay of the jittered exponential backoff between retries.
+     * Default: 200 ms
+     */
+    private long v2RetryBaseMs = 200L;
+
+    /**
+     * Cap of a single backoff delay.
+     * Default: 2000 ms
+     */
+    private long v2RetryMaxBackoffMs = 2000L;
+
+    /**
+     * Ask pipeline v2 to pre-download and warm a template right after it is installed.
+     * Default: true
+     */
+    private boolean v2PrefetchOnInstall = true;
+
     public String getMode() {
       return mode;
     }
@@ -67,5 +185,707 @@ public class AppProps {
     public void setV2TimeoutMs(long v2TimeoutMs) {
       this.v2TimeoutMs = v2TimeoutMs > 0 ? v2TimeoutMs : 60000L;
     }
+
+    public String getV2OutputMode() {
+      return v2OutputMode;
+    }
+
+    public void setV2OutputMode(String v2OutputMode) {
+      this.v2OutputMode = (v2OutputMode != null && !v2OutputMode.isBlank()) ? v2OutputMode.trim() : "sync";
+    }
+
+    public boolean isV2TwoPhase() {
+      return "two_phase".equalsIgnoreCase(v2OutputMode);
+    }
+
+    public long getV2PollIntervalMs() {
+      return v2PollIntervalMs;
+    }
+
+    public void setV2PollIntervalMs(long v2PollIntervalMs) {
+      this.v2PollIntervalMs = v2PollIntervalMs > 0 ? v2PollIntervalMs : 300L;
+    }
+
+    public String getV2RawTransfer() {
+      return v2RawTransfer;
+    }
+
+    public void setV2RawTransfer(String v2RawTransfer) {
+      this.v2RawTransfer = (v2RawTransfer != null && !v2RawTransfer.isBlank()) ? v2RawTransfer.trim() : "auto";
+    }
+
+    public int getV2UploadChunkBytes() {
+      return v2UploadChunkBytes;
+    }
+
+    public void setV2UploadChunkBytes(int v2UploadChunkBytes) {
+      this.v2UploadChunkBytes = v2UploadChunkBytes > 0 ? v2UploadChunkBytes : 256 * 1024;
+    }
+
+    public int getV2MaxRetries() {
+      return v2MaxRetries;
+    }
+
+    public void setV2MaxRetries(int v2MaxRetries) {
+      this.v2MaxRetries = v2MaxRetries >= 0 ? v2MaxRetries : 2;
+    }
+
+    public long getV2RetryBaseMs() {
+      return v2RetryBaseMs;
+    }
+
+    public void setV2RetryBaseMs(long v2RetryBaseMs) {
+      this.v2RetryBaseMs = v2RetryBaseMs > 0 ? v2RetryBaseMs : 200L;
+    }
+
+    public long getV2RetryMaxBackoffMs() {
+      return v2RetryMaxBackoffMs;
+    }
+
+    public void setV2RetryMaxBackoffMs(long v2RetryMaxBackoffMs) {
+      this.v2RetryMaxBackoffMs = v2RetryMaxBackoffMs > 0 ? v2RetryMaxBackoffMs : 2000L;
+    }
+
+    public boolean isV2PrefetchOnInstall() {
+      return v2PrefetchOnInstall;
+    }
+
+    public void setV2PrefetchOnInstall(boolean v2PrefetchOnInstall) {
+      this.v2PrefetchOnInstall = v2PrefetchOnInstall;
+    }
+  }
+
+  /**
+   * Local metrics configuration
+   */
+  public static class Metrics {
+    /**
+     * Rolling window of latency histograms in seconds.
+     * Snapshots cover the current and the previous window.
+     * Default: 300 s
+     */
+    private long windowSeconds = 300L;
+
+    public long getWindowSeconds() {
+      return windowSeconds;
+    }
+
+    public void setWindowSeconds(long windowSeconds) {
+      this.windowSeconds = windowSeconds > 0 ? windowSeconds : 300L;
+    }
+  }
+
+  /**
+   * Raw pre-processing configuration
+   */
+  public static class Preprocess {
+    /**
+     * Crop raw to manifest input.ratio and downsample to manifest output size before submission.
+     * Default: false
+     */
+    private boolean enabled = false;
+
+    /**
+     * Worker threads of the dedicated pre-processing pool.
+     * Default: 1
+     */
+    private int poolSize = 1;
+
+    /**
+     * Pending jobs allowed in the pool queue; beyond that the raw is submitted unprocessed.
+     * Default: 2
+     */
+    private int queueCapacity = 2;
+
+    /**
+     * JPEG quality of the working image (1-100).
+     * Default: 92
+     */
+    private int jpegQuality = 92;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public int getPoolSize() {
+      return poolSize;
+    }
+
+    public void setPoolSize(int poolSize) {
+      this.poolSize = poolSize > 0 ? poolSize : 1;
+    }
+
+    public int getQueueCapacity() {
+      return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity > 0 ? queueCapacity : 2;
+    }
+
+    public int getJpegQuality() {
+      return jpegQuality;
+    }
+
+    public void setJpegQuality(int jpegQuality) {
+      this.jpegQuality = (jpegQuality >= 1 && jpegQuality <= 100) ? jpegQuality : 92;
+    }
+  }
+
+  /**
+   * AI engine routing configuration
+   */
+  public static class Engines {
+    /**
+     * Fall back to the other engine when the preferred one is degraded or out of budget.
+     * Default: true
+     */
+    private boolean fallbackEnabled = true;
+
+    /**
+     * Max concurrent sessions on the v1 gateway.
+     * Default: 2
+     */
+    private int v1MaxConcurrent = 2;
+
+    /**
+     * Max concurrent sessions on pipeline v2.
+     * Default: 2
+     */
+    private int v2MaxConcurrent = 2;
+
+    /**
+     * Max concurrent renders on the local compose engine (CPU bound).
+     * Default: 1
+     */
+    private int localMaxConcurrent = 1;
+
+    /**
+     * Render templates whose rules.json disables segmentation with the local compose
+     * engine instead of pipeline v2.
+     * Default: true
+     */
+    private boolean localFastPath = true;
+
+    /**
+     * How long to wait for a concurrency slot when no engine has one free.
+     * Default: 10000 ms
+     */
+    private long acquireTimeoutMs = 10000L;
+
+    /**
+     * Number of recent calls per engine used for health (success rate / latency).
+     * Default: 20
+     */
+    private int healthWindow = 20;
+
+    /**
+     * Minimum samples in the window before an engine can be marked degraded.
+     * Default: 5
+     */
+    private int minSamples = 5;
+
+    /**
+     * Engine is degraded when its recent success rate drops below this.
+     * Default: 0.6
+     */
+    private double minSuccessRate = 0.6;
+
+    /**
+     * Engine is degraded when its recent p90 latency exceeds this.
+     * Default: 20000 ms (SessionSweeper times PROCESSING out after 30 s)
+     */
+    private long maxP90LatencyMs = 20000L;
+
+    /**
+     * A degraded engine gets one probe call after this long without traffic.
+     * Default: 60000 ms
+     */
+    private long probeIntervalMs = 60000L;
+
+    public boolean isFallbackEnabled() {
+      return fallbackEnabled;
+    }
+
+    public void setFallbackEnabled(boolean fallbackEnabled) {
+      this.fallbackEnabled = fallbackEnabled;
+    }
+
+    public int getV1MaxConcurrent() {
+      return v1MaxConcurrent;
+    }
+
+    public void setV1MaxConcurrent(int v1MaxConcurrent) {
+      this.v1MaxConcurrent = v1MaxConcurrent > 0 ? v1MaxConcurrent : 2;
+    }
+
+    public int getV2MaxConcurrent() {
+      return v2MaxConcurrent;
+    }
+
+    public void setV2MaxConcurrent(int v2MaxConcurrent) {
+      this.v2MaxConcurrent = v2MaxConcurrent > 0 ? v2MaxConcurrent : 2;
+    }
+
+    public int getLocalMaxConcurrent() {
+      return localMaxConcurrent;
+    }
+
+    public void setLocalMaxConcurrent(int localMaxConcurrent) {
+      this.localMaxConcurrent = localMaxConcurrent > 0 ? localMaxConcurrent : 1;
+    }
+
+    public boolean isLocalFastPath() {
+      return localFastPath;
+    }
+
+    public void setLocalFastPath(boolean localFastPath) {
+      this.localFastPath = localFastPath;
+    }
+
+    public long getAcquireTimeoutMs() {
+      return acquireTimeoutMs;
+    }
+
+    public void setAcquireTimeoutMs(long acquireTimeoutMs) {
+      this.acquireTimeoutMs = acquireTimeoutMs >= 0 ? acquireTimeoutMs : 10000L;
+    }
+
+    public int getHealthWindow() {
+      return healthWindow;
+    }
+
+    public void setHealthWindow(int healthWindow) {
+      this.healthWindow = healthWindow > 0 ? healthWindow : 20;
+    }
+
+    public int getMinSamples() {
+      return minSamples;
+    }
+
+    public void setMinSamples(int minSamples) {
+      this.minSamples = minSamples > 0 ? minSamples : 5;
+    }
+
+    public double getMinSuccessRate() {
+      return minSuccessRate;
+    }
+
+    public void setMinSuccessRate(double minSuccessRate) {
+      this.minSuccessRate = (minSuccessRate >= 0 && minSuccessRate <= 1) ? minSuccessRate : 0.6;
+    }
+
+    public long getMaxP90LatencyMs() {
+      return maxP90LatencyMs;
+    }
+
+    public void setMaxP90LatencyMs(long maxP90LatencyMs) {
+      this.maxP90LatencyMs = maxP90LatencyMs > 0 ? maxP90LatencyMs : 20000L;
+    }
+
+    public long getProbeIntervalMs() {
+      return probeIntervalMs;
+    }
+
+    public void setProbeIntervalMs(long probeIntervalMs) {
+      this.probeIntervalMs = probeIntervalMs > 0 ? probeIntervalMs : 60000L;
+    }
+  }
+
+  /**
+   * Canary warm-up configuration
+   */
+  public static class Canary {
+    /**
+     * Submit synthetic renders to keep pipeline v2 warm.
+     * Default: false
+     */
+    private boolean enabled = false;
+
+    /**
+     * Event hours (local time) during which canaries run, "HH:mm-HH:mm".
+     * Default: 09:00-21:00
+     */
+    private String eventHours = "09:00-21:00";
+
+    /**
+     * Minutes without real jobs (and since the last canary round) before a canary round.
+     * Default: 10
+     */
+    private int idleMinutes = 10;
+
+    /**
+     * Directory with bundled sample raw JPEGs.
+     * Default: assets/sample_raw
+     */
+    private String sampleDir = "assets/sample_raw";
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public String getEventHours() {
+      return eventHours;
+    }
+
+    public void setEventHours(String eventHours) {
+      this.eventHours = eventHours != null && !eventHours.isBlank() ? eventHours.trim() : "09:00-21:00";
+    }
+
+    public int getIdleMinutes() {
+      return idleMinutes;
+    }
+
+    public void setIdleMinutes(int idleMinutes) {
+      this.idleMinutes = idleMinutes > 0 ? idleMinutes : 10;
+    }
+
+    public String getSampleDir() {
+      return sampleDir;
+    }
+
+    public void setSampleDir(String sampleDir) {
+      this.sampleDir = sampleDir != null && !sampleDir.isBlank() ? sampleDir.trim() : "assets/sample_raw";
+    }
+  }
+
+  /**
+   * Installed template configuration
+   */
+  public static class Templates {
+    /**
+     * Watch data/index.json for external edits and reload the in-memory catalog.
+     * Writes made by the booth itself always refresh the catalog.
+     * Default: true
+     */
+    private boolean watchIndex = true;
+
+    /**
+     * Cache-Control max-age for GET /api/v1/templates (revalidated with ETag afterwards).
+     * Default: 30
+     */
+    private long listMaxAgeSeconds = 30L;
+
+    /**
+     * Byte budget of the in-memory preview image cache (originals + resized variants).
+     * Default: 32 MB
+     */
+    private long previewCacheMaxBytes = 32L * 1024 * 1024;
+
+    /**
+     * Tile width of the selection-grid sprite sheet.
+     * Default: 240
+     */
+    private int spriteCellWidth = 240;
+
+    /**
+     * Tiles per row in the sprite sheet.
+     * Default: 4
+     */
+    private int spriteColumns = 4;
+
+    /**
+     * Parallel package installs in an activity sync job.
+     * Default: 4
+     */
+    private int syncParallelism = 4;
+
+    /**
+     * Concurrent downloads per download host in an activity sync job.
+     * Default: 2
+     */
+    private int syncPerHostLimit = 2;
+
+    /**
+     * Cap on total template download bandwidth (all concurrent downloads), bytes/s.
+     * 0 = unlimited.
+     * Default: 0
+     */
+    private long downloadMaxBytesPerSec = 0;
+
+    /**
+     * Resume attempts (HTTP Range from the partial file) after a download error.
+     * Default: 3
+     */
+    private int downloadRetries = 3;
+
+    /**
+     * Worker threads for queued single-template installs (POST /local/device/templates/install).
+     * Default: 2
+     */
+    private int installWorkers = 2;
+
+    /**
+     * Queued installs waiting for a worker; further requests are rejected.
+     * Default: 16
+     */
+    private int installQueueCapacity = 16;
+
+    /**
+     * Packages up to this size (Content-Length) are extracted while downloading; larger ones
+     * are extracted from the verified file in parallel.
+     * Default: 16MB
+     */
+    private long streamExtractMaxBytes = 16L * 1024 * 1024;
+
+    /**
+     * Worker threads for parallel zip extraction.
+     * Default: 4
+     */
+    private int extractWorkers = 4;
+
+    /**
+     * Group-commit window for index.json updates: concurrent installs within this window
+     * share one write. 0 = only batch updates that arrive while a write is in progress.
+     * Default: 20
+     */
+    private long indexCommitWindowMs = 20;
+
+    /**
+     * Background GC of old template versions, orphaned staging/download files and CAS objects.
+     * Default: true
+     */
+    private boolean gcEnabled = true;
+
+    /**
+     * Previous versions kept (besides the current one) for templates referenced by active activities.
+     * Default: 1
+     */
+    private int gcKeepPreviousVersions = 1;
+
+    /**
+     * Staging dirs, partial downloads, .bak_* dirs and unindexed version dirs older than this are deleted.
+     * Default: 24
+     */
+    private long gcTmpMaxAgeHours = 24;
+
+    /**
+     * Disk budget for data/templates; least-recently-used versions not needed by an active
+     * activity are evicted above it. 0 = unlimited.
+     * Default: 0
+     */
+    private long gcMaxBytes = 0;
+
+    /**
+     * Files deleted between pauses.
+     * Default: 32
+     */
+    private int gcDeleteBatch = 32;
+
+    /**
+     * Pause after each delete batch so GC never competes with capture I/O.
+     * Default: 50
+     */
+    private long gcDeletePauseMs = 50;
+
+    /**
+     * Verify installed template files against their stored digests at startup.
+     * Default: true
+     */
+    private boolean verifyOnStartup = true;
+
+    /**
+     * Template versions verified in parallel.
+     * Default: 2
+     */
+    private int verifyWorkers = 2;
+
+    /**
+     * Queue a reinstall of versions that failed verification.
+     * Default: true
+     */
+    private boolean verifyRedownload = true;
+
+    public boolean isWatchIndex() {
+      return watchIndex;
+    }
+
+    public void setWatchIndex(boolean watchIndex) {
+      this.watchIndex = watchIndex;
+    }
+
+    public long getListMaxAgeSeconds() {
+      return listMaxAgeSeconds;
+    }
+
+    public void setListMaxAgeSeconds(long listMaxAgeSeconds) {
+      this.listMaxAgeSeconds = listMaxAgeSeconds >= 0 ? listMaxAgeSeconds : 30L;
+    }
+
+    public long getPreviewCacheMaxBytes() {
+      return previewCacheMaxBytes;
+    }
+
+    public void setPreviewCacheMaxBytes(long previewCacheMaxBytes) {
+      this.previewCacheMaxBytes = previewCacheMaxBytes > 0 ? previewCacheMaxBytes : 32L * 1024 * 1024;
+    }
+
+    public int getSpriteCellWidth() {
+      return spriteCellWidth;
+    }
+
+    public void setSpriteCellWidth(int spriteCellWidth) {
+      this.spriteCellWidth = spriteCellWidth > 0 ? spriteCellWidth : 240;
+    }
+
+    public int getSpriteColumns() {
+      return spriteColumns;
+    }
+
+    public void setSpriteColumns(int spriteColumns) {
+      this.spriteColumns = spriteColumns > 0 ? spriteColumns : 4;
+    }
+
+    public int getSyncParallelism() {
+      return syncParallelism;
+    }
+
+    public void setSyncParallelism(int syncParallelism) {
+      this.syncParallelism = syncParallelism > 0 ? syncParallelism : 4;
+    }
+
+    public int getSyncPerHostLimit() {
+      return syncPerHostLimit;
+    }
+
+    public void setSyncPerHostLimit(int syncPerHostLimit) {
+      this.syncPerHostLimit = syncPerHostLimit > 0 ? syncPerHostLimit : 2;
+    }
+
+    public long getDownloadMaxBytesPerSec() {
+      return downloadMaxBytesPerSec;
+    }
+
+    public void setDownloadMaxBytesPerSec(long downloadMaxBytesPerSec) {
+      this.downloadMaxBytesPerSec = Math.max(0, downloadMaxBytesPerSec);
+    }
+
+    public int getDownloadRetries() {
+      return downloadRetries;
+    }
+
+    public void setDownloadRetries(int downloadRetries) {
+      this.downloadRetries = Math.max(0, downloadRetries);
+    }
+
+    public int getInstallWorkers() {
+      return installWorkers;
+    }
+
+    public void setInstallWorkers(int installWorkers) {
+      this.installWorkers = installWorkers > 0 ? installWorkers : 2;
+    }
+
+    public int getInstallQueueCapacity() {
+      return installQueueCapacity;
+    }
+
+    public void setInstallQueueCapacity(int installQueueCapacity) {
+      this.installQueueCapacity = installQueueCapacity > 0 ? installQueueCapacity : 16;
+    }
+
+    public long getStreamExtractMaxBytes() {
+      return streamExtractMaxBytes;
+    }
+
+    public void setStreamExtractMaxBytes(long streamExtractMaxBytes) {
+      this.streamExtractMaxBytes = Math.max(0, streamExtractMaxBytes);
+    }
+
+    public int getExtractWorkers() {
+      return extractWorkers;
+    }
+
+    public void setExtractWorkers(int extractWorkers) {
+      this.extractWorkers = extractWorkers > 0 ? extractWorkers : 4;
+    }
+
+    public long getIndexCommitWindowMs() {
+      return indexCommitWindowMs;
+    }
+
+    public void setIndexCommitWindowMs(long indexCommitWindowMs) {
+      this.indexCommitWindowMs = Math.max(0, indexCommitWindowMs);
+    }
+
+    public boolean isGcEnabled() {
+      return gcEnabled;
+    }
+
+    public void setGcEnabled(boolean gcEnabled) {
+      this.gcEnabled = gcEnabled;
+    }
+
+    public int getGcKeepPreviousVersions() {
+      return gcKeepPreviousVersions;
+    }
+
+    public void setGcKeepPreviousVersions(int gcKeepPreviousVersions) {
+      this.gcKeepPreviousVersions = Math.max(0, gcKeepPreviousVersions);
+    }
+
+    public long getGcTmpMaxAgeHours() {
+      return gcTmpMaxAgeHours;
+    }
+
+    public void setGcTmpMaxAgeHours(long gcTmpMaxAgeHours) {
+      this.gcTmpMaxAgeHours = gcTmpMaxAgeHours > 0 ? gcTmpMaxAgeHours : 24;
+    }
+
+    public long getGcMaxBytes() {
+      return gcMaxBytes;
+    }
+
+    public void setGcMaxBytes(long gcMaxBytes) {
+      this.gcMaxBytes = Math.max(0, gcMaxBytes);
+    }
+
+    public int getGcDeleteBatch() {
+      return gcDeleteBatch;
+    }
+
+    public void setGcDeleteBatch(int gcDeleteBatch) {
+      this.gcDeleteBatch = gcDeleteBatch > 0 ? gcDeleteBatch : 32;
+    }
+
+    public long getGcDeletePauseMs() {
+      return gcDeletePauseMs;
+    }
+
+    public void setGcDeletePauseMs(long gcDeletePauseMs) {
+      this.gcDeletePauseMs = Math.max(0, gcDeletePauseMs);
+    }
+
+    public boolean isVerifyOnStartup() {
+      return verifyOnStartup;
+    }
+
+    public void setVerifyOnStartup(boolean verifyOnStartup) {
+      this.verifyOnStartup = verifyOnStartup;
+    }
+
+    public int getVerifyWorkers() {
+      return verifyWorkers;
+    }
+
+    public void setVerifyWorkers(int verifyWorkers) {
+      this.verifyWorkers = verifyWorkers > 0 ? verifyWorkers : 2;
+    }
+
+    public boolean isVerifyRedownload() {
+      return verifyRedownload;
+    }
+
+    public void setVerifyRedownload(boolean verifyRedownload) {
+      this.verifyRedownload = verifyRedownload;
+    }
   }
 }
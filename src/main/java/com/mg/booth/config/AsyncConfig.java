@@ -3,8 +3,12 @@ package com.mg.booth.config;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 public class AsyncConfig {
@@ -14,5 +18,74 @@ public class AsyncConfig {
     // 单机 MVP：2 线程足够；后面可调大
     return Executors.newFixedThreadPool(2);
   }
-}
 
+  @Bean(name = "rawUploadExecutor")
+  public Executor rawUploadExecutor() {
+    // raw 上传与模板解析并行；单机同时最多 2 个会话在处理
+    return Executors.newFixedThreadPool(2);
+  }
+
+  @Bean(name = "preprocessExecutor")
+  public ExecutorService preprocessExecutor(AppProps appProps) {
+    // 有界池：队列满时直接拒绝，调用方改为提交原图（不阻塞拍照流程）；超时任务通过 Future 取消
+    AppProps.Preprocess cfg = appProps.getPreprocess();
+    return new ThreadPoolExecutor(
+        cfg.getPoolSize(), cfg.getPoolSize(),
+        60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(cfg.getQueueCapacity()),
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  @Bean(name = "canaryExecutor")
+  public Executor canaryExecutor() {
+    // 预热渲染单线程执行，避免阻塞 @Scheduled 线程（SessionSweeper 每秒运行）
+    return Executors.newSingleThreadExecutor();
+  }
+
+  @Bean(name = "prefetchExecutor")
+  public Executor prefetchExecutor() {
+    // 安装后通知 pipeline 预取模板；单线程，不占用安装请求线程
+    return Executors.newSingleThreadExecutor();
+  }
+
+  @Bean(name = "templateSyncExecutor")
+  public Executor templateSyncExecutor(AppProps appProps) {
+    // 活动模板批量同步：并行安装，按域名限流在任务内部完成
+    return Executors.newFixedThreadPool(appProps.getTemplates().getSyncParallelism());
+  }
+
+  @Bean(name = "templateInstallExecutor")
+  public Executor templateInstallExecutor(AppProps appProps) {
+    // 单模板安装任务队列：有界池，队列满时拒绝（接口返回错误，由前端稍后重试）
+    AppProps.Templates cfg = appProps.getTemplates();
+    return new ThreadPoolExecutor(
+        cfg.getInstallWorkers(), cfg.getInstallWorkers(),
+        60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(cfg.getInstallQueueCapacity()),
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  @Bean(name = "templateExtractExecutor")
+  public Executor templateExtractExecutor(AppProps appProps) {
+    // 大模板包并行解压（ZipFile 随机读取），与安装/同步线程池分开，避免互相等待
+    return Executors.newFixedThreadPool(appProps.getTemplates().getExtractWorkers());
+  }
+
+  @Bean(name = "templateGcExecutor")
+  public Executor templateGcExecutor() {
+    // 模板清理单线程执行，删除限速期间不占用 @Scheduled 线程
+    return Executors.newSingleThreadExecutor();
+  }
+
+  @Bean(name = "templateVerifyExecutor")
+  public Executor templateVerifyExecutor(AppProps appProps) {
+    // 模板完整性校验：启动时按版本并行，安装后补建摘要清单
+    return Executors.newFixedThreadPool(appProps.getTemplates().getVerifyWorkers());
+  }
+
+  @Bean(name = "deliveryFetchExecutor")
+  public Executor deliveryFetchExecutor() {
+    // v2 成品完成后拉取到本地；单线程，不占用拍照/处理线程
+    return Executors.newSingleThreadExecutor();
+  }
+}
@@ -0,0 +1,44 @@
+package com.mg.booth.device;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket shared by all template downloads.
+ *
+ * Tokens are bytes, refilled at the configured rate with a burst of one second.
+ * A rate of 0 disables limiting.
+ */
+public class BandwidthLimiter {
+
+  private final LongSupplier bytesPerSec;
+
+  // guarded by this
+  private double tokens;
+  private long lastRefillNs = System.nanoTime();
+
+  public BandwidthLimiter(LongSupplier bytesPerSec) {
+    this.bytesPerSec = bytesPerSec;
+  }
+
+  /**
+   * Block until n bytes may be transferred.
+   */
+  public void acquire(int n) throws InterruptedException {
+    long rate = bytesPerSec.getAsLong();
+    if (rate <= 0 || n <= 0) {
+      return;
+    }
+    long waitNs;
+    synchronized (this) {
+      long now = System.nanoTime();
+      tokens = Math.min(rate, tokens + (now - lastRefillNs) * rate / 1e9);
+      lastRefillNs = now;
+      // 允许透支：先扣减，再按欠额睡眠，读缓冲大于 rate 时也不会卡死
+      tokens -= n;
+      waitNs = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+    }
+    if (waitNs > 0) {
+      Thread.sleep(waitNs / 1_000_000L, (int) (waitNs % 1_000_000L));
+    }
+  }
+}
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.mg.booth.config.AppProps;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
@@ -14,23 +15,43 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 /**
  * Local template index store
  * Manages index.json for installed templates (atomic write)
+ *
+ * index.json is written as compact JSON; {@link #toPrettyJson} gives the human-readable form for
+ * the export endpoint. Concurrent {@link #update} calls are group-committed: updates arriving
+ * within app.templates.indexCommitWindowMs (or while a write is in progress) are applied to one
+ * read of the index and persisted with a single atomic write.
  */
 @Component
 public class LocalTemplateIndexStore {
   private static final Logger log = LoggerFactory.getLogger(LocalTemplateIndexStore.class);
 
   private final ObjectMapper om;
+  private final AppProps appProps;
 
-  public LocalTemplateIndexStore() {
+  // Group commit: pending updates + whether a committer thread is currently draining them
+  private final Object commitLock = new Object();
+  private final List<PendingUpdate> pending = new ArrayList<>();
+  private boolean committing;
+
+  // 写入成功后回调（TemplateCatalog 据此原子替换内存目录）
+  private final List<Consumer<TemplateIndex>> writeListeners = new CopyOnWriteArrayList<>();
+
+  public LocalTemplateIndexStore(AppProps appProps) {
+    this.appProps = appProps;
     this.om = new ObjectMapper();
     this.om.registerModule(new JavaTimeModule());
-    this.om.enable(SerializationFeature.INDENT_OUTPUT);
     this.om.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
   }
 
@@ -86,7 +107,8 @@ public class LocalTemplateIndexStore {
       // Update updatedAt timestamp
       index.setUpdatedAt(Instant.now());
       
-      String json = om.writerWithDefaultPrettyPrinter().writeValueAsString(index);
+      // 紧凑 JSON：启动/重载解析更快；人读用导出接口
+      String json = om.writeValueAsString(index);
       
       // Ensure parent directory exists
       Path parent = indexFile.getParent();
@@ -112,6 +134,14 @@ public class LocalTemplateIndexStore {
       log.info("[template-index] Index saved to {} (atomic write), items={}", 
           indexFile.toAbsolutePath(), 
           index.getItems() != null ? index.getItems().size() : 0);
+
+      for (Consumer<TemplateIndex> listener : writeListeners) {
+        try {
+          listener.accept(index);
+        } catch (Exception e) {
+          log.warn("[template-index] Write listener failed: {}", e.getMessage());
+        }
+      }
     } catch (Exception e) {
       log.error("[template-index] Failed to save index to {}: {}", 
           indexFile.toAbsolutePath(), e.getMessage(), e);
@@ -127,6 +157,125 @@ public class LocalTemplateIndexStore {
     }
   }
 
+  /**
+   * Register a callback invoked with the written index after every successful writeIndex.
+   */
+  public void addWriteListener(Consumer<TemplateIndex> listener) {
+    writeListeners.add(listener);
+  }
+
+  /**
+   * Read-modify-write of index.json. Concurrent updaters (installer, sync jobs, pipeline
+   * prefetch) are batched: the first caller becomes the committer, waits for the commit
+   * window, then applies every pending mutator in arrival order to one read of the index and
+   * writes it once. Returns after the write containing this mutation is on disk.
+   *
+   * @param indexFile Path to index.json
+   * @param mutator Applied to the current index (a new empty index if none exists)
+   * @throws RuntimeException if this mutator or the write fails
+   */
+  public void update(Path indexFile, Consumer<TemplateIndex> mutator) {
+    PendingUpdate mine = new PendingUpdate(indexFile, mutator);
+    boolean committer;
+    synchronized (commitLock) {
+      pending.add(mine);
+      committer = !committing;
+      committing = true;
+    }
+
+    if (committer) {
+      long windowMs = appProps.getTemplates().getIndexCommitWindowMs();
+      if (windowMs > 0) {
+        try {
+          Thread.sleep(windowMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      drain();
+    }
+
+    try {
+      mine.done.join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      List<PendingUpdate> batch;
+      synchronized (commitLock) {
+        if (pending.isEmpty()) {
+          committing = false;
+          return;
+        }
+        batch = new ArrayList<>(pending);
+        pending.clear();
+      }
+
+      Map<Path, List<PendingUpdate>> byFile = new LinkedHashMap<>();
+      for (PendingUpdate u : batch) {
+        byFile.computeIfAbsent(u.indexFile, k -> new ArrayList<>()).add(u);
+      }
+      for (Map.Entry<Path, List<PendingUpdate>> e : byFile.entrySet()) {
+        commit(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  private void commit(Path indexFile, List<PendingUpdate> updates) {
+    List<PendingUpdate> applied = new ArrayList<>();
+    try {
+      TemplateIndex index = readIndex(indexFile).orElse(new TemplateIndex());
+      for (PendingUpdate u : updates) {
+        try {
+          u.mutator.accept(index);
+          applied.add(u);
+        } catch (RuntimeException ex) {
+          u.done.completeExceptionally(ex);
+        }
+      }
+      if (!applied.isEmpty()) {
+        writeIndex(indexFile, index);
+        if (applied.size() > 1) {
+          log.info("[template-index] Group commit: {} updates in one write", applied.size());
+        }
+      }
+      applied.forEach(u -> u.done.complete(null));
+    } catch (RuntimeException ex) {
+      updates.forEach(u -> u.done.completeExceptionally(ex));
+    }
+  }
+
+  int pendingUpdates() {
+    synchronized (commitLock) {
+      return pending.size();
+    }
+  }
+
+  /**
+   * Human-readable (pretty-printed) JSON of an index, for export.
+   */
+  public String toPrettyJson(TemplateIndex index) {
+    try {
+      return om.writerWithDefaultPrettyPrinter().writeValueAsString(index);
+    } catch (Exception e) {
+      throw new RuntimeException("Failed to serialize template index", e);
+    }
+  }
+
+  private static final class PendingUpdate {
+    final Path indexFile;
+    final Consumer<TemplateIndex> mutator;
+    final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    PendingUpdate(Path indexFile, Consumer<TemplateIndex> mutator) {
+      this.indexFile = indexFile;
+      this.mutator = mutator;
+    }
+  }
+
   /**
    * Template index structure
    * schemaVersion 2: templateId field now stores templateCode (String) instead of numeric ID
@@ -184,6 +333,12 @@ public class LocalTemplateIndexStore {
     private String checksum;  // sha256 of zip file
     private String downloadUrl;
 
+    // Pipeline v2 has pre-downloaded and warmed this version (null = not attempted yet)
+    private Boolean pipelineReady;
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", timezone = "UTC")
+    private Instant pipelineReadyAt;
+
     public TemplateIndexItem() {
       // Default constructor for Jackson
     }
@@ -245,5 +400,21 @@ public class LocalTemplateIndexStore {
     public void setDownloadUrl(String downloadUrl) {
       this.downloadUrl = downloadUrl;
     }
+
+    public Boolean getPipelineReady() {
+      return pipelineReady;
+    }
+
+    public void setPipelineReady(Boolean pipelineReady) {
+      this.pipelineReady = pipelineReady;
+    }
+
+    public Instant getPipelineReadyAt() {
+      return pipelineReadyAt;
+    }
+
+    public void setPipelineReadyAt(Instant pipelineReadyAt) {
+      this.pipelineReadyAt = pipelineReadyAt;
+    }
   }
 }
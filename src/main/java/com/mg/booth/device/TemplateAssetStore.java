@@ -0,0 +1,260 @@
+package com.mg.booth.device;
+
+import com.mg.booth.config.BoothProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Content-addressed store for template package files: data/cas/<aa>/<sha256>.
+ *
+ * Every extracted file is stored once by SHA-256 and materialised into the version directory
+ * as a hard link (copy when the filesystem does not support links), so assets shared between
+ * template versions (bg.jpg, ui/, models) occupy disk and page cache once.
+ *
+ * Objects are marked read-only, and so are the version-directory links to them: writing through
+ * a link would change the shared object. Because a link can still be made writable, an existing
+ * object is re-hashed before it is reused; a corrupt one is atomically replaced by the fresh bytes
+ * ({@link #materialize}) or ignored ({@link #linkExisting}), so a reinstall really restores the
+ * content.
+ *
+ * Objects are collected by mark-and-sweep: the template GC collects the digests referenced by the
+ * files on disk and calls {@link #deleteIfUnreferenced} for every object outside that set. Link
+ * counts are not used; they are not available on Windows.
+ */
+@Component
+public class TemplateAssetStore {
+
+  private static final Logger log = LoggerFactory.getLogger(TemplateAssetStore.class);
+
+  private final BoothProps props;
+
+  // 文件系统不支持硬链接（FAT/exFAT、跨盘）时降级为复制，只记录一次
+  private volatile boolean linksSupported = true;
+
+  // 安装时 查找对象+建链接 持读锁；GC 删除对象持写锁，避免删掉刚被复用的对象
+  private final ReadWriteLock gcLock = new ReentrantReadWriteLock();
+
+  public TemplateAssetStore(BoothProps props) {
+    this.props = props;
+  }
+
+  /**
+   * data/cas
+   */
+  public Path root() {
+    String dataDir = props.getDataDir() != null && !props.getDataDir().isBlank() ? props.getDataDir() : "./data";
+    return Path.of(dataDir).resolve("cas");
+  }
+
+  /**
+   * Object path for a SHA-256 hex digest.
+   */
+  public Path objectPath(String sha256) {
+    String h = sha256.toLowerCase();
+    return root().resolve(h.substring(0, 2)).resolve(h);
+  }
+
+  /**
+   * Store the stream's bytes (once) and materialise them at target.
+   *
+   * @return true if the content was already in the store (nothing new written to the store)
+   */
+  public boolean materialize(InputStream in, Path target) throws IOException {
+    Path tmpDir = root().resolve("tmp");
+    Files.createDirectories(tmpDir);
+    Path tmp = tmpDir.resolve(UUID.randomUUID() + ".tmp");
+
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (Exception e) {
+      throw new RuntimeException("Failed to get SHA-256 digest", e);
+    }
+
+    boolean reused;
+    gcLock.readLock().lock();
+    try {
+      Path object;
+      try {
+        // 不关闭调用方的流（流式解压时是 ZipInputStream）
+        Files.copy(new DigestInputStream(in, digest), tmp, StandardCopyOption.REPLACE_EXISTING);
+        String sha256 = HexFormat.of().formatHex(digest.digest());
+        object = objectPath(sha256);
+        if (Files.exists(object)) {
+          reused = true;
+          if (!isIntact(object, sha256, Files.size(tmp))) {
+            // 对象经某个可写链接被改过：用刚下载的字节原子替换
+            log.warn("[tpl-cas] Object {} is corrupt, replacing it", object);
+            object.toFile().setWritable(true);
+            Files.move(tmp, object, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            object.toFile().setReadOnly();
+            reused = false;
+          }
+        } else {
+          Files.createDirectories(object.getParent());
+          try {
+            Files.move(tmp, object, StandardCopyOption.ATOMIC_MOVE);
+            object.toFile().setReadOnly();
+            reused = false;
+          } catch (FileAlreadyExistsException e) {
+            // 并发安装写入了同一对象
+            reused = true;
+          }
+        }
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+
+      link(object, target);
+    } finally {
+      gcLock.readLock().unlock();
+    }
+    return reused;
+  }
+
+  /**
+   * Materialise an object already in the store at target.
+   *
+   * @return false if the store has no intact object for this digest
+   */
+  public boolean linkExisting(String sha256, Path target) throws IOException {
+    Path object = objectPath(sha256);
+    gcLock.readLock().lock();
+    try {
+      if (!Files.isRegularFile(object)) {
+        return false;
+      }
+      if (!isIntact(object, sha256, -1)) {
+        // 损坏的对象不再复用；调用方从基础版本重新写入
+        log.warn("[tpl-cas] Object {} is corrupt, not reusing it", object);
+        delete(object);
+        return false;
+      }
+      link(object, target);
+      return true;
+    } finally {
+      gcLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Delete a store object whose digest is not in the referenced set (mark phase of the template
+   * GC) and that was not written within the last minIdleMs (mtime), so objects of an install
+   * still in progress survive.
+   *
+   * @return bytes freed (0 if the object is referenced or too recent)
+   */
+  public long deleteIfUnreferenced(Path object, Set<String> referenced, long minIdleMs) throws IOException {
+    gcLock.writeLock().lock();
+    try {
+      if (referenced.contains(object.getFileName().toString().toLowerCase())) {
+        // 删除版本时（Windows）可能清掉了共享的只读属性，顺便恢复
+        if (Files.isWritable(object)) {
+          object.toFile().setReadOnly();
+        }
+        return 0;
+      }
+      if (System.currentTimeMillis() - Files.getLastModifiedTime(object).toMillis() < minIdleMs) {
+        return 0;
+      }
+      long size = Files.size(object);
+      return delete(object) ? size : 0;
+    } finally {
+      gcLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Mark phase helper: add the SHA-256 of every regular file below root to digests, skipping the
+   * given directories (versions whose digests are already known from their manifest).
+   */
+  public static void collectDigests(Path root, Set<Path> skipDirs, Set<String> digests) throws IOException {
+    if (!Files.isDirectory(root)) {
+      return;
+    }
+    Files.walkFileTree(root, new SimpleFileVisitor<>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        return skipDirs.contains(dir.toAbsolutePath().normalize())
+            ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (attrs.isRegularFile()) {
+          try {
+            digests.add(TemplateDelta.sha256(file));
+          } catch (NoSuchFileException e) {
+            // 安装/GC 期间被删除
+          }
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+        if (exc instanceof NoSuchFileException) {
+          return FileVisitResult.CONTINUE;
+        }
+        throw exc;
+      }
+    });
+  }
+
+  /**
+   * Delete a file that may be a read-only store object or link to one (Windows refuses to delete
+   * read-only files).
+   */
+  public static boolean delete(Path file) throws IOException {
+    try {
+      return Files.deleteIfExists(file);
+    } catch (AccessDeniedException e) {
+      if (!file.toFile().setWritable(true)) {
+        throw e;
+      }
+      return Files.deleteIfExists(file);
+    }
+  }
+
+  private static boolean isIntact(Path object, String sha256, long expectedSize) throws IOException {
+    if (expectedSize >= 0 && Files.size(object) != expectedSize) {
+      return false;
+    }
+    return TemplateDelta.sha256(object).equalsIgnoreCase(sha256);
+  }
+
+  private void link(Path object, Path target) throws IOException {
+    delete(target);
+    if (linksSupported) {
+      try {
+        Files.createLink(target, object);
+        return;
+      } catch (UnsupportedOperationException | FileSystemException e) {
+        linksSupported = false;
+        log.warn("[tpl-cas] Hard links not supported ({}), falling back to copies", e.getMessage());
+      }
+    }
+    Files.copy(object, target, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
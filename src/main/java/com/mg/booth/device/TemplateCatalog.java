@@ -0,0 +1,369 @@
+package com.mg.booth.device;
+
+import com.mg.booth.config.AppProps;
+import com.mg.booth.config.BoothProps;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * In-memory catalog of installed templates (data/index.json).
+ *
+ * Holds an immutable snapshot keyed by templateCode and versionSemver, swapped atomically:
+ * - after every successful LocalTemplateIndexStore.writeIndex (installer, pipeline prefetch)
+ * - when a WatchService sees index.json created/modified outside the booth (app.templates.watchIndex)
+ *
+ * Request-path lookups read the current snapshot only (no file I/O, no JSON parsing).
+ * Items in a snapshot are private copies and must be treated as read-only;
+ * modifications go through LocalTemplateIndexStore.update.
+ *
+ * Versions that failed integrity verification are quarantined: they stay in index.json but are
+ * left out of snapshots until that version is installed again (new installedAt) or released.
+ */
+@Component
+public class TemplateCatalog {
+
+  private static final Logger log = LoggerFactory.getLogger(TemplateCatalog.class);
+
+  private final BoothProps props;
+  private final AppProps appProps;
+  private final LocalTemplateIndexStore indexStore;
+
+  private final AtomicReference<Snapshot> current = new AtomicReference<>(Snapshot.EMPTY);
+
+  // 最近一次加载/写入的完整索引（含隔离版本），隔离状态变化时据此重建快照
+  private volatile LocalTemplateIndexStore.TemplateIndex source = new LocalTemplateIndexStore.TemplateIndex();
+
+  // key: templateCode@versionSemver -> 被隔离时该版本的 installedAt
+  private final Map<String, Quarantine> quarantined = new ConcurrentHashMap<>();
+
+  // 快照替换后回调（预计算的 API 响应等）
+  private final List<Consumer<Snapshot>> changeListeners = new CopyOnWriteArrayList<>();
+
+  private volatile WatchService watchService;
+
+  public TemplateCatalog(BoothProps props, AppProps appProps, LocalTemplateIndexStore indexStore) {
+    this.props = props;
+    this.appProps = appProps;
+    this.indexStore = indexStore;
+    this.indexStore.addWriteListener(index -> swap(index, lastModifiedMs(indexFile()), "write"));
+  }
+
+  @PostConstruct
+  public void start() {
+    reload();
+    if (appProps.getTemplates().isWatchIndex()) {
+      startWatch();
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    WatchService ws = watchService;
+    watchService = null;
+    if (ws != null) {
+      try {
+        ws.close();
+      } catch (Exception e) {
+        log.debug("[template-catalog] Failed to close watch service: {}", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Path of data/index.json backing the catalog.
+   */
+  public Path indexFile() {
+    String dataDir = props.getDataDir() != null && !props.getDataDir().isBlank() ? props.getDataDir() : "./data";
+    return Path.of(dataDir).resolve("index.json").toAbsolutePath().normalize();
+  }
+
+  /**
+   * Register a callback invoked with the new snapshot after every swap.
+   */
+  public void addChangeListener(Consumer<Snapshot> listener) {
+    changeListeners.add(listener);
+  }
+
+  public Snapshot snapshot() {
+    return current.get();
+  }
+
+  /**
+   * Installed items in index.json order.
+   */
+  public List<LocalTemplateIndexStore.TemplateIndexItem> items() {
+    return current.get().index.getItems();
+  }
+
+  /**
+   * Read-only view of the whole index (schemaVersion, updatedAt, items).
+   */
+  public LocalTemplateIndexStore.TemplateIndex index() {
+    return current.get().index;
+  }
+
+  public int size() {
+    return current.get().index.getItems().size();
+  }
+
+  /**
+   * First installed item for a templateCode (index.json order), or null.
+   */
+  public LocalTemplateIndexStore.TemplateIndexItem get(String templateCode) {
+    return templateCode != null ? current.get().byCode.get(templateCode) : null;
+  }
+
+  /**
+   * Installed item for templateCode@versionSemver, or null.
+   */
+  public LocalTemplateIndexStore.TemplateIndexItem get(String templateCode, String versionSemver) {
+    if (templateCode == null || versionSemver == null) {
+      return null;
+    }
+    Map<String, LocalTemplateIndexStore.TemplateIndexItem> versions = current.get().byCodeVersion.get(templateCode);
+    return versions != null ? versions.get(versionSemver) : null;
+  }
+
+  /**
+   * Hide an installed version from the catalog (e.g. corrupted files). Lifted automatically when
+   * the version is reinstalled.
+   */
+  public synchronized void quarantine(LocalTemplateIndexStore.TemplateIndexItem item, String reason) {
+    quarantined.put(key(item.getTemplateId(), item.getVersion()), new Quarantine(item.getInstalledAt(), reason));
+    log.warn("[template-catalog] Quarantined {}@{}: {}", item.getTemplateId(), item.getVersion(), reason);
+    swap(source, current.get().mtimeMs, "quarantine");
+  }
+
+  public synchronized void release(String templateCode, String versionSemver) {
+    if (quarantined.remove(key(templateCode, versionSemver)) != null) {
+      log.info("[template-catalog] Released {}@{} from quarantine", templateCode, versionSemver);
+      swap(source, current.get().mtimeMs, "release");
+    }
+  }
+
+  public boolean isQuarantined(String templateCode, String versionSemver) {
+    return quarantined.containsKey(key(templateCode, versionSemver));
+  }
+
+  /**
+   * Quarantined versions: templateCode@versionSemver -> reason.
+   */
+  public Map<String, String> quarantined() {
+    Map<String, String> out = new HashMap<>();
+    quarantined.forEach((k, q) -> out.put(k, q.reason));
+    return out;
+  }
+
+  /**
+   * Re-read index.json from disk and swap the snapshot.
+   * A file that exists but cannot be parsed (e.g. half-written by an editor) keeps the current snapshot.
+   */
+  public void reload() {
+    Path indexFile = indexFile();
+    if (!Files.exists(indexFile)) {
+      swap(new LocalTemplateIndexStore.TemplateIndex(), 0L, "missing");
+      return;
+    }
+    long mtime = lastModifiedMs(indexFile);
+    var indexOpt = indexStore.readIndex(indexFile);
+    if (indexOpt.isEmpty()) {
+      log.warn("[template-catalog] index.json unreadable, keeping previous catalog: file={}", indexFile);
+      return;
+    }
+    swap(indexOpt.get(), mtime, "load");
+  }
+
+  private synchronized void swap(LocalTemplateIndexStore.TemplateIndex index, long mtimeMs, String reason) {
+    // 保存副本：调用方之后修改传入的索引不影响隔离重建
+    LocalTemplateIndexStore.TemplateIndex full = index == source ? index : Snapshot.of(index, mtimeMs, Set.of()).index;
+    source = full;
+    // 同一版本重新安装（installedAt 变化）后自动解除隔离
+    quarantined.entrySet().removeIf(e -> full.getItems().stream().noneMatch(it ->
+        e.getKey().equals(key(it.getTemplateId(), it.getVersion()))
+            && Objects.equals(e.getValue().installedAt, it.getInstalledAt())));
+    Snapshot next = Snapshot.of(full, mtimeMs, quarantined.keySet());
+    current.set(next);
+    log.info("[template-catalog] Catalog swapped ({}): items={}, updatedAt={}",
+        reason, next.index.getItems().size(), next.index.getUpdatedAt());
+
+    for (Consumer<Snapshot> listener : changeListeners) {
+      try {
+        listener.accept(next);
+      } catch (Exception e) {
+        log.warn("[template-catalog] Change listener failed: {}", e.getMessage());
+      }
+    }
+  }
+
+  private void startWatch() {
+    Path indexFile = indexFile();
+    Path dir = indexFile.getParent();
+    try {
+      Files.createDirectories(dir);
+      WatchService ws = FileSystems.getDefault().newWatchService();
+      dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+          StandardWatchEventKinds.ENTRY_DELETE);
+      watchService = ws;
+
+      Thread t = new Thread(() -> watchLoop(ws, indexFile), "template-index-watch");
+      t.setDaemon(true);
+      t.start();
+      log.info("[template-catalog] Watching {} for external edits", indexFile);
+    } catch (Exception e) {
+      // 监听失败不影响使用：booth 自身写入仍会刷新目录
+      log.warn("[template-catalog] Cannot watch {}: {}", dir, e.getMessage());
+    }
+  }
+
+  private void watchLoop(WatchService ws, Path indexFile) {
+    Path name = indexFile.getFileName();
+    while (true) {
+      WatchKey key;
+      try {
+        key = ws.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+
+      boolean touched = false;
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context())) {
+          touched = true;
+        }
+      }
+      if (touched) {
+        // 自身写入已在 write 回调中生效，mtime 相同则跳过
+        long mtime = lastModifiedMs(indexFile);
+        if (mtime == 0L || mtime != current.get().mtimeMs) {
+          try {
+            reload();
+          } catch (Exception e) {
+            log.warn("[template-catalog] Reload after external edit failed: {}", e.getMessage());
+          }
+        }
+      }
+      if (!key.reset()) {
+        log.warn("[template-catalog] Watch key invalidated, external edits will not be picked up");
+        return;
+      }
+    }
+  }
+
+  private static String key(String templateCode, String versionSemver) {
+    return templateCode + "@" + versionSemver;
+  }
+
+  private static long lastModifiedMs(Path file) {
+    try {
+      return Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : 0L;
+    } catch (Exception e) {
+      return 0L;
+    }
+  }
+
+  /**
+   * Immutable catalog snapshot.
+   */
+  public static final class Snapshot {
+
+    static final Snapshot EMPTY = of(new LocalTemplateIndexStore.TemplateIndex(), 0L, Set.of());
+
+    private final LocalTemplateIndexStore.TemplateIndex index;
+    private final Map<String, LocalTemplateIndexStore.TemplateIndexItem> byCode;
+    private final Map<String, Map<String, LocalTemplateIndexStore.TemplateIndexItem>> byCodeVersion;
+    private final long mtimeMs;
+
+    private Snapshot(
+        LocalTemplateIndexStore.TemplateIndex index,
+        Map<String, LocalTemplateIndexStore.TemplateIndexItem> byCode,
+        Map<String, Map<String, LocalTemplateIndexStore.TemplateIndexItem>> byCodeVersion,
+        long mtimeMs) {
+      this.index = index;
+      this.byCode = byCode;
+      this.byCodeVersion = byCodeVersion;
+      this.mtimeMs = mtimeMs;
+    }
+
+    static Snapshot of(LocalTemplateIndexStore.TemplateIndex source, long mtimeMs, Set<String> excluded) {
+      List<LocalTemplateIndexStore.TemplateIndexItem> items = new ArrayList<>();
+      Map<String, LocalTemplateIndexStore.TemplateIndexItem> byCode = new HashMap<>();
+      Map<String, Map<String, LocalTemplateIndexStore.TemplateIndexItem>> byCodeVersion = new HashMap<>();
+
+      if (source.getItems() != null) {
+        for (LocalTemplateIndexStore.TemplateIndexItem it : source.getItems()) {
+          if (it == null || excluded.contains(key(it.getTemplateId(), it.getVersion()))) {
+            continue;
+          }
+          LocalTemplateIndexStore.TemplateIndexItem copy = copyOf(it);
+          items.add(copy);
+          if (copy.getTemplateId() != null) {
+            byCode.putIfAbsent(copy.getTemplateId(), copy);
+            if (copy.getVersion() != null) {
+              byCodeVersion.computeIfAbsent(copy.getTemplateId(), k -> new HashMap<>())
+                  .putIfAbsent(copy.getVersion(), copy);
+            }
+          }
+        }
+      }
+      byCodeVersion.replaceAll((k, v) -> Collections.unmodifiableMap(v));
+
+      LocalTemplateIndexStore.TemplateIndex index = new LocalTemplateIndexStore.TemplateIndex();
+      index.setSchemaVersion(source.getSchemaVersion());
+      index.setUpdatedAt(source.getUpdatedAt());
+      index.setItems(Collections.unmodifiableList(items));
+
+      return new Snapshot(index, Collections.unmodifiableMap(byCode),
+          Collections.unmodifiableMap(byCodeVersion), mtimeMs);
+    }
+
+    private static LocalTemplateIndexStore.TemplateIndexItem copyOf(LocalTemplateIndexStore.TemplateIndexItem it) {
+      LocalTemplateIndexStore.TemplateIndexItem copy = new LocalTemplateIndexStore.TemplateIndexItem(
+          it.getTemplateId(), it.getVersion(), it.getPath(), it.getInstalledAt(), it.getChecksum(), it.getDownloadUrl());
+      copy.setPipelineReady(it.getPipelineReady());
+      copy.setPipelineReadyAt(it.getPipelineReadyAt());
+      return copy;
+    }
+
+    public LocalTemplateIndexStore.TemplateIndex getIndex() {
+      return index;
+    }
+
+    public long getMtimeMs() {
+      return mtimeMs;
+    }
+  }
+
+  private static final class Quarantine {
+    final Instant installedAt;
+    final String reason;
+
+    Quarantine(Instant installedAt, String reason) {
+      this.installedAt = installedAt;
+      this.reason = reason;
+    }
+  }
+}
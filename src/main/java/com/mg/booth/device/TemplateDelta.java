@@ -0,0 +1,200 @@
+package com.mg.booth.device;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Delta template package (format "template-delta/1").
+ *
+ * A delta zip carries only the files that changed since baseVersionSemver plus delta.json:
+ * <pre>
+ * {
+ *   "format": "template-delta/1",
+ *   "baseVersionSemver": "0.1.2",
+ *   "files": [ { "path": "manifest.json", "sha256": "..." }, ... ],   // full target tree
+ *   "treeSha256": "..."
+ * }
+ * </pre>
+ * Files listed but not shipped are taken from the content-addressed store or the installed
+ * base version (by hash). treeSha256 is SHA-256 over "path\0sha256\n" for all files sorted
+ * by path; the rebuilt staging tree must match it before commit.
+ */
+final class TemplateDelta {
+
+  static final String DESCRIPTOR = "delta.json";
+  static final String FORMAT = "template-delta/1";
+
+  private final String baseVersionSemver;
+  private final List<FileEntry> files;
+  private final String treeSha256;
+
+  TemplateDelta(String baseVersionSemver, List<FileEntry> files, String treeSha256) {
+    this.baseVersionSemver = baseVersionSemver;
+    this.files = List.copyOf(files);
+    this.treeSha256 = treeSha256;
+  }
+
+  String getBaseVersionSemver() {
+    return baseVersionSemver;
+  }
+
+  List<FileEntry> getFiles() {
+    return files;
+  }
+
+  /**
+   * Parse delta.json
+   */
+  static TemplateDelta read(Path descriptor, ObjectMapper objectMapper) throws IOException {
+    JsonNode root = objectMapper.readTree(Files.readString(descriptor));
+    if (!FORMAT.equals(root.path("format").asText())) {
+      throw new IOException("Unsupported delta format: " + root.path("format").asText());
+    }
+    List<FileEntry> files = new ArrayList<>();
+    for (JsonNode f : root.path("files")) {
+      String path = f.path("path").asText(null);
+      String sha256 = f.path("sha256").asText(null);
+      if (path == null || path.isBlank() || sha256 == null || !sha256.matches("[0-9a-fA-F]{64}")) {
+        throw new IOException("delta.json file entry missing path/sha256");
+      }
+      files.add(new FileEntry(path, sha256.toLowerCase()));
+    }
+    String tree = root.path("treeSha256").asText(null);
+    if (tree == null || tree.isBlank() || files.isEmpty()) {
+      throw new IOException("delta.json missing files/treeSha256");
+    }
+    return new TemplateDelta(root.path("baseVersionSemver").asText(null), files, tree.toLowerCase());
+  }
+
+  /**
+   * Rebuild the full target tree in stagingDir (which holds the extracted delta) and verify
+   * every file hash and the tree digest.
+   *
+   * @param baseDir installed base version directory
+   * @param assetStore content-addressed store (null = plain copies from baseDir)
+   * @return number of files reused from the store / base version
+   */
+  int apply(Path stagingDir, Path baseDir, TemplateAssetStore assetStore) throws IOException {
+    Files.deleteIfExists(stagingDir.resolve(DESCRIPTOR));
+
+    Set<String> listed = new HashSet<>();
+    for (FileEntry f : files) {
+      listed.add(f.path);
+    }
+    try (Stream<Path> walk = Files.walk(stagingDir)) {
+      for (Path p : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+        String rel = stagingDir.relativize(p).toString().replace('\\', '/');
+        if (!listed.contains(rel)) {
+          throw new IOException("Delta ships file not in target tree: " + rel);
+        }
+      }
+    }
+
+    int reused = 0;
+    for (FileEntry f : files) {
+      Path target = resolve(stagingDir, f.path);
+      if (Files.isRegularFile(target)) {
+        // 随增量包下发的文件
+        requireHash(target, f);
+        continue;
+      }
+      Files.createDirectories(target.getParent());
+      if (assetStore != null && assetStore.linkExisting(f.sha256, target)) {
+        requireHash(target, f);
+        reused++;
+        continue;
+      }
+      Path base = resolve(baseDir, f.path);
+      if (!Files.isRegularFile(base) || !f.sha256.equals(sha256(base))) {
+        throw new IOException("Delta references file missing from base version: " + f.path);
+      }
+      if (assetStore != null) {
+        try (InputStream in = Files.newInputStream(base)) {
+          assetStore.materialize(in, target);
+        }
+      } else {
+        Files.copy(base, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+      reused++;
+    }
+
+    String actualTree = treeDigest(files);
+    if (!actualTree.equals(treeSha256)) {
+      throw new IOException(String.format("Delta tree digest mismatch: expected=%s, actual=%s", treeSha256, actualTree));
+    }
+    return reused;
+  }
+
+  /**
+   * SHA-256 over "path\0sha256\n" for all files sorted by path.
+   */
+  static String treeDigest(List<FileEntry> files) {
+    List<FileEntry> sorted = new ArrayList<>(files);
+    sorted.sort(Comparator.comparing(f -> f.path));
+    MessageDigest md = newDigest();
+    for (FileEntry f : sorted) {
+      md.update((f.path + "\0" + f.sha256.toLowerCase() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    return HexFormat.of().formatHex(md.digest());
+  }
+
+  static String sha256(Path file) throws IOException {
+    MessageDigest md = newDigest();
+    try (InputStream in = Files.newInputStream(file)) {
+      byte[] buf = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        md.update(buf, 0, n);
+      }
+    }
+    return HexFormat.of().formatHex(md.digest());
+  }
+
+  private static void requireHash(Path file, FileEntry f) throws IOException {
+    String actual = sha256(file);
+    if (!actual.equals(f.sha256)) {
+      throw new IOException(String.format("Delta file hash mismatch: %s expected=%s, actual=%s", f.path, f.sha256, actual));
+    }
+  }
+
+  private static Path resolve(Path dir, String rel) throws IOException {
+    Path p = dir.resolve(rel).normalize();
+    if (!p.startsWith(dir.normalize())) {
+      throw new IOException("Invalid delta path: " + rel);
+    }
+    return p;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (Exception e) {
+      throw new RuntimeException("Failed to get SHA-256 digest", e);
+    }
+  }
+
+  static final class FileEntry {
+    final String path;
+    final String sha256;
+
+    FileEntry(String path, String sha256) {
+      this.path = path;
+      this.sha256 = sha256;
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package com.mg.booth.device;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Background queue for single-template installs.
+ *
+ * POST /local/device/templates/install enqueues a job on templateInstallExecutor (bounded pool and
+ * queue) and returns immediately. Requests for a templateCode@versionSemver that is already queued
+ * or running return the existing job instead of starting a duplicate. Subscribers receive a job
+ * snapshot on every step change and (throttled) download progress.
+ *
+ * Jobs are kept in memory (last {@link #MAX_JOBS}) for the status endpoints.
+ */
+@Service
+public class TemplateInstallQueue {
+
+  private static final Logger log = LoggerFactory.getLogger(TemplateInstallQueue.class);
+
+  static final int MAX_JOBS = 50;
+  static final long PROGRESS_INTERVAL_MS = 250;
+
+  private final TemplatePackageInstaller installer;
+  private final Executor templateInstallExecutor;
+
+  // guarded by this
+  private final Map<String, InstallJob> jobs = new LinkedHashMap<>();
+  private final Map<String, InstallJob> active = new HashMap<>();
+
+  public TemplateInstallQueue(
+      TemplatePackageInstaller installer,
+      @Qualifier("templateInstallExecutor") Executor templateInstallExecutor) {
+    this.installer = installer;
+    this.templateInstallExecutor = templateInstallExecutor;
+  }
+
+  /**
+   * Enqueue an install, or return the queued/running job for the same templateCode@versionSemver.
+   *
+   * @throws IllegalStateException if the install queue is full
+   */
+  public synchronized InstallJob submit(String templateCode, String versionSemver, String downloadUrl,
+                                        String checksumSha256, TemplatePackageInstaller.DeltaSource delta) {
+    String key = templateCode + "@" + versionSemver;
+    InstallJob existing = active.get(key);
+    if (existing != null) {
+      log.info("[tpl-install-queue] Joined existing job: key={}, jobId={}, state={}", key, existing.jobId, existing.state);
+      return existing;
+    }
+
+    InstallJob job = new InstallJob(UUID.randomUUID().toString().replace("-", ""), templateCode, versionSemver);
+    active.put(key, job);
+    jobs.put(job.jobId, job);
+    try {
+      templateInstallExecutor.execute(() -> run(job, key, downloadUrl, checksumSha256, delta));
+    } catch (RejectedExecutionException e) {
+      active.remove(key);
+      jobs.remove(job.jobId);
+      throw new IllegalStateException("Install queue is full, retry later");
+    }
+    evict();
+    log.info("[tpl-install-queue] Queued jobId={} key={}", job.jobId, key);
+    return job;
+  }
+
+  public synchronized Optional<InstallJob> getJob(String jobId) {
+    return Optional.ofNullable(jobs.get(jobId));
+  }
+
+  /**
+   * Receive job snapshots until the job finishes.
+   *
+   * @return unsubscribe action
+   */
+  public Runnable subscribe(InstallJob job, Consumer<InstallJob> listener) {
+    job.listeners.add(listener);
+    return () -> job.listeners.remove(listener);
+  }
+
+  private void run(InstallJob job, String key, String downloadUrl, String checksumSha256,
+                   TemplatePackageInstaller.DeltaSource delta) {
+    job.state = InstallJob.RUNNING;
+    job.startedAt = Instant.now();
+    publish(job);
+    try {
+      TemplatePackageInstaller.InstalledPackage pkg = installer.installPackage(
+          job.templateCode, job.versionSemver, downloadUrl, checksumSha256, delta,
+          new TemplatePackageInstaller.InstallProgress() {
+            private long lastPublishMs;
+
+            @Override
+            public void onBytes(long downloaded) {
+              job.bytesDownloaded = downloaded;
+              long now = System.currentTimeMillis();
+              if (now - lastPublishMs >= PROGRESS_INTERVAL_MS) {
+                lastPublishMs = now;
+                publish(job);
+              }
+            }
+
+            @Override
+            public void onStep(String step) {
+              job.step = step;
+              publish(job);
+            }
+          });
+      job.step = TemplatePackageInstaller.InstallProgress.INDEX;
+      publish(job);
+      installer.recordInstalled(List.of(pkg));
+      job.installedPath = pkg.getRelativePath();
+      job.state = InstallJob.SUCCEEDED;
+    } catch (Exception e) {
+      job.error = e.getMessage();
+      job.state = InstallJob.FAILED;
+    } finally {
+      job.finishedAt = Instant.now();
+      synchronized (this) {
+        active.remove(key, job);
+      }
+      log.info("[tpl-install-queue] Finished jobId={} key={} state={} step={} bytes={} error={}",
+          job.jobId, key, job.state, job.step, job.bytesDownloaded, job.error);
+      publish(job);
+      job.listeners.clear();
+      job.done.complete(job);
+    }
+  }
+
+  private void publish(InstallJob job) {
+    for (Consumer<InstallJob> l : job.listeners) {
+      try {
+        l.accept(job);
+      } catch (Exception e) {
+        // 客户端断开等：移除订阅，不影响安装
+        job.listeners.remove(l);
+      }
+    }
+  }
+
+  private void evict() {
+    Iterator<InstallJob> it = jobs.values().iterator();
+    while (jobs.size() > MAX_JOBS && it.hasNext()) {
+      if (it.next().isFinished()) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Install job status (serialized by the status/SSE endpoints)
+   */
+  public static class InstallJob {
+    public static final String QUEUED = "QUEUED";
+    public static final String RUNNING = "RUNNING";
+    public static final String SUCCEEDED = "SUCCEEDED";
+    public static final String FAILED = "FAILED";
+
+    private final String jobId;
+    private final String templateCode;
+    private final String versionSemver;
+    private final List<Consumer<InstallJob>> listeners = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<InstallJob> done = new CompletableFuture<>();
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", timezone = "UTC")
+    private final Instant createdAt = Instant.now();
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", timezone = "UTC")
+    private volatile Instant startedAt;
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", timezone = "UTC")
+    private volatile Instant finishedAt;
+
+    private volatile String state = QUEUED;
+    private volatile String step;
+    private volatile long bytesDownloaded;
+    private volatile String installedPath;
+    private volatile String error;
+
+    InstallJob(String jobId, String templateCode, String versionSemver) {
+      this.jobId = jobId;
+      this.templateCode = templateCode;
+      this.versionSemver = versionSemver;
+    }
+
+    public String getJobId() {
+      return jobId;
+    }
+
+    public String getTemplateCode() {
+      return templateCode;
+    }
+
+    public String getVersionSemver() {
+      return versionSemver;
+    }
+
+    public String getState() {
+      return state;
+    }
+
+    /**
+     * Current step: download, verify, unzip, delta, validate, commit, index
+     */
+    public String getStep() {
+      return step;
+    }
+
+    public long getBytesDownloaded() {
+      return bytesDownloaded;
+    }
+
+    public String getInstalledPath() {
+      return installedPath;
+    }
+
+    public String getError() {
+      return error;
+    }
+
+    public Instant getCreatedAt() {
+      return createdAt;
+    }
+
+    public Instant getStartedAt() {
+      return startedAt;
+    }
+
+    public Instant getFinishedAt() {
+      return finishedAt;
+    }
+
+    public boolean isFinished() {
+      return SUCCEEDED.equals(state) || FAILED.equals(state);
+    }
+
+    /**
+     * Completes when the job has finished (either state).
+     */
+    public CompletableFuture<InstallJob> completion() {
+      return done;
+    }
+  }
+}
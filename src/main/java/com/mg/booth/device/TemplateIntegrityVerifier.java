@@ -0,0 +1,340 @@
+package com.mg.booth.device;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mg.booth.config.AppProps;
+import com.mg.booth.config.BoothProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+
+/**
+ * Integrity check of installed template versions against a stored digest manifest.
+ *
+ * The manifest (data/verify/&lt;code&gt;/&lt;version&gt;-&lt;checksum16&gt;.json) records size, mtime
+ * and SHA-256 of every file in the version directory. It is written from the freshly committed
+ * files right after install (catalog change), and for versions installed before this existed on
+ * their first verification.
+ *
+ * At startup (app.templates.verifyOnStartup) all installed versions are verified in parallel on
+ * templateVerifyExecutor. Only files whose size or mtime differ from the manifest are hashed again,
+ * so a warm startup costs one stat per file. Missing, unexpected or changed files quarantine the
+ * version in TemplateCatalog (the kiosk stops offering it) and, with app.templates.verifyRedownload,
+ * queue a reinstall; the reinstall lifts the quarantine.
+ */
+@Component
+public class TemplateIntegrityVerifier {
+
+  private static final Logger log = LoggerFactory.getLogger(TemplateIntegrityVerifier.class);
+
+  private final BoothProps props;
+  private final AppProps appProps;
+  private final TemplateCatalog catalog;
+  private final TemplateInstallQueue installQueue;
+  private final Executor verifyExecutor;
+  private final ObjectMapper om = new ObjectMapper();
+
+  // 正在校验/建立清单的版本，避免重复提交
+  private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+  public TemplateIntegrityVerifier(
+      BoothProps props,
+      AppProps appProps,
+      TemplateCatalog catalog,
+      TemplateInstallQueue installQueue,
+      @Qualifier("templateVerifyExecutor") Executor verifyExecutor
+  ) {
+    this.props = props;
+    this.appProps = appProps;
+    this.catalog = catalog;
+    this.installQueue = installQueue;
+    this.verifyExecutor = verifyExecutor;
+    // 新安装的版本立即建立摘要清单（文件刚写入，仍在页缓存中）
+    this.catalog.addChangeListener(snapshot -> {
+      for (LocalTemplateIndexStore.TemplateIndexItem item : snapshot.getIndex().getItems()) {
+        if (isComplete(item) && !Files.exists(manifestFile(item))) {
+          submit(item);
+        }
+      }
+    });
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void onStartup() {
+    if (appProps.getTemplates().isVerifyOnStartup()) {
+      verifyAll();
+    }
+  }
+
+  /**
+   * Verify every installed version in parallel (asynchronous).
+   */
+  public CompletableFuture<Void> verifyAll() {
+    long startMs = System.currentTimeMillis();
+    List<LocalTemplateIndexStore.TemplateIndexItem> items = catalog.items();
+    pruneManifests(items);
+
+    List<CompletableFuture<Result>> futures = new ArrayList<>();
+    for (LocalTemplateIndexStore.TemplateIndexItem item : items) {
+      if (isComplete(item)) {
+        futures.add(submit(item));
+      }
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+      int files = 0;
+      int rehashed = 0;
+      int broken = 0;
+      for (CompletableFuture<Result> f : futures) {
+        Result r = f.getNow(null);
+        if (r != null) {
+          files += r.files;
+          rehashed += r.rehashed;
+          broken += r.isOk() ? 0 : 1;
+        }
+      }
+      log.info("[tpl-verify] Startup verification done: versions={}, files={}, rehashed={}, broken={}, elapsedMs={}",
+          futures.size(), files, rehashed, broken, System.currentTimeMillis() - startMs);
+    });
+  }
+
+  private CompletableFuture<Result> submit(LocalTemplateIndexStore.TemplateIndexItem item) {
+    String key = item.getTemplateId() + "@" + item.getVersion();
+    if (!inFlight.add(key)) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        Result r = verify(item);
+        if (!r.isOk()) {
+          onBroken(item, r);
+        }
+        return r;
+      } catch (Exception e) {
+        log.warn("[tpl-verify] Verification of {} failed: {}", key, e.getMessage(), e);
+        return null;
+      } finally {
+        inFlight.remove(key);
+      }
+    }, verifyExecutor);
+  }
+
+  private void onBroken(LocalTemplateIndexStore.TemplateIndexItem item, Result r) {
+    catalog.quarantine(item, String.join("; ", r.problems.subList(0, Math.min(3, r.problems.size())))
+        + (r.problems.size() > 3 ? " (+" + (r.problems.size() - 3) + " more)" : ""));
+    if (!appProps.getTemplates().isVerifyRedownload()
+        || item.getDownloadUrl() == null || item.getChecksum() == null) {
+      return;
+    }
+    try {
+      TemplateInstallQueue.InstallJob job = installQueue.submit(
+          item.getTemplateId(), item.getVersion(), item.getDownloadUrl(), item.getChecksum(), null);
+      log.info("[tpl-verify] Queued reinstall of {}@{}: jobId={}", item.getTemplateId(), item.getVersion(), job.getJobId());
+    } catch (Exception e) {
+      log.warn("[tpl-verify] Cannot queue reinstall of {}@{}: {}", item.getTemplateId(), item.getVersion(), e.getMessage());
+    }
+  }
+
+  /**
+   * Verify one version against its digest manifest (written if missing).
+   */
+  Result verify(LocalTemplateIndexStore.TemplateIndexItem item) throws IOException {
+    Path dir = dataDir().resolve(item.getPath() != null
+        ? item.getPath() : "templates/" + item.getTemplateId() + "/" + item.getVersion());
+    Path manifestFile = manifestFile(item);
+    Result result = new Result();
+
+    if (!Files.isDirectory(dir)) {
+      result.problems.add("version directory missing: " + dir);
+      return result;
+    }
+
+    Map<String, Path> onDisk = new HashMap<>();
+    try (Stream<Path> s = Files.walk(dir)) {
+      s.filter(Files::isRegularFile).forEach(p -> onDisk.put(dir.relativize(p).toString().replace('\\', '/'), p));
+    }
+    result.files = onDisk.size();
+
+    DigestManifest manifest = Files.isRegularFile(manifestFile) ? readManifest(manifestFile) : null;
+    if (manifest == null) {
+      manifest = new DigestManifest();
+      manifest.checksum = item.getChecksum();
+      for (Map.Entry<String, Path> e : onDisk.entrySet()) {
+        manifest.files.put(e.getKey(), digestOf(e.getValue()));
+        result.rehashed++;
+      }
+      writeManifest(manifestFile, manifest);
+      log.info("[tpl-verify] Recorded digests for {}@{}: files={}", item.getTemplateId(), item.getVersion(), result.files);
+      return result;
+    }
+
+    boolean dirty = false;
+    for (Map.Entry<String, Path> e : onDisk.entrySet()) {
+      FileDigest expected = manifest.files.get(e.getKey());
+      if (expected == null) {
+        result.problems.add("unexpected file: " + e.getKey());
+        continue;
+      }
+      long size = Files.size(e.getValue());
+      long mtimeMs = Files.getLastModifiedTime(e.getValue()).toMillis();
+      if (size == expected.size && mtimeMs == expected.mtimeMs) {
+        continue;
+      }
+      // 大小或修改时间变了才重新计算哈希
+      FileDigest actual = digestOf(e.getValue());
+      result.rehashed++;
+      if (!actual.sha256.equals(expected.sha256)) {
+        result.problems.add("content changed: " + e.getKey());
+      } else {
+        manifest.files.put(e.getKey(), actual);
+        dirty = true;
+      }
+    }
+    for (String path : manifest.files.keySet()) {
+      if (!onDisk.containsKey(path)) {
+        result.problems.add("missing file: " + path);
+      }
+    }
+
+    if (!result.isOk()) {
+      log.warn("[tpl-verify] {}@{} is broken: {}", item.getTemplateId(), item.getVersion(), result.problems);
+    } else if (dirty) {
+      writeManifest(manifestFile, manifest);
+    }
+    return result;
+  }
+
+  /**
+   * SHA-256 digests recorded for an installed version (empty if it has no readable manifest yet).
+   */
+  public Optional<Set<String>> recordedDigests(LocalTemplateIndexStore.TemplateIndexItem item) {
+    if (!isComplete(item)) {
+      return Optional.empty();
+    }
+    Path file = manifestFile(item);
+    DigestManifest manifest = Files.isRegularFile(file) ? readManifest(file) : null;
+    if (manifest == null) {
+      return Optional.empty();
+    }
+    Set<String> digests = new HashSet<>();
+    for (FileDigest d : manifest.files.values()) {
+      if (d != null && d.sha256 != null) {
+        digests.add(d.sha256.toLowerCase());
+      }
+    }
+    return Optional.of(digests);
+  }
+
+  /**
+   * Remove digest manifests of versions no longer installed.
+   */
+  private void pruneManifests(List<LocalTemplateIndexStore.TemplateIndexItem> items) {
+    Path root = dataDir().resolve("verify");
+    if (!Files.isDirectory(root)) {
+      return;
+    }
+    Set<Path> keep = new HashSet<>();
+    for (LocalTemplateIndexStore.TemplateIndexItem item : items) {
+      if (isComplete(item)) {
+        keep.add(manifestFile(item).toAbsolutePath().normalize());
+      }
+    }
+    try (Stream<Path> s = Files.walk(root, 2)) {
+      for (Path p : s.filter(Files::isRegularFile).toList()) {
+        if (!keep.contains(p.toAbsolutePath().normalize())) {
+          Files.deleteIfExists(p);
+        }
+      }
+    } catch (IOException e) {
+      log.debug("[tpl-verify] Failed to prune digest manifests: {}", e.getMessage());
+    }
+  }
+
+  private Path manifestFile(LocalTemplateIndexStore.TemplateIndexItem item) {
+    String checksum = item.getChecksum() != null ? item.getChecksum() : "none";
+    String tag = checksum.length() > 16 ? checksum.substring(0, 16) : checksum;
+    return dataDir().resolve("verify").resolve(item.getTemplateId()).resolve(item.getVersion() + "-" + tag + ".json");
+  }
+
+  private DigestManifest readManifest(Path file) {
+    try {
+      return om.readValue(file.toFile(), DigestManifest.class);
+    } catch (Exception e) {
+      // 清单损坏时重新建立，不判定模板损坏
+      log.warn("[tpl-verify] Unreadable digest manifest {}, recording again: {}", file, e.getMessage());
+      return null;
+    }
+  }
+
+  private void writeManifest(Path file, DigestManifest manifest) throws IOException {
+    Files.createDirectories(file.getParent());
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    om.writeValue(tmp.toFile(), manifest);
+    try {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (UnsupportedOperationException e) {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static FileDigest digestOf(Path file) throws IOException {
+    FileDigest d = new FileDigest();
+    d.size = Files.size(file);
+    d.mtimeMs = Files.getLastModifiedTime(file).toMillis();
+    d.sha256 = TemplateDelta.sha256(file);
+    return d;
+  }
+
+  private static boolean isComplete(LocalTemplateIndexStore.TemplateIndexItem item) {
+    return item != null && item.getTemplateId() != null && item.getVersion() != null;
+  }
+
+  private Path dataDir() {
+    String dataDir = props.getDataDir() != null && !props.getDataDir().isBlank() ? props.getDataDir() : "./data";
+    return Path.of(dataDir);
+  }
+
+  /**
+   * Verification outcome of one version.
+   */
+  static final class Result {
+    int files;
+    int rehashed;
+    final List<String> problems = new ArrayList<>();
+
+    boolean isOk() {
+      return problems.isEmpty();
+    }
+  }
+
+  /**
+   * Stored digests of one installed version (JSON).
+   */
+  public static class DigestManifest {
+    public String checksum;
+    public Map<String, FileDigest> files = new HashMap<>();
+  }
+
+  public static class FileDigest {
+    public long size;
+    public long mtimeMs;
+    public String sha256;
+  }
+}
@@ -2,46 +2,97 @@ package com.mg.booth.device;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mg.booth.config.AppProps;
 import com.mg.booth.config.BoothProps;
+import com.mg.booth.service.PipelinePrefetchService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 
-import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.io.OutputStream;
 import java.net.URL;
 import java.nio.file.*;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 /**
  * Template package installer
  * Handles download, checksum verification, extraction, and atomic installation
+ *
+ * Download, SHA-256 and extraction into staging happen in one streaming pass; the staging
+ * directory is committed only after the digest matches. Partial downloads are kept as
+ * data/tmp/downloads/<checksum>.zip.part and resumed with HTTP Range; total download
+ * bandwidth is capped by app.templates.downloadMaxBytesPerSec. Extracted files are stored once
+ * in the content-addressed {@link TemplateAssetStore} and hard-linked into version directories.
  */
 @Service
 public class TemplatePackageInstaller {
   private static final Logger log = LoggerFactory.getLogger(TemplatePackageInstaller.class);
 
   private final BoothProps props;
+  private final AppProps appProps;
   private final LocalTemplateIndexStore indexStore;
+  private final PipelinePrefetchService prefetchService;
+  private final TemplateAssetStore assetStore;
   private final ObjectMapper objectMapper;
+  private final BandwidthLimiter bandwidthLimiter;
+  private final Executor extractExecutor;
   
   // Concurrent installation locks: key = "templateCode:versionSemver"
   private final Map<String, Lock> installationLocks = new ConcurrentHashMap<>();
 
-  public TemplatePackageInstaller(BoothProps props, LocalTemplateIndexStore indexStore) {
+  // Network/file buffer for the single-pass download pipeline
+  static final int IO_BUFFER_SIZE = 256 * 1024;
+  // Read size when a bandwidth cap is set (smoother shaping)
+  static final int LIMITED_CHUNK_SIZE = 16 * 1024;
+  static final int CONNECT_TIMEOUT_MS = 10_000;
+  static final int READ_TIMEOUT_MS = 30_000;
+  // Fewer files than this are extracted on the calling thread
+  static final int PARALLEL_EXTRACT_MIN_ENTRIES = 16;
+
+  public TemplatePackageInstaller(BoothProps props, AppProps appProps, LocalTemplateIndexStore indexStore,
+                                  PipelinePrefetchService prefetchService, TemplateAssetStore assetStore,
+                                  @Qualifier("templateExtractExecutor") Executor extractExecutor) {
     this.props = props;
+    this.appProps = appProps;
     this.indexStore = indexStore;
+    this.prefetchService = prefetchService;
+    this.assetStore = assetStore;
+    this.extractExecutor = extractExecutor;
     this.objectMapper = new ObjectMapper();
+    this.bandwidthLimiter = new BandwidthLimiter(() -> appProps.getTemplates().getDownloadMaxBytesPerSec());
   }
 
   /**
@@ -55,6 +106,47 @@ public class TemplatePackageInstaller {
    * @throws RuntimeException if installation fails
    */
   public String install(String templateCode, String versionSemver, String downloadUrl, String checksumSha256) {
+    return install(templateCode, versionSemver, downloadUrl, checksumSha256, null);
+  }
+
+  /**
+   * Install template package, using a delta package when possible
+   *
+   * @param delta Optional delta package (null = full package)
+   * @return Installed path (relative to dataDir)
+   * @throws RuntimeException if installation fails
+   */
+  public String install(String templateCode, String versionSemver, String downloadUrl, String checksumSha256,
+                        DeltaSource delta) {
+    InstalledPackage pkg = installPackage(templateCode, versionSemver, downloadUrl, checksumSha256, delta, null);
+    recordInstalled(List.of(pkg));
+    log.info("[tpl-install] Installation complete: templateCode={}, versionSemver={}, path={}", 
+        templateCode, versionSemver, pkg.getRelativePath());
+    return pkg.getRelativePath();
+  }
+
+  /**
+   * Download, verify, extract and commit a template package into data/templates
+   * without touching index.json (see {@link #recordInstalled(List)}).
+   *
+   * @param progress Optional callback with bytes downloaded so far and step changes
+   * @return Installed package (relative path, verified checksum)
+   * @throws RuntimeException if installation fails
+   */
+  public InstalledPackage installPackage(String templateCode, String versionSemver, String downloadUrl,
+                                         String checksumSha256, InstallProgress progress) {
+    return installPackage(templateCode, versionSemver, downloadUrl, checksumSha256, null, progress);
+  }
+
+  /**
+   * Same as {@link #installPackage(String, String, String, String, InstallProgress)}, preferring a
+   * delta package when one is offered and its base version is installed. Any delta failure
+   * falls back to the full package.
+   *
+   * @param delta Optional delta package against an installed version (null = full package)
+   */
+  public InstalledPackage installPackage(String templateCode, String versionSemver, String downloadUrl,
+                                         String checksumSha256, DeltaSource delta, InstallProgress progress) {
     // Install dry-run: log parsed parameters
     log.info("[tpl-install] Install dry-run: templateCode={}, versionSemver={}, downloadUrl={}, checksumSha256={}", 
         templateCode, versionSemver, downloadUrl, 
@@ -85,43 +177,36 @@ public class TemplatePackageInstaller {
       Files.createDirectories(downloadsDir);
       Files.createDirectories(stagingDir);
       
-      // Step 1: Download
       String uuid = UUID.randomUUID().toString();
-      Path zipPartFile = downloadsDir.resolve(uuid + ".zip.part");
-      Path zipFile = downloadsDir.resolve(uuid + ".zip");
-      
-      log.info("[tpl-install] Step=download: templateCode={}, versionSemver={}, url={}", 
-          templateCode, versionSemver, downloadUrl);
-      
-      downloadFile(downloadUrl, zipPartFile);
-      Files.move(zipPartFile, zipFile, StandardCopyOption.REPLACE_EXISTING);
-      
-      log.info("[tpl-install] Step=download-complete: templateCode={}, versionSemver={}, size={}", 
-          templateCode, versionSemver, Files.size(zipFile));
-      
-      // Step 2: Verify checksum
-      log.info("[tpl-install] Step=verify: templateCode={}, versionSemver={}", templateCode, versionSemver);
-      
-      String actualChecksum = calculateSha256(zipFile);
-      if (!actualChecksum.equalsIgnoreCase(normalizedChecksum)) {
-        Files.deleteIfExists(zipFile);
-        throw new RuntimeException(
-            String.format("Checksum mismatch: expected=%s, actual=%s", normalizedChecksum, actualChecksum));
-      }
-      
-      log.info("[tpl-install] Step=verify-complete: templateCode={}, versionSemver={}, checksum={}", 
-          templateCode, versionSemver, actualChecksum);
-      
-      // Step 3: Extract to staging
       Path stagingTemplateDir = stagingDir.resolve(templateCode + "/" + versionSemver + "_" + uuid);
-      log.info("[tpl-install] Step=unzip: templateCode={}, versionSemver={}, staging={}", 
-          templateCode, versionSemver, stagingTemplateDir);
-      
-      extractZip(zipFile, stagingTemplateDir);
-      
-      log.info("[tpl-install] Step=unzip-complete: templateCode={}, versionSemver={}", templateCode, versionSemver);
+      Path baseDir = delta != null && delta.getBaseVersionSemver() != null
+          ? dataDir.resolve("templates").resolve(templateCode).resolve(delta.getBaseVersionSemver())
+          : null;
+
+      // Steps 1-3: stage the package (delta when the base version is installed, else full)
+      Staged staged = null;
+      if (delta != null && Files.isDirectory(baseDir) && normalizedChecksum != null) {
+        try {
+          staged = stageDelta(templateCode, versionSemver, delta, baseDir, downloadsDir, stagingTemplateDir, progress);
+        } catch (Exception e) {
+          log.warn("[tpl-install] Delta install failed, falling back to full package: templateCode={}, versionSemver={}, error={}",
+              templateCode, versionSemver, e.getMessage());
+          cleanupStaging(stagingTemplateDir);
+        }
+      } else if (delta != null) {
+        log.info("[tpl-install] Delta base {} not installed, using full package: templateCode={}", 
+            delta.getBaseVersionSemver(), templateCode);
+      }
+      if (staged == null) {
+        staged = stageFull(templateCode, versionSemver, downloadUrl, normalizedChecksum, downloadsDir,
+            stagingTemplateDir, progress);
+      }
+      Path zipPartFile = staged.partFile;
+      long downloadedBytes = staged.bytes;
+      String actualChecksum = normalizedChecksum.toLowerCase();
       
       // Step 4: Validate manifest.json
+      step(progress, InstallProgress.VALIDATE);
       log.info("[tpl-install] Step=validate-manifest: templateCode={}, versionSemver={}", templateCode, versionSemver);
       
       Path manifestFile = stagingTemplateDir.resolve("manifest.json");
@@ -154,6 +239,7 @@ public class TemplatePackageInstaller {
       log.info("[tpl-install] Step=validate-manifest-complete: templateCode={}, versionSemver={}", templateCode, versionSemver);
       
       // Step 5: Atomic commit to final directory
+      step(progress, InstallProgress.COMMIT);
       Path finalDir = dataDir.resolve("templates").resolve(templateCode).resolve(versionSemver);
       log.info("[tpl-install] Step=commit: templateCode={}, versionSemver={}, finalDir={}", 
           templateCode, versionSemver, finalDir);
@@ -189,39 +275,21 @@ public class TemplatePackageInstaller {
       
       log.info("[tpl-install] Step=commit-complete: templateCode={}, versionSemver={}, finalDir={}", 
           templateCode, versionSemver, finalDir);
-      
-      // Step 6: Update index.json
-      log.info("[tpl-install] Step=update-index: templateCode={}, versionSemver={}", templateCode, versionSemver);
-      
-      Path indexFile = dataDir.resolve("index.json");
-      LocalTemplateIndexStore.TemplateIndex index = indexStore.readIndex(indexFile)
-          .orElse(new LocalTemplateIndexStore.TemplateIndex());
-      
-      // Remove existing entry for this templateCode+versionSemver
-      index.getItems().removeIf(item ->
-          templateCode.equals(item.getTemplateId()) && item.getVersion().equals(versionSemver));
-      
-      // Add new entry
+
       String relativePath = "templates/" + templateCode + "/" + versionSemver;
-      LocalTemplateIndexStore.TemplateIndexItem newItem = new LocalTemplateIndexStore.TemplateIndexItem(
-          templateCode, versionSemver, relativePath, Instant.now(), actualChecksum, downloadUrl);
-      index.getItems().add(newItem);
-      
-      indexStore.writeIndex(indexFile, index);
-      
-      log.info("[tpl-install] Step=update-index-complete: templateCode={}, versionSemver={}", templateCode, versionSemver);
       
       // Step 7: Cleanup tmp files
       try {
-        Files.deleteIfExists(zipFile);
+        Files.deleteIfExists(zipPartFile);
       } catch (Exception e) {
         log.warn("[tpl-install] Failed to delete tmp zip file: {}", e.getMessage());
       }
       
-      log.info("[tpl-install] Installation complete: templateCode={}, versionSemver={}, path={}", 
+      log.info("[tpl-install] Package committed: templateCode={}, versionSemver={}, path={}", 
           templateCode, versionSemver, relativePath);
       
-      return relativePath;
+      return new InstalledPackage(templateCode, versionSemver, relativePath, actualChecksum, downloadUrl,
+          downloadedBytes);
       
     } catch (Exception e) {
       log.error("[tpl-install] Installation failed: templateCode={}, versionSemver={}, error={}", 
@@ -232,6 +300,137 @@ public class TemplatePackageInstaller {
     }
   }
 
+  /**
+   * Steps 1-3 for a full package: download + hash + extract, verify the package checksum.
+   */
+  private Staged stageFull(String templateCode, String versionSemver, String downloadUrl, String normalizedChecksum,
+                           Path downloadsDir, Path stagingTemplateDir, InstallProgress progress)
+      throws IOException, InterruptedException {
+    // Step 1: Download + hash + extract in one pass over the bytes
+    // .part 以 checksum 命名：失败/重启后保留，下次用 Range 续传
+    Path zipPartFile = downloadsDir.resolve(partFileName(templateCode, versionSemver, normalizedChecksum));
+    
+    log.info("[tpl-install] Step=download-extract: templateCode={}, versionSemver={}, url={}, staging={}", 
+        templateCode, versionSemver, downloadUrl, stagingTemplateDir);
+    
+    step(progress, InstallProgress.DOWNLOAD);
+    long startNs = System.nanoTime();
+    StreamResult streamed;
+    Lock partLock = installationLocks.computeIfAbsent("part:" + zipPartFile.getFileName(), k -> new ReentrantLock());
+    partLock.lock();
+    try {
+      streamed = downloadWithResume(downloadUrl, zipPartFile, stagingTemplateDir, normalizedChecksum, progress);
+    } catch (Exception e) {
+      // .part 保留用于续传，只清理 staging
+      cleanupStaging(stagingTemplateDir);
+      throw e;
+    } finally {
+      partLock.unlock();
+    }
+    log.info("[tpl-install] Step=download-extract-complete: templateCode={}, versionSemver={}, size={}, resumedFrom={}, streamedExtract={}, elapsedMs={}", 
+        templateCode, versionSemver, streamed.bytes, streamed.resumedFrom, streamed.extracted,
+        (System.nanoTime() - startNs) / 1_000_000L);
+    
+    // Step 2: Verify checksum (digest computed while downloading; nothing is committed on mismatch)
+    step(progress, InstallProgress.VERIFY);
+    String actualChecksum = streamed.sha256;
+    if (!actualChecksum.equalsIgnoreCase(normalizedChecksum)) {
+      cleanupStaging(stagingTemplateDir);
+      Files.deleteIfExists(zipPartFile);
+      throw new RuntimeException(
+          String.format("Checksum mismatch: expected=%s, actual=%s", normalizedChecksum, actualChecksum));
+    }
+    
+    log.info("[tpl-install] Step=verify-complete: templateCode={}, versionSemver={}, checksum={}", 
+        templateCode, versionSemver, actualChecksum);
+    
+    // Step 3: Large package or not stream-extractable -> parallel extract from the verified file
+    if (!streamed.extracted) {
+      step(progress, InstallProgress.UNZIP);
+      log.info("[tpl-install] Step=unzip: templateCode={}, versionSemver={}, staging={}", 
+          templateCode, versionSemver, stagingTemplateDir);
+      cleanupStaging(stagingTemplateDir);
+      long unzipStartNs = System.nanoTime();
+      ExtractStats stats = extractZip(zipPartFile, stagingTemplateDir);
+      log.info("[tpl-install] Step=unzip-complete: templateCode={}, versionSemver={}, entries={}, bytes={}, workers={}, elapsedMs={}", 
+          templateCode, versionSemver, stats.files, stats.bytes, stats.workers,
+          (System.nanoTime() - unzipStartNs) / 1_000_000L);
+    }
+    return new Staged(zipPartFile, streamed.bytes);
+  }
+
+  /**
+   * Steps 1-3 for a delta package: download + extract the changed files, verify the delta
+   * checksum, then rebuild the full tree from the asset store / base version and verify the
+   * tree digest.
+   */
+  private Staged stageDelta(String templateCode, String versionSemver, DeltaSource delta, Path baseDir,
+                            Path downloadsDir, Path stagingTemplateDir, InstallProgress progress)
+      throws IOException, InterruptedException {
+    log.info("[tpl-install] Step=delta: templateCode={}, versionSemver={}, base={}, url={}", 
+        templateCode, versionSemver, delta.getBaseVersionSemver(), delta.getDownloadUrl());
+    long startNs = System.nanoTime();
+
+    String deltaChecksum = delta.getChecksumSha256();
+    if (deltaChecksum != null && deltaChecksum.startsWith("sha256:")) {
+      deltaChecksum = deltaChecksum.substring(7);
+    }
+    Staged staged = stageFull(templateCode, versionSemver + "-delta", delta.getDownloadUrl(), deltaChecksum,
+        downloadsDir, stagingTemplateDir, progress);
+
+    Path descriptor = stagingTemplateDir.resolve(TemplateDelta.DESCRIPTOR);
+    if (!Files.isRegularFile(descriptor)) {
+      throw new IOException(TemplateDelta.DESCRIPTOR + " not found in delta package");
+    }
+    step(progress, InstallProgress.DELTA);
+    TemplateDelta parsed = TemplateDelta.read(descriptor, objectMapper);
+    if (!delta.getBaseVersionSemver().equals(parsed.getBaseVersionSemver())) {
+      throw new IOException("Delta base mismatch: expected=" + delta.getBaseVersionSemver()
+          + ", actual=" + parsed.getBaseVersionSemver());
+    }
+    int reused = parsed.apply(stagingTemplateDir, baseDir, assetStore);
+
+    log.info("[tpl-install] Step=delta-complete: templateCode={}, versionSemver={}, files={}, reused={}, downloaded={}, elapsedMs={}", 
+        templateCode, versionSemver, parsed.getFiles().size(), reused, staged.bytes,
+        (System.nanoTime() - startNs) / 1_000_000L);
+    return staged;
+  }
+
+  /**
+   * Add committed packages to index.json in a single write, then ask pipeline v2 to
+   * pre-download/warm them (async, never fails the install).
+   */
+  public void recordInstalled(List<InstalledPackage> packages) {
+    if (packages.isEmpty()) {
+      return;
+    }
+    log.info("[tpl-install] Step=update-index: packages={}", packages.size());
+
+    Path indexFile = getDataDir().resolve("index.json");
+    indexStore.update(indexFile, index -> {
+      for (InstalledPackage pkg : packages) {
+        // Remove existing entry for this templateCode+versionSemver
+        index.getItems().removeIf(item ->
+            pkg.getTemplateCode().equals(item.getTemplateId()) && pkg.getVersionSemver().equals(item.getVersion()));
+
+        // Add new entry
+        index.getItems().add(new LocalTemplateIndexStore.TemplateIndexItem(
+            pkg.getTemplateCode(), pkg.getVersionSemver(), pkg.getRelativePath(), Instant.now(),
+            pkg.getChecksum(), pkg.getDownloadUrl()));
+      }
+    });
+
+    log.info("[tpl-install] Step=update-index-complete: packages={}", packages.size());
+
+    for (InstalledPackage pkg : packages) {
+      try {
+        prefetchService.prefetchAsync(pkg.getTemplateCode(), pkg.getVersionSemver(), pkg.getDownloadUrl(), pkg.getChecksum());
+      } catch (Exception e) {
+        log.warn("[tpl-install] Failed to queue pipeline prefetch: {}", e.getMessage());
+      }
+    }
+  }
+
   /**
    * Get data directory path
    */
@@ -255,69 +454,379 @@ public class TemplatePackageInstaller {
   }
 
   /**
-   * Download file from URL
+   * Download into the checksum-keyed .part file, resuming with an HTTP Range request after
+   * errors (app.templates.downloadRetries) or from a .part left by an earlier run.
+   *
+   * A 416 on the Range request usually means the .part is already complete: it is hashed and,
+   * when it matches expectedChecksum, returned as-is (not extracted) for the caller to verify
+   * and extract; only a mismatching .part is discarded and downloaded again.
    */
-  private void downloadFile(String url, Path targetFile) throws IOException {
-    try (InputStream in = new URL(url).openStream()) {
-      Files.copy(in, targetFile, StandardCopyOption.REPLACE_EXISTING);
+  StreamResult downloadWithResume(String url, Path partFile, Path stagingDir, String expectedChecksum,
+                                  InstallProgress progress) throws IOException, InterruptedException {
+    int retries = appProps.getTemplates().getDownloadRetries();
+    for (int attempt = 0; ; attempt++) {
+      long resumeFrom = Files.exists(partFile) ? Files.size(partFile) : 0;
+      HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+      conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+      conn.setReadTimeout(READ_TIMEOUT_MS);
+      if (resumeFrom > 0) {
+        conn.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+      }
+      try {
+        int status = conn.getResponseCode();
+        if (status == 416 && resumeFrom > 0) {
+          conn.disconnect();
+          // .part 可能已下载完整（上次安装在校验/解压前中断）：checksum 一致就直接用它
+          String partChecksum = TemplateDelta.sha256(partFile);
+          if (partChecksum.equalsIgnoreCase(expectedChecksum)) {
+            log.info("[tpl-install] Range not satisfiable, part file already complete: part={}, size={}",
+                partFile, resumeFrom);
+            return new StreamResult(resumeFrom, resumeFrom, partChecksum, false);
+          }
+          // 服务器上的文件变了，.part 不可续，从头下载
+          log.warn("[tpl-install] Range not satisfiable, restarting download: part={}, size={}", partFile, resumeFrom);
+          Files.deleteIfExists(partFile);
+          continue;
+        }
+        if (status != 200 && status != 206) {
+          throw new IOException("HTTP " + status + " downloading " + url);
+        }
+        if (status == 200 && resumeFrom > 0) {
+          log.info("[tpl-install] Server ignored Range, restarting from 0: part={}", partFile);
+          resumeFrom = 0;
+        } else if (resumeFrom > 0) {
+          log.info("[tpl-install] Resuming download at {} bytes: part={}", resumeFrom, partFile);
+        }
+
+        cleanupStaging(stagingDir);
+        long expected = conn.getContentLengthLong();
+        // 大包不在下载流里单线程解压，下载完成后用 ZipFile 并行解压
+        boolean streamExtract = expected < 0
+            || resumeFrom + expected <= appProps.getTemplates().getStreamExtractMaxBytes();
+        StreamResult result;
+        try (InputStream in = conn.getInputStream()) {
+          result = downloadAndExtract(in, resumeFrom, partFile, streamExtract ? stagingDir : null,
+              progress != null ? progress::onBytes : null, bandwidthLimiter, assetStore);
+        }
+        if (expected >= 0 && result.bytes - resumeFrom < expected) {
+          throw new IOException("Connection closed after " + (result.bytes - resumeFrom) + " of " + expected + " bytes");
+        }
+        return result;
+      } catch (IOException e) {
+        if (attempt >= retries) {
+          throw e;
+        }
+        long backoffMs = 2000L * (attempt + 1);
+        log.warn("[tpl-install] Download interrupted (attempt {}/{}), resuming in {}ms: {}",
+            attempt + 1, retries, backoffMs, e.getMessage());
+        Thread.sleep(backoffMs);
+      } finally {
+        conn.disconnect();
+      }
     }
   }
 
   /**
-   * Calculate SHA256 checksum of file
+   * .part file name for a package: the expected checksum, so the same bytes are resumed
+   * whichever install attempt (or restart) fetches them.
    */
-  private String calculateSha256(Path file) throws IOException {
+  static String partFileName(String templateCode, String versionSemver, String checksum) {
+    if (checksum != null && checksum.matches("[0-9a-fA-F]{16,128}")) {
+      return checksum.toLowerCase() + ".zip.part";
+    }
+    return (templateCode + "_" + versionSemver).replaceAll("[^A-Za-z0-9._-]", "_") + ".zip.part";
+  }
+
+  /**
+   * Single pass over the package bytes: every buffer read from the network is hashed
+   * (SHA-256), appended to the .part file and fed to a ZipInputStream that extracts into
+   * the staging directory. When resuming, the first resumeFrom bytes are replayed from the
+   * .part file (hashed and extracted, not rewritten) before the network bytes.
+   *
+   * Staging is only moved into place after the caller has checked the digest, so extracting
+   * before verification is safe. If the zip cannot be read sequentially (e.g. STORED entries
+   * with a data descriptor) the download is still completed into the .part file and
+   * {@link StreamResult#extracted} is false; the caller then extracts from the file.
+   *
+   * @param stagingDir extraction target, or null to only hash and store the download
+   */
+  static StreamResult downloadAndExtract(InputStream in, long resumeFrom, Path partFile, Path stagingDir,
+                                         LongConsumer progress, BandwidthLimiter limiter,
+                                         TemplateAssetStore assetStore) throws IOException {
     MessageDigest digest;
     try {
       digest = MessageDigest.getInstance("SHA-256");
     } catch (Exception e) {
       throw new RuntimeException("Failed to get SHA-256 digest", e);
     }
-    
-    try (FileInputStream fis = new FileInputStream(file.toFile())) {
-      byte[] buffer = new byte[8192];
-      int bytesRead;
-      while ((bytesRead = fis.read(buffer)) != -1) {
-        digest.update(buffer, 0, bytesRead);
+
+    boolean extracted = false;
+    // prefix 在网络字节写入前就会读到 EOF，因此恰好是已下载的 resumeFrom 字节
+    try (InputStream prefix = resumeFrom > 0 ? Files.newInputStream(partFile) : InputStream.nullInputStream();
+         OutputStream out = resumeFrom > 0
+             ? Files.newOutputStream(partFile, StandardOpenOption.APPEND)
+             : Files.newOutputStream(partFile);
+         PipelineInputStream replay = new PipelineInputStream(prefix, digest, null, 0, progress, null);
+         PipelineInputStream network = new PipelineInputStream(in, digest, out, resumeFrom, progress, limiter)) {
+      InputStream source = new SequenceInputStream(replay, network);
+      if (stagingDir != null) {
+        try {
+          Files.createDirectories(stagingDir);
+          // ZipInputStream 持有 source 但不能关闭它：后面还要把 central directory 读完
+          ZipInputStream zis = new ZipInputStream(source);
+          ZipEntry entry;
+          while ((entry = zis.getNextEntry()) != null) {
+            writeEntry(zis, entry, stagingDir, assetStore);
+            zis.closeEntry();
+          }
+          extracted = true;
+        } catch (ZipException e) {
+          log.warn("[tpl-install] Streaming extract not possible ({}), falling back to file extract", e.getMessage());
+        }
       }
-    }
-    
-    byte[] hash = digest.digest();
-    StringBuilder hexString = new StringBuilder();
-    for (byte b : hash) {
-      String hex = Integer.toHexString(0xff & b);
-      if (hex.length() == 1) {
-        hexString.append('0');
+      // 读完剩余字节（central directory 等），保证 digest 和 .part 文件完整
+      byte[] rest = new byte[IO_BUFFER_SIZE];
+      while (source.read(rest, 0, rest.length) != -1) {
+        // drain
       }
-      hexString.append(hex);
+      return new StreamResult(resumeFrom + network.total, resumeFrom,
+          HexFormat.of().formatHex(digest.digest()), extracted);
     }
-    return hexString.toString();
   }
 
   /**
-   * Extract ZIP file to target directory
+   * Extract a verified ZIP file to target directory (random access via the central directory).
+   *
+   * All entry paths are checked (zip slip) and directories created in one pass first; files are
+   * then split by size across up to app.templates.extractWorkers workers on templateExtractExecutor.
    */
-  private void extractZip(Path zipFile, Path targetDir) throws IOException {
+  private ExtractStats extractZip(Path zipFile, Path targetDir) throws IOException {
     Files.createDirectories(targetDir);
-    
-    try (ZipInputStream zis = new ZipInputStream(Files.newInputStream(zipFile))) {
-      ZipEntry entry;
-      while ((entry = zis.getNextEntry()) != null) {
-        Path entryPath = targetDir.resolve(entry.getName());
-        
-        // Security: prevent zip slip
-        if (!entryPath.normalize().startsWith(targetDir.normalize())) {
-          throw new IOException("Invalid zip entry: " + entry.getName());
-        }
-        
+
+    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+      // 同名条目以最后一个为准，避免并行写同一文件
+      Map<String, ZipEntry> files = new LinkedHashMap<>();
+      Set<Path> dirs = new HashSet<>();
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        Path entryPath = resolveEntry(targetDir, entry.getName());
         if (entry.isDirectory()) {
-          Files.createDirectories(entryPath);
+          dirs.add(entryPath);
         } else {
-          Files.createDirectories(entryPath.getParent());
-          Files.copy(zis, entryPath, StandardCopyOption.REPLACE_EXISTING);
+          dirs.add(entryPath.getParent());
+          files.put(entry.getName(), entry);
         }
-        zis.closeEntry();
       }
+      for (Path dir : dirs) {
+        Files.createDirectories(dir);
+      }
+
+      long totalBytes = 0;
+      for (ZipEntry e : files.values()) {
+        totalBytes += Math.max(0, e.getSize());
+      }
+      List<List<ZipEntry>> parts = partitionBySize(new ArrayList<>(files.values()),
+          files.size() < PARALLEL_EXTRACT_MIN_ENTRIES ? 1 : appProps.getTemplates().getExtractWorkers());
+
+      if (parts.size() <= 1) {
+        for (ZipEntry entry : files.values()) {
+          extractEntry(zip, entry, targetDir);
+        }
+      } else {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (List<ZipEntry> part : parts) {
+          futures.add(CompletableFuture.runAsync(() -> {
+            try {
+              for (ZipEntry entry : part) {
+                extractEntry(zip, entry, targetDir);
+              }
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }, extractExecutor));
+        }
+        try {
+          CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+          Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+          throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+      }
+      return new ExtractStats(files.size(), totalBytes, parts.size());
+    }
+  }
+
+  private void extractEntry(ZipFile zip, ZipEntry entry, Path targetDir) throws IOException {
+    Path entryPath = resolveEntry(targetDir, entry.getName());
+    try (InputStream in = zip.getInputStream(entry)) {
+      if (assetStore != null) {
+        assetStore.materialize(in, entryPath);
+      } else {
+        Files.copy(in, entryPath, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+  }
+
+  /**
+   * Split entries into at most n lists of roughly equal total size (largest first onto the
+   * lightest list).
+   */
+  static List<List<ZipEntry>> partitionBySize(List<ZipEntry> entries, int n) {
+    int buckets = Math.max(1, Math.min(n, entries.size()));
+    List<List<ZipEntry>> parts = new ArrayList<>();
+    long[] load = new long[buckets];
+    for (int i = 0; i < buckets; i++) {
+      parts.add(new ArrayList<>());
+    }
+    List<ZipEntry> sorted = new ArrayList<>(entries);
+    sorted.sort(Comparator.comparingLong((ZipEntry e) -> Math.max(0, e.getSize())).reversed());
+    for (ZipEntry e : sorted) {
+      int lightest = 0;
+      for (int i = 1; i < buckets; i++) {
+        if (load[i] < load[lightest]) {
+          lightest = i;
+        }
+      }
+      parts.get(lightest).add(e);
+      load[lightest] += Math.max(0, e.getSize());
+    }
+    return parts;
+  }
+
+  /**
+   * Write one zip entry under targetDir; files go through the content-addressed store
+   * (hard link to data/cas) when one is given.
+   */
+  private static void writeEntry(InputStream in, ZipEntry entry, Path targetDir, TemplateAssetStore assetStore)
+      throws IOException {
+    Path entryPath = resolveEntry(targetDir, entry.getName());
+    if (entry.isDirectory()) {
+      Files.createDirectories(entryPath);
+      return;
+    }
+    Files.createDirectories(entryPath.getParent());
+    if (assetStore != null) {
+      assetStore.materialize(in, entryPath);
+    } else {
+      Files.copy(in, entryPath, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Resolve a zip entry under targetDir (security: prevent zip slip)
+   */
+  private static Path resolveEntry(Path targetDir, String name) throws IOException {
+    Path entryPath = targetDir.resolve(name);
+    if (!entryPath.normalize().startsWith(targetDir.normalize())) {
+      throw new IOException("Invalid zip entry: " + name);
+    }
+    return entryPath;
+  }
+
+  /**
+   * Hashes every byte read through it and optionally copies it to an output stream
+   * (rate-limited), reporting offset + running total
+   */
+  private static final class PipelineInputStream extends FilterInputStream {
+    private final MessageDigest digest;
+    private final OutputStream copy;
+    private final long offset;
+    private final LongConsumer progress;
+    private final BandwidthLimiter limiter;
+    private long total;
+
+    PipelineInputStream(InputStream in, MessageDigest digest, OutputStream copy, long offset,
+                        LongConsumer progress, BandwidthLimiter limiter) {
+      super(new BufferedInputStream(in, IO_BUFFER_SIZE));
+      this.digest = digest;
+      this.copy = copy;
+      this.offset = offset;
+      this.progress = progress;
+      this.limiter = limiter;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      int n = read(one, 0, 1);
+      return n == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, limiter != null ? Math.min(len, LIMITED_CHUNK_SIZE) : len);
+      if (n > 0) {
+        digest.update(b, off, n);
+        if (copy != null) {
+          copy.write(b, off, n);
+        }
+        total += n;
+        if (progress != null) {
+          progress.accept(offset + total);
+        }
+        if (limiter != null) {
+          try {
+            limiter.acquire(n);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("download interrupted");
+          }
+        }
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // skip 也必须经过 digest/copy，否则会缺字节
+      byte[] buf = new byte[(int) Math.min(n, IO_BUFFER_SIZE)];
+      long skipped = 0;
+      while (skipped < n) {
+        int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+        if (r == -1) {
+          break;
+        }
+        skipped += r;
+      }
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  /**
+   * Result of {@link #extractZip}
+   */
+  private static final class ExtractStats {
+    final int files;
+    final long bytes;
+    final int workers;
+
+    ExtractStats(int files, long bytes, int workers) {
+      this.files = files;
+      this.bytes = bytes;
+      this.workers = workers;
+    }
+  }
+
+  /**
+   * Result of {@link #downloadAndExtract}
+   */
+  static final class StreamResult {
+    final long bytes;
+    final long resumedFrom;
+    final String sha256;
+    final boolean extracted;
+
+    StreamResult(long bytes, long resumedFrom, String sha256, boolean extracted) {
+      this.bytes = bytes;
+      this.resumedFrom = resumedFrom;
+      this.sha256 = sha256;
+      this.extracted = extracted;
     }
   }
 
@@ -379,11 +888,133 @@ public class TemplatePackageInstaller {
           .sorted((a, b) -> b.compareTo(a)) // Delete files before directories
           .forEach(path -> {
             try {
-              Files.delete(path);
+              TemplateAssetStore.delete(path);
             } catch (IOException e) {
               log.warn("[tpl-install] Failed to delete: {}", path);
             }
           });
     }
   }
+
+  private static void step(InstallProgress progress, String step) {
+    if (progress != null) {
+      progress.onStep(step);
+    }
+  }
+
+  /**
+   * Install progress callback: bytes downloaded so far, plus step changes
+   */
+  @FunctionalInterface
+  public interface InstallProgress {
+    String DOWNLOAD = "download";
+    String VERIFY = "verify";
+    String UNZIP = "unzip";
+    String DELTA = "delta";
+    String VALIDATE = "validate";
+    String COMMIT = "commit";
+    String INDEX = "index";
+
+    void onBytes(long downloaded);
+
+    default void onStep(String step) {
+    }
+  }
+
+  /**
+   * Steps 1-3 result: staged tree is complete and verified
+   */
+  private static final class Staged {
+    final Path partFile;
+    final long bytes;
+
+    Staged(Path partFile, long bytes) {
+      this.partFile = partFile;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Delta package offered by the platform (see {@link TemplateDelta})
+   */
+  public static class DeltaSource {
+    private final String baseVersionSemver;
+    private final String downloadUrl;
+    private final String checksumSha256;
+
+    public DeltaSource(String baseVersionSemver, String downloadUrl, String checksumSha256) {
+      this.baseVersionSemver = baseVersionSemver;
+      this.downloadUrl = downloadUrl;
+      this.checksumSha256 = checksumSha256;
+    }
+
+    /**
+     * @return delta source, or null unless all fields are present
+     */
+    public static DeltaSource of(String baseVersionSemver, String downloadUrl, String checksumSha256) {
+      if (baseVersionSemver == null || baseVersionSemver.isBlank() || downloadUrl == null || downloadUrl.isBlank()
+          || checksumSha256 == null || checksumSha256.isBlank()) {
+        return null;
+      }
+      return new DeltaSource(baseVersionSemver.trim(), downloadUrl.trim(), checksumSha256.trim());
+    }
+
+    public String getBaseVersionSemver() {
+      return baseVersionSemver;
+    }
+
+    public String getDownloadUrl() {
+      return downloadUrl;
+    }
+
+    public String getChecksumSha256() {
+      return checksumSha256;
+    }
+  }
+
+  /**
+   * Package committed to data/templates (not yet in index.json)
+   */
+  public static class InstalledPackage {
+    private final String templateCode;
+    private final String versionSemver;
+    private final String relativePath;
+    private final String checksum;
+    private final String downloadUrl;
+    private final long bytes;
+
+    public InstalledPackage(String templateCode, String versionSemver, String relativePath,
+                            String checksum, String downloadUrl, long bytes) {
+      this.templateCode = templateCode;
+      this.versionSemver = versionSemver;
+      this.relativePath = relativePath;
+      this.checksum = checksum;
+      this.downloadUrl = downloadUrl;
+      this.bytes = bytes;
+    }
+
+    public String getTemplateCode() {
+      return templateCode;
+    }
+
+    public String getVersionSemver() {
+      return versionSemver;
+    }
+
+    public String getRelativePath() {
+      return relativePath;
+    }
+
+    public String getChecksum() {
+      return checksum;
+    }
+
+    public String getDownloadUrl() {
+      return downloadUrl;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+  }
 }
@@ -0,0 +1,423 @@
+package com.mg.booth.device;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.mg.booth.config.AppProps;
+import com.mg.booth.config.BoothProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk template sync for an activity.
+ *
+ * Fetches the activity's template list from the platform (cached list when unreachable),
+ * diffs it against the installed catalog (templateCode + versionSemver + checksum) and
+ * installs missing/outdated packages on templateSyncExecutor. Downloads to the same host are
+ * limited to app.templates.syncPerHostLimit. index.json is written once when all items finish.
+ *
+ * Jobs are kept in memory (last {@link #MAX_JOBS}) for the status endpoint.
+ */
+@Service
+public class TemplateSyncService {
+
+  private static final Logger log = LoggerFactory.getLogger(TemplateSyncService.class);
+
+  static final int MAX_JOBS = 20;
+
+  private final BoothProps props;
+  private final AppProps appProps;
+  private final DeviceConfigStore configStore;
+  private final DeviceCacheStore cacheStore;
+  private final PlatformDeviceApiClient apiClient;
+  private final TemplatePackageInstaller installer;
+  private final TemplateCatalog catalog;
+  private final Executor templateSyncExecutor;
+
+  // jobId -> job (insertion order, oldest evicted first)
+  private final Map<String, SyncJob> jobs = Collections.synchronizedMap(new LinkedHashMap<>());
+
+  // host -> concurrent download permits
+  private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+  public TemplateSyncService(
+      BoothProps props,
+      AppProps appProps,
+      DeviceConfigStore configStore,
+      DeviceCacheStore cacheStore,
+      @Qualifier("devicePlatformDeviceApiClient") PlatformDeviceApiClient apiClient,
+      TemplatePackageInstaller installer,
+      TemplateCatalog catalog,
+      @Qualifier("templateSyncExecutor") Executor templateSyncExecutor) {
+    this.props = props;
+    this.appProps = appProps;
+    this.configStore = configStore;
+    this.cacheStore = cacheStore;
+    this.apiClient = apiClient;
+    this.installer = installer;
+    this.catalog = catalog;
+    this.templateSyncExecutor = templateSyncExecutor;
+  }
+
+  /**
+   * Start (or join the running) sync job for an activity.
+   *
+   * The job is registered as RUNNING under the same lock as the lookup, before the template list
+   * is fetched, so concurrent calls for one activity always share a single job.
+   *
+   * @throws IllegalStateException if the template list cannot be obtained (the job is kept as FAILED)
+   */
+  public SyncJob start(Long activityId) {
+    SyncJob job;
+    synchronized (jobs) {
+      for (SyncJob j : jobs.values()) {
+        if (activityId.equals(j.activityId) && SyncJob.RUNNING.equals(j.state)) {
+          log.info("[tpl-sync] Sync already running for activityId={}, jobId={}", activityId, j.jobId);
+          return j;
+        }
+      }
+      job = new SyncJob(UUID.randomUUID().toString().replace("-", ""), activityId);
+      jobs.put(job.jobId, job);
+      while (jobs.size() > MAX_JOBS) {
+        String oldest = jobs.keySet().iterator().next();
+        jobs.remove(oldest);
+      }
+    }
+
+    List<Map<String, Object>> templates;
+    try {
+      templates = fetchActivityTemplates(activityId);
+    } catch (RuntimeException e) {
+      // 占位任务标记失败，同时加入的调用方可查询到原因
+      job.message = e.getMessage();
+      job.finishedAt = Instant.now();
+      job.state = SyncJob.FAILED;
+      throw e;
+    }
+
+    List<CompletableFuture<TemplatePackageInstaller.InstalledPackage>> futures = new ArrayList<>();
+    for (Map<String, Object> t : templates) {
+      SyncItem item = SyncItem.of(t);
+      job.items.add(item);
+      if (item.status.equals(SyncItem.FAILED)) {
+        continue;
+      }
+      if (isUpToDate(item)) {
+        item.status = SyncItem.SKIPPED;
+        continue;
+      }
+      futures.add(CompletableFuture.supplyAsync(() -> installItem(job, item), templateSyncExecutor));
+    }
+
+    log.info("[tpl-sync] Started jobId={} activityId={} templates={} toInstall={}",
+        job.jobId, activityId, job.items.size(), futures.size());
+
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+        .whenComplete((v, e) -> finish(job, futures));
+    return job;
+  }
+
+  public Optional<SyncJob> getJob(String jobId) {
+    return Optional.ofNullable(jobs.get(jobId));
+  }
+
+  private TemplatePackageInstaller.InstalledPackage installItem(SyncJob job, SyncItem item) {
+    Semaphore permits = hostPermits.computeIfAbsent(hostOf(item.downloadUrl),
+        h -> new Semaphore(appProps.getTemplates().getSyncPerHostLimit()));
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      item.fail("interrupted");
+      return null;
+    }
+    try {
+      item.status = SyncItem.DOWNLOADING;
+      item.startedAtMs = System.currentTimeMillis();
+      TemplatePackageInstaller.InstalledPackage pkg = installer.installPackage(
+          item.templateCode, item.versionSemver, item.downloadUrl, item.checksumSha256, item.delta,
+          bytes -> {
+            long delta = bytes - item.bytes;
+            item.bytes = bytes;
+            job.bytes.addAndGet(delta);
+          });
+      item.finishedAtMs = System.currentTimeMillis();
+      item.status = SyncItem.INSTALLED;
+      return pkg;
+    } catch (Exception e) {
+      item.finishedAtMs = System.currentTimeMillis();
+      item.fail(e.getMessage());
+      log.warn("[tpl-sync] jobId={} {}@{} failed: {}", job.jobId, item.templateCode, item.versionSemver, e.getMessage());
+      return null;
+    } finally {
+      permits.release();
+    }
+  }
+
+  private void finish(SyncJob job, List<CompletableFuture<TemplatePackageInstaller.InstalledPackage>> futures) {
+    List<TemplatePackageInstaller.InstalledPackage> installed = new ArrayList<>();
+    for (CompletableFuture<TemplatePackageInstaller.InstalledPackage> f : futures) {
+      TemplatePackageInstaller.InstalledPackage pkg = f.getNow(null);
+      if (pkg != null) {
+        installed.add(pkg);
+      }
+    }
+
+    try {
+      // 所有模板完成后只写一次 index.json
+      installer.recordInstalled(installed);
+      boolean anyFailed = job.items.stream().anyMatch(i -> SyncItem.FAILED.equals(i.status));
+      job.state = anyFailed ? SyncJob.COMPLETED_WITH_ERRORS : SyncJob.COMPLETED;
+    } catch (Exception e) {
+      log.error("[tpl-sync] jobId={} index update failed: {}", job.jobId, e.getMessage(), e);
+      job.message = "index update failed: " + e.getMessage();
+      job.state = SyncJob.FAILED;
+    }
+    job.finishedAt = Instant.now();
+    log.info("[tpl-sync] Finished jobId={} state={} installed={} bytes={} bytesPerSec={}",
+        job.jobId, job.state, installed.size(), job.bytes.get(), job.getBytesPerSec());
+  }
+
+  private boolean isUpToDate(SyncItem item) {
+    LocalTemplateIndexStore.TemplateIndexItem installed = catalog.get(item.templateCode, item.versionSemver);
+    if (installed == null || installed.getChecksum() == null
+        || !installed.getChecksum().equalsIgnoreCase(item.checksumSha256)) {
+      return false;
+    }
+    // 索引里有但目录已被删除时重新安装
+    String dataDir = props.getDataDir() != null && !props.getDataDir().isBlank() ? props.getDataDir() : "./data";
+    String rel = installed.getPath() != null ? installed.getPath()
+        : "templates/" + item.templateCode + "/" + item.versionSemver;
+    return Files.isDirectory(Path.of(dataDir).resolve(rel));
+  }
+
+  private List<Map<String, Object>> fetchActivityTemplates(Long activityId) {
+    Path file = Path.of(props.getDeviceIdentityFile());
+    DeviceConfig config = configStore.load(file);
+    Path dir = file.getParent() != null ? file.getParent() : Path.of(".");
+
+    String platformBaseUrl = config.getPlatformBaseUrl();
+    if (platformBaseUrl == null || platformBaseUrl.isBlank()) {
+      platformBaseUrl = props.getPlatformBaseUrl();
+    }
+    Long deviceId = config.getDeviceIdAsLong();
+    if (platformBaseUrl == null || platformBaseUrl.isBlank() || deviceId == null
+        || config.getDeviceToken() == null || config.getDeviceToken().isBlank()) {
+      throw new IllegalStateException("platform not configured (handshake required)");
+    }
+
+    try {
+      List<Map<String, Object>> templates =
+          apiClient.listActivityTemplates(platformBaseUrl, deviceId, activityId, config.getDeviceToken());
+      cacheStore.writeTemplatesCache(dir, activityId, templates);
+      return templates;
+    } catch (PlatformCallException e) {
+      if (e.isUnreachable()) {
+        var cacheOpt = cacheStore.readTemplatesCache(dir, activityId);
+        if (cacheOpt.isPresent()) {
+          log.warn("[tpl-sync] Platform unreachable, syncing from cached list: activityId={}, cachedAt={}",
+              activityId, cacheOpt.get().getCachedAt());
+          return cacheOpt.get().getItems();
+        }
+      }
+      throw new IllegalStateException("Failed to get activity templates: " + e.getMessage(), e);
+    }
+  }
+
+  static String hostOf(String url) {
+    try {
+      String host = URI.create(url).getHost();
+      return host != null ? host.toLowerCase() : "";
+    } catch (Exception e) {
+      return "";
+    }
+  }
+
+  /**
+   * Sync job status (serialized by the status endpoint)
+   */
+  public static class SyncJob {
+    public static final String RUNNING = "RUNNING";
+    public static final String COMPLETED = "COMPLETED";
+    public static final String COMPLETED_WITH_ERRORS = "COMPLETED_WITH_ERRORS";
+    public static final String FAILED = "FAILED";
+
+    private final String jobId;
+    private final Long activityId;
+    private final List<SyncItem> items = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong bytes = new AtomicLong();
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", timezone = "UTC")
+    private final Instant startedAt = Instant.now();
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", timezone = "UTC")
+    private volatile Instant finishedAt;
+
+    private volatile String state = RUNNING;
+    private volatile String message;
+
+    SyncJob(String jobId, Long activityId) {
+      this.jobId = jobId;
+      this.activityId = activityId;
+    }
+
+    public String getJobId() {
+      return jobId;
+    }
+
+    public Long getActivityId() {
+      return activityId;
+    }
+
+    public String getState() {
+      return state;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+
+    public Instant getStartedAt() {
+      return startedAt;
+    }
+
+    public Instant getFinishedAt() {
+      return finishedAt;
+    }
+
+    public List<SyncItem> getItems() {
+      synchronized (items) {
+        return new ArrayList<>(items);
+      }
+    }
+
+    public long getBytesDownloaded() {
+      return bytes.get();
+    }
+
+    /**
+     * Aggregate download throughput since the job started.
+     */
+    public long getBytesPerSec() {
+      Instant end = finishedAt != null ? finishedAt : Instant.now();
+      long ms = Math.max(1, end.toEpochMilli() - startedAt.toEpochMilli());
+      return bytes.get() * 1000L / ms;
+    }
+
+    public Map<String, Long> getCounts() {
+      Map<String, Long> counts = new LinkedHashMap<>();
+      for (SyncItem i : getItems()) {
+        counts.merge(i.status, 1L, Long::sum);
+      }
+      return counts;
+    }
+  }
+
+  /**
+   * Per-template progress
+   */
+  public static class SyncItem {
+    public static final String PENDING = "PENDING";
+    public static final String SKIPPED = "SKIPPED";
+    public static final String DOWNLOADING = "DOWNLOADING";
+    public static final String INSTALLED = "INSTALLED";
+    public static final String FAILED = "FAILED";
+
+    private String templateCode;
+    private String versionSemver;
+    private String downloadUrl;
+    private String checksumSha256;
+    private TemplatePackageInstaller.DeltaSource delta;
+    private volatile String status = PENDING;
+    private volatile long bytes;
+    private volatile long startedAtMs;
+    private volatile long finishedAtMs;
+    private volatile String error;
+
+    /**
+     * Parse a platform template item (templateCode/versionSemver/checksumSha256 preferred,
+     * legacy templateId/version/checksum accepted; optional deltaBaseVersionSemver/deltaUrl/
+     * deltaChecksumSha256).
+     */
+    static SyncItem of(Map<String, Object> t) {
+      SyncItem item = new SyncItem();
+      item.templateCode = firstString(t, "templateCode", "templateId");
+      item.versionSemver = firstString(t, "versionSemver", "version");
+      item.downloadUrl = firstString(t, "downloadUrl");
+      String checksum = firstString(t, "checksumSha256", "checksum");
+      item.checksumSha256 = checksum != null && checksum.startsWith("sha256:") ? checksum.substring(7) : checksum;
+      // 平台可选下发增量包（基于已安装版本）
+      item.delta = TemplatePackageInstaller.DeltaSource.of(
+          firstString(t, "deltaBaseVersionSemver"), firstString(t, "deltaUrl"), firstString(t, "deltaChecksumSha256"));
+      if (item.templateCode == null || item.versionSemver == null
+          || item.downloadUrl == null || item.checksumSha256 == null) {
+        item.fail("template item missing templateCode/versionSemver/downloadUrl/checksumSha256");
+      }
+      return item;
+    }
+
+    private static String firstString(Map<String, Object> map, String... keys) {
+      for (String k : keys) {
+        Object v = map.get(k);
+        if (v != null && !String.valueOf(v).isBlank()) {
+          return String.valueOf(v).trim();
+        }
+      }
+      return null;
+    }
+
+    void fail(String reason) {
+      this.error = reason;
+      this.status = FAILED;
+    }
+
+    public String getTemplateCode() {
+      return templateCode;
+    }
+
+    public String getVersionSemver() {
+      return versionSemver;
+    }
+
+    public String getStatus() {
+      return status;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public String getError() {
+      return error;
+    }
+
+    public Long getElapsedMs() {
+      if (startedAtMs == 0) {
+        return null;
+      }
+      return (finishedAtMs > 0 ? finishedAtMs : System.currentTimeMillis()) - startedAtMs;
+    }
+
+    public Long getBytesPerSec() {
+      Long ms = getElapsedMs();
+      return ms != null ? bytes * 1000L / Math.max(1, ms) : null;
+    }
+  }
+}
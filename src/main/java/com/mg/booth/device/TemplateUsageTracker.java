@@ -0,0 +1,40 @@
+package com.mg.booth.device;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Last-use time of installed template versions (templateCode@versionSemver -> epoch ms).
+ *
+ * Fed by AiEngineRouter when a session is rendered with the version; read by the template GC
+ * to pick least-recently-used versions when the disk budget is exceeded. Kept in memory only:
+ * after a restart versions fall back to their installedAt until they are used again.
+ */
+@Component
+public class TemplateUsageTracker {
+
+  private final Map<String, Long> lastUse = new ConcurrentHashMap<>();
+
+  public void touch(String templateCode, String versionSemver) {
+    if (templateCode != null && versionSemver != null) {
+      lastUse.put(key(templateCode, versionSemver), System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Last use in epoch ms, or 0 if not used since startup.
+   */
+  public long lastUsedAtMs(String templateCode, String versionSemver) {
+    return lastUse.getOrDefault(key(templateCode, versionSemver), 0L);
+  }
+
+  public void forget(String templateCode, String versionSemver) {
+    lastUse.remove(key(templateCode, versionSemver));
+  }
+
+  static String key(String templateCode, String versionSemver) {
+    return templateCode + "@" + versionSemver;
+  }
+}
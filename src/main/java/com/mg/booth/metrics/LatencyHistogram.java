@@ -0,0 +1,176 @@
+package com.mg.booth.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rolling latency histogram (HDR-style log-linear buckets, millisecond resolution).
+ *
+ * - Values below 32ms are counted exactly; above that each power of two is split
+ *   into 16 sub-buckets, so percentiles are accurate to ~6% up to ~1 hour
+ * - Recording is lock-free (AtomicLongArray), only window rotation synchronizes
+ * - Snapshot covers the current window plus the previous one, so a freshly
+ *   rotated histogram still reports meaningful percentiles
+ */
+public class LatencyHistogram {
+
+  private static final int LINEAR_LIMIT = 32;
+  private static final int SUB_BUCKETS = 16;
+  private static final int MAX_EXPONENT = 30;
+  static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_EXPONENT - 5) * SUB_BUCKETS;
+
+  private final long windowMs;
+
+  private volatile Window current;
+  private volatile Window previous;
+
+  public LatencyHistogram(long windowMs) {
+    this.windowMs = windowMs > 0 ? windowMs : 300_000L;
+    this.current = new Window(System.currentTimeMillis());
+    this.previous = null;
+  }
+
+  /**
+   * Record one latency sample in milliseconds (negative values are ignored).
+   */
+  public void record(long valueMs) {
+    if (valueMs < 0) {
+      return;
+    }
+    rotateIfNeeded(System.currentTimeMillis());
+    current.record(valueMs);
+  }
+
+  /**
+   * Snapshot of the rolling window: count, min, max, mean, p50, p90, p99.
+   */
+  public Map<String, Object> snapshot() {
+    Merged m = merge();
+
+    Map<String, Object> snap = new LinkedHashMap<>();
+    snap.put("count", m.count);
+    if (m.count == 0) {
+      return snap;
+    }
+    snap.put("minMs", m.min);
+    snap.put("maxMs", m.max);
+    snap.put("meanMs", m.sum / m.count);
+    snap.put("p50Ms", m.valueAt(0.50));
+    snap.put("p90Ms", m.valueAt(0.90));
+    snap.put("p99Ms", m.valueAt(0.99));
+    return snap;
+  }
+
+  /**
+   * Number of samples in the rolling window.
+   */
+  public long count() {
+    return merge().count;
+  }
+
+  /**
+   * Value at the given quantile (0..1) of the rolling window, or -1 when empty.
+   */
+  public long valueAtQuantile(double quantile) {
+    Merged m = merge();
+    return m.count == 0 ? -1 : m.valueAt(quantile);
+  }
+
+  private Merged merge() {
+    rotateIfNeeded(System.currentTimeMillis());
+    Merged m = new Merged();
+    for (Window w : new Window[]{current, previous}) {
+      if (w == null) {
+        continue;
+      }
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        m.counts[i] += w.counts.get(i);
+      }
+      m.count += w.count.get();
+      m.sum += w.sum.get();
+      m.min = Math.min(m.min, w.min.get());
+      m.max = Math.max(m.max, w.max.get());
+    }
+    return m;
+  }
+
+  private void rotateIfNeeded(long now) {
+    if (now - current.startedAt < windowMs) {
+      return;
+    }
+    synchronized (this) {
+      if (now - current.startedAt < windowMs) {
+        return;
+      }
+      // 超过两个窗口没有数据则直接丢弃旧窗口
+      previous = (now - current.startedAt < 2 * windowMs) ? current : null;
+      current = new Window(now);
+    }
+  }
+
+  static int bucketIndex(long value) {
+    if (value < LINEAR_LIMIT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent >= MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+    int shift = exponent - 4;
+    int mantissa = (int) (value >> shift);
+    return LINEAR_LIMIT + (exponent - 5) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+  }
+
+  static long highestEquivalentValue(int index) {
+    if (index < LINEAR_LIMIT) {
+      return index;
+    }
+    int k = index - LINEAR_LIMIT;
+    int exponent = k / SUB_BUCKETS + 5;
+    long mantissa = k % SUB_BUCKETS + SUB_BUCKETS;
+    return ((mantissa + 1) << (exponent - 4)) - 1;
+  }
+
+  private static class Merged {
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    private long valueAt(double quantile) {
+      long target = Math.max(1, (long) Math.ceil(count * quantile));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= target) {
+          return Math.min(max, highestEquivalentValue(i));
+        }
+      }
+      return max;
+    }
+  }
+
+  private static class Window {
+    private final long startedAt;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    private Window(long startedAt) {
+      this.startedAt = startedAt;
+    }
+
+    private void record(long value) {
+      counts.incrementAndGet(bucketIndex(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      min.accumulateAndGet(value, Math::min);
+      max.accumulateAndGet(value, Math::max);
+    }
+  }
+}
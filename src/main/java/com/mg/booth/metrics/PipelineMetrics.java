@@ -0,0 +1,162 @@
+package com.mg.booth.metrics;
+
+import com.mg.booth.config.AppProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pipeline v2 latency metrics.
+ *
+ * Records per-stage timings reported by the pipeline (response.timing) together with
+ * the client-side wall time of the HTTP call, tagged by templateCode@versionSemver.
+ *
+ * Stage names are taken from the timing keys with the "Ms" suffix stripped
+ * (e.g. segmentationMs -> segmentation). Two derived stages are added:
+ * - client:  wall time of the /pipeline/v2/process call measured on the kiosk
+ * - network: client minus the pipeline's own total (transfer + queueing outside the pipeline)
+ */
+@Component
+public class PipelineMetrics {
+
+  private static final Logger log = LoggerFactory.getLogger(PipelineMetrics.class);
+
+  public static final String STAGE_CLIENT = "client";
+  public static final String STAGE_NETWORK = "network";
+  public static final String STAGE_TOTAL = "total";
+
+  private final long windowMs;
+
+  // key: templateCode@versionSemver -> stage -> histogram
+  private final Map<String, Map<String, LatencyHistogram>> histograms = new ConcurrentHashMap<>();
+
+  // key: templateCode@versionSemver -> counter name -> value (monotonic since startup)
+  private final Map<String, Map<String, LongAdder>> counters = new ConcurrentHashMap<>();
+
+  public PipelineMetrics(AppProps appProps) {
+    long windowSeconds = appProps != null && appProps.getMetrics() != null
+        ? appProps.getMetrics().getWindowSeconds()
+        : 300L;
+    this.windowMs = windowSeconds * 1000L;
+  }
+
+  /**
+   * Record one pipeline v2 call.
+   *
+   * @param templateCode Template code (e.g. "tpl_002")
+   * @param versionSemver Template version (e.g. "0.1.2")
+   * @param clientMs Client-side wall time of the HTTP call
+   * @param timing Pipeline timing map (may be null)
+   */
+  public void recordV2Call(String templateCode, String versionSemver, long clientMs, Map<String, Object> timing) {
+    String key = templateKey(templateCode, versionSemver);
+
+    record(key, STAGE_CLIENT, clientMs);
+
+    Long pipelineTotal = null;
+    long stageSum = 0;
+    if (timing != null) {
+      for (Map.Entry<String, Object> e : timing.entrySet()) {
+        Long ms = toMillis(e.getValue());
+        if (ms == null) {
+          continue;
+        }
+        String stage = stageName(e.getKey());
+        record(key, stage, ms);
+        if (STAGE_TOTAL.equals(stage)) {
+          pipelineTotal = ms;
+        } else {
+          stageSum += ms;
+        }
+      }
+    }
+
+    // 管线未上报 total 时用各阶段之和近似
+    if (pipelineTotal == null && stageSum > 0) {
+      pipelineTotal = stageSum;
+    }
+    if (pipelineTotal != null && clientMs >= pipelineTotal) {
+      record(key, STAGE_NETWORK, clientMs - pipelineTotal);
+    }
+
+    log.debug("[pipeline-metrics] {} client={}ms pipelineTotal={}ms timing={}",
+        key, clientMs, pipelineTotal, timing);
+  }
+
+  /**
+   * Record a single stage sample for a template.
+   */
+  public void record(String templateKey, String stage, long valueMs) {
+    histograms
+        .computeIfAbsent(templateKey, k -> new ConcurrentHashMap<>())
+        .computeIfAbsent(stage, s -> new LatencyHistogram(windowMs))
+        .record(valueMs);
+  }
+
+  /**
+   * Add to a monotonic counter for a template (e.g. bytes saved, retries).
+   */
+  public void increment(String templateKey, String counter, long delta) {
+    counters
+        .computeIfAbsent(templateKey, k -> new ConcurrentHashMap<>())
+        .computeIfAbsent(counter, c -> new LongAdder())
+        .add(delta);
+  }
+
+  /**
+   * Snapshot of all histograms (templateKey -> stage -> stats) and counters (templateKey -> name -> value).
+   */
+  public Map<String, Object> snapshot() {
+    Map<String, Object> out = new TreeMap<>();
+    histograms.forEach((key, stages) -> {
+      Map<String, Object> perStage = new TreeMap<>();
+      stages.forEach((stage, h) -> perStage.put(stage, h.snapshot()));
+      out.put(key, perStage);
+    });
+    Map<String, Object> counterOut = new TreeMap<>();
+    counters.forEach((key, values) -> {
+      Map<String, Object> perName = new TreeMap<>();
+      values.forEach((name, v) -> perName.put(name, v.sum()));
+      counterOut.put(key, perName);
+    });
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("windowSeconds", windowMs / 1000L);
+    result.put("templates", out);
+    result.put("counters", counterOut);
+    return result;
+  }
+
+  public static String templateKey(String templateCode, String versionSemver) {
+    return (templateCode != null ? templateCode : "unknown") + "@" + (versionSemver != null ? versionSemver : "unknown");
+  }
+
+  static String stageName(String timingKey) {
+    String k = timingKey != null ? timingKey.trim() : "";
+    if (k.endsWith("Ms") && k.length() > 2) {
+      k = k.substring(0, k.length() - 2);
+    } else if (k.endsWith("_ms") && k.length() > 3) {
+      k = k.substring(0, k.length() - 3);
+    }
+    return k.isEmpty() ? "unknown" : k;
+  }
+
+  private Long toMillis(Object v) {
+    if (v instanceof Number) {
+      return Math.round(((Number) v).doubleValue());
+    }
+    if (v instanceof String) {
+      try {
+        return Math.round(Double.parseDouble((String) v));
+      } catch (NumberFormatException ignored) {
+        return null;
+      }
+    }
+    return null;
+  }
+}
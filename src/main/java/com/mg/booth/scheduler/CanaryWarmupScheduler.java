@@ -0,0 +1,219 @@
+package com.mg.booth.scheduler;
+
+import com.mg.booth.ai.AiEngine;
+import com.mg.booth.ai.AiEngineRouter;
+import com.mg.booth.config.AppProps;
+import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.device.TemplateCatalog;
+import com.mg.booth.domain.Session;
+import com.mg.booth.domain.SessionState;
+import com.mg.booth.metrics.PipelineMetrics;
+import com.mg.booth.service.AiGatewayV2Client;
+import com.mg.booth.service.PipelinePrefetchService;
+import com.mg.booth.service.PipelineRawUploader;
+import com.mg.booth.service.SessionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Warm-keeping canary renders for pipeline v2.
+ *
+ * During app.canary.eventHours, once no real job has run for app.canary.idleMinutes,
+ * submits one synthetic render per installed template routed to pipeline v2, using a
+ * bundled sample from app.canary.sampleDir (canary=true, priority=low).
+ *
+ * Never overlaps a real job: a round only starts when nothing is in flight and no session
+ * is counting down / capturing / processing, and it stops as soon as one appears.
+ * Templates not yet marked pipelineReady in index.json get a prefetch push first.
+ * Canary client latency is recorded as the "canary" stage in PipelineMetrics
+ * (cold-start health signal); failures are counted as canaryFailed.
+ */
+@Component
+public class CanaryWarmupScheduler {
+
+  private static final Logger log = LoggerFactory.getLogger(CanaryWarmupScheduler.class);
+
+  private final AppProps appProps;
+  private final TemplateCatalog catalog;
+  private final AiEngineRouter aiEngineRouter;
+  private final AiGatewayV2Client aiGatewayV2Client;
+  private final PipelineRawUploader rawUploader;
+  private final PipelinePrefetchService prefetchService;
+  private final PipelineMetrics pipelineMetrics;
+  private final SessionService sessionService;
+  private final Executor canaryExecutor;
+
+  private final AtomicBoolean running = new AtomicBoolean(false);
+  private volatile long lastRoundAtMs;
+  private int sampleCursor;
+
+  public CanaryWarmupScheduler(
+      AppProps appProps,
+      TemplateCatalog catalog,
+      AiEngineRouter aiEngineRouter,
+      AiGatewayV2Client aiGatewayV2Client,
+      PipelineRawUploader rawUploader,
+      PipelinePrefetchService prefetchService,
+      PipelineMetrics pipelineMetrics,
+      SessionService sessionService,
+      @Qualifier("canaryExecutor") Executor canaryExecutor
+  ) {
+    this.appProps = appProps;
+    this.catalog = catalog;
+    this.aiEngineRouter = aiEngineRouter;
+    this.aiGatewayV2Client = aiGatewayV2Client;
+    this.rawUploader = rawUploader;
+    this.prefetchService = prefetchService;
+    this.pipelineMetrics = pipelineMetrics;
+    this.sessionService = sessionService;
+    this.canaryExecutor = canaryExecutor;
+  }
+
+  @Scheduled(fixedDelay = 30000, initialDelay = 60000)
+  public void tick() {
+    AppProps.Canary cfg = appProps.getCanary();
+    if (!cfg.isEnabled() || running.get()) {
+      return;
+    }
+    if (!withinEventHours(cfg.getEventHours(), LocalTime.now())) {
+      return;
+    }
+
+    long idleMs = cfg.getIdleMinutes() * 60_000L;
+    long now = System.currentTimeMillis();
+    if (now - aiEngineRouter.lastActivityAtMs() < idleMs || now - lastRoundAtMs < idleMs || !isIdle()) {
+      return;
+    }
+
+    if (running.compareAndSet(false, true)) {
+      canaryExecutor.execute(() -> {
+        try {
+          runRound();
+        } catch (Exception e) {
+          log.warn("[canary] Round failed: {}", e.getMessage(), e);
+        } finally {
+          lastRoundAtMs = System.currentTimeMillis();
+          running.set(false);
+        }
+      });
+    }
+  }
+
+  private void runRound() throws Exception {
+    Path sample = nextSample();
+    if (sample == null) {
+      log.warn("[canary] No sample JPEG in {}, skipping", appProps.getCanary().getSampleDir());
+      return;
+    }
+
+    List<LocalTemplateIndexStore.TemplateIndexItem> items = catalog.items();
+
+    int sent = 0;
+    for (LocalTemplateIndexStore.TemplateIndexItem item : items) {
+      if (!isIdle()) {
+        log.info("[canary] Real job started, stopping round after {} canaries", sent);
+        return;
+      }
+      if (!AiEngine.GATEWAY_V2.equals(aiEngineRouter.preferredEngine(item.getTemplateId()))) {
+        continue;
+      }
+
+      // 安装时预取失败（或旧索引未记录）的模板先补发预取
+      if (prefetchService.isEnabled() && !Boolean.TRUE.equals(item.getPipelineReady())) {
+        prefetchService.prefetch(item.getTemplateId(), item.getVersion(), item.getDownloadUrl(), item.getChecksum());
+      }
+
+      String key = PipelineMetrics.templateKey(item.getTemplateId(), item.getVersion());
+      String uploadId = rawUploader.shouldUpload() ? rawUploader.upload(sample) : null;
+      AiGatewayV2Client.Result result = aiGatewayV2Client.processCanary(
+          item.getTemplateId(),
+          item.getVersion(),
+          item.getDownloadUrl(),
+          item.getChecksum(),
+          sample.toAbsolutePath().toString(),
+          uploadId
+      );
+      sent++;
+
+      if (result.isOk()) {
+        pipelineMetrics.record(key, "canary", result.getClientMs());
+        log.info("[canary] {} ok, clientMs={}, timing={}", key, result.getClientMs(), result.getTiming());
+      } else {
+        pipelineMetrics.increment(key, "canaryFailed", 1);
+        log.warn("[canary] {} failed: {} - {}", key, result.getErrorCode(), result.getErrorMessage());
+      }
+    }
+    log.info("[canary] Round done: canaries={}", sent);
+  }
+
+  /**
+   * No engine call in flight and no guest about to capture or waiting for a result.
+   */
+  private boolean isIdle() {
+    if (aiEngineRouter.inFlight() > 0) {
+      return false;
+    }
+    for (Session s : sessionService.unsafeStore().values()) {
+      SessionState st = s.getState();
+      if (st == SessionState.COUNTDOWN || st == SessionState.CAPTURING || st == SessionState.PROCESSING) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Path nextSample() throws Exception {
+    Path dir = Path.of(appProps.getCanary().getSampleDir());
+    if (!Files.isDirectory(dir)) {
+      return null;
+    }
+    List<Path> samples;
+    try (Stream<Path> files = Files.list(dir)) {
+      samples = files
+          .filter(Files::isRegularFile)
+          .filter(p -> {
+            String n = p.getFileName().toString().toLowerCase();
+            return n.endsWith(".jpg") || n.endsWith(".jpeg");
+          })
+          .sorted()
+          .toList();
+    }
+    if (samples.isEmpty()) {
+      return null;
+    }
+    // 轮换样张，避免 pipeline 侧按内容缓存
+    return samples.get(Math.floorMod(sampleCursor++, samples.size()));
+  }
+
+  /**
+   * Whether t falls inside "HH:mm-HH:mm" (end exclusive; ranges may cross midnight).
+   */
+  static boolean withinEventHours(String spec, LocalTime t) {
+    try {
+      String[] parts = spec.split("-");
+      LocalTime start = LocalTime.parse(parts[0].trim());
+      LocalTime end = LocalTime.parse(parts[1].trim());
+      if (start.equals(end)) {
+        return true;
+      }
+      if (start.isBefore(end)) {
+        return !t.isBefore(start) && t.isBefore(end);
+      }
+      return !t.isBefore(start) || t.isBefore(end);
+    } catch (Exception e) {
+      log.warn("[canary] Invalid app.canary.eventHours: {}", spec);
+      return false;
+    }
+  }
+}
@@ -0,0 +1,589 @@
+package com.mg.booth.scheduler;
+
+import com.mg.booth.ai.AiEngineRouter;
+import com.mg.booth.config.AppProps;
+import com.mg.booth.config.BoothProps;
+import com.mg.booth.device.DeviceCacheStore;
+import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.device.TemplateAssetStore;
+import com.mg.booth.device.TemplateCatalog;
+import com.mg.booth.device.TemplateIntegrityVerifier;
+import com.mg.booth.device.TemplateUsageTracker;
+import com.mg.booth.domain.Session;
+import com.mg.booth.domain.SessionState;
+import com.mg.booth.service.SessionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/**
+ * Background GC for installed templates (data/templates, data/tmp, data/cas).
+ *
+ * Each round:
+ * - deletes staging dirs, partial downloads, CAS temp files, .bak_* dirs left by reinstalls and
+ *   version dirs missing from index.json once older than app.templates.gcTmpMaxAgeHours
+ * - for templates referenced by active activities (cached activity/template lists) keeps the
+ *   current version (newest installedAt) plus gcKeepPreviousVersions older ones;
+ *   versions listed by an active activity are never removed. Other templates keep only the
+ *   current version
+ * - above app.templates.gcMaxBytes evicts the least-recently-used remaining versions of
+ *   templates no active activity references (last use from TemplateUsageTracker, else installedAt)
+ * - removes CAS objects by mark-and-sweep: digests of all files under data/templates and
+ *   data/tmp/staging are collected (from the integrity digest manifests where one exists, else by
+ *   hashing), and objects outside that set and older than gcTmpMaxAgeHours are deleted
+ *
+ * Evicted versions are dropped from index.json before their files are deleted. Deletes are
+ * file-by-file with a pause every gcDeleteBatch files, and a round only runs (and continues)
+ * while no engine call is in flight and no session is counting down / capturing / processing;
+ * whatever is left is picked up by the next round.
+ */
+@Component
+public class TemplateGcScheduler {
+
+  private static final Logger log = LoggerFactory.getLogger(TemplateGcScheduler.class);
+
+  // 活动缓存里出现这些状态视为已结束；未知状态一律按进行中处理
+  private static final Set<String> ENDED_STATUSES = Set.of("ENDED", "FINISHED", "CLOSED", "ARCHIVED", "CANCELLED");
+
+  private final BoothProps props;
+  private final AppProps appProps;
+  private final TemplateCatalog catalog;
+  private final LocalTemplateIndexStore indexStore;
+  private final TemplateAssetStore assetStore;
+  private final TemplateIntegrityVerifier integrityVerifier;
+  private final TemplateUsageTracker usageTracker;
+  private final DeviceCacheStore cacheStore;
+  private final AiEngineRouter aiEngineRouter;
+  private final SessionService sessionService;
+  private final Executor gcExecutor;
+
+  private final AtomicBoolean running = new AtomicBoolean(false);
+
+  // 仅在 gc 线程内使用
+  private int deletedInBatch;
+  private int deletedFiles;
+  private long deletedBytes;
+
+  public TemplateGcScheduler(
+      BoothProps props,
+      AppProps appProps,
+      TemplateCatalog catalog,
+      LocalTemplateIndexStore indexStore,
+      TemplateAssetStore assetStore,
+      TemplateIntegrityVerifier integrityVerifier,
+      TemplateUsageTracker usageTracker,
+      DeviceCacheStore cacheStore,
+      AiEngineRouter aiEngineRouter,
+      SessionService sessionService,
+      @Qualifier("templateGcExecutor") Executor gcExecutor
+  ) {
+    this.props = props;
+    this.appProps = appProps;
+    this.catalog = catalog;
+    this.indexStore = indexStore;
+    this.assetStore = assetStore;
+    this.integrityVerifier = integrityVerifier;
+    this.usageTracker = usageTracker;
+    this.cacheStore = cacheStore;
+    this.aiEngineRouter = aiEngineRouter;
+    this.sessionService = sessionService;
+    this.gcExecutor = gcExecutor;
+  }
+
+  @Scheduled(fixedDelay = 600000, initialDelay = 300000)
+  public void tick() {
+    if (!appProps.getTemplates().isGcEnabled() || running.get() || !isIdle()) {
+      return;
+    }
+    if (running.compareAndSet(false, true)) {
+      gcExecutor.execute(() -> {
+        try {
+          runRound();
+        } catch (Exception e) {
+          log.warn("[tpl-gc] Round failed: {}", e.getMessage(), e);
+        } finally {
+          running.set(false);
+        }
+      });
+    }
+  }
+
+  private void runRound() throws IOException {
+    AppProps.Templates cfg = appProps.getTemplates();
+    long startMs = System.currentTimeMillis();
+    long cutoffMs = startMs - cfg.getGcTmpMaxAgeHours() * 3_600_000L;
+    deletedInBatch = 0;
+    deletedFiles = 0;
+    deletedBytes = 0;
+
+    Path dataDir = dataDir();
+    boolean done = sweepStale(dataDir.resolve("tmp/staging"), 2, cutoffMs)
+        && sweepStale(dataDir.resolve("tmp/downloads"), 1, cutoffMs)
+        && sweepStale(assetStore.root().resolve("tmp"), 1, cutoffMs)
+        && sweepTemplateDirs(dataDir.resolve("templates"), cutoffMs)
+        && evictVersions(dataDir)
+        && sweepAssets(dataDir, cfg.getGcTmpMaxAgeHours() * 3_600_000L);
+
+    log.info("[tpl-gc] Round {}: deletedFiles={}, deletedBytes={}, elapsedMs={}",
+        done ? "done" : "interrupted (guest activity)", deletedFiles, deletedBytes,
+        System.currentTimeMillis() - startMs);
+  }
+
+  /**
+   * Delete entries at the given depth below root (1 = direct children) last modified before cutoffMs.
+   */
+  private boolean sweepStale(Path root, int depth, long cutoffMs) throws IOException {
+    if (!Files.isDirectory(root)) {
+      return true;
+    }
+    List<Path> entries;
+    try (Stream<Path> s = Files.walk(root, depth)) {
+      entries = s.filter(p -> p.getNameCount() - root.getNameCount() == depth).toList();
+    }
+    for (Path p : entries) {
+      if (lastModifiedMs(p) < cutoffMs) {
+        log.info("[tpl-gc] Deleting stale {}", p);
+        if (!deleteTree(p)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * data/templates/&lt;code&gt;/: .bak_* dirs and version dirs not in index.json (failed or
+   * interrupted installs, versions whose eviction was interrupted).
+   */
+  private boolean sweepTemplateDirs(Path templatesDir, long cutoffMs) throws IOException {
+    if (!Files.isDirectory(templatesDir)) {
+      return true;
+    }
+    List<Path> codeDirs;
+    try (Stream<Path> s = Files.list(templatesDir)) {
+      codeDirs = s.filter(Files::isDirectory).toList();
+    }
+    for (Path codeDir : codeDirs) {
+      String code = codeDir.getFileName().toString();
+      List<Path> versionDirs;
+      try (Stream<Path> s = Files.list(codeDir)) {
+        versionDirs = s.toList();
+      }
+      for (Path dir : versionDirs) {
+        String name = dir.getFileName().toString();
+        boolean orphan = name.contains(".bak_")
+            || (catalog.get(code, name) == null && !catalog.isQuarantined(code, name));
+        if (orphan && lastModifiedMs(dir) < cutoffMs) {
+          log.info("[tpl-gc] Deleting {} {}", name.contains(".bak_") ? "backup" : "unindexed version", dir);
+          if (!deleteTree(dir)) {
+            return false;
+          }
+        }
+      }
+      deleteIfEmpty(codeDir);
+    }
+    return true;
+  }
+
+  private boolean evictVersions(Path dataDir) throws IOException {
+    AppProps.Templates cfg = appProps.getTemplates();
+    List<LocalTemplateIndexStore.TemplateIndexItem> items = catalog.items();
+    ActiveTemplates active = activeTemplates();
+
+    Map<String, Long> sizes = new HashMap<>();
+    if (cfg.getGcMaxBytes() > 0) {
+      for (LocalTemplateIndexStore.TemplateIndexItem it : items) {
+        sizes.put(key(it), sizeOf(dataDir.resolve(relativePath(it))));
+      }
+    }
+
+    List<LocalTemplateIndexStore.TemplateIndexItem> evict = selectEvictions(
+        items, active.codes, active.versions, cfg.getGcKeepPreviousVersions(), cfg.getGcMaxBytes(),
+        it -> sizes.getOrDefault(key(it), 0L),
+        it -> Math.max(usageTracker.lastUsedAtMs(it.getTemplateId(), it.getVersion()),
+            it.getInstalledAt() != null ? it.getInstalledAt().toEpochMilli() : 0L));
+    if (evict.isEmpty()) {
+      return true;
+    }
+
+    // 先从索引移除再删文件；期间被重新安装的版本（installedAt 变了）保留
+    Map<String, Instant> planned = new HashMap<>();
+    for (LocalTemplateIndexStore.TemplateIndexItem it : evict) {
+      planned.put(key(it), it.getInstalledAt());
+    }
+    List<LocalTemplateIndexStore.TemplateIndexItem> removed = new ArrayList<>();
+    indexStore.update(catalog.indexFile(), index -> index.getItems().removeIf(it -> {
+      if (it != null && planned.containsKey(key(it))
+          && Objects.equals(planned.get(key(it)), it.getInstalledAt())) {
+        removed.add(it);
+        return true;
+      }
+      return false;
+    }));
+
+    for (LocalTemplateIndexStore.TemplateIndexItem it : removed) {
+      log.info("[tpl-gc] Evicting {}@{} (installedAt={}, lastUsedAtMs={})", it.getTemplateId(), it.getVersion(),
+          it.getInstalledAt(), usageTracker.lastUsedAtMs(it.getTemplateId(), it.getVersion()));
+      usageTracker.forget(it.getTemplateId(), it.getVersion());
+      if (!deleteTree(dataDir.resolve(relativePath(it)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean sweepAssets(Path dataDir, long minIdleMs) throws IOException {
+    Path root = assetStore.root();
+    if (!Files.isDirectory(root)) {
+      return true;
+    }
+    Set<String> referenced;
+    try {
+      referenced = referencedObjects(dataDir);
+    } catch (IOException e) {
+      // 标记不完整时不能清理
+      log.warn("[tpl-gc] Cannot collect referenced CAS objects, skipping sweep: {}", e.getMessage());
+      return true;
+    }
+    List<Path> objects;
+    try (Stream<Path> s = Files.walk(root, 2)) {
+      objects = s.filter(p -> p.getNameCount() - root.getNameCount() == 2)
+          .filter(p -> !"tmp".equals(p.getParent().getFileName().toString()))
+          .filter(Files::isRegularFile)
+          .toList();
+    }
+    for (Path object : objects) {
+      long freed = assetStore.deleteIfUnreferenced(object, referenced, minIdleMs);
+      if (freed > 0) {
+        deletedBytes += freed;
+        if (!pace()) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Mark phase: digests of every file a version or staging directory holds. Indexed versions use
+   * their digest manifest; other directories (no manifest yet, unindexed, .bak_*, staging) are hashed.
+   * An install that reuses an object after this point keeps its own link, so a swept object only
+   * costs deduplication, never content.
+   */
+  private Set<String> referencedObjects(Path dataDir) throws IOException {
+    Set<String> referenced = new HashSet<>();
+    Set<Path> recorded = new HashSet<>();
+    for (LocalTemplateIndexStore.TemplateIndexItem it : catalog.items()) {
+      Path dir = dataDir.resolve(relativePath(it)).toAbsolutePath().normalize();
+      Optional<Set<String>> digests = integrityVerifier.recordedDigests(it);
+      if (digests.isPresent() && Files.isDirectory(dir)) {
+        referenced.addAll(digests.get());
+        recorded.add(dir);
+      }
+    }
+    TemplateAssetStore.collectDigests(dataDir.resolve("templates"), recorded, referenced);
+    TemplateAssetStore.collectDigests(dataDir.resolve("tmp/staging"), Set.of(), referenced);
+    return referenced;
+  }
+
+  /**
+   * Versions to drop from index.json, in eviction order.
+   *
+   * @param activeCodes templates referenced by active activities (null = unknown, treat all as referenced)
+   * @param pinned templateCode@versionSemver listed by active activities (never evicted)
+   * @param maxBytes disk budget over all versions (0 = unlimited)
+   */
+  static List<LocalTemplateIndexStore.TemplateIndexItem> selectEvictions(
+      List<LocalTemplateIndexStore.TemplateIndexItem> items,
+      Set<String> activeCodes,
+      Set<String> pinned,
+      int keepPrevious,
+      long maxBytes,
+      ToLongFunction<LocalTemplateIndexStore.TemplateIndexItem> sizeOf,
+      ToLongFunction<LocalTemplateIndexStore.TemplateIndexItem> lastUseOf) {
+    // 按 templateCode 分组；recordInstalled 把新版本追加在索引末尾，所以当前版本取 installedAt 最新的
+    Map<String, List<LocalTemplateIndexStore.TemplateIndexItem>> byCode = new LinkedHashMap<>();
+    for (LocalTemplateIndexStore.TemplateIndexItem it : items) {
+      if (it != null && it.getTemplateId() != null && it.getVersion() != null) {
+        byCode.computeIfAbsent(it.getTemplateId(), k -> new ArrayList<>()).add(it);
+      }
+    }
+
+    List<LocalTemplateIndexStore.TemplateIndexItem> evict = new ArrayList<>();
+    List<LocalTemplateIndexStore.TemplateIndexItem> evictable = new ArrayList<>();
+    Comparator<LocalTemplateIndexStore.TemplateIndexItem> newestFirst = Comparator.comparing(
+        LocalTemplateIndexStore.TemplateIndexItem::getInstalledAt,
+        Comparator.nullsLast(Comparator.reverseOrder()));
+
+    for (Map.Entry<String, List<LocalTemplateIndexStore.TemplateIndexItem>> e : byCode.entrySet()) {
+      boolean referenced = activeCodes == null || activeCodes.contains(e.getKey());
+      List<LocalTemplateIndexStore.TemplateIndexItem> older = new ArrayList<>(e.getValue());
+      older.sort(newestFirst);
+      LocalTemplateIndexStore.TemplateIndexItem current = older.remove(0);
+
+      int keep = referenced ? keepPrevious : 0;
+      for (int i = 0; i < older.size(); i++) {
+        LocalTemplateIndexStore.TemplateIndexItem it = older.get(i);
+        if (i >= keep && !pinned.contains(key(it))) {
+          evict.add(it);
+        }
+      }
+      if (!referenced && !pinned.contains(key(current))) {
+        evictable.add(current);
+      }
+    }
+
+    if (maxBytes > 0) {
+      long total = 0;
+      for (LocalTemplateIndexStore.TemplateIndexItem it : items) {
+        if (it != null && !evict.contains(it)) {
+          total += sizeOf.applyAsLong(it);
+        }
+      }
+      evictable.sort(Comparator.comparingLong(lastUseOf));
+      for (LocalTemplateIndexStore.TemplateIndexItem it : evictable) {
+        if (total <= maxBytes) {
+          break;
+        }
+        evict.add(it);
+        total -= sizeOf.applyAsLong(it);
+      }
+      if (total > maxBytes) {
+        log.warn("[tpl-gc] Templates still use {} bytes (budget {}): remaining versions are needed by active activities",
+            total, maxBytes);
+      }
+    }
+    return evict;
+  }
+
+  /**
+   * Template codes and exact versions referenced by active activities, from the cached
+   * activity / template lists (offline). Codes are null when that cannot be determined.
+   */
+  private ActiveTemplates activeTemplates() {
+    Path file = Path.of(props.getDeviceIdentityFile());
+    Path dir = file.getParent() != null ? file.getParent() : Path.of(".");
+
+    Optional<DeviceCacheStore.CachePayload> activities = cacheStore.readActivitiesCache(dir);
+    if (activities.isEmpty() || activities.get().getItems() == null) {
+      return new ActiveTemplates(null, Set.of());
+    }
+
+    Set<String> codes = new HashSet<>();
+    Set<String> versions = new HashSet<>();
+    boolean complete = true;
+    for (Map<String, Object> activity : activities.get().getItems()) {
+      Object status = activity.get("status");
+      if (status != null && ENDED_STATUSES.contains(String.valueOf(status).trim().toUpperCase(Locale.ROOT))) {
+        continue;
+      }
+      Long activityId = toLong(activity.get("activityId"));
+      Optional<DeviceCacheStore.CachePayload> templates =
+          activityId != null ? cacheStore.readTemplatesCache(dir, activityId) : Optional.empty();
+      if (templates.isEmpty() || templates.get().getItems() == null) {
+        // 进行中活动的模板列表未缓存：无法判断引用关系，所有模板按被引用处理
+        complete = false;
+        continue;
+      }
+      for (Map<String, Object> t : templates.get().getItems()) {
+        String code = firstString(t, "templateCode", "templateId");
+        String version = firstString(t, "versionSemver", "version");
+        if (code != null) {
+          codes.add(code);
+          if (version != null) {
+            versions.add(code + "@" + version);
+          }
+        }
+      }
+    }
+    return new ActiveTemplates(complete ? codes : null, versions);
+  }
+
+  /**
+   * Delete a file or directory tree file-by-file, pausing between batches.
+   *
+   * @return false if the round must stop (guest activity or interrupt)
+   */
+  private boolean deleteTree(Path root) throws IOException {
+    if (!Files.exists(root)) {
+      return true;
+    }
+    AtomicBoolean stop = new AtomicBoolean(false);
+    Files.walkFileTree(root, new SimpleFileVisitor<>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (TemplateAssetStore.delete(file)) {
+          // 按表观大小计；硬链接到 CAS 的文件在 CAS 清理时才真正释放空间
+          deletedBytes += attrs.size();
+        }
+        if (!pace()) {
+          stop.set(true);
+          return FileVisitResult.TERMINATE;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+        if (exc != null) {
+          throw exc;
+        }
+        Files.deleteIfExists(d);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+        if (exc instanceof NoSuchFileException) {
+          return FileVisitResult.CONTINUE;
+        }
+        throw exc;
+      }
+    });
+    return !stop.get();
+  }
+
+  /**
+   * Count one deleted file; sleep after every gcDeleteBatch files.
+   *
+   * @return false if the round must stop
+   */
+  private boolean pace() {
+    deletedFiles++;
+    if (++deletedInBatch < appProps.getTemplates().getGcDeleteBatch()) {
+      return true;
+    }
+    deletedInBatch = 0;
+    long pauseMs = appProps.getTemplates().getGcDeletePauseMs();
+    if (pauseMs > 0) {
+      try {
+        Thread.sleep(pauseMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return isIdle();
+  }
+
+  /**
+   * No engine call in flight and no guest about to capture or waiting for a result.
+   */
+  private boolean isIdle() {
+    if (aiEngineRouter.inFlight() > 0) {
+      return false;
+    }
+    for (Session s : sessionService.unsafeStore().values()) {
+      SessionState st = s.getState();
+      if (st == SessionState.COUNTDOWN || st == SessionState.CAPTURING || st == SessionState.PROCESSING) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Path dataDir() {
+    String dataDir = props.getDataDir() != null && !props.getDataDir().isBlank() ? props.getDataDir() : "./data";
+    return Path.of(dataDir);
+  }
+
+  private static String relativePath(LocalTemplateIndexStore.TemplateIndexItem it) {
+    return it.getPath() != null ? it.getPath() : "templates/" + it.getTemplateId() + "/" + it.getVersion();
+  }
+
+  private static String key(LocalTemplateIndexStore.TemplateIndexItem it) {
+    return it.getTemplateId() + "@" + it.getVersion();
+  }
+
+  private static long lastModifiedMs(Path p) {
+    try {
+      return Files.getLastModifiedTime(p).toMillis();
+    } catch (IOException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private static long sizeOf(Path dir) {
+    if (!Files.isDirectory(dir)) {
+      return 0;
+    }
+    try (Stream<Path> s = Files.walk(dir)) {
+      return s.filter(Files::isRegularFile).mapToLong(p -> {
+        try {
+          return Files.size(p);
+        } catch (IOException e) {
+          return 0;
+        }
+      }).sum();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static void deleteIfEmpty(Path dir) {
+    try (Stream<Path> s = Files.list(dir)) {
+      if (s.findAny().isEmpty()) {
+        Files.deleteIfExists(dir);
+      }
+    } catch (IOException e) {
+      // 并发安装刚创建了子目录等情况，下轮再试
+    }
+  }
+
+  private static Long toLong(Object v) {
+    if (v == null) {
+      return null;
+    }
+    try {
+      return v instanceof Number ? ((Number) v).longValue() : Long.parseLong(String.valueOf(v).trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static String firstString(Map<String, Object> map, String... keys) {
+    for (String k : keys) {
+      Object v = map.get(k);
+      if (v != null && !String.valueOf(v).isBlank()) {
+        return String.valueOf(v).trim();
+      }
+    }
+    return null;
+  }
+
+  private static final class ActiveTemplates {
+    final Set<String> codes;
+    final Set<String> versions;
+
+    ActiveTemplates(Set<String> codes, Set<String> versions) {
+      this.codes = codes;
+      this.versions = versions;
+    }
+  }
+}
@@ -45,31 +45,200 @@ public class AiGatewayV2Client {
                         String downloadUrl,
                         String checksumSha256,
                         String rawPath) {
+    return process(templateCode, versionSemver, downloadUrl, checksumSha256, rawPath, null);
+  }
+
+  /**
+   * Process with an optional pre-uploaded raw image.
+   *
+   * @param rawUploadId uploadId from PipelineRawUploader; when set it replaces rawPath in the request
+   */
+  public Result process(String templateCode,
+                        String versionSemver,
+                        String downloadUrl,
+                        String checksumSha256,
+                        String rawPath,
+                        String rawUploadId) {
+    return process(templateCode, versionSemver, downloadUrl, checksumSha256, rawPath, rawUploadId, null);
+  }
+
+  /**
+   * Process with an idempotency key.
+   *
+   * @param idempotencyKey sent as Idempotency-Key (sessionId#attemptIndex#templateCode) so the pipeline
+   *                       can return the original job when a retried request already succeeded
+   */
+  public Result process(String templateCode,
+                        String versionSemver,
+                        String downloadUrl,
+                        String checksumSha256,
+                        String rawPath,
+                        String rawUploadId,
+                        String idempotencyKey) {
 
     String traceId = "v2-" + System.currentTimeMillis();
 
     String baseUrl = resolveBaseUrl();
     String url = normalizeBaseUrl(baseUrl) + "/pipeline/v2/process";
 
+    Map<String, Object> body = buildProcessBody(templateCode, versionSemver, downloadUrl, checksumSha256,
+        rawPath, rawUploadId);
+
+    log.info("[ai-v2-client] [{}] Request: url={}, template={}@{}, rawPath={}, rawUploadId={}, idempotencyKey={}",
+        traceId, url, templateCode, versionSemver, rawPath, rawUploadId, idempotencyKey);
+
+    // 记录客户端侧总耗时（含网络），用于与 pipeline timing 对比
+    long startNs = System.nanoTime();
+    Result result = exchange(traceId, url, HttpMethod.POST, jsonEntity(body, idempotencyKey));
+    long clientMs = (System.nanoTime() - startNs) / 1_000_000L;
+
+    log.info("[ai-v2-client] [{}] Done: ok={}, clientMs={}, timing={}",
+        traceId, result.isOk(), clientMs, result.getTiming());
+
+    return result.withClientMs(clientMs);
+  }
+
+  /**
+   * Synthetic warm-up render (canary=true, priority=low).
+   * The pipeline should schedule it behind any real job; outputs are discarded.
+   */
+  public Result processCanary(String templateCode,
+                              String versionSemver,
+                              String downloadUrl,
+                              String checksumSha256,
+                              String rawPath,
+                              String rawUploadId) {
+
+    String traceId = "v2-canary-" + System.currentTimeMillis();
+    String url = normalizeBaseUrl(resolveBaseUrl()) + "/pipeline/v2/process";
+
+    Map<String, Object> body = buildProcessBody(templateCode, versionSemver, downloadUrl, checksumSha256,
+        rawPath, rawUploadId);
+    body.put("canary", true);
+    body.put("priority", "low");
+
+    log.info("[ai-v2-client] [{}] Canary: url={}, template={}@{}", traceId, url, templateCode, versionSemver);
+
+    long startNs = System.nanoTime();
+    Result result = exchange(traceId, url, HttpMethod.POST, jsonEntity(body));
+    return result.withClientMs((System.nanoTime() - startNs) / 1_000_000L);
+  }
+
+  /**
+   * Ask the pipeline to pre-download and warm a template version:
+   * POST /pipeline/v2/templates/prefetch.
+   */
+  public Result prefetchTemplate(String templateCode,
+                                 String versionSemver,
+                                 String downloadUrl,
+                                 String checksumSha256) {
+    String traceId = "v2-prefetch-" + System.currentTimeMillis();
+    String url = normalizeBaseUrl(resolveBaseUrl()) + "/pipeline/v2/templates/prefetch";
+
     Map<String, Object> body = new HashMap<>();
     body.put("templateCode", templateCode);
     body.put("versionSemver", versionSemver);
     body.put("downloadUrl", downloadUrl);
     body.put("checksumSha256", checksumSha256);
-    body.put("rawPath", rawPath);
 
-    HttpHeaders headers = new HttpHeaders();
-    headers.setContentType(MediaType.APPLICATION_JSON);
+    log.info("[ai-v2-client] [{}] Prefetch: url={}, template={}@{}", traceId, url, templateCode, versionSemver);
+
+    long startNs = System.nanoTime();
+    Result result = exchange(traceId, url, HttpMethod.POST, jsonEntity(body));
+    return result.withClientMs((System.nanoTime() - startNs) / 1_000_000L);
+  }
+
+  /**
+   * Submit a job in two-phase mode (async=true, phasedOutputs=true).
+   * The pipeline answers immediately with a jobId; preview and final are then
+   * published independently and observed via {@link #pollJob(String)}.
+   *
+   * A pipeline without async support answers synchronously with both outputs,
+   * which callers must treat as an already finished job.
+   */
+  public Result submit(String templateCode,
+                       String versionSemver,
+                       String downloadUrl,
+                       String checksumSha256,
+                       String rawPath,
+                       String rawUploadId) {
+    return submit(templateCode, versionSemver, downloadUrl, checksumSha256, rawPath, rawUploadId, null);
+  }
+
+  /**
+   * Two-phase submit with an idempotency key (see {@link #process(String, String, String, String, String, String, String)}).
+   */
+  public Result submit(String templateCode,
+                       String versionSemver,
+                       String downloadUrl,
+                       String checksumSha256,
+                       String rawPath,
+                       String rawUploadId,
+                       String idempotencyKey) {
+
+    String traceId = "v2-" + System.currentTimeMillis();
+    String url = normalizeBaseUrl(resolveBaseUrl()) + "/pipeline/v2/process";
+
+    Map<String, Object> body = buildProcessBody(templateCode, versionSemver, downloadUrl, checksumSha256,
+        rawPath, rawUploadId);
+    body.put("async", true);
+    body.put("phasedOutputs", true);
 
-    HttpEntity<Map<String, Object>> entity = new HttpEntity<>(body, headers);
+    log.info("[ai-v2-client] [{}] Submit (two-phase): url={}, template={}@{}, rawPath={}, rawUploadId={}, idempotencyKey={}",
+        traceId, url, templateCode, versionSemver, rawPath, rawUploadId, idempotencyKey);
 
-    log.info("[ai-v2-client] [{}] Request: url={}, template={}@{}, rawPath={}",
-        traceId, url, templateCode, versionSemver, rawPath);
+    return exchange(traceId, url, HttpMethod.POST, jsonEntity(body, idempotencyKey));
+  }
 
+  /**
+   * Poll a two-phase job: GET /pipeline/v2/jobs/{jobId}.
+   * Result.status is one of queued / running / preview_ready / done.
+   */
+  public Result pollJob(String jobId) {
+    String traceId = "v2-" + System.currentTimeMillis();
+    String url = normalizeBaseUrl(resolveBaseUrl()) + "/pipeline/v2/jobs/" + jobId;
+    log.debug("[ai-v2-client] [{}] Poll: url={}", traceId, url);
+    return exchange(traceId, url, HttpMethod.GET, jsonEntity(null));
+  }
+
+  private Map<String, Object> buildProcessBody(String templateCode,
+                                               String versionSemver,
+                                               String downloadUrl,
+                                               String checksumSha256,
+                                               String rawPath,
+                                               String rawUploadId) {
+    Map<String, Object> body = new HashMap<>();
+    body.put("templateCode", templateCode);
+    body.put("versionSemver", versionSemver);
+    body.put("downloadUrl", downloadUrl);
+    body.put("checksumSha256", checksumSha256);
+    // 已上传时 pipeline 无法访问 kiosk 本地路径，只传 rawUploadId
+    if (rawUploadId != null && !rawUploadId.isBlank()) {
+      body.put("rawUploadId", rawUploadId);
+    } else {
+      body.put("rawPath", rawPath);
+    }
+    return body;
+  }
+
+  private HttpEntity<Map<String, Object>> jsonEntity(Map<String, Object> body) {
+    return jsonEntity(body, null);
+  }
+
+  private HttpEntity<Map<String, Object>> jsonEntity(Map<String, Object> body, String idempotencyKey) {
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    if (idempotencyKey != null && !idempotencyKey.isBlank()) {
+      headers.set("Idempotency-Key", idempotencyKey);
+    }
+    return new HttpEntity<>(body, headers);
+  }
+
+  private Result exchange(String traceId, String url, HttpMethod method, HttpEntity<Map<String, Object>> entity) {
     try {
       ResponseEntity<Map> resp = restTemplate.exchange(
           url,
-          HttpMethod.POST,
+          method,
           entity,
           Map.class
       );
@@ -106,11 +275,15 @@ public class AiGatewayV2Client {
       String previewUrl = outputs != null ? str(outputs.get("previewUrl")) : null;
       String finalUrl = outputs != null ? str(outputs.get("finalUrl")) : null;
       Map<String, Object> timing = getMap(bodyMap, "timing");
+      String status = str(bodyMap.get("status"));
+      if (status == null) {
+        status = finalUrl != null ? "done" : "running";
+      }
 
-      log.info("[ai-v2-client] [{}] Success: jobId={}, previewUrl={}, finalUrl={}",
-          traceId, jobId, previewUrl, finalUrl);
+      log.info("[ai-v2-client] [{}] Success: jobId={}, status={}, previewUrl={}, finalUrl={}",
+          traceId, jobId, status, previewUrl, finalUrl);
 
-      return Result.ok(previewUrl, finalUrl, timing);
+      return Result.ok(jobId, status, previewUrl, finalUrl, timing);
 
     } catch (HttpStatusCodeException e) {
       int status = e.getStatusCode().value();
@@ -170,21 +343,37 @@ public class AiGatewayV2Client {
     private final String errorCode;
     private final String errorMessage;
     private final Map<String, Object> timing;
+    private final String jobId;
+    private final String status;
+    private final long clientMs;
 
     private Result(boolean ok, String previewUrl, String finalUrl,
                    String errorCode, String errorMessage, Map<String, Object> timing) {
+      this(ok, null, ok ? "done" : "failed", previewUrl, finalUrl, errorCode, errorMessage, timing, -1L);
+    }
+
+    private Result(boolean ok, String jobId, String status, String previewUrl, String finalUrl,
+                   String errorCode, String errorMessage, Map<String, Object> timing, long clientMs) {
       this.ok = ok;
+      this.jobId = jobId;
+      this.status = status;
       this.previewUrl = previewUrl;
       this.finalUrl = finalUrl;
       this.errorCode = errorCode;
       this.errorMessage = errorMessage;
       this.timing = timing;
+      this.clientMs = clientMs;
     }
 
     public static Result ok(String previewUrl, String finalUrl, Map<String, Object> timing) {
       return new Result(true, previewUrl, finalUrl, null, null, timing);
     }
 
+    public static Result ok(String jobId, String status, String previewUrl, String finalUrl,
+                            Map<String, Object> timing) {
+      return new Result(true, jobId, status, previewUrl, finalUrl, null, null, timing, -1L);
+    }
+
     public static Result fail(String errorCode, String errorMessage) {
       return new Result(false, null, null, errorCode, errorMessage, null);
     }
@@ -218,6 +407,48 @@ public class AiGatewayV2Client {
     public Map<String, Object> getTiming() {
       return timing;
     }
+
+    /**
+     * Client-side wall time of the call in ms (-1 if not measured).
+     */
+    public long getClientMs() {
+      return clientMs;
+    }
+
+    public String getJobId() {
+      return jobId;
+    }
+
+    /**
+     * Job status: queued / running / preview_ready / done (failed for error results).
+     */
+    public String getStatus() {
+      return status;
+    }
+
+    /**
+     * Final output is available (sync response or finished two-phase job).
+     */
+    public boolean isFinalReady() {
+      return ok && finalUrl != null && !finalUrl.isBlank();
+    }
+
+    /**
+     * Transient failure worth retrying: pipeline unreachable or 502/503/504.
+     */
+    public boolean isRetryable() {
+      if (ok || errorCode == null) {
+        return false;
+      }
+      return "UNREACHABLE".equals(errorCode)
+          || "HTTP_502".equals(errorCode)
+          || "HTTP_503".equals(errorCode)
+          || "HTTP_504".equals(errorCode);
+    }
+
+    Result withClientMs(long clientMs) {
+      return new Result(ok, jobId, status, previewUrl, finalUrl, errorCode, errorMessage, timing, clientMs);
+    }
   }
 }
 
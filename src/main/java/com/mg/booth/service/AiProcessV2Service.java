@@ -1,16 +1,24 @@
 package com.mg.booth.service;
 
+import com.mg.booth.config.AppProps;
 import com.mg.booth.config.BoothProps;
 import com.mg.booth.domain.Session;
+import com.mg.booth.domain.SessionState;
 import com.mg.booth.domain.V2TemplateRef;
 import com.mg.booth.dto.ApiError;
 import com.mg.booth.domain.SessionProgress;
+import com.mg.booth.metrics.PipelineMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import java.nio.file.Path;
 import java.time.OffsetDateTime;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * AI Processing V2 Service
@@ -22,6 +30,17 @@ import java.util.Map;
  * - Call AiGatewayV2Client to process image
  * - Write previewUrl/finalUrl back to session (gatewayized URL)
  * - Update session progress and timestamps
+ * - Record pipeline per-stage timing and client-side time into PipelineMetrics
+ * - Two-phase mode (app.ai.v2OutputMode=two_phase): publish previewUrl to the session
+ *   as soon as the pipeline reports it, then keep polling until the final lands
+ * - When the pipeline is not co-located, stream the raw image to it (PipelineRawUploader)
+ *   in parallel with template resolution
+ * - Optionally crop/downsample the raw to the template's working resolution first
+ *   (RawPreprocessService, app.preprocess.enabled); the upload then waits for the working image,
+ *   which is deleted once the pipeline call returns
+ * - Retry transient pipeline failures (UNREACHABLE / 502 / 503 / 504) with jittered exponential
+ *   backoff inside the session's remaining PROCESSING time; every call carries a stable
+ *   Idempotency-Key (sessionId#attemptIndex#templateCode) so the pipeline can deduplicate
  * - On failure, set ApiError with PROCESSING_FAILED and detailed reason
  */
 @Service
@@ -29,18 +48,33 @@ public class AiProcessV2Service {
 
   private static final Logger log = LoggerFactory.getLogger(AiProcessV2Service.class);
 
+  // SessionSweeper 在 PROCESSING 超过 30s 后回收会话，重试不能超出这个期限
+  private static final long PROCESSING_DEADLINE_MS = 30_000L;
+
   private final TemplateResolveService templateResolveService;
   private final AiGatewayV2Client aiGatewayV2Client;
   private final BoothProps boothProps;
+  private final PipelineMetrics pipelineMetrics;
+  private final AppProps appProps;
+  private final PipelineRawUploader rawUploader;
+  private final RawPreprocessService rawPreprocessService;
 
   public AiProcessV2Service(
       TemplateResolveService templateResolveService,
       AiGatewayV2Client aiGatewayV2Client,
-      BoothProps boothProps
+      BoothProps boothProps,
+      PipelineMetrics pipelineMetrics,
+      AppProps appProps,
+      PipelineRawUploader rawUploader,
+      RawPreprocessService rawPreprocessService
   ) {
     this.templateResolveService = templateResolveService;
     this.aiGatewayV2Client = aiGatewayV2Client;
     this.boothProps = boothProps;
+    this.pipelineMetrics = pipelineMetrics;
+    this.appProps = appProps;
+    this.rawUploader = rawUploader;
+    this.rawPreprocessService = rawPreprocessService;
   }
 
   /**
@@ -64,18 +98,48 @@ public class AiProcessV2Service {
       return;
     }
 
+    Path workFile = null;
     try {
+      boolean preprocess = rawPreprocessService != null && rawPreprocessService.isEnabled();
+      boolean shouldUpload = rawUploader != null && rawUploader.shouldUpload();
+
+      // 0) Pipeline 不在本机时先开始上传 raw（与模板解析并行）；需预处理时改为上传工作图
+      CompletableFuture<String> upload = (shouldUpload && !preprocess)
+          ? rawUploader.uploadAsync(Path.of(rawPath))
+          : null;
+
       // 1) Resolve v2 template metadata from local index.json
       V2TemplateRef ref = templateResolveService.resolveForV2(templateId);
 
-      // 2) Call pipeline v2 via AiGatewayV2Client
-      AiGatewayV2Client.Result result = aiGatewayV2Client.process(
-          ref.getTemplateCode(),
-          ref.getVersionSemver(),
-          ref.getDownloadUrl(),
-          ref.getChecksumSha256(),
-          rawPath
-      );
+      // 1.5) 按 manifest 裁剪/缩放为工作图（失败或线程池满时仍用原图）
+      String submitPath = rawPath;
+      if (preprocess) {
+        Path raw = Path.of(rawPath);
+        Path work = rawPreprocessService.preprocess(raw, ref, remainingMs(session));
+        if (work != null && !work.equals(raw)) {
+          workFile = work;
+          submitPath = work.toString();
+        }
+        if (shouldUpload) {
+          upload = rawUploader.uploadAsync(Path.of(submitPath));
+        }
+      }
+
+      String rawUploadId = awaitUpload(upload, session);
+
+      // 2) Call pipeline v2 via AiGatewayV2Client（幂等键保证重试不会重复出图）
+      String idempotencyKey = sessionId + "#" + attemptIndex + "#" + ref.getTemplateCode();
+      String submitPathFinal = submitPath;
+      AiGatewayV2Client.Result result = isTwoPhase()
+          ? processTwoPhase(session, ref, submitPath, rawUploadId, idempotencyKey)
+          : withRetry(session, ref, "process",
+              () -> callProcess(ref, submitPathFinal, rawUploadId, idempotencyKey));
+
+      // 成功与失败都记录（失败时通常只有 client 耗时）
+      if (result.getClientMs() >= 0) {
+        pipelineMetrics.recordV2Call(ref.getTemplateCode(), ref.getVersionSemver(),
+            result.getClientMs(), result.getTiming());
+      }
 
       if (!result.isOk()) {
         String reason = "pipeline v2 failed: " +
@@ -89,7 +153,10 @@ public class AiProcessV2Service {
 
       // 3) Gatewayize URLs (use gatewayBaseUrl if preview/final are relative paths)
       String gatewayBase = boothProps.getGatewayBaseUrl();
-      String previewUrl = gatewayizeUrl(gatewayBase, result.getPreviewUrl());
+      // 两阶段模式下最终轮询结果可能不再携带 previewUrl，保留已发布的预览
+      String previewUrl = result.getPreviewUrl() != null
+          ? gatewayizeUrl(gatewayBase, result.getPreviewUrl())
+          : session.getPreviewUrl();
       String finalUrl = gatewayizeUrl(gatewayBase, result.getFinalUrl());
 
       session.setPreviewUrl(previewUrl);
@@ -102,11 +169,201 @@ public class AiProcessV2Service {
       log.info("[ai-process-v2] Success: sessionId={}, previewUrl={}, finalUrl={}",
           sessionId, previewUrl, finalUrl);
 
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.warn("[ai-process-v2] Interrupted while waiting for pipeline: sessionId={}", sessionId);
+      session.setError(new ApiError("PROCESSING_FAILED", "Capture/AI failed", Map.of("reason", "interrupted")));
     } catch (Exception e) {
       String msg = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
       log.error("[ai-process-v2] Exception: {}", msg, e);
       session.setError(new ApiError("PROCESSING_FAILED", "Capture/AI failed", Map.of("reason", msg)));
+    } finally {
+      // 工作图只供本次 pipeline 调用使用（已上传或已被读取）
+      if (workFile != null) {
+        rawPreprocessService.discard(Path.of(rawPath), workFile);
+      }
+    }
+  }
+
+  private AiGatewayV2Client.Result callProcess(V2TemplateRef ref, String rawPath, String rawUploadId,
+                                               String idempotencyKey) {
+    return aiGatewayV2Client.process(
+        ref.getTemplateCode(),
+        ref.getVersionSemver(),
+        ref.getDownloadUrl(),
+        ref.getChecksumSha256(),
+        rawPath,
+        rawUploadId,
+        idempotencyKey
+    );
+  }
+
+  /**
+   * Run a pipeline call, retrying retryable failures (see Result.isRetryable) with jittered
+   * exponential backoff while the session still has PROCESSING time left.
+   */
+  private AiGatewayV2Client.Result withRetry(Session session, V2TemplateRef ref, String op,
+                                             Supplier<AiGatewayV2Client.Result> call)
+      throws InterruptedException {
+    int maxRetries = appProps != null ? appProps.getAi().getV2MaxRetries() : 0;
+    long deadlineMs = processingDeadlineMs(session);
+
+    for (int attempt = 0; ; attempt++) {
+      AiGatewayV2Client.Result result = call.get();
+      if (!result.isRetryable() || attempt >= maxRetries) {
+        return result;
+      }
+
+      long backoffMs = backoffMs(attempt);
+      long remainingMs = deadlineMs - System.currentTimeMillis();
+      if (remainingMs <= backoffMs) {
+        log.warn("[ai-process-v2] No time left to retry {}: sessionId={}, remainingMs={}, error={}",
+            op, session.getSessionId(), remainingMs, result.getErrorCode());
+        return result;
+      }
+
+      pipelineMetrics.increment(PipelineMetrics.templateKey(ref.getTemplateCode(), ref.getVersionSemver()),
+          "retries", 1);
+      log.warn("[ai-process-v2] Retrying {} in {}ms: sessionId={}, retry={}/{}, error={} - {}",
+          op, backoffMs, session.getSessionId(), attempt + 1, maxRetries,
+          result.getErrorCode(), result.getErrorMessage());
+      Thread.sleep(backoffMs);
+    }
+  }
+
+  /**
+   * Equal-jitter backoff: random in [cap/2, cap], cap = min(maxBackoff, base * 2^attempt).
+   */
+  private long backoffMs(int attempt) {
+    long base = appProps.getAi().getV2RetryBaseMs();
+    long max = appProps.getAi().getV2RetryMaxBackoffMs();
+    long cap = Math.min(max, base << Math.min(attempt, 20));
+    return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+  }
+
+  private long processingDeadlineMs(Session session) {
+    OffsetDateTime enteredAt = session.getStateEnteredAt();
+    long start = enteredAt != null ? enteredAt.toInstant().toEpochMilli() : System.currentTimeMillis();
+    return start + PROCESSING_DEADLINE_MS;
+  }
+
+  /**
+   * Time left before the session's PROCESSING deadline (never more than app.ai.v2TimeoutMs).
+   */
+  private long remainingMs(Session session) {
+    long remaining = processingDeadlineMs(session) - System.currentTimeMillis();
+    return Math.max(0L, Math.min(remaining, appProps.getAi().getV2TimeoutMs()));
+  }
+
+  /**
+   * Wait for the raw upload started before template resolution, at most until the session's
+   * PROCESSING deadline. Upload failure is not fatal: fall back to rawPath (pipeline may still
+   * reach the shared dir).
+   */
+  private String awaitUpload(CompletableFuture<String> upload, Session session) throws InterruptedException {
+    if (upload == null) {
+      return null;
     }
+    String sessionId = session.getSessionId();
+    try {
+      return upload.get(remainingMs(session), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw e;
+    } catch (Exception e) {
+      upload.cancel(true);
+      log.warn("[ai-process-v2] Raw upload failed, falling back to rawPath: sessionId={}, error={}",
+          sessionId, e.getMessage());
+      return null;
+    }
+  }
+
+  private boolean isTwoPhase() {
+    return appProps != null && appProps.getAi() != null && appProps.getAi().isV2TwoPhase();
+  }
+
+  /**
+   * Two-phase processing: submit async, publish the preview as soon as the pipeline
+   * reports it, then keep polling until the final is ready (or the session's PROCESSING deadline
+   * passes / the session is abandoned).
+   * Delivery token is minted by SessionService only after this returns with a finalUrl.
+   */
+  private AiGatewayV2Client.Result processTwoPhase(Session session, V2TemplateRef ref,
+                                                   String rawPath, String rawUploadId, String idempotencyKey)
+      throws InterruptedException {
+    long startNs = System.nanoTime();
+
+    AiGatewayV2Client.Result last = withRetry(session, ref, "submit", () -> aiGatewayV2Client.submit(
+        ref.getTemplateCode(),
+        ref.getVersionSemver(),
+        ref.getDownloadUrl(),
+        ref.getChecksumSha256(),
+        rawPath,
+        rawUploadId,
+        idempotencyKey
+    ));
+
+    // pipeline 不支持 async 时会同步返回 preview + final，按单阶段结果处理
+    if (!last.isOk() || last.isFinalReady() || last.getJobId() == null) {
+      return last.withClientMs(elapsedMs(startNs));
+    }
+
+    String jobId = last.getJobId();
+    long pollMs = appProps.getAi().getV2PollIntervalMs();
+    // 轮询不超过会话的 PROCESSING 期限（与单次调用的重试预算一致）
+    long deadlineMs = Math.min(processingDeadlineMs(session),
+        System.currentTimeMillis() + appProps.getAi().getV2TimeoutMs());
+    boolean previewPublished = false;
+
+    while (true) {
+      if (!previewPublished && last.getPreviewUrl() != null && !last.getPreviewUrl().isBlank()) {
+        publishPreview(session, last.getPreviewUrl());
+        previewPublished = true;
+        pipelineMetrics.record(PipelineMetrics.templateKey(ref.getTemplateCode(), ref.getVersionSemver()),
+            "clientPreview", elapsedMs(startNs));
+      }
+
+      if (last.isFinalReady()) {
+        log.info("[ai-process-v2] Two-phase final ready: sessionId={}, jobId={}, elapsedMs={}",
+            session.getSessionId(), jobId, elapsedMs(startNs));
+        return last.withClientMs(elapsedMs(startNs));
+      }
+
+      if (session.getState() != SessionState.PROCESSING) {
+        return AiGatewayV2Client.Result.fail("SESSION_ABANDONED",
+            "session left PROCESSING while waiting for final, state=" + session.getState());
+      }
+
+      long remainingMs = deadlineMs - System.currentTimeMillis();
+      if (remainingMs <= 0) {
+        return AiGatewayV2Client.Result.fail("TIMEOUT",
+            "final not ready within the processing deadline, jobId=" + jobId);
+      }
+
+      Thread.sleep(Math.min(pollMs, remainingMs));
+
+      last = withRetry(session, ref, "poll", () -> aiGatewayV2Client.pollJob(jobId));
+      if (!last.isOk()) {
+        return last.withClientMs(elapsedMs(startNs));
+      }
+    }
+  }
+
+  /**
+   * Publish preview to the session while it stays in PROCESSING
+   * (kiosk polls the session and can show the preview immediately).
+   */
+  private void publishPreview(Session session, String rawPreviewUrl) {
+    String previewUrl = gatewayizeUrl(boothProps.getGatewayBaseUrl(), rawPreviewUrl);
+    synchronized (session) {
+      session.setPreviewUrl(previewUrl);
+      session.setProgress(new SessionProgress(SessionProgress.Step.PREVIEW_READY, "预览已生成，成品处理中…", 80));
+      session.setUpdatedAt(OffsetDateTime.now());
+    }
+    log.info("[ai-process-v2] Preview published: sessionId={}, previewUrl={}", session.getSessionId(), previewUrl);
+  }
+
+  private long elapsedMs(long startNs) {
+    return (System.nanoTime() - startNs) / 1_000_000L;
   }
 
   private String gatewayizeUrl(String gatewayBaseUrl, String url) {
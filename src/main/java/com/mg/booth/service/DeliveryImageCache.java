@@ -0,0 +1,275 @@
+package com.mg.booth.service;
+
+import com.mg.booth.domain.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * On-disk cache of remote (pipeline) result images for the delivery page.
+ *
+ * The first request for a session's image streams it from the upstream URL into
+ * storage/delivery/{sessionId}/{urlHash}.{jpg|png}; later requests (download button, the inline
+ * preview, retries from the guest's phone) are served from that file. Concurrent misses for the
+ * same image share one upstream fetch.
+ *
+ * Files are written to a temp file, checked (Content-Length, JPEG/PNG signature), fsynced and
+ * moved into place atomically, so a cached file is always complete.
+ *
+ * Pipeline v2 results are also copied eagerly as soon as the session completes
+ * ({@link #materializeAsync}) into storage/preview and storage/final, and the session is pointed
+ * at the local /files/... URLs, so delivery no longer depends on the pipeline keeping them.
+ */
+@Service
+public class DeliveryImageCache {
+
+  private static final Logger log = LoggerFactory.getLogger(DeliveryImageCache.class);
+
+  private static final int CONNECT_TIMEOUT_MS = 5_000;
+  private static final int READ_TIMEOUT_MS = 30_000;
+
+  private final StorageService storageService;
+  private final Executor deliveryFetchExecutor;
+  private final RestClient http;
+
+  // 同一目标文件并发未命中时只拉取一次（key 为目标路径，不同目录各自落盘）
+  private final Map<String, CompletableFuture<Path>> loading = new ConcurrentHashMap<>();
+
+  public DeliveryImageCache(StorageService storageService,
+                            @Qualifier("deliveryFetchExecutor") Executor deliveryFetchExecutor) {
+    this.storageService = storageService;
+    this.deliveryFetchExecutor = deliveryFetchExecutor;
+    SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+    factory.setConnectTimeout(CONNECT_TIMEOUT_MS);
+    factory.setReadTimeout(READ_TIMEOUT_MS);
+    this.http = RestClient.builder().requestFactory(factory).build();
+  }
+
+  /**
+   * Local copy of a session's remote image, fetched on first use.
+   */
+  public Path get(String sessionId, String url) throws IOException {
+    return load(sessionId, url, storageService.deliveryCacheDir(sessionId), urlKey(url));
+  }
+
+  /**
+   * Copy a completed session's remote preview and final images to local storage in the
+   * background, then switch the session to the local URLs (unless it moved on meanwhile).
+   * Local (/files/...) URLs are left alone. Failures only log: delivery then falls back to
+   * fetching on first download.
+   */
+  public void materializeAsync(Session s) {
+    String sessionId;
+    Integer attemptIndex;
+    String finalUrl;
+    String previewUrl;
+    synchronized (s) {
+      sessionId = s.getSessionId();
+      attemptIndex = s.getAttemptIndex();
+      finalUrl = s.getFinalUrl();
+      previewUrl = s.getPreviewUrl();
+    }
+    if (attemptIndex == null || finalUrl == null || storageService.resolveFileUrl(finalUrl).isPresent()) {
+      return;
+    }
+
+    try {
+      deliveryFetchExecutor.execute(() -> {
+        long startNs = System.nanoTime();
+        String localFinal;
+        try {
+          Path file = load(sessionId, finalUrl, storageService.finalDir(sessionId), String.valueOf(attemptIndex));
+          localFinal = storageService.finalUrl(sessionId, attemptIndex, extensionOf(file));
+        } catch (Exception e) {
+          log.warn("[delivery-cache] Failed to materialise final image: sessionId={}, url={}, error={}",
+              sessionId, finalUrl, e.getMessage());
+          return;
+        }
+
+        String localPreview = null;
+        if (previewUrl != null && previewUrl.equals(finalUrl)) {
+          localPreview = localFinal;
+        } else if (previewUrl != null && storageService.resolveFileUrl(previewUrl).isEmpty()) {
+          try {
+            Path file = load(sessionId, previewUrl, storageService.previewDir(sessionId), String.valueOf(attemptIndex));
+            localPreview = storageService.previewUrl(sessionId, attemptIndex, extensionOf(file));
+          } catch (Exception e) {
+            // 预览拉取失败不影响成品切换到本地
+            log.warn("[delivery-cache] Failed to materialise preview image: sessionId={}, url={}, error={}",
+                sessionId, previewUrl, e.getMessage());
+          }
+        }
+
+        synchronized (s) {
+          if (!finalUrl.equals(s.getFinalUrl()) || !attemptIndex.equals(s.getAttemptIndex())) {
+            return;
+          }
+          s.setFinalUrl(localFinal);
+          if (localPreview != null && previewUrl.equals(s.getPreviewUrl())) {
+            s.setPreviewUrl(localPreview);
+          }
+        }
+        log.info("[delivery-cache] Materialised sessionId={} attempt={}: finalUrl={}, previewUrl={}, elapsedMs={}",
+            sessionId, attemptIndex, localFinal, localPreview, (System.nanoTime() - startNs) / 1_000_000L);
+      });
+    } catch (Exception e) {
+      log.warn("[delivery-cache] Cannot queue materialisation: sessionId={}, error={}", sessionId, e.getMessage());
+    }
+  }
+
+  /**
+   * dir/{baseName}.{jpg|png}, fetched from url unless present. Concurrent calls for the same
+   * target file share one fetch; the same url loaded into another dir (delivery cache vs.
+   * storage/final) is fetched separately so each caller gets a file in the dir it asked for.
+   */
+  private Path load(String sessionId, String url, Path dir, String baseName) throws IOException {
+    Path hit = find(dir, baseName);
+    if (hit != null) {
+      return hit;
+    }
+
+    String key = dir.resolve(baseName).toAbsolutePath().normalize().toString();
+    CompletableFuture<Path> mine = new CompletableFuture<>();
+    CompletableFuture<Path> inFlight = loading.putIfAbsent(key, mine);
+    if (inFlight != null) {
+      try {
+        return inFlight.join();
+      } catch (CompletionException e) {
+        throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+      }
+    }
+
+    try {
+      // 其他请求可能在 putIfAbsent 之前刚写完
+      Path p = find(dir, baseName);
+      if (p == null) {
+        long startNs = System.nanoTime();
+        p = fetch(url, dir, baseName);
+        log.info("[delivery-cache] Fetched sessionId={} url={} -> {} ({} bytes, elapsedMs={})",
+            sessionId, url, p, Files.size(p), (System.nanoTime() - startNs) / 1_000_000L);
+      }
+      mine.complete(p);
+      return p;
+    } catch (IOException | RuntimeException e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      loading.remove(key, mine);
+    }
+  }
+
+  /**
+   * Stream url into dir/{baseName}.{jpg|png} (extension from the image signature).
+   * The file is complete, verified and fsynced when this returns.
+   *
+   * @return written file
+   */
+  public Path fetch(String url, Path dir, String baseName) throws IOException {
+    Files.createDirectories(dir);
+    Path tmp = dir.resolve(baseName + "." + UUID.randomUUID() + ".tmp");
+    try {
+      long expected = http.get().uri(url).exchange((req, res) -> {
+        if (!res.getStatusCode().is2xxSuccessful()) {
+          throw new IOException("upstream HTTP " + res.getStatusCode().value() + " for " + url);
+        }
+        try (InputStream in = res.getBody()) {
+          Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return res.getHeaders().getContentLength();
+      }, true);
+
+      long size = Files.size(tmp);
+      if (size == 0 || (expected >= 0 && size != expected)) {
+        throw new IOException("Truncated image from " + url + ": expected=" + expected + ", actual=" + size);
+      }
+      String ext = imageExtension(tmp);
+      if (ext == null) {
+        throw new IOException("Not a JPEG/PNG image: " + url);
+      }
+
+      try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        ch.force(true);
+      }
+      Path target = dir.resolve(baseName + "." + ext);
+      try {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (UnsupportedOperationException e) {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+      syncDirectory(dir);
+      return target;
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static String extensionOf(Path file) {
+    return file.getFileName().toString().endsWith(".png") ? "png" : "jpg";
+  }
+
+  private static Path find(Path dir, String baseName) {
+    for (String ext : new String[]{"jpg", "png"}) {
+      Path p = dir.resolve(baseName + "." + ext);
+      if (Files.isRegularFile(p)) {
+        return p;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * "jpg" / "png" from the file signature, null for anything else.
+   */
+  static String imageExtension(Path file) throws IOException {
+    byte[] head = new byte[8];
+    int n;
+    try (InputStream in = Files.newInputStream(file)) {
+      n = in.readNBytes(head, 0, head.length);
+    }
+    if (n >= 3 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xD8 && (head[2] & 0xFF) == 0xFF) {
+      return "jpg";
+    }
+    if (n >= 8 && (head[0] & 0xFF) == 0x89 && head[1] == 'P' && head[2] == 'N' && head[3] == 'G') {
+      return "png";
+    }
+    return null;
+  }
+
+  private static void syncDirectory(Path dir) {
+    // rename 落盘；Windows 不支持打开目录，忽略
+    try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+      ch.force(true);
+    } catch (IOException | RuntimeException e) {
+      log.debug("[delivery-cache] Directory fsync not supported: {}", e.getMessage());
+    }
+  }
+
+  static String urlKey(String url) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(md.digest(url.getBytes(StandardCharsets.UTF_8)), 0, 8);
+    } catch (Exception e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+}
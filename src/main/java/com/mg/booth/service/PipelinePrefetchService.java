@@ -0,0 +1,120 @@
+package com.mg.booth.service;
+
+import com.mg.booth.config.AppProps;
+import com.mg.booth.config.BoothProps;
+import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.metrics.PipelineMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.Executor;
+
+/**
+ * Template prefetch push to pipeline v2.
+ *
+ * After a template version is installed, the pipeline is asked to pre-download and warm it
+ * (POST /pipeline/v2/templates/prefetch) so the first guest does not pay for the lazy fetch.
+ * The outcome is recorded in index.json (pipelineReady / pipelineReadyAt).
+ */
+@Service
+public class PipelinePrefetchService {
+
+  private static final Logger log = LoggerFactory.getLogger(PipelinePrefetchService.class);
+
+  private final AiGatewayV2Client aiGatewayV2Client;
+  private final LocalTemplateIndexStore indexStore;
+  private final BoothProps boothProps;
+  private final AppProps appProps;
+  private final PipelineMetrics pipelineMetrics;
+  private final Executor prefetchExecutor;
+
+  public PipelinePrefetchService(
+      AiGatewayV2Client aiGatewayV2Client,
+      LocalTemplateIndexStore indexStore,
+      BoothProps boothProps,
+      AppProps appProps,
+      PipelineMetrics pipelineMetrics,
+      @Qualifier("prefetchExecutor") Executor prefetchExecutor
+  ) {
+    this.aiGatewayV2Client = aiGatewayV2Client;
+    this.indexStore = indexStore;
+    this.boothProps = boothProps;
+    this.appProps = appProps;
+    this.pipelineMetrics = pipelineMetrics;
+    this.prefetchExecutor = prefetchExecutor;
+  }
+
+  /**
+   * Whether prefetch pushes are enabled (app.ai.v2PrefetchOnInstall).
+   */
+  public boolean isEnabled() {
+    return appProps.getAi().isV2PrefetchOnInstall();
+  }
+
+  /**
+   * Queue a prefetch (no-op when disabled, see {@link #isEnabled()}).
+   */
+  public void prefetchAsync(String templateCode, String versionSemver, String downloadUrl, String checksumSha256) {
+    if (!isEnabled()) {
+      return;
+    }
+    prefetchExecutor.execute(() -> {
+      try {
+        prefetch(templateCode, versionSemver, downloadUrl, checksumSha256);
+      } catch (Exception e) {
+        log.warn("[pipeline-prefetch] Failed: template={}@{}, error={}", templateCode, versionSemver, e.getMessage());
+      }
+    });
+  }
+
+  /**
+   * Push a prefetch and record readiness in index.json.
+   *
+   * @return true if the pipeline reported the template ready
+   */
+  public boolean prefetch(String templateCode, String versionSemver, String downloadUrl, String checksumSha256) {
+    AiGatewayV2Client.Result result =
+        aiGatewayV2Client.prefetchTemplate(templateCode, versionSemver, downloadUrl, checksumSha256);
+    boolean ready = result.isOk();
+
+    String key = PipelineMetrics.templateKey(templateCode, versionSemver);
+    if (ready) {
+      pipelineMetrics.record(key, "prefetch", result.getClientMs());
+      log.info("[pipeline-prefetch] Ready: template={}@{}, clientMs={}", templateCode, versionSemver, result.getClientMs());
+    } else {
+      pipelineMetrics.increment(key, "prefetchFailed", 1);
+      log.warn("[pipeline-prefetch] Not ready: template={}@{}, error={} - {}",
+          templateCode, versionSemver, result.getErrorCode(), result.getErrorMessage());
+    }
+
+    markReady(templateCode, versionSemver, checksumSha256, ready);
+    return ready;
+  }
+
+  private void markReady(String templateCode, String versionSemver, String checksumSha256, boolean ready) {
+    String normalizedChecksum = checksumSha256 != null && checksumSha256.startsWith("sha256:")
+        ? checksumSha256.substring(7)
+        : checksumSha256;
+    Instant now = Instant.now();
+
+    indexStore.update(indexFile(), index -> index.getItems().stream()
+        .filter(it -> templateCode.equals(it.getTemplateId()) && versionSemver.equals(it.getVersion()))
+        // 期间被重新安装成不同包时不覆盖
+        .filter(it -> normalizedChecksum == null || normalizedChecksum.equalsIgnoreCase(it.getChecksum()))
+        .forEach(it -> {
+          it.setPipelineReady(ready);
+          it.setPipelineReadyAt(ready ? now : null);
+        }));
+  }
+
+  private Path indexFile() {
+    String dataDir = boothProps.getDataDir() != null && !boothProps.getDataDir().isBlank()
+        ? boothProps.getDataDir()
+        : "./data";
+    return Path.of(dataDir).resolve("index.json");
+  }
+}
@@ -0,0 +1,157 @@
+package com.mg.booth.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mg.booth.config.AppProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Raw image uploader for pipeline v2.
+ *
+ * When the pipeline is not co-located with the kiosk it cannot read booth.sharedRawBaseDir,
+ * so the raw JPEG is streamed to PUT /pipeline/v2/uploads/{uploadId} (HTTP chunked,
+ * app.ai.v2UploadChunkBytes per chunk, never buffered whole in memory) and the process call
+ * references the uploadId instead of rawPath.
+ */
+@Service
+public class PipelineRawUploader {
+
+  private static final Logger log = LoggerFactory.getLogger(PipelineRawUploader.class);
+
+  private final AppProps appProps;
+  private final Executor rawUploadExecutor;
+  private final ObjectMapper om = new ObjectMapper();
+
+  private volatile Boolean coLocatedCache;
+
+  public PipelineRawUploader(AppProps appProps, @Qualifier("rawUploadExecutor") Executor rawUploadExecutor) {
+    this.appProps = appProps;
+    this.rawUploadExecutor = rawUploadExecutor;
+  }
+
+  /**
+   * Whether raw images should be uploaded (v2RawTransfer=upload, or auto and pipeline not co-located).
+   */
+  public boolean shouldUpload() {
+    String mode = appProps.getAi().getV2RawTransfer();
+    if ("upload".equalsIgnoreCase(mode)) {
+      return true;
+    }
+    if ("path".equalsIgnoreCase(mode)) {
+      return false;
+    }
+    return !isPipelineCoLocated();
+  }
+
+  /**
+   * Start uploading on rawUploadExecutor (overlaps with template resolution).
+   */
+  public CompletableFuture<String> uploadAsync(Path rawFile) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return upload(rawFile);
+      } catch (IOException e) {
+        throw new RuntimeException("Raw upload failed: " + e.getMessage(), e);
+      }
+    }, rawUploadExecutor);
+  }
+
+  /**
+   * Stream raw file to the pipeline.
+   *
+   * @return uploadId to send as rawUploadId in /pipeline/v2/process
+   */
+  public String upload(Path rawFile) throws IOException {
+    String uploadId = "raw_" + UUID.randomUUID().toString().replace("-", "");
+    String url = normalizeBaseUrl(appProps.getAi().getV2BaseUrl()) + "/pipeline/v2/uploads/" + uploadId;
+    int timeoutMs = (int) Math.min(Integer.MAX_VALUE, appProps.getAi().getV2TimeoutMs());
+
+    long startNs = System.nanoTime();
+    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      conn.setConnectTimeout(timeoutMs);
+      conn.setReadTimeout(timeoutMs);
+      conn.setRequestMethod("PUT");
+      conn.setDoOutput(true);
+      conn.setChunkedStreamingMode(appProps.getAi().getV2UploadChunkBytes());
+      conn.setRequestProperty("Content-Type", "image/jpeg");
+      conn.setRequestProperty("X-File-Name", rawFile.getFileName().toString());
+
+      long size;
+      try (OutputStream os = conn.getOutputStream()) {
+        size = Files.copy(rawFile, os);
+      }
+
+      int code = conn.getResponseCode();
+      if (code < 200 || code >= 300) {
+        throw new IOException("Upload rejected: HTTP " + code + ", url=" + url);
+      }
+
+      String confirmedId = uploadId;
+      try (InputStream is = conn.getInputStream()) {
+        JsonNode resp = om.readTree(is);
+        if (resp != null && resp.hasNonNull("uploadId")) {
+          confirmedId = resp.get("uploadId").asText();
+        }
+      } catch (Exception e) {
+        log.debug("[raw-upload] Upload response not JSON, using client uploadId: {}", e.getMessage());
+      }
+
+      long elapsedMs = (System.nanoTime() - startNs) / 1_000_000L;
+      log.info("[raw-upload] Uploaded raw: file={}, size={}, uploadId={}, elapsedMs={}",
+          rawFile, size, confirmedId, elapsedMs);
+      return confirmedId;
+    } finally {
+      conn.disconnect();
+    }
+  }
+
+  private boolean isPipelineCoLocated() {
+    Boolean cached = coLocatedCache;
+    if (cached != null) {
+      return cached;
+    }
+    boolean coLocated;
+    try {
+      String host = URI.create(normalizeBaseUrl(appProps.getAi().getV2BaseUrl())).getHost();
+      if (host == null || "localhost".equalsIgnoreCase(host)) {
+        coLocated = true;
+      } else {
+        InetAddress addr = InetAddress.getByName(host);
+        coLocated = addr.isLoopbackAddress() || addr.isAnyLocalAddress()
+            || NetworkInterface.getByInetAddress(addr) != null;
+      }
+    } catch (Exception e) {
+      log.warn("[raw-upload] Cannot resolve pipeline host, assuming co-located: {}", e.getMessage());
+      coLocated = true;
+    }
+    log.info("[raw-upload] Pipeline v2 co-located={}, baseUrl={}", coLocated, appProps.getAi().getV2BaseUrl());
+    coLocatedCache = coLocated;
+    return coLocated;
+  }
+
+  private String normalizeBaseUrl(String baseUrl) {
+    String normalized = baseUrl != null ? baseUrl.trim() : "";
+    while (normalized.endsWith("/")) {
+      normalized = normalized.substring(0, normalized.length() - 1);
+    }
+    return normalized;
+  }
+}
@@ -0,0 +1,287 @@
+package com.mg.booth.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mg.booth.config.AppProps;
+import com.mg.booth.domain.V2TemplateRef;
+import com.mg.booth.metrics.PipelineMetrics;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMREAD_COLOR;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMWRITE_JPEG_QUALITY;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imread;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imwrite;
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * Raw pre-processing before AI submission (app.preprocess.enabled).
+ *
+ * Crops the captured raw to the template's manifest input.ratio (center crop) and
+ * downsamples it to manifest output.width/height, writing a working JPEG next to the raw
+ * ({raw}_work.jpg). EXIF orientation is applied by OpenCV when decoding with IMREAD_COLOR.
+ *
+ * Runs on the bounded preprocessExecutor. If the pool is saturated, the manifest has no
+ * usable size, the job does not finish within the caller's budget (the session's remaining
+ * PROCESSING time), or anything fails, the original raw is returned unchanged. A timed-out
+ * job is cancelled: a queued job never runs, a running one is interrupted and does not leave a
+ * working image behind (the OpenCV calls themselves cannot be interrupted, so its thread stays
+ * busy until the current call returns).
+ * session.rawUrl always keeps the original raw; callers {@link #discard} the working image once
+ * the pipeline has consumed it.
+ */
+@Service
+public class RawPreprocessService {
+
+  private static final Logger log = LoggerFactory.getLogger(RawPreprocessService.class);
+
+  public static final String STAGE_PREPROCESS = "preprocess";
+
+  private final AppProps appProps;
+  private final TemplateManifestService manifestService;
+  private final PipelineMetrics pipelineMetrics;
+  private final ExecutorService preprocessExecutor;
+
+  public RawPreprocessService(
+      AppProps appProps,
+      TemplateManifestService manifestService,
+      PipelineMetrics pipelineMetrics,
+      @Qualifier("preprocessExecutor") ExecutorService preprocessExecutor
+  ) {
+    this.appProps = appProps;
+    this.manifestService = manifestService;
+    this.pipelineMetrics = pipelineMetrics;
+    this.preprocessExecutor = preprocessExecutor;
+  }
+
+  public boolean isEnabled() {
+    return appProps.getPreprocess().isEnabled();
+  }
+
+  /**
+   * Produce the working image for a template.
+   *
+   * @param rawFile Original raw JPEG
+   * @param ref Resolved template (manifest is read from the installed package)
+   * @param timeoutMs How long to wait for the job; on timeout the job is cancelled (interrupted)
+   * @return working image path, or rawFile when pre-processing is disabled/skipped/failed
+   */
+  public Path preprocess(Path rawFile, V2TemplateRef ref, long timeoutMs) throws InterruptedException {
+    if (!isEnabled() || rawFile == null || ref == null) {
+      return rawFile;
+    }
+
+    Optional<Target> target = manifestService.readManifest(ref.getTemplateCode(), ref.getVersionSemver())
+        .flatMap(RawPreprocessService::targetOf);
+    if (target.isEmpty()) {
+      log.debug("[preprocess] No input.ratio/output size in manifest, using raw: template={}@{}",
+          ref.getTemplateCode(), ref.getVersionSemver());
+      return rawFile;
+    }
+
+    String key = PipelineMetrics.templateKey(ref.getTemplateCode(), ref.getVersionSemver());
+    Future<Path> job;
+    try {
+      job = preprocessExecutor.submit(() -> runPreprocess(rawFile, target.get(), key));
+    } catch (RejectedExecutionException e) {
+      log.warn("[preprocess] Pool saturated, submitting raw unprocessed: file={}", rawFile);
+      pipelineMetrics.increment(key, "preprocessRejected", 1);
+      return rawFile;
+    }
+
+    try {
+      return job.get(Math.max(0L, timeoutMs), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      cancel(job, rawFile);
+      throw e;
+    } catch (Exception e) {
+      cancel(job, rawFile);
+      log.warn("[preprocess] Failed, submitting raw unprocessed: file={}, error={}", rawFile, e.getMessage());
+      pipelineMetrics.increment(key, "preprocessFailed", 1);
+      return rawFile;
+    }
+  }
+
+  /**
+   * Cancel a job the caller stopped waiting for: drop it from the queue, or interrupt it, and
+   * remove a working image it may have finished writing meanwhile.
+   */
+  private void cancel(Future<Path> job, Path rawFile) {
+    if (!job.cancel(true)) {
+      discard(rawFile, workFileOf(rawFile));
+    }
+    if (preprocessExecutor instanceof ThreadPoolExecutor pool) {
+      // 已取消的排队任务立即让出队列名额
+      pool.purge();
+    }
+  }
+
+  private Path runPreprocess(Path rawFile, Target target, String key) throws IOException {
+    long startNs = System.nanoTime();
+    long bytesIn = Files.size(rawFile);
+
+    // IMREAD_COLOR 会按 EXIF Orientation 自动旋转（IMREAD_IGNORE_ORIENTATION 未设置）
+    Mat src = imread(rawFile.toAbsolutePath().toString(), IMREAD_COLOR);
+    Mat roi = null;
+    Mat resized = null;
+    try {
+      if (src == null || src.empty()) {
+        throw new IOException("Cannot decode raw image: " + rawFile);
+      }
+      int srcW = src.cols();
+      int srcH = src.rows();
+
+      int[] crop = centerCrop(srcW, srcH, target.ratioW, target.ratioH);
+      roi = new Mat(src, new Rect(crop[0], crop[1], crop[2], crop[3]));
+
+      int[] size = fitWithin(crop[2], crop[3], target.maxW, target.maxH);
+      Mat out = roi;
+      if (size[0] != crop[2] || size[1] != crop[3]) {
+        resized = new Mat();
+        resize(roi, resized, new Size(size[0], size[1]), 0, 0, INTER_AREA);
+        out = resized;
+      }
+
+      // 调用方已超时取消：不再写工作图（原图已提交）
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("Pre-processing cancelled: " + rawFile);
+      }
+      Path workFile = workFileOf(rawFile);
+      int[] params = {IMWRITE_JPEG_QUALITY, appProps.getPreprocess().getJpegQuality()};
+      if (!imwrite(workFile.toAbsolutePath().toString(), out, params)) {
+        throw new IOException("Cannot write working image: " + workFile);
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        Files.deleteIfExists(workFile);
+        throw new InterruptedIOException("Pre-processing cancelled: " + rawFile);
+      }
+
+      long bytesOut = Files.size(workFile);
+      long elapsedMs = (System.nanoTime() - startNs) / 1_000_000L;
+      pipelineMetrics.record(key, STAGE_PREPROCESS, elapsedMs);
+      pipelineMetrics.increment(key, "preprocessBytesIn", bytesIn);
+      pipelineMetrics.increment(key, "preprocessBytesOut", bytesOut);
+
+      log.info("[preprocess] {}x{} -> {}x{}, bytes {} -> {} (saved {}%), elapsedMs={}, file={}",
+          srcW, srcH, size[0], size[1], bytesIn, bytesOut,
+          bytesIn > 0 ? (bytesIn - bytesOut) * 100 / bytesIn : 0, elapsedMs, workFile);
+      return workFile;
+    } finally {
+      if (resized != null) resized.release();
+      if (roi != null) roi.release();
+      if (src != null) src.release();
+    }
+  }
+
+  /**
+   * Delete a working image returned by {@link #preprocess} once the pipeline has read or
+   * received it (no-op for the original raw).
+   */
+  public void discard(Path rawFile, Path workFile) {
+    if (workFile == null || workFile.equals(rawFile)) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(workFile);
+    } catch (IOException e) {
+      log.warn("[preprocess] Failed to delete working image {}: {}", workFile, e.getMessage());
+    }
+  }
+
+  static Path workFileOf(Path rawFile) {
+    String name = rawFile.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    String base = dot > 0 ? name.substring(0, dot) : name;
+    return rawFile.resolveSibling(base + "_work.jpg");
+  }
+
+  /**
+   * Largest centered rectangle of ratioW:ratioH inside srcW x srcH.
+   *
+   * @return {x, y, width, height}
+   */
+  static int[] centerCrop(int srcW, int srcH, int ratioW, int ratioH) {
+    if (ratioW <= 0 || ratioH <= 0) {
+      return new int[]{0, 0, srcW, srcH};
+    }
+    int w = srcW;
+    int h = (int) ((long) srcW * ratioH / ratioW);
+    if (h > srcH) {
+      h = srcH;
+      w = (int) ((long) srcH * ratioW / ratioH);
+    }
+    return new int[]{(srcW - w) / 2, (srcH - h) / 2, w, h};
+  }
+
+  /**
+   * Scale w x h down to fit within maxW x maxH keeping aspect (never upscales).
+   *
+   * @return {width, height}
+   */
+  static int[] fitWithin(int w, int h, int maxW, int maxH) {
+    double scale = 1.0;
+    if (maxW > 0) scale = Math.min(scale, (double) maxW / w);
+    if (maxH > 0) scale = Math.min(scale, (double) maxH / h);
+    if (scale >= 1.0) {
+      return new int[]{w, h};
+    }
+    return new int[]{Math.max(1, (int) Math.round(w * scale)), Math.max(1, (int) Math.round(h * scale))};
+  }
+
+  /**
+   * manifest.json: input.ratio ("3:4") and output.width/height.
+   * Ratio falls back to output width:height when input.ratio is absent.
+   */
+  static Optional<Target> targetOf(JsonNode manifest) {
+    int maxW = manifest.path("output").path("width").asInt(0);
+    int maxH = manifest.path("output").path("height").asInt(0);
+    int ratioW = maxW;
+    int ratioH = maxH;
+
+    String ratio = manifest.path("input").path("ratio").asText("");
+    String[] parts = ratio.split(":");
+    if (parts.length == 2) {
+      try {
+        ratioW = Integer.parseInt(parts[0].trim());
+        ratioH = Integer.parseInt(parts[1].trim());
+      } catch (NumberFormatException ignored) {
+        // 非法 ratio 时按输出尺寸比例裁剪
+      }
+    }
+
+    if (ratioW <= 0 || ratioH <= 0) {
+      return Optional.empty();
+    }
+    return Optional.of(new Target(ratioW, ratioH, maxW, maxH));
+  }
+
+  static final class Target {
+    final int ratioW;
+    final int ratioH;
+    final int maxW;
+    final int maxH;
+
+    Target(int ratioW, int ratioH, int maxW, int maxH) {
+      this.ratioW = ratioW;
+      this.ratioH = ratioH;
+      this.maxW = maxW;
+      this.maxH = maxH;
+    }
+  }
+}
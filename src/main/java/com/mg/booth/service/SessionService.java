@@ -1,9 +1,8 @@
 package com.mg.booth.service;
 
+import com.mg.booth.ai.AiEngine;
+import com.mg.booth.ai.AiEngineRouter;
 import com.mg.booth.camera.CameraService;
-import com.mg.booth.client.AiGatewayClient;
-import com.mg.booth.client.dto.AiProcessRequest;
-import com.mg.booth.client.dto.AiProcessResponse;
 import com.mg.booth.config.BoothProps;
 import com.mg.booth.domain.Session;
 import com.mg.booth.domain.SessionProgress;
@@ -41,10 +40,9 @@ public class SessionService {
   private final MockAiService mockAiService;
   private final Executor boothExecutor;
   private final DeliveryService deliveryService;
-  private final AiGatewayClient aiGatewayClient;
   private final BoothProps boothProps;
-  private final AiProcessV2Service aiProcessV2Service;
-  private final com.mg.booth.config.AppProps appProps;
+  private final AiEngineRouter aiEngineRouter;
+  private final DeliveryImageCache deliveryImageCache;
 
   public SessionService(
     TemplateService templateService,
@@ -54,10 +52,9 @@ public class SessionService {
     MockAiService mockAiService,
     @Qualifier("boothExecutor") Executor boothExecutor,
     DeliveryService deliveryService,
-    AiGatewayClient aiGatewayClient,
     BoothProps boothProps,
-    AiProcessV2Service aiProcessV2Service,
-    com.mg.booth.config.AppProps appProps
+    AiEngineRouter aiEngineRouter,
+    DeliveryImageCache deliveryImageCache
   ) {
     this.templateService = templateService;
     this.sm = sm;
@@ -66,10 +63,9 @@ public class SessionService {
     this.mockAiService = mockAiService;
     this.boothExecutor = boothExecutor;
     this.deliveryService = deliveryService;
-    this.aiGatewayClient = aiGatewayClient;
     this.boothProps = boothProps;
-    this.aiProcessV2Service = aiProcessV2Service;
-    this.appProps = appProps;
+    this.aiEngineRouter = aiEngineRouter;
+    this.deliveryImageCache = deliveryImageCache;
   }
 
   //类似会话状态机的切换按钮
@@ -239,18 +235,11 @@ public class SessionService {
           s.setUpdatedAt(OffsetDateTime.now());
         }
 
-        // 3) 按 mode 分发 AI 处理
-        String aiMode = (appProps != null && appProps.getAi() != null && appProps.getAi().getMode() != null)
-            ? appProps.getAi().getMode()
-            : "v2";
-        
-        if ("v2".equalsIgnoreCase(aiMode)) {
-          // V2: 模板驱动逻辑
-          processAiV2(s, rawPath, attemptIndex);
-        } else {
-          // V1: 原有逻辑（向后兼容）
-          processAiV1(s, rawPath, attemptIndex);
-          // 4) Enter PREVIEW（仅 v1 逻辑保留原有 PREVIEW 状态）
+        // 3) 按模板选择 AI 引擎（manifest/ai.json engine，降级时回退到另一引擎）
+        AiEngine engine = aiEngineRouter.process(s, rawPath, attemptIndex);
+
+        if (engine.requiresConfirm()) {
+          // 4) Enter PREVIEW（v1 引擎需要用户确认）
           synchronized (s) {
             if (!sm.canTransition(s.getState(), SessionState.PREVIEW)) {
               throw new RuntimeException("Invalid transition to PREVIEW from " + s.getState());
@@ -258,6 +247,9 @@ public class SessionService {
             s.setAiJobRunning(false);
             enterState(s, SessionState.PREVIEW, new SessionProgress(SessionProgress.Step.FINAL_READY, "请确认 / 重拍", 100));
           }
+        } else {
+          // v2 引擎：成功后自动生成下载链接
+          completeAutoDelivery(s);
         }
 
       } catch (Exception e) {
@@ -278,68 +270,6 @@ public class SessionService {
     return s;
   }
 
-  /**
-   * V1 AI processing logic (legacy)
-   * 原有的 AI Gateway 调用逻辑
-   */
-  private void processAiV1(Session s, Path rawPath, int attemptIndex) {
-    String sessionId = s.getSessionId();
-    
-    // 组装 gateway 请求（带 FULL template）
-    var tpl = templateService.listTemplates().stream()
-      .filter(t -> t.isEnabled() && t.getTemplateId().equals(s.getTemplateId()))
-      .findFirst()
-      .orElseThrow(() -> new RuntimeException("Template not found: " + s.getTemplateId()));
-
-    // 当前 MVP 的 TemplateSummary 只有 id/name/enabled，这里先只传最小字段。
-    // 后续你扩展 TemplateSummary 字段时，可以这在里补齐 pipeline 需要的字段。
-
-    AiProcessRequest areq = new AiProcessRequest();
-    areq.setSessionId(sessionId);
-    areq.setAttemptIndex(attemptIndex);
-    areq.setTemplateId(tpl.getTemplateId());
-    areq.setRawPath(rawPath.toString());
-
-    // options/output（MVP：先给默认值；以后可从前端传）
-    areq.setOptions(Map.of(
-            "bgMode", "STATIC",
-            "segmentation", "AUTO",
-            "featherPx", 6,
-            "strength", 0.6
-    ));
-    areq.setOutput(Map.of(
-            "previewWidth", 900,
-            "finalWidth", 1800
-    ));
-
-    String idemKey = sessionId + "#" + attemptIndex + "#" + tpl.getTemplateId();
-
-    // 调用 AI Gateway
-    synchronized (s) {
-      s.setProgress(new SessionProgress(SessionProgress.Step.AI_PROCESSING, "AI处理中…", 60));
-      s.setUpdatedAt(OffsetDateTime.now());
-    }
-
-    // deviceId 建议从 boothProps 注入（或写死 kiosk-001）
-    String deviceId = boothProps.getDeviceId();
-
-    AiProcessResponse aresp = aiGatewayClient.process(deviceId, idemKey, areq);
-
-    if (aresp == null || !aresp.isOk()) {
-      String reason = (aresp == null || aresp.getError() == null)
-        ? "gateway_failed"
-        : (aresp.getError().getCode() + ":" + aresp.getError().getMessage());
-      throw new RuntimeException("AI Gateway failed: " + reason);
-    }
-
-    synchronized (s) {
-      s.setPreviewUrl(aresp.getPreviewUrl());
-      s.setFinalUrl(aresp.getFinalUrl());
-      s.setProgress(new SessionProgress(SessionProgress.Step.FINAL_READY, "生成成品…", 95));
-      s.setUpdatedAt(OffsetDateTime.now());
-    }
-  }
-
   /**
    * 构建公网可访问的完整 URL
    * @param path 相对路径（如 "/d/tok_xxx"）
@@ -356,19 +286,11 @@ public class SessionService {
   }
 
   /**
-   * V2 AI processing logic (template-driven)
-   * 新的模板驱动处理逻辑
+   * Completion for engines that do not require confirmation (v2)
+   * 成功时自动生成下载 token 并进入 DELIVERING，并在后台把成品/预览拉取到本地
    */
-  private void processAiV2(Session s, Path rawPath, int attemptIndex) {
+  private void completeAutoDelivery(Session s) {
     String sessionId = s.getSessionId();
-    
-    synchronized (s) {
-      s.setProgress(new SessionProgress(SessionProgress.Step.AI_PROCESSING, "AI处理中…", 60));
-      s.setUpdatedAt(OffsetDateTime.now());
-    }
-
-    // 调用 V2 服务
-    aiProcessV2Service.process(s);
 
     synchronized (s) {
       // 标记 AI 任务已完成
@@ -408,6 +330,11 @@ public class SessionService {
         }
       }
     }
+
+    // pipeline 成品立即落盘，下载只读本地文件，不依赖 pipeline 保留结果
+    if (s.getFinalUrl() != null && s.getError() == null) {
+      deliveryImageCache.materializeAsync(s);
+    }
   }
 
   public void finish(String sessionId, String reason) {
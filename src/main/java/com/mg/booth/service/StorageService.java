@@ -4,11 +4,20 @@ import org.springframework.stereotype.Service;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Optional;
 
 @Service
 public class StorageService {
 
-  private final Path storageRoot = Path.of("storage");
+  private final Path storageRoot;
+
+  public StorageService() {
+    this(Path.of("storage"));
+  }
+
+  StorageService(Path storageRoot) {
+    this.storageRoot = storageRoot;
+  }
 
   // Raw image storage
   public Path rawDir(String sessionId) {
@@ -54,5 +63,49 @@ public class StorageService {
   public String finalUrl(String sessionId, int attemptIndex) {
     return "/files/final/" + sessionId + "/" + attemptIndex + ".jpg";
   }
-}
 
+  // Output with explicit extension (e.g. png from a template's output.format)
+  public Path previewFilePath(String sessionId, int attemptIndex, String ext) {
+    return previewDir(sessionId).resolve(attemptIndex + "." + ext);
+  }
+
+  public Path finalFilePath(String sessionId, int attemptIndex, String ext) {
+    return finalDir(sessionId).resolve(attemptIndex + "." + ext);
+  }
+
+  public String previewUrl(String sessionId, int attemptIndex, String ext) {
+    return "/files/preview/" + sessionId + "/" + attemptIndex + "." + ext;
+  }
+
+  public String finalUrl(String sessionId, int attemptIndex, String ext) {
+    return "/files/final/" + sessionId + "/" + attemptIndex + "." + ext;
+  }
+
+  // Local copies of remote (pipeline) final images served by /d/{token}/download
+  public Path deliveryCacheDir(String sessionId) {
+    return storageRoot.resolve("delivery").resolve(sessionId);
+  }
+
+  /**
+   * Map a local file URL (/files/{type}/{sessionId}/{fileName}) back to its storage path.
+   *
+   * @return storage path, empty if the URL is not a local file URL
+   */
+  public Optional<Path> resolveFileUrl(String url) {
+    if (url == null || !url.startsWith("/files/")) {
+      return Optional.empty();
+    }
+    String[] parts = url.substring("/files/".length()).split("/");
+    if (parts.length != 3) {
+      return Optional.empty();
+    }
+    String type = parts[0];
+    if (!type.equals("raw") && !type.equals("preview") && !type.equals("final")) {
+      return Optional.empty();
+    }
+    if (parts[1].isBlank() || parts[2].isBlank() || parts[1].contains("..") || parts[2].contains("..")) {
+      return Optional.empty();
+    }
+    return Optional.of(storageRoot.resolve(type).resolve(parts[1]).resolve(parts[2]));
+  }
+}
@@ -0,0 +1,96 @@
+package com.mg.booth.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mg.booth.config.BoothProps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-only access to installed template package files (manifest.json, rules.json, ai.json).
+ *
+ * Files live under {dataDir}/templates/{templateCode}/{versionSemver}/.
+ * Parsed JSON is cached per file and re-read only when the file's mtime changes
+ * (a reinstall of the same version replaces the directory).
+ */
+@Service
+public class TemplateManifestService {
+
+  private static final Logger log = LoggerFactory.getLogger(TemplateManifestService.class);
+
+  private final BoothProps props;
+  private final ObjectMapper om = new ObjectMapper();
+
+  // key: absolute file path
+  private final Map<Path, CachedJson> cache = new ConcurrentHashMap<>();
+
+  public TemplateManifestService(BoothProps props) {
+    this.props = props;
+  }
+
+  /**
+   * Installed template directory: {dataDir}/templates/{templateCode}/{versionSemver}
+   */
+  public Path templateDir(String templateCode, String versionSemver) {
+    String dataDir = props.getDataDir() != null && !props.getDataDir().isBlank() ? props.getDataDir() : "./data";
+    return Path.of(dataDir, "templates", templateCode, versionSemver);
+  }
+
+  public Optional<JsonNode> readManifest(String templateCode, String versionSemver) {
+    return readJson(templateCode, versionSemver, "manifest.json");
+  }
+
+  public Optional<JsonNode> readRules(String templateCode, String versionSemver) {
+    return readJson(templateCode, versionSemver, "rules.json");
+  }
+
+  public Optional<JsonNode> readAiConfig(String templateCode, String versionSemver) {
+    return readJson(templateCode, versionSemver, "ai.json");
+  }
+
+  /**
+   * Read a JSON file from the installed template directory.
+   *
+   * @return parsed JSON, empty if the template/file is missing or invalid
+   */
+  public Optional<JsonNode> readJson(String templateCode, String versionSemver, String fileName) {
+    if (templateCode == null || versionSemver == null) {
+      return Optional.empty();
+    }
+    Path file = templateDir(templateCode, versionSemver).resolve(fileName).toAbsolutePath().normalize();
+    try {
+      if (!Files.isRegularFile(file)) {
+        cache.remove(file);
+        return Optional.empty();
+      }
+      long mtime = Files.getLastModifiedTime(file).toMillis();
+      CachedJson cached = cache.get(file);
+      if (cached != null && cached.mtime == mtime) {
+        return Optional.of(cached.json);
+      }
+      JsonNode json = om.readTree(file.toFile());
+      cache.put(file, new CachedJson(mtime, json));
+      return Optional.ofNullable(json);
+    } catch (Exception e) {
+      log.warn("[template-manifest] Failed to read {}: {}", file, e.getMessage());
+      return Optional.empty();
+    }
+  }
+
+  private static class CachedJson {
+    private final long mtime;
+    private final JsonNode json;
+
+    private CachedJson(long mtime, JsonNode json) {
+      this.mtime = mtime;
+      this.json = json;
+    }
+  }
+}
@@ -0,0 +1,286 @@
+package com.mg.booth.service;
+
+import com.mg.booth.config.AppProps;
+import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.device.TemplateCatalog;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMREAD_UNCHANGED;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMWRITE_JPEG_QUALITY;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMWRITE_PNG_COMPRESSION;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imdecode;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imencode;
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * In-memory cache of template preview images (preview.jpg / preview.png).
+ *
+ * Entries are keyed by templateCode@versionSemver, package checksum and width, and held in a
+ * byte-bounded LRU (app.templates.previewCacheMaxBytes). Resized variants (?w=) are produced once
+ * with OpenCV (INTER_AREA) from the cached original; requested widths are rounded up to a
+ * multiple of {@link #WIDTH_STEP} so arbitrary values cannot flood the cache.
+ *
+ * The ETag is derived from the package checksum in the catalog (file mtime/size for
+ * previews of templates not in index.json). The whole cache is dropped when the catalog changes.
+ */
+@Service
+public class TemplatePreviewCache {
+
+  private static final Logger log = LoggerFactory.getLogger(TemplatePreviewCache.class);
+
+  static final int WIDTH_STEP = 40;
+  static final int MIN_WIDTH = 40;
+  static final int MAX_WIDTH = 2000;
+
+  private final TemplateManifestService manifestService;
+  private final TemplateCatalog catalog;
+  private final AppProps appProps;
+
+  // LRU by access order; totalBytes guarded by this
+  private final LinkedHashMap<String, Preview> entries = new LinkedHashMap<>(32, 0.75f, true);
+  private long totalBytes;
+
+  // 同一 key 并发未命中时只加载/缩放一次
+  private final Map<String, CompletableFuture<Preview>> loading = new ConcurrentHashMap<>();
+
+  public TemplatePreviewCache(TemplateManifestService manifestService, TemplateCatalog catalog, AppProps appProps) {
+    this.manifestService = manifestService;
+    this.catalog = catalog;
+    this.appProps = appProps;
+    this.catalog.addChangeListener(snapshot -> clear());
+  }
+
+  /**
+   * Preview bytes for a template, optionally resized to the given width.
+   *
+   * @param width requested width in px (null/0 = original)
+   * @return preview, empty if the template has no preview file
+   */
+  public Optional<Preview> get(String templateCode, String versionSemver, Integer width) throws IOException {
+    int bucket = bucketWidth(width != null ? width : 0);
+    Preview original = getOrLoad(templateCode, versionSemver, 0, null);
+    if (original == null || bucket == 0 || bucket >= original.width) {
+      return Optional.ofNullable(original);
+    }
+    return Optional.ofNullable(getOrLoad(templateCode, versionSemver, bucket, original));
+  }
+
+  public synchronized void clear() {
+    if (!entries.isEmpty()) {
+      log.info("[preview-cache] Cleared {} entries ({} bytes)", entries.size(), totalBytes);
+    }
+    entries.clear();
+    totalBytes = 0;
+  }
+
+  private Preview getOrLoad(String templateCode, String versionSemver, int width, Preview original) throws IOException {
+    LocalTemplateIndexStore.TemplateIndexItem item = catalog.get(templateCode, versionSemver);
+    String checksum = item != null ? item.getChecksum() : null;
+    String key = templateCode + "@" + versionSemver + "#" + (checksum != null ? checksum : "-") + "#" + width;
+
+    Preview hit = lookup(key);
+    if (hit != null) {
+      return hit;
+    }
+
+    CompletableFuture<Preview> mine = new CompletableFuture<>();
+    CompletableFuture<Preview> inFlight = loading.putIfAbsent(key, mine);
+    if (inFlight != null) {
+      try {
+        return inFlight.join();
+      } catch (CompletionException e) {
+        throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+      }
+    }
+
+    try {
+      Preview loaded = width == 0
+          ? loadOriginal(templateCode, versionSemver, checksum)
+          : resizeVariant(original, width);
+      if (loaded != null) {
+        store(key, loaded);
+      }
+      mine.complete(loaded);
+      return loaded;
+    } catch (IOException | RuntimeException e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      loading.remove(key, mine);
+    }
+  }
+
+  private Preview loadOriginal(String templateCode, String versionSemver, String checksum) throws IOException {
+    Path dir = manifestService.templateDir(templateCode, versionSemver);
+    Path file = dir.resolve("preview.jpg");
+    String contentType = "image/jpeg";
+    if (!Files.isRegularFile(file)) {
+      file = dir.resolve("preview.png");
+      contentType = "image/png";
+      if (!Files.isRegularFile(file)) {
+        return null;
+      }
+    }
+
+    byte[] bytes = Files.readAllBytes(file);
+    String tag = checksum != null && !checksum.isBlank()
+        ? shortTag(checksum)
+        : Long.toHexString(Files.getLastModifiedTime(file).toMillis()) + Long.toHexString(bytes.length);
+    int width = decodeWidth(bytes);
+    log.info("[preview-cache] Loaded {}@{} {} ({} bytes, width={})",
+        templateCode, versionSemver, file.getFileName(), bytes.length, width);
+    return new Preview(bytes, contentType, tag, width, 0);
+  }
+
+  private Preview resizeVariant(Preview original, int width) throws IOException {
+    long startNs = System.nanoTime();
+    Mat src = imdecode(new Mat(original.bytes), IMREAD_UNCHANGED);
+    Mat dst = new Mat();
+    BytePointer buf = new BytePointer();
+    try {
+      if (src == null || src.empty()) {
+        throw new IOException("Cannot decode preview image");
+      }
+      int[] size = scaledSize(src.cols(), src.rows(), width);
+      resize(src, dst, new Size(size[0], size[1]), 0, 0, INTER_AREA);
+
+      boolean png = "image/png".equals(original.contentType);
+      int[] params = png ? new int[]{IMWRITE_PNG_COMPRESSION, 3} : new int[]{IMWRITE_JPEG_QUALITY, 85};
+      if (!imencode(png ? ".png" : ".jpg", dst, buf, new IntPointer(params))) {
+        throw new IOException("Cannot encode resized preview");
+      }
+      byte[] out = new byte[(int) buf.limit()];
+      buf.get(out);
+
+      log.info("[preview-cache] Resized {}x{} -> {}x{}, bytes {} -> {}, elapsedMs={}",
+          src.cols(), src.rows(), size[0], size[1], original.bytes.length, out.length,
+          (System.nanoTime() - startNs) / 1_000_000L);
+      return new Preview(out, original.contentType, original.tag, size[0], width);
+    } finally {
+      buf.deallocate();
+      dst.release();
+      if (src != null) src.release();
+    }
+  }
+
+  private static int decodeWidth(byte[] bytes) {
+    Mat m = null;
+    try {
+      m = imdecode(new Mat(bytes), IMREAD_UNCHANGED);
+      return m != null && !m.empty() ? m.cols() : 0;
+    } catch (Throwable e) {
+      // 解码失败时不提供缩放版本，始终返回原图
+      return 0;
+    } finally {
+      if (m != null) m.release();
+    }
+  }
+
+  private synchronized Preview lookup(String key) {
+    return entries.get(key);
+  }
+
+  private synchronized void store(String key, Preview preview) {
+    long maxBytes = appProps.getTemplates().getPreviewCacheMaxBytes();
+    if (preview.bytes.length > maxBytes) {
+      return;
+    }
+    Preview prev = entries.put(key, preview);
+    if (prev != null) {
+      totalBytes -= prev.bytes.length;
+    }
+    totalBytes += preview.bytes.length;
+
+    Iterator<Map.Entry<String, Preview>> it = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      Map.Entry<String, Preview> eldest = it.next();
+      if (eldest.getKey().equals(key)) {
+        continue;
+      }
+      totalBytes -= eldest.getValue().bytes.length;
+      it.remove();
+    }
+  }
+
+  /**
+   * Requested width rounded up to a multiple of WIDTH_STEP within [MIN_WIDTH, MAX_WIDTH]; 0 = original.
+   */
+  static int bucketWidth(int requested) {
+    if (requested <= 0) {
+      return 0;
+    }
+    int w = Math.max(MIN_WIDTH, Math.min(MAX_WIDTH, requested));
+    return ((w + WIDTH_STEP - 1) / WIDTH_STEP) * WIDTH_STEP;
+  }
+
+  /**
+   * Target size for width keeping aspect ratio.
+   *
+   * @return {width, height}
+   */
+  static int[] scaledSize(int srcW, int srcH, int width) {
+    int h = (int) Math.max(1, Math.round((double) srcH * width / srcW));
+    return new int[]{width, h};
+  }
+
+  private static String shortTag(String checksum) {
+    String c = checksum.trim();
+    return c.length() > 16 ? c.substring(0, 16) : c;
+  }
+
+  /**
+   * Cached preview bytes (shared, must not be modified).
+   */
+  public static final class Preview {
+    private final byte[] bytes;
+    private final String contentType;
+    private final String tag;
+    private final int width;
+    private final int variant;
+
+    Preview(byte[] bytes, String contentType, String tag, int width, int variant) {
+      this.bytes = bytes;
+      this.contentType = contentType;
+      this.tag = tag;
+      this.width = width;
+      this.variant = variant;
+    }
+
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public int getWidth() {
+      return width;
+    }
+
+    /**
+     * Strong ETag: package checksum + width variant (w0 = original).
+     */
+    public String getEtag() {
+      return "\"" + tag + "-w" + variant + "\"";
+    }
+  }
+}
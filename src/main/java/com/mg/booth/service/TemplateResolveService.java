@@ -1,7 +1,7 @@
 package com.mg.booth.service;
 
-import com.mg.booth.config.BoothProps;
 import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.device.TemplateCatalog;
 import com.mg.booth.domain.TemplateSummary;
 import com.mg.booth.domain.V2TemplateRef;
 import com.mg.booth.exception.ApiException;
@@ -18,7 +18,7 @@ import java.nio.file.Path;
  * Requirements:
  * - Offline only (no platform dependency)
  * - Validate template exists and enabled (via TemplateService)
- * - Read metadata from LocalTemplateIndexStore (data/index.json)
+ * - Read metadata from the in-memory TemplateCatalog (data/index.json, no per-request parsing)
  * - Throw INVALID_INPUT if template not found or disabled
  */
 @Service
@@ -26,17 +26,14 @@ public class TemplateResolveService {
 
   private static final Logger log = LoggerFactory.getLogger(TemplateResolveService.class);
 
-  private final BoothProps props;
-  private final LocalTemplateIndexStore indexStore;
+  private final TemplateCatalog catalog;
   private final TemplateService templateService;
 
   public TemplateResolveService(
-      BoothProps props,
-      LocalTemplateIndexStore indexStore,
+      TemplateCatalog catalog,
       TemplateService templateService
   ) {
-    this.props = props;
-    this.indexStore = indexStore;
+    this.catalog = catalog;
     this.templateService = templateService;
   }
 
@@ -53,56 +50,22 @@ public class TemplateResolveService {
     }
 
     try {
-      // 1) Resolve index.json path (for logging + diagnostics)
-      Path dataDir = Path.of(props.getDataDir() != null && !props.getDataDir().isBlank()
-          ? props.getDataDir()
-          : "./data");
-      Path indexFile = dataDir.resolve("index.json");
-
-      var indexOpt = indexStore.readIndex(indexFile);
-      int installedCount = indexOpt.isPresent() && indexOpt.get().getItems() != null
-          ? indexOpt.get().getItems().size()
-          : 0;
+      // 1) index.json path (for logging + diagnostics) and installed count from the catalog
+      Path indexFile = catalog.indexFile();
+      int installedCount = catalog.size();
 
       // 2) Validate template exists and enabled using TemplateService (offline, hardcoded)
       boolean enabled = templateService.listTemplates().stream()
           .anyMatch(t -> t.isEnabled() && templateId.equals(t.getTemplateId()));
 
-      if (!enabled) {
-        String reason = String.format(
-            "template not found or disabled: templateId=%s, index=%s, installedCount=%d",
-            templateId,
-            indexFile.toAbsolutePath(),
-            installedCount
-        );
-        log.warn("[template-resolve] {}", reason);
-        throw new ApiException("INVALID_INPUT", reason, HttpStatus.BAD_REQUEST);
-      }
-
-      if (indexOpt.isEmpty() || indexOpt.get().getItems() == null || indexOpt.get().getItems().isEmpty()) {
-        String reason = String.format(
-            "template not found or disabled: templateId=%s, index=%s, installedCount=%d",
-            templateId,
-            indexFile.toAbsolutePath(),
-            installedCount
-        );
-        log.warn("[template-resolve] {}", reason);
-        throw new ApiException("INVALID_INPUT", reason, HttpStatus.BAD_REQUEST);
-      }
-
-      LocalTemplateIndexStore.TemplateIndex index = indexOpt.get();
-
       // 3) Find matching item by templateId (schemaVersion 2: templateId stores templateCode)
-      LocalTemplateIndexStore.TemplateIndexItem item = index.getItems().stream()
-          .filter(it -> templateId.equals(it.getTemplateId()))
-          .findFirst()
-          .orElse(null);
+      LocalTemplateIndexStore.TemplateIndexItem item = enabled ? catalog.get(templateId) : null;
 
       if (item == null) {
         String reason = String.format(
             "template not found or disabled: templateId=%s, index=%s, installedCount=%d",
             templateId,
-            indexFile.toAbsolutePath(),
+            indexFile,
             installedCount
         );
         log.warn("[template-resolve] {}", reason);
@@ -115,7 +78,7 @@ public class TemplateResolveService {
       String checksumSha256 = item.getChecksum();
 
       log.info("[template-resolve] templateId={} -> {}@{}, downloadUrl={}, indexFile={}",
-          templateId, templateCode, versionSemver, downloadUrl, indexFile.toAbsolutePath());
+          templateId, templateCode, versionSemver, downloadUrl, indexFile);
 
       return new V2TemplateRef(templateCode, versionSemver, downloadUrl, checksumSha256);
 
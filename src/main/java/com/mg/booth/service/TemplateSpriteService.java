@@ -0,0 +1,293 @@
+package com.mg.booth.service;
+
+import com.mg.booth.config.AppProps;
+import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.device.TemplateCatalog;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMREAD_UNCHANGED;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMWRITE_JPEG_QUALITY;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imdecode;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imencode;
+import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_BGRA2BGR;
+import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_GRAY2BGR;
+import static org.bytedeco.opencv.global.opencv_imgproc.cvtColor;
+
+/**
+ * Sprite sheet of all installed template previews for the kiosk selection grid.
+ *
+ * Tiles are the ?w=spriteCellWidth preview variants from TemplatePreviewCache, laid out
+ * row-major in app.templates.spriteColumns columns on a white JPEG canvas, plus a JSON map of
+ * tile coordinates. The sprite is rebuilt lazily after a catalog change; decoded tiles are
+ * kept per preview ETag so only new or changed templates are resized/decoded again.
+ */
+@Service
+public class TemplateSpriteService {
+
+  private static final Logger log = LoggerFactory.getLogger(TemplateSpriteService.class);
+
+  private final TemplateCatalog catalog;
+  private final TemplatePreviewCache previewCache;
+  private final AppProps appProps;
+
+  // key: templateCode@versionSemver + preview ETag -> decoded BGR tile; guarded by this
+  private final Map<String, Mat> tiles = new HashMap<>();
+
+  private volatile Sprite current;
+  private final AtomicLong generation = new AtomicLong();
+
+  public TemplateSpriteService(TemplateCatalog catalog, TemplatePreviewCache previewCache, AppProps appProps) {
+    this.catalog = catalog;
+    this.previewCache = previewCache;
+    this.appProps = appProps;
+    // 目录变化只标记失效，下次请求时增量重建
+    this.catalog.addChangeListener(snapshot -> {
+      generation.incrementAndGet();
+      current = null;
+    });
+  }
+
+  /**
+   * Current sprite (built on first use after a catalog change).
+   */
+  public Sprite sprite() throws IOException {
+    Sprite s = current;
+    if (s != null) {
+      return s;
+    }
+    synchronized (this) {
+      s = current;
+      if (s == null) {
+        long gen = generation.get();
+        s = build();
+        // 构建期间目录又变了：本次结果照常返回，但不缓存
+        if (gen == generation.get()) {
+          current = s;
+        }
+      }
+      return s;
+    }
+  }
+
+  private Sprite build() throws IOException {
+    long startNs = System.nanoTime();
+    int cellWidth = appProps.getTemplates().getSpriteCellWidth();
+    int columns = appProps.getTemplates().getSpriteColumns();
+
+    List<String> keys = new ArrayList<>();
+    List<LocalTemplateIndexStore.TemplateIndexItem> placed = new ArrayList<>();
+    List<Mat> mats = new ArrayList<>();
+    int decoded = 0;
+
+    for (LocalTemplateIndexStore.TemplateIndexItem item : catalog.items()) {
+      if (item.getTemplateId() == null || item.getVersion() == null || item.getVersion().isBlank()) {
+        continue;
+      }
+      Optional<TemplatePreviewCache.Preview> preview =
+          previewCache.get(item.getTemplateId(), item.getVersion(), cellWidth);
+      if (preview.isEmpty()) {
+        continue;
+      }
+      String key = item.getTemplateId() + "@" + item.getVersion() + preview.get().getEtag();
+      Mat tile = tiles.get(key);
+      if (tile == null) {
+        tile = decodeTile(preview.get().getBytes());
+        if (tile == null) {
+          log.warn("[template-sprite] Cannot decode preview, skipping: {}@{}", item.getTemplateId(), item.getVersion());
+          continue;
+        }
+        tiles.put(key, tile);
+        decoded++;
+      }
+      keys.add(key);
+      placed.add(item);
+      mats.add(tile);
+    }
+
+    // 释放已卸载/已变更模板的 tile
+    for (Iterator<Map.Entry<String, Mat>> it = tiles.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<String, Mat> e = it.next();
+      if (!keys.contains(e.getKey())) {
+        e.getValue().release();
+        it.remove();
+      }
+    }
+
+    List<int[]> sizes = new ArrayList<>();
+    for (Mat m : mats) {
+      sizes.add(new int[]{m.cols(), m.rows()});
+    }
+    Layout layout = layout(sizes, columns);
+
+    byte[] jpeg = new byte[0];
+    if (!mats.isEmpty()) {
+      Mat canvas = new Mat(layout.height, layout.width, CV_8UC3, new Scalar(255, 255, 255, 0));
+      BytePointer buf = new BytePointer();
+      try {
+        for (int i = 0; i < mats.size(); i++) {
+          int[] p = layout.positions.get(i);
+          Mat roi = new Mat(canvas, new Rect(p[0], p[1], p[2], p[3]));
+          mats.get(i).copyTo(roi);
+          roi.release();
+        }
+        if (!imencode(".jpg", canvas, buf, new IntPointer(new int[]{IMWRITE_JPEG_QUALITY, 85}))) {
+          throw new IOException("Cannot encode sprite");
+        }
+        jpeg = new byte[(int) buf.limit()];
+        buf.get(jpeg);
+      } finally {
+        buf.deallocate();
+        canvas.release();
+      }
+    }
+
+    List<Map<String, Object>> mapItems = new ArrayList<>();
+    for (int i = 0; i < placed.size(); i++) {
+      int[] p = layout.positions.get(i);
+      Map<String, Object> m = new LinkedHashMap<>();
+      m.put("templateId", placed.get(i).getTemplateId());
+      m.put("versionSemver", placed.get(i).getVersion());
+      m.put("x", p[0]);
+      m.put("y", p[1]);
+      m.put("w", p[2]);
+      m.put("h", p[3]);
+      mapItems.add(m);
+    }
+
+    String version = versionOf(keys, cellWidth, columns);
+    log.info("[template-sprite] Built sprite {}x{} tiles={} newlyDecoded={} bytes={} version={} elapsedMs={}",
+        layout.width, layout.height, mats.size(), decoded, jpeg.length, version,
+        (System.nanoTime() - startNs) / 1_000_000L);
+    return new Sprite(version, jpeg, layout.width, layout.height, cellWidth, mapItems);
+  }
+
+  private static Mat decodeTile(byte[] bytes) {
+    Mat src = imdecode(new Mat(bytes), IMREAD_UNCHANGED);
+    if (src == null || src.empty()) {
+      return null;
+    }
+    if (src.channels() == 3) {
+      return src;
+    }
+    Mat bgr = new Mat();
+    cvtColor(src, bgr, src.channels() == 4 ? COLOR_BGRA2BGR : COLOR_GRAY2BGR);
+    src.release();
+    return bgr;
+  }
+
+  /**
+   * Row-major grid layout; every cell is as large as the largest tile.
+   *
+   * @param sizes tile {width, height}
+   * @param columns max tiles per row
+   */
+  static Layout layout(List<int[]> sizes, int columns) {
+    int cols = Math.max(1, Math.min(columns, sizes.size()));
+    int cellW = 0;
+    int cellH = 0;
+    for (int[] s : sizes) {
+      cellW = Math.max(cellW, s[0]);
+      cellH = Math.max(cellH, s[1]);
+    }
+    List<int[]> positions = new ArrayList<>();
+    for (int i = 0; i < sizes.size(); i++) {
+      int[] s = sizes.get(i);
+      positions.add(new int[]{(i % cols) * cellW, (i / cols) * cellH, s[0], s[1]});
+    }
+    int rows = sizes.isEmpty() ? 0 : (sizes.size() + cols - 1) / cols;
+    return new Layout(cols * cellW, rows * cellH, positions);
+  }
+
+  static String versionOf(List<String> tileKeys, int cellWidth, int columns) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update((cellWidth + "x" + columns).getBytes(StandardCharsets.UTF_8));
+      for (String k : tileKeys) {
+        md.update(("|" + k).getBytes(StandardCharsets.UTF_8));
+      }
+      return HexFormat.of().formatHex(md.digest(), 0, 12);
+    } catch (Exception e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  static final class Layout {
+    final int width;
+    final int height;
+    final List<int[]> positions;
+
+    Layout(int width, int height, List<int[]> positions) {
+      this.width = width;
+      this.height = height;
+      this.positions = positions;
+    }
+  }
+
+  /**
+   * Built sprite: JPEG bytes plus the coordinate map (immutable once built).
+   */
+  public static final class Sprite {
+    private final String version;
+    private final byte[] jpeg;
+    private final int width;
+    private final int height;
+    private final int cellWidth;
+    private final List<Map<String, Object>> items;
+
+    Sprite(String version, byte[] jpeg, int width, int height, int cellWidth, List<Map<String, Object>> items) {
+      this.version = version;
+      this.jpeg = jpeg;
+      this.width = width;
+      this.height = height;
+      this.cellWidth = cellWidth;
+      this.items = List.copyOf(items);
+    }
+
+    public String getVersion() {
+      return version;
+    }
+
+    public byte[] getJpeg() {
+      return jpeg;
+    }
+
+    public String getEtag() {
+      return "\"" + version + "\"";
+    }
+
+    /**
+     * JSON map body: { version, spriteUrl, width, height, cellWidth, items: [{templateId, versionSemver, x, y, w, h}] }
+     */
+    public Map<String, Object> toMap(String spriteUrl) {
+      Map<String, Object> m = new LinkedHashMap<>();
+      m.put("version", version);
+      m.put("spriteUrl", items.isEmpty() ? null : spriteUrl + "?v=" + version);
+      m.put("width", width);
+      m.put("height", height);
+      m.put("cellWidth", cellWidth);
+      m.put("items", items);
+      return m;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package com.mg.booth.ai;
+
+import com.mg.booth.config.AppProps;
+import com.mg.booth.device.TemplateUsageTracker;
+import com.mg.booth.domain.Session;
+import com.mg.booth.domain.V2TemplateRef;
+import com.mg.booth.exception.ApiException;
+import com.mg.booth.service.TemplateManifestService;
+import com.mg.booth.service.TemplateResolveService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.http.HttpStatus;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for AiEngineRouter
+ */
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class AiEngineRouterTest {
+
+  @Mock
+  private AiEngine v1;
+
+  @Mock
+  private AiEngine v2;
+
+  @Mock
+  private TemplateResolveService templateResolveService;
+
+  @Mock
+  private TemplateManifestService manifestService;
+
+  private final TemplateUsageTracker usageTracker = new TemplateUsageTracker();
+
+  private AiEngineRouter router;
+
+  @BeforeEach
+  void setUp() {
+    when(v1.id()).thenReturn(AiEngine.GATEWAY_V1);
+    when(v2.id()).thenReturn(AiEngine.GATEWAY_V2);
+    when(v1.supports(anyString())).thenReturn(true);
+    when(v2.supports(anyString())).thenReturn(true);
+    when(templateResolveService.resolveForV2(anyString()))
+        .thenThrow(new ApiException("INVALID_INPUT", "not installed", HttpStatus.BAD_REQUEST));
+
+    AppProps appProps = new AppProps();
+    appProps.getAi().setMode("v2");
+    router = new AiEngineRouter(List.of(v1, v2), templateResolveService, manifestService, usageTracker, appProps);
+  }
+
+  @Test
+  void process_shouldUseModeEngine_whenTemplateDeclaresNone() throws Exception {
+    Session s = session();
+    doAnswer(inv -> {
+      s.setFinalUrl("http://127.0.0.1:9001/final.png");
+      return null;
+    }).when(v2).process(any(), any(), anyInt());
+
+    AiEngine used = router.process(s, Path.of("raw.jpg"), 0);
+
+    assertSame(v2, used);
+    verify(v1, never()).process(any(), any(), anyInt());
+  }
+
+  @Test
+  void process_shouldFallBack_whenPreferredEngineDegraded() throws Exception {
+    doThrow(new RuntimeException("pipeline down")).when(v2).process(any(), any(), anyInt());
+    for (int i = 0; i < 5; i++) {
+      assertThrows(RuntimeException.class, () -> router.process(session(), Path.of("raw.jpg"), 0));
+    }
+
+    Session s = session();
+    doAnswer(inv -> {
+      s.setFinalUrl("http://gateway/final.png");
+      return null;
+    }).when(v1).process(any(), any(), anyInt());
+
+    AiEngine used = router.process(s, Path.of("raw.jpg"), 0);
+
+    assertSame(v1, used);
+    assertEquals(Boolean.TRUE, ((java.util.Map<?, ?>) router.snapshot().get(AiEngine.GATEWAY_V2)).get("degraded"));
+  }
+
+  @Test
+  void process_shouldRecordTemplateUse_butRoutingLookupsShouldNot() throws Exception {
+    doReturn(new V2TemplateRef("tpl_002", "0.1.2", "http://localhost/tpl_002.zip", "def456"))
+        .when(templateResolveService).resolveForV2("tpl_002");
+
+    // 预热任务按模板查询首选引擎，不算使用
+    assertEquals(AiEngine.GATEWAY_V2, router.preferredEngine("tpl_002"));
+    assertEquals(0L, usageTracker.lastUsedAtMs("tpl_002", "0.1.2"));
+
+    Session s = session();
+    doAnswer(inv -> {
+      s.setFinalUrl("http://127.0.0.1:9001/final.png");
+      return null;
+    }).when(v2).process(any(), any(), anyInt());
+    router.process(s, Path.of("raw.jpg"), 0);
+
+    assertTrue(usageTracker.lastUsedAtMs("tpl_002", "0.1.2") > 0);
+  }
+
+  private Session session() {
+    Session s = new Session();
+    s.setSessionId("sess_router");
+    s.setTemplateId("tpl_002");
+    return s;
+  }
+}
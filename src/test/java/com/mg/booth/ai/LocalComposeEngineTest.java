@@ -0,0 +1,63 @@
+package com.mg.booth.ai;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for LocalComposeEngine layout geometry (no native OpenCV needed).
+ */
+class LocalComposeEngineTest {
+
+  @Test
+  void place_cover_shouldFillBoxAndCropCenter() {
+    // 3:4 raw 3000x4000 into 800x900 box at (80,200) on 960x1280 canvas
+    LocalComposeEngine.Placement p = LocalComposeEngine.place(3000, 4000, 80, 200, 800, 900, "cover", 960, 1280);
+
+    assertNotNull(p);
+    assertEquals(800, p.width);
+    assertEquals(900, p.height);
+    assertEquals(80, p.dstX);
+    assertEquals(200, p.dstY);
+    assertEquals(800, p.scaledW);
+    assertTrue(p.scaledH >= 1066 && p.scaledH <= 1067, "scaledH=" + p.scaledH);
+    assertEquals((p.scaledH - 900) / 2, p.srcY);
+  }
+
+  @Test
+  void place_contain_shouldLetterboxInsideBox() {
+    LocalComposeEngine.Placement p = LocalComposeEngine.place(2000, 1000, 0, 0, 800, 800, "contain", 960, 1280);
+
+    assertNotNull(p);
+    assertEquals(800, p.width);
+    assertEquals(400, p.height);
+    assertEquals(200, p.dstY);
+  }
+
+  @Test
+  void place_shouldClipToCanvasOrSkipWhenOutside() {
+    LocalComposeEngine.Placement p = LocalComposeEngine.place(100, 100, -50, 900, 200, 200, "fill", 960, 1000);
+
+    assertNotNull(p);
+    assertEquals(0, p.dstX);
+    assertEquals(50, p.srcX);
+    assertEquals(150, p.width);
+    assertEquals(100, p.height);
+    assertNull(LocalComposeEngine.place(100, 100, 2000, 0, 200, 200, "cover", 960, 1280));
+  }
+
+  @Test
+  void layersOf_shouldSortByZ() throws Exception {
+    var compose = new ObjectMapper().readTree(
+        "{\"photos\":[{\"source\":\"frame.png\",\"z\":20},{\"source\":\"cutout\",\"w\":10,\"h\":10,\"z\":10}]}");
+
+    List<LocalComposeEngine.Layer> layers = LocalComposeEngine.layersOf(compose);
+
+    assertEquals(2, layers.size());
+    assertTrue(layers.get(0).isPhoto());
+    assertFalse(layers.get(1).isPhoto());
+  }
+}
@@ -1,25 +1,26 @@
 package com.mg.booth.api;
 
-import com.mg.booth.config.BoothProps;
+import com.mg.booth.config.AppProps;
 import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.device.TemplateCatalog;
 import com.mg.booth.domain.TemplateSummary;
 import com.mg.booth.service.TemplateService;
-import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 
-import java.nio.file.Path;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
-import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
 /**
@@ -29,26 +30,20 @@ import static org.mockito.Mockito.*;
 class TemplatesApiControllerTest {
 
   @Mock
-  private BoothProps props;
-
-  @Mock
-  private LocalTemplateIndexStore indexStore;
+  private TemplateCatalog catalog;
 
   @Mock
   private TemplateService templateService;
 
+  @Spy
+  private AppProps appProps = new AppProps();
+
   @InjectMocks
   private TemplatesApiController controller;
 
-  @BeforeEach
-  void setUp() {
-    when(props.getDataDir()).thenReturn("./data");
-  }
-
   @Test
   void testListTemplates_FromLocalIndex() {
-    // Arrange: Mock indexStore returns non-empty index
-    LocalTemplateIndexStore.TemplateIndex index = new LocalTemplateIndexStore.TemplateIndex();
+    // Arrange: Mock catalog returns non-empty items
     List<LocalTemplateIndexStore.TemplateIndexItem> items = new ArrayList<>();
     
     LocalTemplateIndexStore.TemplateIndexItem item1 = new LocalTemplateIndexStore.TemplateIndexItem();
@@ -65,9 +60,7 @@ class TemplatesApiControllerTest {
     item2.setInstalledAt(Instant.now());
     items.add(item2);
     
-    index.setItems(items);
-    
-    when(indexStore.readIndex(any(Path.class))).thenReturn(Optional.of(index));
+    when(catalog.items()).thenReturn(items);
 
     // Act
     Map<String, Object> response = controller.listTemplates();
@@ -99,8 +92,8 @@ class TemplatesApiControllerTest {
 
   @Test
   void testListTemplates_FallbackToService_WhenIndexEmpty() {
-    // Arrange: Mock indexStore returns empty index
-    when(indexStore.readIndex(any(Path.class))).thenReturn(Optional.empty());
+    // Arrange: Mock catalog has no index (nothing installed)
+    when(catalog.items()).thenReturn(null);
 
     // Mock templateService returns hardcoded templates
     List<TemplateSummary> summaries = List.of(
@@ -145,11 +138,8 @@ class TemplatesApiControllerTest {
 
   @Test
   void testListTemplates_FallbackToService_WhenIndexHasEmptyItems() {
-    // Arrange: Mock indexStore returns index with empty items list
-    LocalTemplateIndexStore.TemplateIndex index = new LocalTemplateIndexStore.TemplateIndex();
-    index.setItems(new ArrayList<>()); // Empty list
-    
-    when(indexStore.readIndex(any(Path.class))).thenReturn(Optional.of(index));
+    // Arrange: Mock catalog returns empty items list
+    when(catalog.items()).thenReturn(new ArrayList<>()); // Empty list
 
     // Mock templateService returns hardcoded templates
     List<TemplateSummary> summaries = List.of(
@@ -181,9 +171,9 @@ class TemplatesApiControllerTest {
   }
 
   @Test
-  void testListTemplates_FailOpen_WhenIndexReadFails() {
-    // Arrange: Mock indexStore throws exception
-    when(indexStore.readIndex(any(Path.class))).thenThrow(new RuntimeException("File read error"));
+  void testListTemplates_FailOpen_WhenCatalogReadFails() {
+    // Arrange: Mock catalog throws exception
+    when(catalog.items()).thenThrow(new RuntimeException("File read error"));
 
     // Mock templateService returns hardcoded templates
     List<TemplateSummary> summaries = List.of(
@@ -208,4 +198,71 @@ class TemplatesApiControllerTest {
     // Verify templateService was called (fail-open fallback)
     verify(templateService, times(1)).listTemplates();
   }
+
+  @Test
+  void testGetTemplates_ServesPrecomputedBody_With304OnMatchingETag() {
+    // Arrange: catalog snapshot with one installed template
+    LocalTemplateIndexStore.TemplateIndex index = new LocalTemplateIndexStore.TemplateIndex();
+    index.setUpdatedAt(Instant.parse("2026-01-01T00:00:00Z"));
+    LocalTemplateIndexStore.TemplateIndexItem item = new LocalTemplateIndexStore.TemplateIndexItem();
+    item.setTemplateId("tpl_001");
+    item.setVersion("0.1.1");
+    item.setChecksum("abc");
+    index.getItems().add(item);
+    when(catalog.index()).thenReturn(index);
+
+    // Act: first request (gzip) then conditional request
+    ResponseEntity<byte[]> first = controller.getTemplates(null, "gzip, deflate");
+    String etag = first.getHeaders().getETag();
+    ResponseEntity<byte[]> second = controller.getTemplates(etag, null);
+    ResponseEntity<byte[]> identity = controller.getTemplates("\"other\"", null);
+
+    // Assert
+    assertEquals(HttpStatus.OK, first.getStatusCode());
+    assertNotNull(etag);
+    assertTrue(etag.startsWith("\""));
+    assertTrue(etag.endsWith("-gz\""));
+    assertEquals("gzip", first.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+    assertNotNull(first.getHeaders().getCacheControl());
+
+    assertEquals(HttpStatus.NOT_MODIFIED, second.getStatusCode());
+    assertNull(second.getBody());
+
+    assertEquals(HttpStatus.OK, identity.getStatusCode());
+    assertNull(identity.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+    String json = new String(identity.getBody(), java.nio.charset.StandardCharsets.UTF_8);
+    assertTrue(json.contains("\"templateId\":\"tpl_001\""));
+    assertTrue(json.contains("/api/v1/templates/tpl_001/0.1.1/preview"));
+    // 不同内容编码使用不同的强 ETag
+    assertEquals(etag.replace("-gz\"", "\""), identity.getHeaders().getETag());
+    assertEquals(HttpStatus.NOT_MODIFIED,
+        controller.getTemplates(identity.getHeaders().getETag(), "gzip").getStatusCode());
+
+    // Same snapshot: body serialized once, fallback never consulted
+    verify(templateService, never()).listTemplates();
+  }
+
+  @Test
+  void testETag_ChangesWithChecksum() {
+    LocalTemplateIndexStore.TemplateIndex index = new LocalTemplateIndexStore.TemplateIndex();
+    LocalTemplateIndexStore.TemplateIndexItem item = new LocalTemplateIndexStore.TemplateIndexItem();
+    item.setTemplateId("tpl_001");
+    item.setVersion("0.1.1");
+    item.setChecksum("abc");
+    index.getItems().add(item);
+
+    String before = TemplatesApiController.etagOf(index, "local_index", new byte[0]);
+    item.setChecksum("def");
+    String after = TemplatesApiController.etagOf(index, "local_index", new byte[0]);
+
+    assertNotEquals(before, after);
+
+    // pipelineReady 等不影响列表的写入不改变 ETag
+    index.setUpdatedAt(Instant.now());
+    item.setPipelineReady(true);
+    assertEquals(after, TemplatesApiController.etagOf(index, "local_index", new byte[0]));
+    assertTrue(TemplatesApiController.etagMatches("\"" + after + "-gz\"", "\"" + after + "\""));
+    assertTrue(TemplatesApiController.etagMatches("W/\"x\", \"" + after + "\"", "\"" + after + "\""));
+    assertFalse(TemplatesApiController.etagMatches(null, "\"" + after + "\""));
+  }
 }
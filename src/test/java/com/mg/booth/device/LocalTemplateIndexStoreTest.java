@@ -0,0 +1,78 @@
+package com.mg.booth.device;
+
+import com.mg.booth.config.AppProps;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for LocalTemplateIndexStore group commit and compact format
+ */
+class LocalTemplateIndexStoreTest {
+
+  @TempDir
+  Path dataDir;
+
+  @Test
+  void update_shouldBatchConcurrentUpdatesWithoutLosingAny() throws Exception {
+    AppProps appProps = new AppProps();
+    appProps.getTemplates().setIndexCommitWindowMs(0);
+    LocalTemplateIndexStore store = new LocalTemplateIndexStore(appProps);
+    AtomicInteger writes = new AtomicInteger();
+    store.addWriteListener(index -> writes.incrementAndGet());
+    Path indexFile = dataDir.resolve("index.json");
+
+    // 第一个更新在提交中阻塞，其余 7 个排队，应合并为一次写
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread first = new Thread(() -> store.update(indexFile, index -> {
+      entered.countDown();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      index.getItems().add(item("tpl_000"));
+    }));
+    first.start();
+    assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+    List<Thread> others = new ArrayList<>();
+    for (int i = 1; i < 8; i++) {
+      String code = "tpl_00" + i;
+      Thread t = new Thread(() -> store.update(indexFile, index -> index.getItems().add(item(code))));
+      others.add(t);
+      t.start();
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (store.pendingUpdates() < 7 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    release.countDown();
+    first.join();
+    for (Thread t : others) {
+      t.join();
+    }
+
+    assertEquals(2, writes.get());
+    assertEquals(8, store.readIndex(indexFile).orElseThrow().getItems().size());
+    String json = Files.readString(indexFile);
+    assertFalse(json.contains("\n"), "index.json should be compact");
+    assertTrue(store.toPrettyJson(store.readIndex(indexFile).orElseThrow()).contains("\n"));
+  }
+
+  private static LocalTemplateIndexStore.TemplateIndexItem item(String code) {
+    return new LocalTemplateIndexStore.TemplateIndexItem(
+        code, "0.1.0", "templates/" + code + "/0.1.0", Instant.now(), "abc", "http://x/" + code + ".zip");
+  }
+}
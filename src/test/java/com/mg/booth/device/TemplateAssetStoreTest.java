@@ -0,0 +1,136 @@
+package com.mg.booth.device;
+
+import com.mg.booth.config.BoothProps;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for TemplateAssetStore (dedup across template versions, corrupt objects, mark-and-sweep)
+ */
+class TemplateAssetStoreTest {
+
+  @TempDir
+  Path tmp;
+
+  @Test
+  void materialize_shouldStoreIdenticalContentOnce() throws Exception {
+    TemplateAssetStore store = newStore();
+    byte[] bg = "same background".getBytes(StandardCharsets.UTF_8);
+
+    Path v1 = tmp.resolve("templates/tpl_001/0.1.0/bg.jpg");
+    Path v2 = tmp.resolve("templates/tpl_001/0.2.0/bg.jpg");
+    Files.createDirectories(v1.getParent());
+    Files.createDirectories(v2.getParent());
+
+    assertFalse(store.materialize(new ByteArrayInputStream(bg), v1));
+    assertTrue(store.materialize(new ByteArrayInputStream(bg), v2));
+
+    assertArrayEquals(bg, Files.readAllBytes(v2));
+    assertTrue(Files.isSameFile(v1, v2));
+    try (var objects = Files.walk(store.root())) {
+      assertEquals(1, objects.filter(Files::isRegularFile).count());
+    }
+  }
+
+  @Test
+  void materialize_shouldRestoreContent_whenLinkedFileWasCorrupted() throws Exception {
+    TemplateAssetStore store = newStore();
+    byte[] bg = "original background".getBytes(StandardCharsets.UTF_8);
+    Path v1 = tmp.resolve("templates/tpl_001/0.1.0/bg.jpg");
+    Files.createDirectories(v1.getParent());
+    store.materialize(new ByteArrayInputStream(bg), v1);
+
+    // 有人把只读链接改成可写并写入，共享对象随之损坏
+    v1.toFile().setWritable(true);
+    Files.writeString(v1, "garbage");
+
+    // 重新安装同一版本
+    assertFalse(store.materialize(new ByteArrayInputStream(bg), v1));
+
+    assertArrayEquals(bg, Files.readAllBytes(v1));
+    Path object = store.objectPath(TemplateDelta.sha256(v1));
+    assertArrayEquals(bg, Files.readAllBytes(object));
+    assertTrue(Files.isSameFile(v1, object));
+  }
+
+  @Test
+  void linkExisting_shouldRejectCorruptObject() throws Exception {
+    TemplateAssetStore store = newStore();
+    byte[] bg = "background".getBytes(StandardCharsets.UTF_8);
+    Path v1 = tmp.resolve("templates/tpl_001/0.1.0/bg.jpg");
+    Files.createDirectories(v1.getParent());
+    store.materialize(new ByteArrayInputStream(bg), v1);
+    String sha = TemplateDelta.sha256(v1);
+    v1.toFile().setWritable(true);
+    Files.writeString(v1, "garbage");
+
+    Path v2 = tmp.resolve("templates/tpl_001/0.2.0/bg.jpg");
+    Files.createDirectories(v2.getParent());
+
+    assertFalse(store.linkExisting(sha, v2));
+    assertFalse(Files.exists(v2));
+    assertFalse(Files.exists(store.objectPath(sha)));
+  }
+
+  @Test
+  void deleteIfUnreferenced_shouldSweepUnmarkedIdleObjects() throws Exception {
+    TemplateAssetStore store = newStore();
+    Path dir = tmp.resolve("templates/tpl_001/0.1.0");
+    Files.createDirectories(dir);
+    store.materialize(new ByteArrayInputStream("kept".getBytes(StandardCharsets.UTF_8)), dir.resolve("a.png"));
+    store.materialize(new ByteArrayInputStream("gone".getBytes(StandardCharsets.UTF_8)), dir.resolve("b.png"));
+    store.materialize(new ByteArrayInputStream("fresh".getBytes(StandardCharsets.UTF_8)), dir.resolve("c.png"));
+    Path kept = store.objectPath(TemplateDelta.sha256(dir.resolve("a.png")));
+    Path gone = store.objectPath(TemplateDelta.sha256(dir.resolve("b.png")));
+    Path fresh = store.objectPath(TemplateDelta.sha256(dir.resolve("c.png")));
+    Files.setLastModifiedTime(kept, FileTime.fromMillis(0));
+    Files.setLastModifiedTime(gone, FileTime.fromMillis(0));
+
+    // 只有 a.png 仍被某个版本目录引用
+    Files.delete(dir.resolve("b.png"));
+    Files.delete(dir.resolve("c.png"));
+    Set<String> referenced = new HashSet<>();
+    TemplateAssetStore.collectDigests(tmp.resolve("templates"), Set.of(), referenced);
+    assertEquals(Set.of(kept.getFileName().toString()), referenced);
+
+    long minIdleMs = 3_600_000L;
+    assertEquals(0, store.deleteIfUnreferenced(kept, referenced, minIdleMs));
+    assertEquals(4, store.deleteIfUnreferenced(gone, referenced, minIdleMs));
+    assertEquals(0, store.deleteIfUnreferenced(fresh, referenced, minIdleMs));
+    assertTrue(Files.exists(kept));
+    assertFalse(Files.exists(gone));
+    assertTrue(Files.exists(fresh));
+  }
+
+  @Test
+  void collectDigests_shouldSkipRecordedDirs() throws Exception {
+    Path recorded = tmp.resolve("templates/tpl_001/0.1.0");
+    Path other = tmp.resolve("templates/tpl_001/0.2.0");
+    Files.createDirectories(recorded);
+    Files.createDirectories(other);
+    Files.writeString(recorded.resolve("a.png"), "a");
+    Files.writeString(other.resolve("b.png"), "b");
+
+    Set<String> digests = new HashSet<>();
+    TemplateAssetStore.collectDigests(tmp.resolve("templates"),
+        Set.of(recorded.toAbsolutePath().normalize()), digests);
+
+    assertEquals(Set.of(TemplateDelta.sha256(other.resolve("b.png"))), digests);
+  }
+
+  private TemplateAssetStore newStore() {
+    BoothProps props = new BoothProps();
+    props.setDataDir(tmp.toString());
+    return new TemplateAssetStore(props);
+  }
+}
@@ -0,0 +1,74 @@
+package com.mg.booth.device;
+
+import com.mg.booth.config.AppProps;
+import com.mg.booth.config.BoothProps;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for TemplateCatalog (snapshot swap on index writes)
+ */
+class TemplateCatalogTest {
+
+  @TempDir
+  Path dataDir;
+
+  private TemplateCatalog newCatalog(LocalTemplateIndexStore store) {
+    BoothProps props = new BoothProps();
+    props.setDataDir(dataDir.toString());
+    AppProps appProps = new AppProps();
+    appProps.getTemplates().setWatchIndex(false);
+    TemplateCatalog catalog = new TemplateCatalog(props, appProps, store);
+    catalog.start();
+    return catalog;
+  }
+
+  @Test
+  void write_shouldSwapSnapshot_andLookupByCodeAndVersion() {
+    LocalTemplateIndexStore store = new LocalTemplateIndexStore(new AppProps());
+    TemplateCatalog catalog = newCatalog(store);
+    assertEquals(0, catalog.size());
+    assertNull(catalog.get("tpl_001"));
+
+    store.update(catalog.indexFile(), index -> {
+      index.getItems().add(new LocalTemplateIndexStore.TemplateIndexItem(
+          "tpl_001", "0.1.0", "templates/tpl_001/0.1.0", Instant.now(), "aaa", "http://x/a.zip"));
+      index.getItems().add(new LocalTemplateIndexStore.TemplateIndexItem(
+          "tpl_001", "0.2.0", "templates/tpl_001/0.2.0", Instant.now(), "bbb", "http://x/b.zip"));
+    });
+
+    assertEquals(2, catalog.size());
+    assertEquals("0.1.0", catalog.get("tpl_001").getVersion());
+    assertEquals("bbb", catalog.get("tpl_001", "0.2.0").getChecksum());
+    assertNull(catalog.get("tpl_001", "9.9.9"));
+    assertNotNull(catalog.index().getUpdatedAt());
+  }
+
+  @Test
+  void snapshot_shouldNotSeeLaterMutationsOfWrittenIndex() {
+    LocalTemplateIndexStore store = new LocalTemplateIndexStore(new AppProps());
+    TemplateCatalog catalog = newCatalog(store);
+
+    LocalTemplateIndexStore.TemplateIndex index = new LocalTemplateIndexStore.TemplateIndex();
+    LocalTemplateIndexStore.TemplateIndexItem item = new LocalTemplateIndexStore.TemplateIndexItem(
+        "tpl_002", "0.1.0", "templates/tpl_002/0.1.0", Instant.now(), "ccc", "http://x/c.zip");
+    index.getItems().add(item);
+    store.writeIndex(catalog.indexFile(), index);
+
+    item.setChecksum("mutated");
+    index.getItems().clear();
+
+    assertEquals(1, catalog.size());
+    assertEquals("ccc", catalog.get("tpl_002").getChecksum());
+    assertThrows(UnsupportedOperationException.class, () -> catalog.items().clear());
+
+    // 重新从磁盘加载结果一致
+    catalog.reload();
+    assertEquals("ccc", catalog.get("tpl_002", "0.1.0").getChecksum());
+  }
+}
@@ -0,0 +1,82 @@
+package com.mg.booth.device;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for delta template packages
+ */
+class TemplateDeltaTest {
+
+  @TempDir
+  Path tmp;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  @Test
+  void apply_shouldRebuildTreeFromBaseAndVerifyDigest() throws Exception {
+    Path base = tmp.resolve("templates/tpl_002/0.1.2");
+    write(base.resolve("bg.jpg"), "background");
+    write(base.resolve("rules.json"), "{\"v\":1}");
+
+    Path staging = tmp.resolve("staging");
+    write(staging.resolve("rules.json"), "{\"v\":2}");
+    List<TemplateDelta.FileEntry> files = List.of(
+        new TemplateDelta.FileEntry("bg.jpg", sha("background")),
+        new TemplateDelta.FileEntry("rules.json", sha("{\"v\":2}")));
+    writeDescriptor(staging, files, TemplateDelta.treeDigest(files));
+
+    TemplateDelta delta = TemplateDelta.read(staging.resolve(TemplateDelta.DESCRIPTOR), objectMapper);
+    int reused = delta.apply(staging, base, null);
+
+    assertEquals(1, reused);
+    assertEquals("background", Files.readString(staging.resolve("bg.jpg")));
+    assertEquals("{\"v\":2}", Files.readString(staging.resolve("rules.json")));
+    assertFalse(Files.exists(staging.resolve(TemplateDelta.DESCRIPTOR)));
+  }
+
+  @Test
+  void apply_shouldRejectWhenBaseFileDiffers() throws Exception {
+    Path base = tmp.resolve("base");
+    write(base.resolve("bg.jpg"), "edited locally");
+
+    Path staging = tmp.resolve("staging");
+    Files.createDirectories(staging);
+    List<TemplateDelta.FileEntry> files = List.of(new TemplateDelta.FileEntry("bg.jpg", sha("background")));
+    writeDescriptor(staging, files, TemplateDelta.treeDigest(files));
+
+    TemplateDelta delta = TemplateDelta.read(staging.resolve(TemplateDelta.DESCRIPTOR), objectMapper);
+    assertThrows(IOException.class, () -> delta.apply(staging, base, null));
+  }
+
+  private void writeDescriptor(Path staging, List<TemplateDelta.FileEntry> files, String tree) throws IOException {
+    Map<String, Object> json = Map.of(
+        "format", TemplateDelta.FORMAT,
+        "baseVersionSemver", "0.1.2",
+        "files", files.stream().map(f -> Map.of("path", f.path, "sha256", f.sha256)).toList(),
+        "treeSha256", tree);
+    Files.writeString(staging.resolve(TemplateDelta.DESCRIPTOR), objectMapper.writeValueAsString(json));
+  }
+
+  private static void write(Path file, String content) throws IOException {
+    Files.createDirectories(file.getParent());
+    Files.writeString(file, content);
+  }
+
+  private static String sha(String content) throws Exception {
+    return HexFormat.of().formatHex(
+        MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+  }
+}
@@ -0,0 +1,54 @@
+package com.mg.booth.device;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for TemplateInstallQueue (dedup and job lifecycle)
+ */
+class TemplateInstallQueueTest {
+
+  @Test
+  void submit_shouldDeduplicateAndReportSteps() {
+    TemplatePackageInstaller installer = mock(TemplatePackageInstaller.class);
+    when(installer.installPackage(eq("tpl_001"), eq("0.1.0"), eq("http://x/p.zip"), eq("abc"), isNull(), any()))
+        .thenAnswer(inv -> {
+          TemplatePackageInstaller.InstallProgress p = inv.getArgument(5);
+          p.onStep(TemplatePackageInstaller.InstallProgress.DOWNLOAD);
+          p.onBytes(1024);
+          p.onStep(TemplatePackageInstaller.InstallProgress.COMMIT);
+          return new TemplatePackageInstaller.InstalledPackage(
+              "tpl_001", "0.1.0", "templates/tpl_001/0.1.0", "abc", "http://x/p.zip", 1024);
+        });
+    List<Runnable> queued = new ArrayList<>();
+    TemplateInstallQueue queue = new TemplateInstallQueue(installer, queued::add);
+
+    TemplateInstallQueue.InstallJob first = queue.submit("tpl_001", "0.1.0", "http://x/p.zip", "abc", null);
+    TemplateInstallQueue.InstallJob second = queue.submit("tpl_001", "0.1.0", "http://x/p.zip", "abc", null);
+    assertSame(first, second);
+    assertEquals(1, queued.size());
+    assertEquals(TemplateInstallQueue.InstallJob.QUEUED, first.getState());
+
+    List<String> steps = new ArrayList<>();
+    queue.subscribe(first, j -> steps.add(j.getStep()));
+    queued.get(0).run();
+
+    assertEquals(TemplateInstallQueue.InstallJob.SUCCEEDED, first.getState());
+    assertEquals("templates/tpl_001/0.1.0", first.getInstalledPath());
+    assertEquals(1024, first.getBytesDownloaded());
+    assertTrue(steps.containsAll(List.of("download", "commit", "index")));
+    assertTrue(first.completion().isDone());
+    verify(installer).recordInstalled(any());
+
+    // 已结束的任务不再去重
+    assertNotSame(first, queue.submit("tpl_001", "0.1.0", "http://x/p.zip", "abc", null));
+  }
+}
@@ -0,0 +1,72 @@
+package com.mg.booth.device;
+
+import com.mg.booth.config.AppProps;
+import com.mg.booth.config.BoothProps;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for TemplateIntegrityVerifier (digest manifest, warm verification, quarantine)
+ */
+class TemplateIntegrityVerifierTest {
+
+  @TempDir
+  Path dataDir;
+
+  @Test
+  void verify_shouldRehashOnlyChangedFiles_andQuarantineBrokenVersion() throws Exception {
+    Path dir = dataDir.resolve("templates/tpl_001/0.1.0");
+    Files.createDirectories(dir.resolve("ui"));
+    Files.writeString(dir.resolve("manifest.json"), "{}");
+    Files.writeString(dir.resolve("ui/bg.jpg"), "background");
+
+    BoothProps props = new BoothProps();
+    props.setDataDir(dataDir.toString());
+    AppProps appProps = new AppProps();
+    appProps.getTemplates().setWatchIndex(false);
+    LocalTemplateIndexStore store = new LocalTemplateIndexStore(appProps);
+    TemplateCatalog catalog = new TemplateCatalog(props, appProps, store);
+    catalog.start();
+    store.update(catalog.indexFile(), index -> index.getItems().add(new LocalTemplateIndexStore.TemplateIndexItem(
+        "tpl_001", "0.1.0", "templates/tpl_001/0.1.0", Instant.now(), "abc", "http://x/p.zip")));
+
+    TemplateInstallQueue queue = mock(TemplateInstallQueue.class);
+    when(queue.submit(any(), any(), any(), any(), any()))
+        .thenReturn(new TemplateInstallQueue.InstallJob("job_1", "tpl_001", "0.1.0"));
+    TemplateIntegrityVerifier verifier = new TemplateIntegrityVerifier(props, appProps, catalog, queue, Runnable::run);
+    LocalTemplateIndexStore.TemplateIndexItem item = catalog.get("tpl_001", "0.1.0");
+
+    // 首次：记录摘要清单
+    TemplateIntegrityVerifier.Result first = verifier.verify(item);
+    assertTrue(first.isOk());
+    assertEquals(2, first.rehashed);
+
+    // 文件未变：不重新计算哈希
+    TemplateIntegrityVerifier.Result warm = verifier.verify(item);
+    assertTrue(warm.isOk());
+    assertEquals(2, warm.files);
+    assertEquals(0, warm.rehashed);
+
+    Files.writeString(dir.resolve("ui/bg.jpg"), "corrupted!!");
+    verifier.verifyAll().join();
+
+    assertNull(catalog.get("tpl_001", "0.1.0"));
+    assertTrue(catalog.isQuarantined("tpl_001", "0.1.0"));
+    // 按索引里的 code / version / url / checksum 排队重装（全量包）
+    verify(queue, times(1)).submit(eq("tpl_001"), eq("0.1.0"), eq("http://x/p.zip"), eq("abc"), isNull());
+
+    // 重新安装（installedAt 变化）后自动解除隔离
+    store.update(catalog.indexFile(), index -> index.getItems().get(0).setInstalledAt(Instant.now().plusSeconds(1)));
+    assertNotNull(catalog.get("tpl_001", "0.1.0"));
+    assertFalse(catalog.isQuarantined("tpl_001", "0.1.0"));
+  }
+}
@@ -0,0 +1,269 @@
+package com.mg.booth.device;
+
+import com.mg.booth.config.AppProps;
+import com.mg.booth.config.BoothProps;
+import com.mg.booth.service.PipelinePrefetchService;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the single-pass download/hash/extract pipeline
+ */
+class TemplatePackageInstallerTest {
+
+  @TempDir
+  Path tmp;
+
+  @Test
+  void downloadAndExtract_shouldHashCopyAndExtractInOnePass() throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+      zos.putNextEntry(new ZipEntry("manifest.json"));
+      zos.write("{\"templateCode\":\"tpl_001\"}".getBytes(StandardCharsets.UTF_8));
+      zos.closeEntry();
+      zos.putNextEntry(new ZipEntry("assets/"));
+      zos.closeEntry();
+      zos.putNextEntry(new ZipEntry("assets/bg.png"));
+      zos.write(new byte[4096]);
+      zos.closeEntry();
+    }
+    byte[] zip = bos.toByteArray();
+
+    Path part = tmp.resolve("pkg.zip.part");
+    Path staging = tmp.resolve("staging");
+    AtomicLong progress = new AtomicLong();
+
+    TemplatePackageInstaller.StreamResult result = TemplatePackageInstaller.downloadAndExtract(
+        new ByteArrayInputStream(zip), 0, part, staging, progress::set, null, null);
+
+    assertTrue(result.extracted);
+    assertEquals(zip.length, result.bytes);
+    assertEquals(zip.length, progress.get());
+    assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(zip)), result.sha256);
+    assertArrayEquals(zip, Files.readAllBytes(part));
+    assertTrue(Files.exists(staging.resolve("manifest.json")));
+    assertEquals(4096, Files.size(staging.resolve("assets/bg.png")));
+  }
+
+  @Test
+  void downloadAndExtract_shouldStillDigestWhenStreamIsNotAZip() throws Exception {
+    byte[] data = "not a zip".getBytes(StandardCharsets.UTF_8);
+    Path part = tmp.resolve("bad.zip.part");
+
+    TemplatePackageInstaller.StreamResult result = TemplatePackageInstaller.downloadAndExtract(
+        new ByteArrayInputStream(data), 0, part, tmp.resolve("staging"), null, null, null);
+
+    assertEquals(data.length, result.bytes);
+    assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data)), result.sha256);
+    assertArrayEquals(data, Files.readAllBytes(part));
+  }
+
+  @Test
+  void downloadAndExtract_shouldResumeFromPartFile() throws Exception {
+    byte[] zip = zipWithManifest();
+    int split = zip.length / 2;
+    Path part = tmp.resolve("resume.zip.part");
+    Files.write(part, Arrays.copyOf(zip, split));
+    Path staging = tmp.resolve("staging-resume");
+    AtomicLong progress = new AtomicLong();
+
+    TemplatePackageInstaller.StreamResult result = TemplatePackageInstaller.downloadAndExtract(
+        new ByteArrayInputStream(zip, split, zip.length - split), split, part, staging, progress::set, null, null);
+
+    assertTrue(result.extracted);
+    assertEquals(split, result.resumedFrom);
+    assertEquals(zip.length, result.bytes);
+    assertEquals(zip.length, progress.get());
+    assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(zip)), result.sha256);
+    assertArrayEquals(zip, Files.readAllBytes(part));
+    assertTrue(Files.exists(staging.resolve("manifest.json")));
+  }
+
+  @Test
+  void downloadAndExtract_shouldExtractEveryEntryThroughAssetStore() throws Exception {
+    byte[] zip = zipWithManifest();
+    BoothProps props = new BoothProps();
+    props.setDataDir(tmp.toString());
+    Path staging = tmp.resolve("staging-cas");
+
+    TemplatePackageInstaller.StreamResult result = TemplatePackageInstaller.downloadAndExtract(
+        new ByteArrayInputStream(zip), 0, tmp.resolve("cas.zip.part"), staging, null, null,
+        new TemplateAssetStore(props));
+
+    assertTrue(result.extracted);
+    assertTrue(Files.exists(staging.resolve("manifest.json")));
+    assertEquals(8192, Files.size(staging.resolve("assets/bg.png")));
+  }
+
+  @Test
+  void downloadWithResume_shouldUseCompletePartFile_whenRangeNotSatisfiable() throws Exception {
+    byte[] zip = zipWithManifest();
+    String sha = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(zip));
+    Path part = tmp.resolve(sha + ".zip.part");
+    Files.write(part, zip);
+    AtomicInteger fullGets = new AtomicInteger();
+    HttpServer server = rangeRejectingServer(zip, fullGets);
+    try {
+      TemplatePackageInstaller.StreamResult result = newInstaller().downloadWithResume(
+          url(server), part, tmp.resolve("staging-416"), sha, null);
+
+      assertFalse(result.extracted);
+      assertEquals(zip.length, result.bytes);
+      assertEquals(sha, result.sha256);
+      assertEquals(0, fullGets.get());
+      assertArrayEquals(zip, Files.readAllBytes(part));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  void downloadWithResume_shouldRestart_whenRangeNotSatisfiableAndPartIsStale() throws Exception {
+    byte[] zip = zipWithManifest();
+    String sha = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(zip));
+    Path part = tmp.resolve(sha + ".zip.part");
+    Files.write(part, new byte[zip.length + 10]);
+    AtomicInteger fullGets = new AtomicInteger();
+    HttpServer server = rangeRejectingServer(zip, fullGets);
+    try {
+      TemplatePackageInstaller.StreamResult result = newInstaller().downloadWithResume(
+          url(server), part, tmp.resolve("staging-stale"), sha, null);
+
+      assertEquals(sha, result.sha256);
+      assertEquals(0, result.resumedFrom);
+      assertEquals(1, fullGets.get());
+      assertArrayEquals(zip, Files.readAllBytes(part));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  void partFileName_shouldBeKeyedByChecksum() {
+    String sha = "ABCDEF0123456789abcdef0123456789abcdef0123456789abcdef0123456789";
+    assertEquals(sha.toLowerCase() + ".zip.part", TemplatePackageInstaller.partFileName("tpl_001", "0.1.0", sha));
+    assertEquals("tpl_001_0.1.0.zip.part", TemplatePackageInstaller.partFileName("tpl_001", "0.1.0", null));
+  }
+
+  @Test
+  void bandwidthLimiter_shouldDelayOverBudget() throws Exception {
+    BandwidthLimiter limiter = new BandwidthLimiter(() -> 100_000);
+    long start = System.nanoTime();
+    limiter.acquire(120_000);
+    long elapsedMs = (System.nanoTime() - start) / 1_000_000L;
+    assertTrue(elapsedMs >= 1000, "elapsedMs=" + elapsedMs);
+  }
+
+  @Test
+  void partitionBySize_shouldBalanceEntriesAcrossWorkers() {
+    List<ZipEntry> entries = new ArrayList<>();
+    for (long size : new long[]{900, 500, 400, 300, 200, 100}) {
+      ZipEntry e = new ZipEntry("f" + size);
+      e.setSize(size);
+      entries.add(e);
+    }
+
+    List<List<ZipEntry>> parts = TemplatePackageInstaller.partitionBySize(entries, 2);
+
+    assertEquals(2, parts.size());
+    assertEquals(6, parts.get(0).size() + parts.get(1).size());
+    long a = parts.get(0).stream().mapToLong(ZipEntry::getSize).sum();
+    long b = parts.get(1).stream().mapToLong(ZipEntry::getSize).sum();
+    assertEquals(1200, a);
+    assertEquals(1200, b);
+    assertEquals(1, TemplatePackageInstaller.partitionBySize(entries.subList(0, 1), 4).size());
+  }
+
+  /** Answers every Range request with 416 and a plain GET with the whole package. */
+  private static HttpServer rangeRejectingServer(byte[] zip, AtomicInteger fullGets) throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/pkg.zip", ex -> {
+      if (ex.getRequestHeaders().getFirst("Range") != null) {
+        ex.sendResponseHeaders(416, -1);
+        ex.close();
+        return;
+      }
+      fullGets.incrementAndGet();
+      ex.sendResponseHeaders(200, zip.length);
+      try (OutputStream os = ex.getResponseBody()) {
+        os.write(zip);
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  private static String url(HttpServer server) {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/pkg.zip";
+  }
+
+  private TemplatePackageInstaller newInstaller() {
+    BoothProps props = new BoothProps();
+    props.setDataDir(tmp.toString());
+    AppProps appProps = new AppProps();
+    // 只下载到 .part，解压由调用方在校验后进行
+    appProps.getTemplates().setStreamExtractMaxBytes(0);
+    return new TemplatePackageInstaller(props, appProps, new LocalTemplateIndexStore(appProps),
+        mock(PipelinePrefetchService.class), new TemplateAssetStore(props), Runnable::run);
+  }
+
+  private static byte[] zipWithManifest() throws Exception {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+      zos.putNextEntry(new ZipEntry("manifest.json"));
+      zos.write("{\"templateCode\":\"tpl_001\"}".getBytes(StandardCharsets.UTF_8));
+      zos.closeEntry();
+      zos.putNextEntry(new ZipEntry("assets/bg.png"));
+      byte[] noise = new byte[8192];
+      new Random(1).nextBytes(noise);
+      zos.write(noise);
+      zos.closeEntry();
+    }
+    return bos.toByteArray();
+  }
+
+  @Test
+  void recordInstalled_shouldKeepInstall_whenPrefetchThrows() {
+    BoothProps props = new BoothProps();
+    props.setDataDir(tmp.toString());
+    AppProps appProps = new AppProps();
+    appProps.getTemplates().setIndexCommitWindowMs(0);
+    LocalTemplateIndexStore indexStore = new LocalTemplateIndexStore(appProps);
+    PipelinePrefetchService prefetch = mock(PipelinePrefetchService.class);
+    doThrow(new IllegalStateException("prefetch executor rejected"))
+        .when(prefetch).prefetchAsync(any(), any(), any(), any());
+    TemplatePackageInstaller installer = new TemplatePackageInstaller(
+        props, appProps, indexStore, prefetch, new TemplateAssetStore(props), Runnable::run);
+
+    assertDoesNotThrow(() -> installer.recordInstalled(List.of(new TemplatePackageInstaller.InstalledPackage(
+        "tpl_001", "0.1.0", "templates/tpl_001/0.1.0", "abc", "http://x/p.zip", 10))));
+
+    var items = indexStore.readIndex(tmp.resolve("index.json")).orElseThrow().getItems();
+    assertEquals(1, items.size());
+    assertEquals("tpl_001", items.get(0).getTemplateId());
+    verify(prefetch).prefetchAsync("tpl_001", "0.1.0", "http://x/p.zip", "abc");
+  }
+}
@@ -0,0 +1,201 @@
+package com.mg.booth.device;
+
+import com.mg.booth.config.AppProps;
+import com.mg.booth.config.BoothProps;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for TemplateSyncService (item parsing, index diff, per-host limit, single index write,
+ * one job per activity)
+ */
+class TemplateSyncServiceTest {
+
+  @TempDir
+  Path dataDir;
+
+  private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+  private AppProps appProps;
+  private PlatformDeviceApiClient apiClient;
+  private TemplatePackageInstaller installer;
+  private TemplateCatalog catalog;
+  private TemplateSyncService service;
+
+  @BeforeEach
+  void setUp() {
+    BoothProps props = new BoothProps();
+    props.setDataDir(dataDir.toString());
+    props.setDeviceIdentityFile(dataDir.resolve("device.json").toString());
+    appProps = new AppProps();
+
+    DeviceConfig config = new DeviceConfig();
+    config.setPlatformBaseUrl("http://platform.local");
+    config.setDeviceId("7");
+    config.setDeviceToken("token");
+    DeviceConfigStore configStore = mock(DeviceConfigStore.class);
+    when(configStore.load(any())).thenReturn(config);
+
+    apiClient = mock(PlatformDeviceApiClient.class);
+    installer = mock(TemplatePackageInstaller.class);
+    catalog = mock(TemplateCatalog.class);
+    service = new TemplateSyncService(props, appProps, configStore, mock(DeviceCacheStore.class),
+        apiClient, installer, catalog, pool);
+  }
+
+  @AfterEach
+  void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  void syncItem_shouldAcceptLegacyFieldsAndStripChecksumPrefix() {
+    TemplateSyncService.SyncItem item = TemplateSyncService.SyncItem.of(Map.of(
+        "templateId", "tpl_001",
+        "version", "0.1.0",
+        "downloadUrl", "https://cdn.example.com/tpl_001.zip",
+        "checksum", "sha256:abc123"));
+
+    assertEquals("tpl_001", item.getTemplateCode());
+    assertEquals("0.1.0", item.getVersionSemver());
+    assertEquals(TemplateSyncService.SyncItem.PENDING, item.getStatus());
+    assertNull(item.getElapsedMs());
+  }
+
+  @Test
+  void syncItem_shouldFailWhenRequiredFieldMissing() {
+    TemplateSyncService.SyncItem item = TemplateSyncService.SyncItem.of(Map.of(
+        "templateCode", "tpl_001",
+        "versionSemver", "0.1.0"));
+
+    assertEquals(TemplateSyncService.SyncItem.FAILED, item.getStatus());
+    assertNotNull(item.getError());
+  }
+
+  @Test
+  void hostOf_shouldNormalizeHost() {
+    assertEquals("cdn.example.com", TemplateSyncService.hostOf("https://CDN.example.com:8443/a.zip"));
+    assertEquals("", TemplateSyncService.hostOf("not a url"));
+  }
+
+  @Test
+  void start_shouldSkipUpToDate_reinstallMissingDir_andWriteIndexOnce() throws Exception {
+    // tpl_001：已安装且 checksum 相同 -> 跳过；tpl_002：索引有但目录被删 -> 重装；tpl_003：未安装
+    Files.createDirectories(dataDir.resolve("templates/tpl_001/0.1.0"));
+    when(catalog.get("tpl_001", "0.1.0")).thenReturn(indexed("tpl_001", "aaa"));
+    when(catalog.get("tpl_002", "0.1.0")).thenReturn(indexed("tpl_002", "bbb"));
+    when(apiClient.listActivityTemplates(anyString(), anyLong(), eq(1L), anyString())).thenReturn(List.of(
+        template("tpl_001", "https://cdn-a.example.com/1.zip", "sha256:AAA"),
+        template("tpl_002", "https://cdn-a.example.com/2.zip", "bbb"),
+        template("tpl_003", "https://cdn-b.example.com/3.zip", "ccc")));
+    when(installer.installPackage(anyString(), anyString(), anyString(), anyString(), any(), any()))
+        .thenAnswer(inv -> new TemplatePackageInstaller.InstalledPackage(inv.getArgument(0), inv.getArgument(1),
+            "templates/" + inv.getArgument(0) + "/0.1.0", inv.getArgument(3), inv.getArgument(2), 10));
+
+    TemplateSyncService.SyncJob job = awaitFinished(service.start(1L));
+
+    assertEquals(TemplateSyncService.SyncJob.COMPLETED, job.getState());
+    assertEquals(List.of("SKIPPED", "INSTALLED", "INSTALLED"),
+        job.getItems().stream().map(TemplateSyncService.SyncItem::getStatus).toList());
+    verify(installer, never()).installPackage(eq("tpl_001"), any(), any(), any(), any(), any());
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<TemplatePackageInstaller.InstalledPackage>> captor = ArgumentCaptor.forClass(List.class);
+    verify(installer, times(1)).recordInstalled(captor.capture());
+    assertEquals(List.of("tpl_002", "tpl_003"), captor.getValue().stream()
+        .map(TemplatePackageInstaller.InstalledPackage::getTemplateCode).sorted().toList());
+  }
+
+  @Test
+  void start_shouldLimitConcurrentDownloadsPerHost() throws Exception {
+    appProps.getTemplates().setSyncPerHostLimit(1);
+    List<Map<String, Object>> templates = new ArrayList<>();
+    for (int i = 1; i <= 3; i++) {
+      templates.add(template("tpl_00" + i, "https://cdn-a.example.com/" + i + ".zip", "c" + i));
+    }
+    when(apiClient.listActivityTemplates(anyString(), anyLong(), eq(2L), anyString())).thenReturn(templates);
+    AtomicInteger active = new AtomicInteger();
+    AtomicInteger maxActive = new AtomicInteger();
+    when(installer.installPackage(anyString(), anyString(), anyString(), anyString(), any(), any()))
+        .thenAnswer(inv -> {
+          maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+          Thread.sleep(50);
+          active.decrementAndGet();
+          return new TemplatePackageInstaller.InstalledPackage(inv.getArgument(0), inv.getArgument(1),
+              "templates/x", inv.getArgument(3), inv.getArgument(2), 10);
+        });
+
+    TemplateSyncService.SyncJob job = awaitFinished(service.start(2L));
+
+    assertEquals(TemplateSyncService.SyncJob.COMPLETED, job.getState());
+    verify(installer, times(3)).installPackage(anyString(), anyString(), anyString(), anyString(), any(), any());
+    assertEquals(1, maxActive.get());
+  }
+
+  @Test
+  void start_shouldShareOneJob_forConcurrentCallsOfSameActivity() throws Exception {
+    CountDownLatch fetching = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    when(apiClient.listActivityTemplates(anyString(), anyLong(), eq(3L), anyString())).thenAnswer(inv -> {
+      fetching.countDown();
+      release.await(5, TimeUnit.SECONDS);
+      return List.of();
+    });
+
+    ExecutorService callers = Executors.newFixedThreadPool(2);
+    try {
+      Future<TemplateSyncService.SyncJob> first = callers.submit(() -> service.start(3L));
+      assertTrue(fetching.await(5, TimeUnit.SECONDS));
+      // 第一个调用仍在拉取平台列表时，第二个调用加入同一任务
+      Future<TemplateSyncService.SyncJob> second = callers.submit(() -> service.start(3L));
+      TemplateSyncService.SyncJob joined = second.get(5, TimeUnit.SECONDS);
+      release.countDown();
+
+      assertSame(first.get(5, TimeUnit.SECONDS), joined);
+      verify(apiClient, times(1)).listActivityTemplates(anyString(), anyLong(), eq(3L), anyString());
+      awaitFinished(joined);
+      verify(installer, times(1)).recordInstalled(anyList());
+    } finally {
+      callers.shutdownNow();
+    }
+  }
+
+  private static TemplateSyncService.SyncJob awaitFinished(TemplateSyncService.SyncJob job) throws Exception {
+    long until = System.currentTimeMillis() + 5_000L;
+    while (TemplateSyncService.SyncJob.RUNNING.equals(job.getState()) && System.currentTimeMillis() < until) {
+      Thread.sleep(10);
+    }
+    return job;
+  }
+
+  private static Map<String, Object> template(String code, String url, String checksum) {
+    return Map.of("templateCode", code, "versionSemver", "0.1.0", "downloadUrl", url, "checksumSha256", checksum);
+  }
+
+  private static LocalTemplateIndexStore.TemplateIndexItem indexed(String code, String checksum) {
+    return new LocalTemplateIndexStore.TemplateIndexItem(
+        code, "0.1.0", "templates/" + code + "/0.1.0", Instant.now(), checksum, "http://x/" + code + ".zip");
+  }
+}
@@ -0,0 +1,67 @@
+package com.mg.booth.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for LatencyHistogram and PipelineMetrics stage handling.
+ */
+class LatencyHistogramTest {
+
+  @Test
+  void bucketIndex_shouldRoundTripWithinPrecision() {
+    for (long v : new long[]{0, 1, 31, 32, 33, 100, 1234, 65_000, 3_600_000}) {
+      int idx = LatencyHistogram.bucketIndex(v);
+      long upper = LatencyHistogram.highestEquivalentValue(idx);
+      assertTrue(upper >= v, "upper bound below value for " + v);
+      assertTrue(upper <= v + Math.max(1, v / 16) + 1, "bucket too wide for " + v);
+    }
+  }
+
+  @Test
+  void snapshot_shouldReportPercentiles() {
+    LatencyHistogram h = new LatencyHistogram(60_000L);
+    for (int i = 1; i <= 100; i++) {
+      h.record(i * 10L);
+    }
+
+    Map<String, Object> snap = h.snapshot();
+
+    assertEquals(100L, snap.get("count"));
+    assertEquals(10L, snap.get("minMs"));
+    assertEquals(1000L, snap.get("maxMs"));
+    long p50 = (Long) snap.get("p50Ms");
+    long p99 = (Long) snap.get("p99Ms");
+    assertTrue(p50 >= 500 && p50 <= 540, "p50=" + p50);
+    assertTrue(p99 >= 990 && p99 <= 1000, "p99=" + p99);
+  }
+
+  @Test
+  void emptyHistogram_shouldReportZeroCount() {
+    LatencyHistogram h = new LatencyHistogram(60_000L);
+    assertEquals(0L, h.snapshot().get("count"));
+    assertEquals(-1L, h.valueAtQuantile(0.5));
+  }
+
+  @Test
+  void recordV2Call_shouldDeriveNetworkFromClientMinusTotal() {
+    PipelineMetrics metrics = new PipelineMetrics(null);
+
+    metrics.recordV2Call("tpl_002", "0.1.2", 1500L,
+        Map.of("segmentationMs", 600, "composeMs", 300, "totalMs", 1200));
+
+    @SuppressWarnings("unchecked")
+    Map<String, Object> templates = (Map<String, Object>) metrics.snapshot().get("templates");
+    @SuppressWarnings("unchecked")
+    Map<String, Map<String, Object>> stages = (Map<String, Map<String, Object>>) templates.get("tpl_002@0.1.2");
+
+    assertNotNull(stages);
+    assertTrue(stages.containsKey("segmentation"));
+    assertTrue(stages.containsKey("compose"));
+    assertEquals(1500L, stages.get("client").get("maxMs"));
+    assertEquals(300L, stages.get("network").get("maxMs"));
+  }
+}
@@ -0,0 +1,72 @@
+package com.mg.booth.scheduler;
+
+import com.mg.booth.ai.AiEngine;
+import com.mg.booth.ai.AiEngineRouter;
+import com.mg.booth.config.AppProps;
+import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.device.TemplateCatalog;
+import com.mg.booth.metrics.PipelineMetrics;
+import com.mg.booth.service.AiGatewayV2Client;
+import com.mg.booth.service.PipelinePrefetchService;
+import com.mg.booth.service.PipelineRawUploader;
+import com.mg.booth.service.SessionService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for CanaryWarmupScheduler (event-hours parsing, idle round)
+ */
+class CanaryWarmupSchedulerTest {
+
+  @TempDir
+  Path tmp;
+
+  @Test
+  void withinEventHours_shouldHandleDayAndOvernightRanges() {
+    assertTrue(CanaryWarmupScheduler.withinEventHours("09:00-21:00", LocalTime.of(9, 0)));
+    assertFalse(CanaryWarmupScheduler.withinEventHours("09:00-21:00", LocalTime.of(21, 0)));
+    assertTrue(CanaryWarmupScheduler.withinEventHours("18:00-02:00", LocalTime.of(1, 30)));
+    assertFalse(CanaryWarmupScheduler.withinEventHours("18:00-02:00", LocalTime.of(12, 0)));
+    assertFalse(CanaryWarmupScheduler.withinEventHours("bogus", LocalTime.of(12, 0)));
+  }
+
+  @Test
+  void tick_shouldNotPrefetch_whenPrefetchOnInstallDisabled() throws Exception {
+    Files.write(tmp.resolve("sample.jpg"), new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF});
+    AppProps appProps = new AppProps();
+    appProps.getCanary().setEnabled(true);
+    appProps.getCanary().setEventHours("00:00-00:00");
+    appProps.getCanary().setIdleMinutes(1);
+    appProps.getCanary().setSampleDir(tmp.toString());
+
+    TemplateCatalog catalog = mock(TemplateCatalog.class);
+    when(catalog.items()).thenReturn(List.of(new LocalTemplateIndexStore.TemplateIndexItem(
+        "tpl_001", "0.1.0", "templates/tpl_001/0.1.0", Instant.now(), "abc", "http://x/p.zip")));
+    AiEngineRouter router = mock(AiEngineRouter.class);
+    when(router.preferredEngine("tpl_001")).thenReturn(AiEngine.GATEWAY_V2);
+    AiGatewayV2Client client = mock(AiGatewayV2Client.class);
+    when(client.processCanary(any(), any(), any(), any(), any(), any()))
+        .thenReturn(AiGatewayV2Client.Result.ok("/p.jpg", "/f.jpg", null));
+    PipelinePrefetchService prefetch = mock(PipelinePrefetchService.class);
+    when(prefetch.isEnabled()).thenReturn(false);
+    SessionService sessions = mock(SessionService.class);
+    when(sessions.unsafeStore()).thenReturn(Map.of());
+
+    new CanaryWarmupScheduler(appProps, catalog, router, client, mock(PipelineRawUploader.class), prefetch,
+        new PipelineMetrics(appProps), sessions, Runnable::run).tick();
+
+    verify(client).processCanary(eq("tpl_001"), eq("0.1.0"), any(), any(), any(), isNull());
+    verify(prefetch, never()).prefetch(any(), any(), any(), any());
+  }
+}
@@ -0,0 +1,77 @@
+package com.mg.booth.scheduler;
+
+import com.mg.booth.device.LocalTemplateIndexStore;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for TemplateGcScheduler version selection
+ */
+class TemplateGcSchedulerTest {
+
+  private static LocalTemplateIndexStore.TemplateIndexItem item(String code, String version, long installedAtSec) {
+    return new LocalTemplateIndexStore.TemplateIndexItem(code, version, "templates/" + code + "/" + version,
+        Instant.ofEpochSecond(installedAtSec), "abc", "http://x");
+  }
+
+  private static List<String> keys(List<LocalTemplateIndexStore.TemplateIndexItem> items) {
+    return items.stream().map(it -> it.getTemplateId() + "@" + it.getVersion()).toList();
+  }
+
+  @Test
+  void selectEvictions_shouldKeepCurrentPlusPreviousForReferencedTemplates() {
+    // installedAt 最新的为当前版本
+    List<LocalTemplateIndexStore.TemplateIndexItem> items = List.of(
+        item("tpl_a", "1.0.0", 500), item("tpl_a", "0.8.0", 300), item("tpl_a", "0.9.0", 400),
+        item("tpl_a", "0.7.0", 200), item("tpl_b", "2.0.0", 100), item("tpl_b", "1.0.0", 50));
+
+    List<LocalTemplateIndexStore.TemplateIndexItem> evict = TemplateGcScheduler.selectEvictions(
+        items, Set.of("tpl_a"), Set.of("tpl_a@0.7.0"), 1, 0, it -> 0, it -> 0);
+
+    // tpl_a：保留当前 + 最新的 1 个旧版本 + 活动固定的 0.7.0；tpl_b 未被引用，只保留当前版本
+    assertEquals(List.of("tpl_a@0.8.0", "tpl_b@1.0.0"), keys(evict));
+  }
+
+  @Test
+  void selectEvictions_shouldKeepNewestInstalled_whenIndexIsOldestFirst() {
+    // recordInstalled 追加新版本：索引按安装先后排列
+    List<LocalTemplateIndexStore.TemplateIndexItem> items = List.of(
+        item("tpl_a", "0.1.0", 100), item("tpl_a", "0.2.0", 200), item("tpl_a", "0.3.0", 300),
+        item("tpl_b", "0.1.0", 100), item("tpl_b", "0.2.0", 200));
+
+    List<LocalTemplateIndexStore.TemplateIndexItem> evict = TemplateGcScheduler.selectEvictions(
+        items, Set.of("tpl_a"), Set.of(), 1, 0, it -> 0, it -> 0);
+
+    assertEquals(List.of("tpl_a@0.1.0", "tpl_b@0.1.0"), keys(evict));
+  }
+
+  @Test
+  void selectEvictions_shouldEvictLeastRecentlyUsedUnreferencedOverBudget() {
+    List<LocalTemplateIndexStore.TemplateIndexItem> items = List.of(
+        item("tpl_a", "1.0.0", 100), item("tpl_b", "1.0.0", 100), item("tpl_c", "1.0.0", 100),
+        item("tpl_d", "1.0.0", 100));
+    Map<String, Long> lastUse = Map.of("tpl_b", 5L, "tpl_c", 1L, "tpl_d", 9L);
+
+    List<LocalTemplateIndexStore.TemplateIndexItem> evict = TemplateGcScheduler.selectEvictions(
+        items, Set.of("tpl_a"), Set.of(), 1, 250, it -> 100, it -> lastUse.getOrDefault(it.getTemplateId(), 0L));
+
+    assertEquals(List.of("tpl_c@1.0.0", "tpl_b@1.0.0"), keys(evict));
+  }
+
+  @Test
+  void selectEvictions_shouldTreatAllAsReferenced_whenActivitiesUnknown() {
+    List<LocalTemplateIndexStore.TemplateIndexItem> items = List.of(
+        item("tpl_a", "1.0.0", 100), item("tpl_a", "0.9.0", 90), item("tpl_b", "1.0.0", 100));
+
+    List<LocalTemplateIndexStore.TemplateIndexItem> evict = TemplateGcScheduler.selectEvictions(
+        items, null, Set.of(), 1, 1, it -> 100, it -> 0);
+
+    assertTrue(evict.isEmpty());
+  }
+}
@@ -1,17 +1,21 @@
 package com.mg.booth.service;
 
+import com.mg.booth.config.AppProps;
 import com.mg.booth.config.BoothProps;
 import com.mg.booth.domain.Session;
 import com.mg.booth.domain.SessionState;
 import com.mg.booth.domain.V2TemplateRef;
+import com.mg.booth.metrics.PipelineMetrics;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.nio.file.Path;
 import java.time.OffsetDateTime;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -31,6 +35,9 @@ class AiProcessV2ServiceTest {
   @Mock
   private BoothProps boothProps;
 
+  @Mock
+  private PipelineMetrics pipelineMetrics;
+
   @InjectMocks
   private AiProcessV2Service service;
 
@@ -64,7 +71,9 @@ class AiProcessV2ServiceTest {
         eq("0.2.0"),
         anyString(),
         anyString(),
-        eq("D:/data/raw/sess_001/IMG_001.jpg")
+        eq("D:/data/raw/sess_001/IMG_001.jpg"),
+        isNull(),
+        eq("sess_001#0#tpl_001")
     )).thenReturn(clientResult);
 
     when(boothProps.getGatewayBaseUrl()).thenReturn("http://127.0.0.1:9001");
@@ -80,5 +89,196 @@ class AiProcessV2ServiceTest {
     assertNotNull(session.getUpdatedAt());
     assertNull(session.getError());
   }
-}
 
+  @Test
+  void process_shouldRecordPipelineTiming_whenClientTimeMeasured() {
+    Session session = new Session();
+    session.setSessionId("sess_002");
+    session.setTemplateId("tpl_002");
+    session.setAttemptIndex(0);
+    session.setState(SessionState.PROCESSING);
+    session.setRawUrl("D:/data/raw/sess_002/IMG_001.jpg");
+
+    when(templateResolveService.resolveForV2("tpl_002")).thenReturn(
+        new V2TemplateRef("tpl_002", "0.1.2", "http://localhost/tpl_002.zip", "def456"));
+
+    Map<String, Object> timing = Map.of("segmentationMs", 800, "totalMs", 1100);
+    AiGatewayV2Client.Result clientResult = AiGatewayV2Client.Result
+        .ok("/files/job456/preview.jpg", "/files/job456/final.jpg", timing)
+        .withClientMs(1300L);
+    when(aiGatewayV2Client.process(anyString(), anyString(), anyString(), anyString(), anyString(), isNull(), anyString()))
+        .thenReturn(clientResult);
+    when(boothProps.getGatewayBaseUrl()).thenReturn("http://127.0.0.1:9001");
+
+    service.process(session);
+
+    verify(pipelineMetrics).recordV2Call("tpl_002", "0.1.2", 1300L, timing);
+    assertNull(session.getError());
+  }
+
+  @Test
+  void process_twoPhase_shouldPublishPreviewBeforeFinal() {
+    AppProps appProps = new AppProps();
+    appProps.getAi().setV2OutputMode("two_phase");
+    appProps.getAi().setV2PollIntervalMs(1L);
+    AiProcessV2Service twoPhase = new AiProcessV2Service(
+        templateResolveService, aiGatewayV2Client, boothProps, pipelineMetrics, appProps, null, null);
+
+    Session session = new Session();
+    session.setSessionId("sess_003");
+    session.setTemplateId("tpl_002");
+    session.setAttemptIndex(0);
+    session.setState(SessionState.PROCESSING);
+    session.setRawUrl("D:/data/raw/sess_003/IMG_001.jpg");
+
+    when(templateResolveService.resolveForV2("tpl_002")).thenReturn(
+        new V2TemplateRef("tpl_002", "0.1.2", "http://localhost/tpl_002.zip", "def456"));
+    when(boothProps.getGatewayBaseUrl()).thenReturn("http://127.0.0.1:9001");
+    when(aiGatewayV2Client.submit(anyString(), anyString(), anyString(), anyString(), anyString(), isNull(), anyString()))
+        .thenReturn(AiGatewayV2Client.Result.ok("job789", "queued", null, null, null));
+    when(aiGatewayV2Client.pollJob("job789"))
+        .thenReturn(AiGatewayV2Client.Result.ok("job789", "preview_ready", "/files/job789/preview.jpg", null, null))
+        .thenAnswer(inv -> {
+          // 预览已在 final 之前发布到 session
+          assertEquals("http://127.0.0.1:9001/files/job789/preview.jpg", session.getPreviewUrl());
+          assertNull(session.getFinalUrl());
+          return AiGatewayV2Client.Result.ok("job789", "done", null, "/files/job789/final.jpg", Map.of("totalMs", 900));
+        });
+
+    twoPhase.process(session);
+
+    assertNull(session.getError());
+    assertEquals("http://127.0.0.1:9001/files/job789/preview.jpg", session.getPreviewUrl());
+    assertEquals("http://127.0.0.1:9001/files/job789/final.jpg", session.getFinalUrl());
+    verify(aiGatewayV2Client, never())
+        .process(anyString(), anyString(), anyString(), anyString(), anyString(), any(), any());
+  }
+
+  @Test
+  void process_twoPhase_shouldStopPollingAtProcessingDeadline() {
+    AppProps appProps = new AppProps();
+    appProps.getAi().setV2OutputMode("two_phase");
+    appProps.getAi().setV2PollIntervalMs(10L);
+    AiProcessV2Service twoPhase = new AiProcessV2Service(
+        templateResolveService, aiGatewayV2Client, boothProps, pipelineMetrics, appProps, null, null);
+
+    Session session = new Session();
+    session.setSessionId("sess_005");
+    session.setTemplateId("tpl_002");
+    session.setAttemptIndex(0);
+    session.setState(SessionState.PROCESSING);
+    // PROCESSING 期限（30s）只剩约 200ms，远小于 v2TimeoutMs（60s）
+    session.setStateEnteredAt(OffsetDateTime.now().minusNanos(29_800L * 1_000_000L));
+    session.setRawUrl("D:/data/raw/sess_005/IMG_001.jpg");
+
+    when(templateResolveService.resolveForV2("tpl_002")).thenReturn(
+        new V2TemplateRef("tpl_002", "0.1.2", "http://localhost/tpl_002.zip", "def456"));
+    when(aiGatewayV2Client.submit(anyString(), anyString(), anyString(), anyString(), anyString(), isNull(), anyString()))
+        .thenReturn(AiGatewayV2Client.Result.ok("job790", "queued", null, null, null));
+    when(aiGatewayV2Client.pollJob("job790"))
+        .thenReturn(AiGatewayV2Client.Result.ok("job790", "running", null, null, null));
+
+    long startMs = System.currentTimeMillis();
+    twoPhase.process(session);
+
+    assertTrue(System.currentTimeMillis() - startMs < 5_000L);
+    assertNotNull(session.getError());
+    assertTrue(session.getError().getDetail().get("reason").toString().contains("TIMEOUT"));
+    assertNull(session.getFinalUrl());
+  }
+
+  @Test
+  void process_shouldFallBackToRawPath_whenRawUploadFails() {
+    PipelineRawUploader uploader = mock(PipelineRawUploader.class);
+    AiProcessV2Service uploading = new AiProcessV2Service(
+        templateResolveService, aiGatewayV2Client, boothProps, pipelineMetrics, new AppProps(), uploader, null);
+
+    Session session = new Session();
+    session.setSessionId("sess_006");
+    session.setTemplateId("tpl_002");
+    session.setAttemptIndex(0);
+    session.setState(SessionState.PROCESSING);
+    session.setStateEnteredAt(OffsetDateTime.now());
+    session.setRawUrl("D:/data/raw/sess_006/IMG_001.jpg");
+
+    when(uploader.shouldUpload()).thenReturn(true);
+    when(uploader.uploadAsync(any())).thenReturn(
+        CompletableFuture.failedFuture(new RuntimeException("Raw upload failed: HTTP 500")));
+    when(templateResolveService.resolveForV2("tpl_002")).thenReturn(
+        new V2TemplateRef("tpl_002", "0.1.2", "http://localhost/tpl_002.zip", "def456"));
+    when(boothProps.getGatewayBaseUrl()).thenReturn("http://127.0.0.1:9001");
+    when(aiGatewayV2Client.process(anyString(), anyString(), anyString(), anyString(),
+        eq("D:/data/raw/sess_006/IMG_001.jpg"), isNull(), anyString()))
+        .thenReturn(AiGatewayV2Client.Result.ok("/files/job6/preview.jpg", "/files/job6/final.jpg", null));
+
+    uploading.process(session);
+
+    assertNull(session.getError());
+    assertEquals("http://127.0.0.1:9001/files/job6/final.jpg", session.getFinalUrl());
+  }
+
+  @Test
+  void process_shouldSubmitAndThenDiscardWorkingImage() throws Exception {
+    RawPreprocessService preprocess = mock(RawPreprocessService.class);
+    AiProcessV2Service preprocessing = new AiProcessV2Service(
+        templateResolveService, aiGatewayV2Client, boothProps, pipelineMetrics, new AppProps(), null, preprocess);
+
+    Session session = new Session();
+    session.setSessionId("sess_007");
+    session.setTemplateId("tpl_002");
+    session.setAttemptIndex(0);
+    session.setState(SessionState.PROCESSING);
+    session.setStateEnteredAt(OffsetDateTime.now());
+    session.setRawUrl("D:/data/raw/sess_007/IMG_001.jpg");
+
+    V2TemplateRef ref = new V2TemplateRef("tpl_002", "0.1.2", "http://localhost/tpl_002.zip", "def456");
+    Path raw = Path.of("D:/data/raw/sess_007/IMG_001.jpg");
+    Path work = Path.of("D:/data/raw/sess_007/IMG_001_work.jpg");
+    when(templateResolveService.resolveForV2("tpl_002")).thenReturn(ref);
+    when(preprocess.isEnabled()).thenReturn(true);
+    when(preprocess.preprocess(eq(raw), eq(ref), anyLong())).thenReturn(work);
+    when(boothProps.getGatewayBaseUrl()).thenReturn("http://127.0.0.1:9001");
+    when(aiGatewayV2Client.process(anyString(), anyString(), anyString(), anyString(),
+        eq(work.toString()), isNull(), anyString()))
+        .thenReturn(AiGatewayV2Client.Result.ok("/files/job7/preview.jpg", "/files/job7/final.jpg", null));
+
+    preprocessing.process(session);
+
+    assertNull(session.getError());
+    assertEquals("D:/data/raw/sess_007/IMG_001.jpg", session.getRawUrl());
+    verify(preprocess).discard(raw, work);
+  }
+
+  @Test
+  void process_shouldRetryWithSameIdempotencyKey_whenPipelineUnreachable() {
+    AppProps appProps = new AppProps();
+    appProps.getAi().setV2RetryBaseMs(1L);
+    appProps.getAi().setV2RetryMaxBackoffMs(2L);
+    AiProcessV2Service retrying = new AiProcessV2Service(
+        templateResolveService, aiGatewayV2Client, boothProps, pipelineMetrics, appProps, null, null);
+
+    Session session = new Session();
+    session.setSessionId("sess_004");
+    session.setTemplateId("tpl_002");
+    session.setAttemptIndex(1);
+    session.setState(SessionState.PROCESSING);
+    session.setStateEnteredAt(OffsetDateTime.now());
+    session.setRawUrl("D:/data/raw/sess_004/IMG_001.jpg");
+
+    when(templateResolveService.resolveForV2("tpl_002")).thenReturn(
+        new V2TemplateRef("tpl_002", "0.1.2", "http://localhost/tpl_002.zip", "def456"));
+    when(boothProps.getGatewayBaseUrl()).thenReturn("http://127.0.0.1:9001");
+    when(aiGatewayV2Client.process(anyString(), anyString(), anyString(), anyString(), anyString(), isNull(),
+        eq("sess_004#1#tpl_002")))
+        .thenReturn(AiGatewayV2Client.Result.httpError(503, "UNREACHABLE", "Connection reset"))
+        .thenReturn(AiGatewayV2Client.Result.ok("/files/job9/preview.jpg", "/files/job9/final.jpg", null));
+
+    retrying.process(session);
+
+    assertNull(session.getError());
+    assertEquals("http://127.0.0.1:9001/files/job9/final.jpg", session.getFinalUrl());
+    verify(aiGatewayV2Client, times(2)).process(anyString(), anyString(), anyString(), anyString(), anyString(),
+        isNull(), eq("sess_004#1#tpl_002"));
+    verify(pipelineMetrics).increment("tpl_002@0.1.2", "retries", 1);
+  }
+}
@@ -0,0 +1,191 @@
+package com.mg.booth.service;
+
+import com.mg.booth.domain.Session;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for DeliveryImageCache (single upstream fetch, on-disk hits, verification,
+ * eager materialisation)
+ */
+class DeliveryImageCacheTest {
+
+  @TempDir
+  Path tmp;
+
+  private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 1, 2, 3, 4, 5};
+
+  @Test
+  void get_shouldFetchOnce_forConcurrentAndLaterRequests() throws Exception {
+    AtomicInteger hits = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/final.jpg", ex -> {
+      hits.incrementAndGet();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      ex.sendResponseHeaders(200, JPEG.length);
+      try (OutputStream out = ex.getResponseBody()) {
+        out.write(JPEG);
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/final.jpg";
+      DeliveryImageCache cache = new DeliveryImageCache(new StorageService(tmp), Runnable::run);
+
+      List<Future<Path>> futures = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        futures.add(pool.submit(() -> cache.get("s1", url)));
+      }
+      Thread.sleep(200);
+      release.countDown();
+      Path first = futures.get(0).get(5, TimeUnit.SECONDS);
+      for (Future<Path> f : futures) {
+        assertEquals(first, f.get(5, TimeUnit.SECONDS));
+      }
+
+      assertArrayEquals(JPEG, Files.readAllBytes(first));
+      assertTrue(first.getFileName().toString().endsWith(".jpg"));
+      assertTrue(first.startsWith(tmp.resolve("delivery/s1")));
+
+      server.stop(0);
+      assertEquals(first, cache.get("s1", url));
+      assertEquals(1, hits.get());
+    } finally {
+      server.stop(0);
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  void fetch_shouldRejectNonImage() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/error.html", ex -> {
+      byte[] body = "<html>oops</html>".getBytes();
+      ex.sendResponseHeaders(200, body.length);
+      try (OutputStream out = ex.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.start();
+    try {
+      DeliveryImageCache cache = new DeliveryImageCache(new StorageService(tmp), Runnable::run);
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/error.html";
+
+      assertThrows(IOException.class, () -> cache.fetch(url, tmp.resolve("out"), "1"));
+      try (var files = Files.list(tmp.resolve("out"))) {
+        assertEquals(0, files.count());
+      }
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  void materializeAsync_shouldPointSessionAtLocalCopies() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", ex -> {
+      ex.sendResponseHeaders(200, JPEG.length);
+      try (OutputStream out = ex.getResponseBody()) {
+        out.write(JPEG);
+      }
+    });
+    server.start();
+    try {
+      String base = "http://127.0.0.1:" + server.getAddress().getPort();
+      StorageService storage = new StorageService(tmp);
+      DeliveryImageCache cache = new DeliveryImageCache(storage, Runnable::run);
+
+      Session s = new Session();
+      s.setSessionId("s1");
+      s.setAttemptIndex(2);
+      s.setPreviewUrl(base + "/preview.jpg");
+      s.setFinalUrl(base + "/final.jpg");
+
+      cache.materializeAsync(s);
+
+      assertEquals("/files/final/s1/2.jpg", s.getFinalUrl());
+      assertEquals("/files/preview/s1/2.jpg", s.getPreviewUrl());
+      assertArrayEquals(JPEG, Files.readAllBytes(storage.finalFilePath("s1", 2)));
+      assertArrayEquals(JPEG, Files.readAllBytes(storage.previewFilePath("s1", 2)));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  void materializeAsync_shouldWriteFinalDir_whenDeliveryFetchIsInFlight() throws Exception {
+    AtomicInteger hits = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/final.jpg", ex -> {
+      hits.incrementAndGet();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      ex.sendResponseHeaders(200, JPEG.length);
+      try (OutputStream out = ex.getResponseBody()) {
+        out.write(JPEG);
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/final.jpg";
+      StorageService storage = new StorageService(tmp);
+      DeliveryImageCache cache = new DeliveryImageCache(storage, pool);
+
+      // 游客页先打开，下载请求已在拉取到 delivery 缓存
+      Future<Path> download = pool.submit(() -> cache.get("s1", url));
+      long waitUntil = System.currentTimeMillis() + 5_000L;
+      while (hits.get() == 0 && System.currentTimeMillis() < waitUntil) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, hits.get());
+
+      Session s = new Session();
+      s.setSessionId("s1");
+      s.setAttemptIndex(1);
+      s.setFinalUrl(url);
+      cache.materializeAsync(s);
+      release.countDown();
+
+      assertTrue(download.get(5, TimeUnit.SECONDS).startsWith(tmp.resolve("delivery/s1")));
+      waitUntil = System.currentTimeMillis() + 5_000L;
+      while (!"/files/final/s1/1.jpg".equals(s.getFinalUrl()) && System.currentTimeMillis() < waitUntil) {
+        Thread.sleep(10);
+      }
+      assertEquals("/files/final/s1/1.jpg", s.getFinalUrl());
+      assertArrayEquals(JPEG, Files.readAllBytes(storage.finalFilePath("s1", 1)));
+    } finally {
+      server.stop(0);
+      pool.shutdownNow();
+    }
+  }
+}
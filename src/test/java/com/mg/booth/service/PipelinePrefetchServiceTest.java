@@ -0,0 +1,93 @@
+package com.mg.booth.service;
+
+import com.mg.booth.config.AppProps;
+import com.mg.booth.config.BoothProps;
+import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.metrics.PipelineMetrics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for PipelinePrefetchService (readiness write-back to index.json)
+ */
+class PipelinePrefetchServiceTest {
+
+  @TempDir
+  Path dataDir;
+
+  private AppProps appProps;
+  private LocalTemplateIndexStore indexStore;
+  private AiGatewayV2Client client;
+  private PipelinePrefetchService service;
+
+  @BeforeEach
+  void setUp() {
+    BoothProps boothProps = new BoothProps();
+    boothProps.setDataDir(dataDir.toString());
+    appProps = new AppProps();
+    appProps.getTemplates().setIndexCommitWindowMs(0);
+    indexStore = new LocalTemplateIndexStore(appProps);
+    client = mock(AiGatewayV2Client.class);
+    service = new PipelinePrefetchService(
+        client, indexStore, boothProps, appProps, new PipelineMetrics(appProps), Runnable::run);
+
+    indexStore.update(indexFile(), index -> index.getItems().add(new LocalTemplateIndexStore.TemplateIndexItem(
+        "tpl_001", "0.1.0", "templates/tpl_001/0.1.0", Instant.now(), "abc", "http://x/p.zip")));
+  }
+
+  @Test
+  void prefetch_shouldMarkReady_thenNotReadyOnFailure() {
+    when(client.prefetchTemplate("tpl_001", "0.1.0", "http://x/p.zip", "sha256:abc"))
+        .thenReturn(AiGatewayV2Client.Result.ok(null, null, null).withClientMs(120L))
+        .thenReturn(AiGatewayV2Client.Result.httpError(503, "UNREACHABLE", "down"));
+
+    assertTrue(service.prefetch("tpl_001", "0.1.0", "http://x/p.zip", "sha256:abc"));
+    LocalTemplateIndexStore.TemplateIndexItem item = item();
+    assertEquals(Boolean.TRUE, item.getPipelineReady());
+    assertNotNull(item.getPipelineReadyAt());
+
+    assertFalse(service.prefetch("tpl_001", "0.1.0", "http://x/p.zip", "sha256:abc"));
+    item = item();
+    assertEquals(Boolean.FALSE, item.getPipelineReady());
+    assertNull(item.getPipelineReadyAt());
+  }
+
+  @Test
+  void prefetch_shouldNotMark_whenVersionWasReinstalledWithOtherChecksum() {
+    when(client.prefetchTemplate(any(), any(), any(), any()))
+        .thenReturn(AiGatewayV2Client.Result.ok(null, null, null));
+
+    // 预取期间同版本被重新安装成不同的包（checksum 变为 abc）
+    assertTrue(service.prefetch("tpl_001", "0.1.0", "http://x/old.zip", "sha256:def"));
+
+    assertNull(item().getPipelineReady());
+  }
+
+  @Test
+  void prefetchAsync_shouldSwallowFailures_andDoNothingWhenDisabled() {
+    when(client.prefetchTemplate(any(), any(), any(), any())).thenThrow(new IllegalStateException("boom"));
+
+    assertDoesNotThrow(() -> service.prefetchAsync("tpl_001", "0.1.0", "http://x/p.zip", "abc"));
+    assertNull(item().getPipelineReady());
+
+    appProps.getAi().setV2PrefetchOnInstall(false);
+    service.prefetchAsync("tpl_001", "0.1.0", "http://x/p.zip", "abc");
+    verify(client, times(1)).prefetchTemplate(any(), any(), any(), any());
+  }
+
+  private LocalTemplateIndexStore.TemplateIndexItem item() {
+    return indexStore.readIndex(indexFile()).orElseThrow().getItems().get(0);
+  }
+
+  private Path indexFile() {
+    return dataDir.resolve("index.json");
+  }
+}
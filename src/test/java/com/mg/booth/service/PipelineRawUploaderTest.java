@@ -0,0 +1,112 @@
+package com.mg.booth.service;
+
+import com.mg.booth.config.AppProps;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for PipelineRawUploader against a local HTTP server (chunked PUT, uploadId, failures)
+ */
+class PipelineRawUploaderTest {
+
+  @TempDir
+  Path tmp;
+
+  private HttpServer server;
+  private AppProps appProps;
+
+  private final AtomicReference<String> method = new AtomicReference<>();
+  private final AtomicReference<String> path = new AtomicReference<>();
+  private final AtomicReference<String> transferEncoding = new AtomicReference<>();
+  private final AtomicReference<String> fileName = new AtomicReference<>();
+  private final AtomicReference<byte[]> body = new AtomicReference<>();
+
+  private volatile int status = 200;
+  private volatile String response = "{}";
+
+  @BeforeEach
+  void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/pipeline/v2/uploads/", ex -> {
+      method.set(ex.getRequestMethod());
+      path.set(ex.getRequestURI().getPath());
+      transferEncoding.set(ex.getRequestHeaders().getFirst("Transfer-encoding"));
+      fileName.set(ex.getRequestHeaders().getFirst("X-File-Name"));
+      body.set(ex.getRequestBody().readAllBytes());
+      byte[] out = response.getBytes(StandardCharsets.UTF_8);
+      ex.sendResponseHeaders(status, out.length);
+      try (OutputStream os = ex.getResponseBody()) {
+        os.write(out);
+      }
+    });
+    server.start();
+
+    appProps = new AppProps();
+    appProps.getAi().setV2BaseUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    appProps.getAi().setV2TimeoutMs(5000L);
+    appProps.getAi().setV2UploadChunkBytes(4096);
+  }
+
+  @AfterEach
+  void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  void upload_shouldStreamFileAsChunkedPut_andUseServerUploadId() throws Exception {
+    byte[] raw = new byte[100_000];
+    new Random(42).nextBytes(raw);
+    Path file = tmp.resolve("IMG_001.jpg");
+    Files.write(file, raw);
+    response = "{\"uploadId\":\"srv_123\"}";
+
+    String uploadId = new PipelineRawUploader(appProps, Runnable::run).upload(file);
+
+    assertEquals("srv_123", uploadId);
+    assertEquals("PUT", method.get());
+    assertTrue(path.get().startsWith("/pipeline/v2/uploads/raw_"));
+    assertEquals("chunked", transferEncoding.get());
+    assertEquals("IMG_001.jpg", fileName.get());
+    assertArrayEquals(raw, body.get());
+  }
+
+  @Test
+  void upload_shouldKeepClientUploadId_whenResponseIsNotJson() throws Exception {
+    Path file = tmp.resolve("IMG_002.jpg");
+    Files.write(file, new byte[]{1, 2, 3});
+    response = "stored";
+
+    String uploadId = new PipelineRawUploader(appProps, Runnable::run).upload(file);
+
+    assertEquals(path.get().substring("/pipeline/v2/uploads/".length()), uploadId);
+  }
+
+  @Test
+  void uploadAsync_shouldFail_whenPipelineRejectsUpload() throws Exception {
+    Path file = tmp.resolve("IMG_003.jpg");
+    Files.write(file, new byte[]{1, 2, 3});
+    status = 500;
+
+    CompletableFuture<String> upload = new PipelineRawUploader(appProps, Runnable::run).uploadAsync(file);
+
+    ExecutionException e = assertThrows(ExecutionException.class, () -> upload.get(5, TimeUnit.SECONDS));
+    assertTrue(e.getCause().getMessage().contains("HTTP 500"));
+  }
+}
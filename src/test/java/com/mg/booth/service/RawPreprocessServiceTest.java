@@ -0,0 +1,153 @@
+package com.mg.booth.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mg.booth.config.AppProps;
+import com.mg.booth.domain.V2TemplateRef;
+import com.mg.booth.metrics.PipelineMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for RawPreprocessService (crop/scale geometry, EXIF orientation).
+ */
+class RawPreprocessServiceTest {
+
+  @TempDir
+  Path tmp;
+
+  private final ExecutorService pool = Executors.newSingleThreadExecutor();
+
+  @AfterEach
+  void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  void centerCrop_shouldCropLandscapeRawToPortraitRatio() {
+    // EOS R6 6000x4000 -> 3:4
+    int[] crop = RawPreprocessService.centerCrop(6000, 4000, 3, 4);
+
+    assertArrayEquals(new int[]{1500, 0, 3000, 4000}, crop);
+  }
+
+  @Test
+  void fitWithin_shouldDownsampleButNeverUpscale() {
+    assertArrayEquals(new int[]{960, 1280}, RawPreprocessService.fitWithin(3000, 4000, 960, 1280));
+    assertArrayEquals(new int[]{600, 800}, RawPreprocessService.fitWithin(600, 800, 960, 1280));
+  }
+
+  @Test
+  void targetOf_shouldReadRatioAndOutputSize() throws Exception {
+    var manifest = new ObjectMapper().readTree(
+        "{\"input\":{\"ratio\":\"3:4\"},\"output\":{\"width\":960,\"height\":1280}}");
+
+    RawPreprocessService.Target target = RawPreprocessService.targetOf(manifest).orElseThrow();
+
+    assertEquals(3, target.ratioW);
+    assertEquals(4, target.ratioH);
+    assertEquals(960, target.maxW);
+    assertEquals(1280, target.maxH);
+    assertTrue(RawPreprocessService.targetOf(new ObjectMapper().readTree("{}")).isEmpty());
+    assertEquals(Path.of("raw", "IMG_001_work.jpg"), RawPreprocessService.workFileOf(Path.of("raw", "IMG_001.jpg")));
+  }
+
+  @Test
+  void preprocess_shouldApplyExifOrientation_beforeCropping() throws Exception {
+    // 40x20 横图，EXIF Orientation=6（顺时针旋转 90°）后应为 20x40 竖图
+    Path raw = tmp.resolve("IMG_001.jpg");
+    Files.write(raw, withExifOrientation(jpeg(40, 20), 6));
+
+    AppProps appProps = new AppProps();
+    appProps.getPreprocess().setEnabled(true);
+    TemplateManifestService manifests = mock(TemplateManifestService.class);
+    when(manifests.readManifest("tpl_001", "0.1.0")).thenReturn(Optional.of(new ObjectMapper().readTree(
+        "{\"input\":{\"ratio\":\"1:2\"},\"output\":{\"width\":20,\"height\":40}}")));
+    RawPreprocessService service = new RawPreprocessService(
+        appProps, manifests, new PipelineMetrics(appProps), pool);
+
+    Path work = service.preprocess(raw, new V2TemplateRef("tpl_001", "0.1.0", "http://x/p.zip", "abc"), 5000L);
+
+    assertEquals(RawPreprocessService.workFileOf(raw), work);
+    BufferedImage out = ImageIO.read(work.toFile());
+    // 未按 EXIF 旋转时会从 40x20 中裁出 10x20
+    assertEquals(20, out.getWidth());
+    assertEquals(40, out.getHeight());
+
+    service.discard(raw, work);
+    assertFalse(Files.exists(work));
+    assertTrue(Files.exists(raw));
+  }
+
+  @Test
+  void preprocess_shouldReturnRaw_whenJobMissesTheBudget() throws Exception {
+    Path raw = tmp.resolve("IMG_002.jpg");
+    Files.write(raw, jpeg(40, 20));
+
+    AppProps appProps = new AppProps();
+    appProps.getPreprocess().setEnabled(true);
+    TemplateManifestService manifests = mock(TemplateManifestService.class);
+    when(manifests.readManifest("tpl_001", "0.1.0")).thenReturn(Optional.of(new ObjectMapper().readTree(
+        "{\"output\":{\"width\":20,\"height\":40}}")));
+    RawPreprocessService service = new RawPreprocessService(
+        appProps, manifests, new PipelineMetrics(appProps), pool);
+    // 唯一的工作线程被占用（模拟卡住的 OpenCV 作业），预处理任务只能排队
+    CountDownLatch release = new CountDownLatch(1);
+    pool.submit(() -> {
+      release.await(5, TimeUnit.SECONDS);
+      return null;
+    });
+
+    long startMs = System.currentTimeMillis();
+    Path work = service.preprocess(raw, new V2TemplateRef("tpl_001", "0.1.0", "http://x/p.zip", "abc"), 100L);
+
+    assertEquals(raw, work);
+    assertTrue(System.currentTimeMillis() - startMs < 5_000L);
+
+    // 超时的任务已取消：线程空出后也不会再写工作图
+    release.countDown();
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+    assertFalse(Files.exists(RawPreprocessService.workFileOf(raw)));
+  }
+
+  private static byte[] jpeg(int w, int h) throws Exception {
+    BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(img, "jpg", out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Insert an APP1 Exif segment (big-endian TIFF, one IFD entry: Orientation) after SOI.
+   */
+  private static byte[] withExifOrientation(byte[] jpeg, int orientation) {
+    byte[] app1 = {
+        (byte) 0xFF, (byte) 0xE1, 0x00, 0x22,
+        'E', 'x', 'i', 'f', 0x00, 0x00,
+        'M', 'M', 0x00, 0x2A, 0x00, 0x00, 0x00, 0x08,
+        0x00, 0x01,
+        0x01, 0x12, 0x00, 0x03, 0x00, 0x00, 0x00, 0x01, 0x00, (byte) orientation, 0x00, 0x00,
+        0x00, 0x00, 0x00, 0x00
+    };
+    byte[] out = new byte[jpeg.length + app1.length];
+    System.arraycopy(jpeg, 0, out, 0, 2);
+    System.arraycopy(app1, 0, out, 2, app1.length);
+    System.arraycopy(jpeg, 2, out, 2 + app1.length, jpeg.length - 2);
+    return out;
+  }
+}
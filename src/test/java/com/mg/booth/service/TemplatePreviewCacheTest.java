@@ -0,0 +1,65 @@
+package com.mg.booth.service;
+
+import com.mg.booth.config.AppProps;
+import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.device.TemplateCatalog;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for TemplatePreviewCache (width buckets, caching and ETag)
+ */
+class TemplatePreviewCacheTest {
+
+  @TempDir
+  Path tmp;
+
+  @Test
+  void bucketWidth_shouldRoundUpAndClamp() {
+    assertEquals(0, TemplatePreviewCache.bucketWidth(0));
+    assertEquals(240, TemplatePreviewCache.bucketWidth(240));
+    assertEquals(280, TemplatePreviewCache.bucketWidth(241));
+    assertEquals(40, TemplatePreviewCache.bucketWidth(1));
+    assertEquals(2000, TemplatePreviewCache.bucketWidth(99999));
+  }
+
+  @Test
+  void scaledSize_shouldKeepAspect() {
+    assertArrayEquals(new int[]{240, 320}, TemplatePreviewCache.scaledSize(1200, 1600, 240));
+    assertArrayEquals(new int[]{240, 1}, TemplatePreviewCache.scaledSize(4000, 10, 240));
+  }
+
+  @Test
+  void get_shouldCacheOriginal_withChecksumETag() throws Exception {
+    Path dir = tmp.resolve("templates/tpl_001/0.1.0");
+    Files.createDirectories(dir);
+    Files.write(dir.resolve("preview.png"), new byte[]{1, 2, 3});
+
+    TemplateManifestService manifestService = mock(TemplateManifestService.class);
+    when(manifestService.templateDir("tpl_001", "0.1.0")).thenReturn(dir);
+    TemplateCatalog catalog = mock(TemplateCatalog.class);
+    when(catalog.get("tpl_001", "0.1.0")).thenReturn(new LocalTemplateIndexStore.TemplateIndexItem(
+        "tpl_001", "0.1.0", "templates/tpl_001/0.1.0", Instant.now(), "0123456789abcdef0123", "http://x"));
+
+    TemplatePreviewCache cache = new TemplatePreviewCache(manifestService, catalog, new AppProps());
+
+    TemplatePreviewCache.Preview first = cache.get("tpl_001", "0.1.0", null).orElseThrow();
+    Files.delete(dir.resolve("preview.png"));
+    TemplatePreviewCache.Preview second = cache.get("tpl_001", "0.1.0", null).orElseThrow();
+
+    assertSame(first, second);
+    assertEquals("image/png", first.getContentType());
+    assertEquals("\"0123456789abcdef-w0\"", first.getEtag());
+
+    cache.clear();
+    assertTrue(cache.get("tpl_001", "0.1.0", null).isEmpty());
+  }
+}
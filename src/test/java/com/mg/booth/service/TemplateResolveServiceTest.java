@@ -1,7 +1,7 @@
 package com.mg.booth.service;
 
-import com.mg.booth.config.BoothProps;
 import com.mg.booth.device.LocalTemplateIndexStore;
+import com.mg.booth.device.TemplateCatalog;
 import com.mg.booth.domain.TemplateSummary;
 import com.mg.booth.domain.V2TemplateRef;
 import com.mg.booth.exception.ApiException;
@@ -12,14 +12,10 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
-import java.nio.file.Path;
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
-import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.when;
 
 /**
@@ -29,10 +25,7 @@ import static org.mockito.Mockito.when;
 class TemplateResolveServiceTest {
 
   @Mock
-  private BoothProps props;
-
-  @Mock
-  private LocalTemplateIndexStore indexStore;
+  private TemplateCatalog catalog;
 
   @Mock
   private TemplateService templateService;
@@ -57,10 +50,7 @@ class TemplateResolveServiceTest {
     );
     when(templateService.listTemplates()).thenReturn(summaries);
 
-    // LocalTemplateIndexStore: index contains matching item
-    LocalTemplateIndexStore.TemplateIndex index = new LocalTemplateIndexStore.TemplateIndex();
-    var items = new ArrayList<LocalTemplateIndexStore.TemplateIndexItem>();
-
+    // TemplateCatalog: catalog contains matching item
     LocalTemplateIndexStore.TemplateIndexItem item = new LocalTemplateIndexStore.TemplateIndexItem();
     item.setTemplateId("tpl_001");
     item.setVersion("0.2.0");
@@ -68,11 +58,8 @@ class TemplateResolveServiceTest {
     item.setInstalledAt(Instant.now());
     item.setDownloadUrl("http://localhost/templates/tpl_001-0.2.0.zip");
     item.setChecksum("abc123");
-    items.add(item);
 
-    index.setItems(items);
-
-    when(indexStore.readIndex(any(Path.class))).thenReturn(Optional.of(index));
+    when(catalog.get("tpl_001")).thenReturn(item);
 
     // Act
     V2TemplateRef ref = service.resolveForV2(templateId);
@@ -112,20 +99,9 @@ class TemplateResolveServiceTest {
     );
     when(templateService.listTemplates()).thenReturn(summaries);
 
-    // LocalTemplateIndexStore: index exists but does NOT contain the template
-    LocalTemplateIndexStore.TemplateIndex index = new LocalTemplateIndexStore.TemplateIndex();
-    var items = new ArrayList<LocalTemplateIndexStore.TemplateIndexItem>();
-
-    LocalTemplateIndexStore.TemplateIndexItem item = new LocalTemplateIndexStore.TemplateIndexItem();
-    item.setTemplateId("tpl_002");
-    item.setVersion("0.1.0");
-    item.setPath("templates/tpl_002/0.1.0");
-    item.setInstalledAt(Instant.now());
-    items.add(item);
-
-    index.setItems(items);
-
-    when(indexStore.readIndex(any(Path.class))).thenReturn(Optional.of(index));
+    // TemplateCatalog: only tpl_002 installed, lookup for tpl_001 misses
+    when(catalog.size()).thenReturn(1);
+    when(catalog.get("tpl_001")).thenReturn(null);
 
     // Act + Assert
     ApiException ex = assertThrows(ApiException.class, () -> service.resolveForV2(templateId));
@@ -0,0 +1,37 @@
+package com.mg.booth.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for TemplateSpriteService layout and versioning
+ */
+class TemplateSpriteServiceTest {
+
+  @Test
+  void layout_shouldPlaceTilesRowMajorInUniformCells() {
+    TemplateSpriteService.Layout layout = TemplateSpriteService.layout(
+        List.of(new int[]{240, 320}, new int[]{240, 300}, new int[]{200, 320}), 2);
+
+    assertEquals(480, layout.width);
+    assertEquals(640, layout.height);
+    assertArrayEquals(new int[]{0, 0, 240, 320}, layout.positions.get(0));
+    assertArrayEquals(new int[]{240, 0, 240, 300}, layout.positions.get(1));
+    assertArrayEquals(new int[]{0, 320, 200, 320}, layout.positions.get(2));
+
+    TemplateSpriteService.Layout empty = TemplateSpriteService.layout(List.of(), 4);
+    assertEquals(0, empty.width);
+    assertEquals(0, empty.height);
+  }
+
+  @Test
+  void versionOf_shouldChangeWithTilesAndLayout() {
+    String a = TemplateSpriteService.versionOf(List.of("tpl_001@0.1.0\"abc-w240\""), 240, 4);
+    assertEquals(a, TemplateSpriteService.versionOf(List.of("tpl_001@0.1.0\"abc-w240\""), 240, 4));
+    assertNotEquals(a, TemplateSpriteService.versionOf(List.of("tpl_001@0.1.0\"def-w240\""), 240, 4));
+    assertNotEquals(a, TemplateSpriteService.versionOf(List.of("tpl_001@0.1.0\"abc-w240\""), 240, 3));
+  }
+}